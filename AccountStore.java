@@ -0,0 +1,126 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Slot-indexed storage for account data: a holder name and a balance in
+ * cents per slot, with no object per account.
+ * <p>
+ * Slots are allocated by the caller and written once by {@link #add}. Balances
+ * are updated in place with compare-and-set, so many threads can work on
+ * different (or the same) accounts without locking. HeapAccountStore keeps
+ * everything in chunked arrays on the heap; TieredAccountStore keeps it in a
+ * memory-mapped file with a cache of hot accounts on the heap.
+ */
+abstract class AccountStore implements Closeable {
+
+    /**
+     * Stores a new account in the given slot.
+     * @param slot The slot to fill; must not already be in use.
+     * @param accountHolderName The name of the account holder.
+     * @param balanceCents The initial balance in cents.
+     */
+    abstract void add(int slot, String accountHolderName, long balanceCents);
+
+    /**
+     * Checks whether a slot holds an account.
+     * @param slot The slot to check.
+     * @return true if an account has been added in this slot.
+     */
+    boolean exists(int slot) {
+        return getAccountHolderName(slot) != null;
+    }
+
+    /**
+     * Returns the holder name stored in a slot.
+     * @param slot The slot to read.
+     * @return The name, or null if the slot is empty or out of range.
+     */
+    abstract String getAccountHolderName(int slot);
+
+    /**
+     * Returns the holder name stored in a slot, for a scan over all accounts.
+     * Unlike getAccountHolderName, this does not make the account look recently used.
+     * @param slot The slot to read.
+     * @return The name, or null if the slot is empty or out of range.
+     */
+    String scanAccountHolderName(int slot) {
+        return getAccountHolderName(slot);
+    }
+
+    /**
+     * Returns the current balance of an existing slot.
+     * @param slot The slot to read.
+     * @return The balance in cents.
+     */
+    abstract long getBalance(int slot);
+
+    /**
+     * Atomically replaces the balance of an existing slot if it still has the expected value.
+     * @param slot The slot to update.
+     * @param expectedCents The balance the caller based its update on.
+     * @param newCents The new balance.
+     * @return true if the balance was replaced.
+     */
+    abstract boolean compareAndSetBalance(int slot, long expectedCents, long newCents);
+
+    /**
+     * Atomically adds to the balance of an existing slot.
+     * @param slot The slot to update.
+     * @param amountCents The positive amount to add.
+     * @return The new balance, or -1 if it would overflow (the balance is then unchanged).
+     */
+    long deposit(int slot, long amountCents) {
+        while (true) {
+            long current = getBalance(slot);
+            if (amountCents > Long.MAX_VALUE - current) {
+                return -1;
+            }
+            long newBalance = current + amountCents;
+            if (compareAndSetBalance(slot, current, newBalance)) {
+                return newBalance;
+            }
+        }
+    }
+
+    /**
+     * Atomically subtracts from the balance of an existing slot if it has enough funds.
+     * The funds check is repeated on every retry, so concurrent withdrawals can never overdraw.
+     * @param slot The slot to update.
+     * @param amountCents The positive amount to subtract.
+     * @return The new balance, or -1 if the funds are insufficient (the balance is then unchanged).
+     */
+    long withdraw(int slot, long amountCents) {
+        while (true) {
+            long current = getBalance(slot);
+            if (amountCents > current) {
+                return -1;
+            }
+            long newBalance = current - amountCents;
+            if (compareAndSetBalance(slot, current, newBalance)) {
+                return newBalance;
+            }
+        }
+    }
+
+    /**
+     * Unconditionally sets the balance of an existing slot.
+     * Intended for recovery, before the store is shared with other threads.
+     * @param slot The slot to update.
+     * @param balanceCents The new balance in cents.
+     */
+    abstract void setBalance(int slot, long balanceCents);
+
+    /**
+     * Returns one past the highest slot that has been added.
+     * Slots below this value may still be empty if they were never filled.
+     * @return The slot high-water mark.
+     */
+    abstract int highWater();
+
+    /**
+     * Releases any resources outside the heap. The store must not be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+    }
+}
@@ -0,0 +1,321 @@
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bank-wide balance aggregates that are kept up to date as balances change,
+ * so reading them never scans the accounts.
+ * <p>
+ * Every balance change reports the balance before and after. The total held
+ * is a LongAdder. Balances are also counted in the log-linear buckets of
+ * LatencyHistogram (within about 6% of any value); a change that stays in
+ * its bucket, which is most small deposits and withdrawals, touches no
+ * bucket counter at all. The bucket counts answer "how many accounts hold at
+ * least X" by summing at most 960 counters.
+ * <p>
+ * For the richest accounts, the aggregates track every account whose balance
+ * is at or above a floor, chosen so that about twice the largest requested
+ * number of accounts qualify. Writers only touch the
+ * tracked set when a balance crosses the floor upwards; a top-N query reads
+ * the tracked accounts' current balances and sorts that small set. Tracked
+ * accounts that have fallen below the floor are pruned by queries, and the
+ * floor is only lowered (with one scan of all accounts) when too few
+ * accounts remain above it.
+ * <p>
+ * Updates from concurrent writers may be applied in any order; the counters
+ * are sums, so they converge once the writers are done.
+ */
+final class BalanceAggregates {
+
+    private final AccountStore store;
+    private final int tracked;
+    private final LongAdder totalCents = new LongAdder();
+    private final LongAdder accountCount = new LongAdder();
+    private final LongAdder[] buckets = new LongAdder[LatencyHistogram.BUCKET_COUNT];
+    // Slots of every account whose balance has reached the floor, and possibly a few that have since dropped.
+    private final Set<Integer> candidates = ConcurrentHashMap.newKeySet();
+    private volatile long floor = Long.MAX_VALUE;
+    // Held while the floor is re-chosen. Writers only ever try it, so they never wait.
+    private final ReentrantLock maintenance = new ReentrantLock();
+
+    /**
+     * Creates aggregates over the accounts that exist now. Balances must not
+     * change until this returns.
+     * @param store The accounts.
+     * @param tracked The largest top-N query to support.
+     */
+    BalanceAggregates(AccountStore store, int tracked) {
+        if (tracked <= 0) {
+            throw new IllegalArgumentException("tracked must be positive: " + tracked);
+        }
+        this.store = store;
+        this.tracked = tracked;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+        int highWater = store.highWater();
+        for (int slot = 0; slot < highWater; slot++) {
+            if (store.exists(slot)) {
+                long balance = store.getBalance(slot);
+                totalCents.add(balance);
+                accountCount.increment();
+                buckets[LatencyHistogram.bucketIndex(balance)].increment();
+            }
+        }
+        maintenance.lock();
+        try {
+            rechooseFloor();
+        } finally {
+            maintenance.unlock();
+        }
+    }
+
+    // --- Updates ---
+
+    /**
+     * Records a new account.
+     * @param slot The account's store slot.
+     * @param balanceCents Its opening balance.
+     */
+    void onOpened(int slot, long balanceCents) {
+        accountCount.increment();
+        totalCents.add(balanceCents);
+        buckets[LatencyHistogram.bucketIndex(balanceCents)].increment();
+        if (balanceCents >= floor && candidates.add(slot) && (slot & 1023) == 0
+                && candidates.size() > 4L * tracked && maintenance.tryLock()) {
+            // While the floor is low (e.g. in a new bank), every new account qualifies;
+            // raise it now and then so the tracked set stays small without queries.
+            try {
+                rechooseFloor();
+            } finally {
+                maintenance.unlock();
+            }
+        }
+    }
+
+    /**
+     * Records a change to one account's balance.
+     * @param slot The account's store slot.
+     * @param beforeCents The balance before the change.
+     * @param afterCents The balance after the change.
+     */
+    void onChanged(int slot, long beforeCents, long afterCents) {
+        totalCents.add(afterCents - beforeCents);
+        int from = LatencyHistogram.bucketIndex(beforeCents);
+        int to = LatencyHistogram.bucketIndex(afterCents);
+        if (from != to) {
+            buckets[from].decrement();
+            buckets[to].increment();
+        }
+        // The balance was written before the floor is read here, so a concurrent
+        // rechooseFloor either sees the new balance in its scan or we see its floor.
+        long limit = floor;
+        if (afterCents >= limit && beforeCents < limit) {
+            candidates.add(slot);
+        }
+    }
+
+    // --- Queries ---
+
+    /**
+     * Returns the total of all balances, in cents.
+     */
+    long getTotalCents() {
+        return totalCents.sum();
+    }
+
+    /**
+     * Returns the number of accounts.
+     */
+    long getAccountCount() {
+        return accountCount.sum();
+    }
+
+    /**
+     * Counts the accounts holding at least an amount. The count is exact when
+     * the amount is a bucket boundary or at least the tracking floor; otherwise
+     * the accounts in the amount's own bucket are estimated pro rata.
+     * @param thresholdCents The amount, in cents.
+     * @return The number of accounts with a balance of at least the amount.
+     */
+    long countAtLeast(long thresholdCents) {
+        if (thresholdCents <= 0) {
+            return getAccountCount();
+        }
+        if (thresholdCents >= floor) {
+            long count = 0;
+            for (int slot : candidates) {
+                if (store.getBalance(slot) >= thresholdCents) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        int bucket = LatencyHistogram.bucketIndex(thresholdCents);
+        long count = 0;
+        for (int i = bucket + 1; i < buckets.length; i++) {
+            count += buckets[i].sum();
+        }
+        long low = lowerBound(bucket);
+        long high = LatencyHistogram.bucketUpperBound(bucket);
+        double share = (double) (high - thresholdCents + 1) / (high - low + 1);
+        return count + Math.round(buckets[bucket].sum() * share);
+    }
+
+    /**
+     * Returns the slots of the richest accounts, richest first, ties broken by slot.
+     * @param n How many to return; at most the tracked number.
+     * @return Up to n slots.
+     */
+    int[] richest(int n) {
+        if (n > tracked) {
+            throw new IllegalArgumentException("Only the top " + tracked + " accounts are tracked: " + n);
+        }
+        long[] balances;
+        int[] slots;
+        int found;
+        for (int attempt = 0; ; attempt++) {
+            long limit = floor;
+            int capacity = candidates.size() + 16;
+            balances = new long[capacity];
+            slots = new int[capacity];
+            found = 0;
+            for (int slot : candidates) {
+                long balance = store.getBalance(slot);
+                if (balance >= limit && found < capacity) {
+                    balances[found] = balance;
+                    slots[found++] = slot;
+                }
+            }
+            // Settle for what is there after two re-chosen floors; concurrent writers keep moving it.
+            if (found >= n || limit == 0 || attempt == 2) {
+                if (candidates.size() > 4L * tracked && maintenance.tryLock()) {
+                    try {
+                        rechooseFloor();
+                    } finally {
+                        maintenance.unlock();
+                    }
+                }
+                break;
+            }
+            // Too many of the richest accounts have fallen below the floor.
+            maintenance.lock();
+            try {
+                if (floor == limit) {
+                    rechooseFloor();
+                }
+            } finally {
+                maintenance.unlock();
+            }
+        }
+        // Sort by balance descending, then slot, packed into one comparable index order.
+        Integer[] order = new Integer[found];
+        for (int i = 0; i < found; i++) {
+            order[i] = i;
+        }
+        long[] sortBalances = balances;
+        int[] sortSlots = slots;
+        Arrays.sort(order, (a, b) -> sortBalances[a] != sortBalances[b]
+                ? Long.compare(sortBalances[b], sortBalances[a]) : Integer.compare(sortSlots[a], sortSlots[b]));
+        int[] top = new int[Math.min(n, found)];
+        for (int i = 0; i < top.length; i++) {
+            top[i] = slots[order[i]];
+        }
+        return top;
+    }
+
+    /**
+     * Returns the balance below which accounts are not tracked for top-N queries.
+     */
+    long getFloor() {
+        return floor;
+    }
+
+    // --- Floor Maintenance ---
+
+    /**
+     * Re-chooses the floor so that about twice the tracked number of accounts
+     * are at or above it. Only if fewer than that remain at or above the
+     * current floor does it drop to the lower bound of the highest bucket
+     * that has enough, and every account is rescanned. Then the floor is
+     * raised to the exact balance of the (2 * tracked)th richest tracked
+     * account, and accounts below it are pruned. The caller holds the
+     * maintenance lock.
+     */
+    private void rechooseFloor() {
+        int wanted = 2 * tracked;
+        long limit = floor;
+        long[] held = new long[candidates.size() + 16];
+        int size = collectAtLeast(limit, held);
+        if (size < wanted) {
+            long count = 0;
+            int bucket = buckets.length - 1;
+            for (; bucket > 0; bucket--) {
+                count += buckets[bucket].sum();
+                if (count >= wanted) {
+                    break;
+                }
+            }
+            long bucketFloor = lowerBound(bucket);
+            if (bucketFloor < limit) {
+                floor = bucketFloor;
+                limit = bucketFloor;
+                int highWater = store.highWater();
+                for (int slot = 0; slot < highWater; slot++) {
+                    if (store.exists(slot) && store.getBalance(slot) >= bucketFloor) {
+                        candidates.add(slot);
+                    }
+                }
+                held = new long[candidates.size() + 16];
+                size = collectAtLeast(limit, held);
+            }
+        }
+        if (size > wanted) {
+            Arrays.sort(held, 0, size);
+            limit = Math.max(limit, held[size - wanted]);
+            floor = limit;
+        }
+        for (int slot : candidates) {
+            if (store.getBalance(slot) < limit) {
+                candidates.remove(slot);
+                // A writer may have lifted it back over the floor just before the removal.
+                if (store.getBalance(slot) >= limit) {
+                    candidates.add(slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the balances of the candidates at or above a limit, as many as fit.
+     * @return The number copied.
+     */
+    private int collectAtLeast(long limit, long[] held) {
+        int size = 0;
+        for (int slot : candidates) {
+            if (size == held.length) {
+                break;
+            }
+            long balance = store.getBalance(slot);
+            if (balance >= limit) {
+                held[size++] = balance;
+            }
+        }
+        return size;
+    }
+
+    private static long lowerBound(int bucket) {
+        return bucket == 0 ? 0 : LatencyHistogram.bucketUpperBound(bucket - 1) + 1;
+    }
+
+    /**
+     * Returns a one-line summary for reports.
+     */
+    @Override
+    public String toString() {
+        return getAccountCount() + " account(s), " + Money.format(getTotalCents()) + " held, "
+                + candidates.size() + " tracked at or above " + Money.format(floor);
+    }
+}
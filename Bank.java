@@ -0,0 +1,1276 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Manages a collection of BankAccount objects.
+ * This class handles operations like creating accounts and finding them.
+ * It is safe to use from many threads at once. Account data lives in a
+ * compact AccountStore indexed by the numeric part of the account number, so
+ * a lookup is an array index rather than a String hash, and balances are kept
+ * as long cents that are updated with compare-and-set.
+ * <p>
+ * A Bank can optionally log every change to a BankJournal. A journaled
+ * mutation holds a striped per-account lock while it updates the balance and
+ * appends its record, so for any one account the log order matches the
+ * balance order. Waiting for the record to reach disk happens after the lock
+ * is released, which lets concurrent mutations share one fsync.
+ * <p>
+ * Transfers lock the stripes of both accounts, always lower stripe first, so
+ * they can never deadlock. A transfer is journaled as a single record, so
+ * recovery never sees money leave one account without arriving in the other.
+ * <p>
+ * Operations never print. They return a TransactionResult and, once a
+ * listener has been added, publish a BankEvent to a lock-free ring buffer that
+ * a background thread drains, so console or audit output never runs on the
+ * thread that changed the balance.
+ */
+class Bank implements Closeable {
+    // Account numbers are "ACC" followed by a number starting here.
+    static final String ACCOUNT_PREFIX = "ACC";
+    static final int FIRST_ACCOUNT_NUMBER = 1001;
+    // The number of account lock stripes, a power of two, and its log2.
+    private static final int STRIPE_BITS = 10;
+    private static final int STRIPE_COUNT = 1 << STRIPE_BITS;
+
+    // Struct-of-arrays storage, with slot = account number - FIRST_ACCOUNT_NUMBER.
+    private final AccountStore store;
+    private final AtomicInteger accountCount = new AtomicInteger();
+    // The last account number handed out by this bank.
+    private final AtomicInteger accountNumberGenerator;
+    // Cents debited by transfers that could be neither credited nor returned; see transferLocked.
+    private final AtomicLong strandedCents = new AtomicLong();
+
+    // The write-ahead journal, or null if this bank is in-memory only.
+    private final BankJournal journal;
+    // Striped per-account locks. Transfers take two of them in stripe order;
+    // journaled or history-recording mutations take one to keep per-account log order.
+    private final Object[] accountStripes;
+    // Notification pipeline, started by the first listener.
+    private volatile BankEventPipeline events;
+    private static final int EVENT_RING_CAPACITY = 1 << 14;
+    // Operation metrics, or null until enabled.
+    private volatile BankMetrics metrics;
+    // Per-account transaction history, or null until enabled.
+    private volatile TransactionHistory history;
+    // Records per history segment, as a power of two.
+    private static final int HISTORY_SEGMENT_BITS = 16;
+    // Holder name search index, or null until enabled.
+    private volatile HolderNameIndex holderIndex;
+    // Incrementally maintained totals and balance ranks, or null until enabled.
+    private volatile BalanceAggregates aggregates;
+    // Outcomes of recent requests by client request ID, or null until enabled.
+    private volatile RequestDeduplicator deduplicator;
+    // Balances as of an end-of-day cutoff, while a batch is working from them; null otherwise.
+    private volatile CutoffBalances cutoff;
+    // Background checkpoint writer, started on demand.
+    private ScheduledExecutorService checkpointer;
+    private final Object checkpointLock = new Object();
+
+    /**
+     * Constructor to initialize an in-memory Bank object.
+     */
+    public Bank() {
+        this(null);
+    }
+
+    /**
+     * Constructor to initialize a Bank that logs every change to a journal.
+     * @param journal The journal to append to, or null for an in-memory bank.
+     */
+    public Bank(BankJournal journal) {
+        this(new HeapAccountStore(16), journal);
+    }
+
+    /**
+     * Creates a Bank over an existing store, e.g. one rebuilt from a journal.
+     */
+    Bank(AccountStore store, BankJournal journal) {
+        this(store, journal, FIRST_ACCOUNT_NUMBER - 1 + store.highWater());
+    }
+
+    /**
+     * Creates a Bank over an existing store.
+     * @param lastAccountNumber The highest account number already in use, or FIRST_ACCOUNT_NUMBER - 1.
+     */
+    private Bank(AccountStore store, BankJournal journal, int lastAccountNumber) {
+        this.store = store;
+        this.journal = journal;
+        this.accountNumberGenerator = new AtomicInteger(lastAccountNumber);
+        this.accountStripes = new Object[STRIPE_COUNT];
+        for (int i = 0; i < accountStripes.length; i++) {
+            accountStripes[i] = new Object();
+        }
+        int highWater = store.highWater();
+        for (int slot = 0; slot < highWater; slot++) {
+            if (store.exists(slot)) {
+                accountCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds a Bank from its journal and keeps appending to the same file.
+     * A torn record at the end of the file, left by a crash, is discarded.
+     * @param journalFile The journal file; created if it does not exist.
+     * @param policy When journal records are forced to disk.
+     * @return The restored Bank.
+     * @throws IOException if the journal cannot be read or opened.
+     */
+    public static Bank recover(Path journalFile, BankJournal.SyncPolicy policy) throws IOException {
+        return recover(journalFile, null, policy);
+    }
+
+    /**
+     * Rebuilds a Bank from its latest snapshot plus the journal records written
+     * after it, and keeps appending to the same journal. Only the journal tail
+     * is replayed, so startup time depends on the time since the last
+     * checkpoint rather than on the whole history.
+     * @param journalFile The journal file; created if it does not exist.
+     * @param snapshotFile The snapshot file, or null to replay the whole journal. It is fine if it does not exist yet.
+     * @param policy When journal records are forced to disk.
+     * @return The restored Bank.
+     * @throws IOException if the snapshot or journal cannot be read, or they do not match.
+     */
+    public static Bank recover(Path journalFile, Path snapshotFile, BankJournal.SyncPolicy policy) throws IOException {
+        return recover(journalFile, snapshotFile, policy, new HeapAccountStore(16));
+    }
+
+    /**
+     * Rebuilds a Bank into the given store, e.g. a TieredAccountStore.
+     * @param store An empty store, closed if recovery fails.
+     */
+    static Bank recover(Path journalFile, Path snapshotFile, BankJournal.SyncPolicy policy, AccountStore store)
+            throws IOException {
+        try {
+            return restore(journalFile, snapshotFile, policy, store);
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+    }
+
+    private static Bank restore(Path journalFile, Path snapshotFile, BankJournal.SyncPolicy policy,
+            AccountStore store) throws IOException {
+        AtomicInteger lastAccountNumber = new AtomicInteger(FIRST_ACCOUNT_NUMBER - 1);
+        long replayFrom = 0;
+        if (snapshotFile != null && Files.exists(snapshotFile)) {
+            BankSnapshot snapshot = BankSnapshot.load(snapshotFile, store);
+            lastAccountNumber.accumulateAndGet(snapshot.getNextAccountNumber(), Math::max);
+            replayFrom = snapshot.getJournalPosition();
+            long journalSize = Files.exists(journalFile) ? Files.size(journalFile) : 0;
+            if (journalSize < replayFrom) {
+                throw new IOException("Journal " + journalFile + " ends before the position recorded in snapshot "
+                        + snapshotFile);
+            }
+        }
+        long validEnd = Files.exists(journalFile)
+                ? BankJournal.replay(journalFile, replayFrom, new Restorer(store, lastAccountNumber))
+                : 0;
+        return new Bank(store, new BankJournal(journalFile, policy, 1024, 5, validEnd), lastAccountNumber.get());
+    }
+
+    /**
+     * Creates a new bank account and adds it to the bank's records.
+     * @param accountHolderName The name of the new account holder.
+     * @param initialDeposit The initial amount to deposit into the new account.
+     * @return The newly created BankAccount object.
+     */
+    public BankAccount createAccount(String accountHolderName, double initialDeposit) {
+        return createAccountCents(accountHolderName, Money.toCents(initialDeposit));
+    }
+
+    /**
+     * Creates a new bank account with an initial balance given in cents.
+     * @param accountHolderName The name of the new account holder.
+     * @param initialDepositCents The initial amount to deposit, in cents.
+     * @return The newly created BankAccount object.
+     */
+    public BankAccount createAccountCents(String accountHolderName, long initialDepositCents) {
+        int number = openAccount(accountHolderName, initialDepositCents);
+        return new BankAccount(this, store, number - FIRST_ACCOUNT_NUMBER, number);
+    }
+
+    /**
+     * Creates a new bank account at most once per request ID. A retry with the
+     * same ID returns the account the first attempt created.
+     * @param accountHolderName The name of the new account holder.
+     * @param initialDepositCents The initial amount to deposit, in cents.
+     * @param requestId The client's ID for this request, or RequestDeduplicator.NO_REQUEST.
+     * @return The new (or previously created) BankAccount object.
+     * @throws IllegalArgumentException if the ID was already used for a different request.
+     */
+    public BankAccount createAccountCents(String accountHolderName, long initialDepositCents, long requestId) {
+        int number = openAccount(accountHolderName, initialDepositCents, requestId);
+        return new BankAccount(this, store, number - FIRST_ACCOUNT_NUMBER, number);
+    }
+
+    /**
+     * Creates a new account and publishes an ACCOUNT_CREATED event.
+     * @param accountHolderName The name of the new account holder.
+     * @param initialDepositCents The initial balance, in cents.
+     * @return The numeric part of the new account number.
+     */
+    int openAccount(String accountHolderName, long initialDepositCents) {
+        // Generate a new unique account number.
+        return openAccount(accountNumberGenerator.incrementAndGet(), accountHolderName, initialDepositCents);
+    }
+
+    /**
+     * Creates a new account under a number the caller has reserved, e.g. from
+     * a ShardedBank shard's own range, and publishes an ACCOUNT_CREATED event.
+     * @param number The unused account number to create.
+     * @param accountHolderName The name of the new account holder.
+     * @param initialDepositCents The initial balance, in cents.
+     * @return The account number.
+     */
+    int openAccount(int number, String accountHolderName, long initialDepositCents) {
+        BankMetrics meter = metrics;
+        long start = meter == null ? 0 : System.nanoTime();
+        int slot = number - FIRST_ACCOUNT_NUMBER;
+        TransactionHistory log = history;
+        if (journal == null && log == null) {
+            store.add(slot, accountHolderName, initialDepositCents);
+        } else {
+            // Holding the account's stripe lock keeps the creation record ahead
+            // of any deposit or withdrawal record for the new account.
+            long position = 0;
+            synchronized (stripeFor(number)) {
+                store.add(slot, accountHolderName, initialDepositCents);
+                if (journal != null) {
+                    position = journal.appendCreate(number, accountHolderName, initialDepositCents);
+                }
+                if (log != null) {
+                    log.append(number, TransactionHistory.OPENING, initialDepositCents, initialDepositCents, 0);
+                }
+            }
+            if (journal != null) {
+                journal.awaitDurable(position);
+            }
+        }
+        accountCount.incrementAndGet();
+        BalanceAggregates totals = aggregates;
+        if (totals != null) {
+            totals.onOpened(slot, initialDepositCents);
+        }
+        HolderNameIndex index = holderIndex;
+        if (index != null) {
+            index.add(accountHolderName, number);
+        }
+        if (meter != null) {
+            meter.record(BankMetrics.Operation.CREATE_ACCOUNT, initialDepositCents, System.nanoTime() - start);
+        }
+        BankEventPipeline pipeline = events;
+        if (pipeline != null) {
+            pipeline.publish(BankEvent.Type.ACCOUNT_CREATED, TransactionStatus.SUCCESS, number, 0,
+                    initialDepositCents, initialDepositCents, accountHolderName);
+        }
+        return number;
+    }
+
+    /**
+     * Finds and returns a bank account based on the account number.
+     * This parses the numeric part and delegates to {@link #getAccount(int)}.
+     * @param accountNumber The number of the account to find, e.g. "ACC1001".
+     * @return The BankAccount object if found, otherwise null.
+     */
+    public BankAccount getAccount(String accountNumber) {
+        BankMetrics meter = metrics;
+        long start = meter == null ? 0 : System.nanoTime();
+        int number = parseAccountNumber(accountNumber);
+        BankAccount account = number < 0 ? null : findAccount(number);
+        if (meter != null) {
+            recordLookup(meter, account, start);
+        }
+        return account;
+    }
+
+    /**
+     * Finds and returns a bank account based on the numeric part of its account number.
+     * @param number The numeric part of the account number, e.g. 1001.
+     * @return The BankAccount object if found, otherwise null.
+     */
+    public BankAccount getAccount(int number) {
+        BankMetrics meter = metrics;
+        if (meter == null) {
+            return findAccount(number);
+        }
+        long start = System.nanoTime();
+        BankAccount account = findAccount(number);
+        recordLookup(meter, account, start);
+        return account;
+    }
+
+    private BankAccount findAccount(int number) {
+        int slot = number - FIRST_ACCOUNT_NUMBER;
+        if (slot < 0 || !store.exists(slot)) {
+            return null;
+        }
+        return new BankAccount(this, store, slot, number);
+    }
+
+    /**
+     * Returns one page of the accounts whose holder name starts with a prefix,
+     * ignoring case, ordered by name and then by account number.
+     * @param prefix The name prefix, e.g. "smi".
+     * @param after The getNext() position of the previous page, or null for the first page.
+     * @param limit The most accounts to return.
+     * @return The page.
+     */
+    public HolderNameIndex.Page findAccountsByHolder(String prefix, HolderNameIndex.Position after, int limit) {
+        return requireHolderIndex().page(prefix, after, limit, this::findAccount);
+    }
+
+    /**
+     * Streams the accounts whose holder name starts with a prefix, ignoring
+     * case, in name order, without collecting them first.
+     * @param prefix The name prefix.
+     * @return The matching accounts.
+     */
+    public Stream<BankAccount> streamAccountsByHolder(String prefix) {
+        return requireHolderIndex().stream(prefix, this::findAccount);
+    }
+
+    private HolderNameIndex requireHolderIndex() {
+        HolderNameIndex index = holderIndex;
+        if (index == null) {
+            throw new IllegalStateException("The holder name index is not enabled");
+        }
+        return index;
+    }
+
+    /**
+     * Returns the number of accounts currently held by the bank.
+     * @return The account count.
+     */
+    public int getAccountCount() {
+        return accountCount.get();
+    }
+
+    /**
+     * Returns the money debited by transfers that could be neither credited
+     * nor returned because lock-free deposits filled both accounts meanwhile;
+     * normally 0. It is not part of getTotalBalanceCents.
+     * @return The amount, in cents.
+     */
+    public long getStrandedCents() {
+        return strandedCents.get();
+    }
+
+    /**
+     * Sums the balances of all accounts. With aggregates enabled this reads
+     * one counter; otherwise it scans every account.
+     * The result is only exact when no deposits or withdrawals are in flight.
+     * @return The total of all balances, in cents.
+     */
+    public long getTotalBalanceCents() {
+        BalanceAggregates totals = aggregates;
+        if (totals != null) {
+            return totals.getTotalCents();
+        }
+        long total = 0;
+        int highWater = store.highWater();
+        for (int slot = 0; slot < highWater; slot++) {
+            if (store.exists(slot)) {
+                total += store.getBalance(slot);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Counts the accounts holding at least an amount, without scanning them.
+     * The aggregates must be enabled.
+     * @param thresholdCents The amount, in cents.
+     * @return The number of accounts with at least that balance; see BalanceAggregates.countAtLeast for accuracy.
+     */
+    public long countAccountsWithBalanceAtLeast(long thresholdCents) {
+        return requireAggregates().countAtLeast(thresholdCents);
+    }
+
+    /**
+     * Returns the accounts with the largest balances, richest first, without
+     * scanning every account. The aggregates must be enabled.
+     * @param n How many accounts to return; at most the number given to enableAggregates.
+     * @return Up to n accounts.
+     */
+    public List<BankAccount> getRichestAccounts(int n) {
+        int[] slots = requireAggregates().richest(n);
+        List<BankAccount> richest = new ArrayList<>(slots.length);
+        for (int slot : slots) {
+            richest.add(new BankAccount(this, store, slot, slot + FIRST_ACCOUNT_NUMBER));
+        }
+        return richest;
+    }
+
+    private BalanceAggregates requireAggregates() {
+        BalanceAggregates totals = aggregates;
+        if (totals == null) {
+            throw new IllegalStateException("Balance aggregates are not enabled");
+        }
+        return totals;
+    }
+
+    /**
+     * Adds to an account's balance, logging the change if this bank is journaled,
+     * and publishes a DEPOSIT event.
+     * @return The new balance in cents, or a negative TransactionStatus code.
+     */
+    long applyDeposit(int number, long amountCents) {
+        BankMetrics meter = metrics;
+        long start = meter == null ? 0 : System.nanoTime();
+        long result = depositOrCode(number, amountCents);
+        if (meter != null) {
+            meter.record(BankMetrics.Operation.DEPOSIT, result, System.nanoTime() - start);
+        }
+        publishOutcome(BankEvent.Type.DEPOSIT, result, number, 0, amountCents);
+        return result;
+    }
+
+    /**
+     * Subtracts from an account's balance, logging the change if this bank is
+     * journaled, and publishes a WITHDRAWAL event.
+     * @return The new balance in cents, or a negative TransactionStatus code.
+     */
+    long applyWithdrawal(int number, long amountCents) {
+        BankMetrics meter = metrics;
+        long start = meter == null ? 0 : System.nanoTime();
+        long result = withdrawOrCode(number, amountCents);
+        if (meter != null) {
+            meter.record(BankMetrics.Operation.WITHDRAWAL, result, System.nanoTime() - start);
+        }
+        publishOutcome(BankEvent.Type.WITHDRAWAL, result, number, 0, amountCents);
+        return result;
+    }
+
+    private long depositOrCode(int number, long amountCents) {
+        if (amountCents <= 0) {
+            return TransactionStatus.INVALID_AMOUNT.code();
+        }
+        if (!exists(number)) {
+            return TransactionStatus.UNKNOWN_ACCOUNT.code();
+        }
+        int slot = number - FIRST_ACCOUNT_NUMBER;
+        TransactionHistory log = history;
+        if (journal == null && log == null) {
+            freezeCutoff(slot);
+            long newBalance = store.deposit(slot, amountCents);
+            if (newBalance < 0) {
+                return TransactionStatus.BALANCE_OVERFLOW.code();
+            }
+            recordChange(slot, newBalance - amountCents, newBalance);
+            return newBalance;
+        }
+        long newBalance;
+        long position = 0;
+        synchronized (stripeFor(number)) {
+            freezeCutoff(slot);
+            newBalance = store.deposit(slot, amountCents);
+            if (newBalance < 0) {
+                return TransactionStatus.BALANCE_OVERFLOW.code();
+            }
+            if (journal != null) {
+                position = journal.appendBalanceChange(BankJournal.DEPOSIT, number, amountCents, newBalance);
+            }
+            if (log != null) {
+                log.append(number, TransactionHistory.DEPOSIT, amountCents, newBalance, 0);
+            }
+        }
+        recordChange(slot, newBalance - amountCents, newBalance);
+        if (journal != null) {
+            journal.awaitDurable(position);
+        }
+        return newBalance;
+    }
+
+    private long withdrawOrCode(int number, long amountCents) {
+        if (amountCents <= 0) {
+            return TransactionStatus.INVALID_AMOUNT.code();
+        }
+        if (!exists(number)) {
+            return TransactionStatus.UNKNOWN_ACCOUNT.code();
+        }
+        int slot = number - FIRST_ACCOUNT_NUMBER;
+        TransactionHistory log = history;
+        if (journal == null && log == null) {
+            freezeCutoff(slot);
+            long newBalance = store.withdraw(slot, amountCents);
+            if (newBalance < 0) {
+                return TransactionStatus.INSUFFICIENT_FUNDS.code();
+            }
+            recordChange(slot, newBalance + amountCents, newBalance);
+            return newBalance;
+        }
+        long newBalance;
+        long position = 0;
+        synchronized (stripeFor(number)) {
+            freezeCutoff(slot);
+            newBalance = store.withdraw(slot, amountCents);
+            if (newBalance < 0) {
+                return TransactionStatus.INSUFFICIENT_FUNDS.code();
+            }
+            if (journal != null) {
+                position = journal.appendBalanceChange(BankJournal.WITHDRAW, number, amountCents, newBalance);
+            }
+            if (log != null) {
+                log.append(number, TransactionHistory.WITHDRAWAL, -amountCents, newBalance, 0);
+            }
+        }
+        recordChange(slot, newBalance + amountCents, newBalance);
+        if (journal != null) {
+            journal.awaitDurable(position);
+        }
+        return newBalance;
+    }
+
+    /**
+     * Moves money between two accounts as one atomic step.
+     * @param fromAccountNumber The source account number, e.g. "ACC1001".
+     * @param toAccountNumber The destination account number.
+     * @param amount The amount to move.
+     * @return The outcome, with the source account's balance afterwards.
+     */
+    public TransactionResult transfer(String fromAccountNumber, String toAccountNumber, double amount) {
+        // Out-of-range amounts are passed on as 0 so they are rejected (and reported) like any invalid amount.
+        long amountCents = Money.toPositiveCents(amount);
+        return transferCents(parseAccountNumber(fromAccountNumber), parseAccountNumber(toAccountNumber), amountCents);
+    }
+
+    /**
+     * Moves money, given in cents, between two accounts as one atomic step.
+     * The source is debited only if it has enough funds, and the destination is
+     * credited before either account's stripe lock is released.
+     * @param fromNumber The numeric part of the source account number.
+     * @param toNumber The numeric part of the destination account number.
+     * @param amountCents The amount to move, in cents.
+     * @return The outcome, with the source account's balance afterwards.
+     */
+    public TransactionResult transferCents(int fromNumber, int toNumber, long amountCents) {
+        return toResult(applyTransfer(fromNumber, toNumber, amountCents), fromNumber);
+    }
+
+    /**
+     * Moves money between two accounts at most once per request ID. A retry
+     * with the same ID gets the first attempt's outcome.
+     * @param fromNumber The numeric part of the source account number.
+     * @param toNumber The numeric part of the destination account number.
+     * @param amountCents The amount to move, in cents.
+     * @param requestId The client's ID for this request, or RequestDeduplicator.NO_REQUEST.
+     * @return The outcome, with the source account's balance after the first attempt.
+     */
+    public TransactionResult transferCents(int fromNumber, int toNumber, long amountCents, long requestId) {
+        return toResult(applyTransfer(fromNumber, toNumber, amountCents, requestId), fromNumber);
+    }
+
+    /**
+     * Applies a batch of transfers with as few lock acquisitions as possible.
+     * Transfers are sorted by the pair of stripes they lock, and each stripe is
+     * held across a run of transfers that need it, so e.g. a payroll fan-out
+     * from one source takes the source's lock far less often than one transfer
+     * at a time would. Each transfer still succeeds or fails on its own, but
+     * they are applied in lock order rather than list order. With a journal,
+     * the batch waits once for durability at the end, which is where it pays
+     * off: under the PER_OPERATION sync policy a batch costs one fsync rather
+     * than one per transfer. In memory, holding a hot stripe across the batch
+     * makes other threads wait longer, and single transfers are faster.
+     * @param transfers The transfers to apply.
+     * @return The outcome of each transfer, in list order.
+     */
+    public TransactionResult[] transferAll(List<Transfer> transfers) {
+        BankMetrics meter = metrics;
+        long start = meter == null ? 0 : System.nanoTime();
+        int count = transfers.size();
+        long[] outcomes = new long[count];
+        // Sort indexes by (low stripe, high stripe), packed into one long per transfer:
+        // the stripe pair in the high 32 bits, the list index in the low 32.
+        long[] order = new long[count];
+        int valid = 0;
+        for (int i = 0; i < count; i++) {
+            Transfer transfer = transfers.get(i);
+            outcomes[i] = checkTransfer(transfer.getFromNumber(), transfer.getToNumber(), transfer.getAmountCents());
+            if (outcomes[i] != TRANSFER_OK) {
+                continue;
+            }
+            int a = stripeIndex(transfer.getFromNumber());
+            int b = stripeIndex(transfer.getToNumber());
+            long stripePair = ((long) Math.min(a, b) << STRIPE_BITS) | Math.max(a, b);
+            order[valid++] = (stripePair << 32) | i;
+        }
+        Arrays.sort(order, 0, valid);
+
+        long[] journalEnd = new long[1];
+        int i = 0;
+        while (i < valid) {
+            int low = (int) (order[i] >>> (32 + STRIPE_BITS));
+            synchronized (accountStripes[low]) {
+                while (i < valid && (int) (order[i] >>> (32 + STRIPE_BITS)) == low) {
+                    int stripePair = (int) (order[i] >>> 32);
+                    // Re-entering the low stripe's monitor when high == low is allowed.
+                    synchronized (accountStripes[stripePair & (STRIPE_COUNT - 1)]) {
+                        while (i < valid && (int) (order[i] >>> 32) == stripePair) {
+                            int index = (int) order[i];
+                            Transfer transfer = transfers.get(index);
+                            outcomes[index] = transferLocked(transfer.getFromNumber(), transfer.getToNumber(),
+                                    transfer.getAmountCents(), journalEnd);
+                            i++;
+                        }
+                    }
+                }
+            }
+        }
+        if (journal != null && journalEnd[0] > 0) {
+            journal.awaitDurable(journalEnd[0]);
+        }
+        if (meter != null) {
+            // The batch call itself always completes; each transfer's outcome is counted below.
+            meter.record(BankMetrics.Operation.TRANSFER_BATCH, TransactionStatus.SUCCESS.code(),
+                    System.nanoTime() - start);
+        }
+        // Results are built and events published after every lock is released.
+        TransactionResult[] results = new TransactionResult[count];
+        for (int j = 0; j < count; j++) {
+            Transfer transfer = transfers.get(j);
+            if (meter != null) {
+                meter.count(BankMetrics.Operation.TRANSFER, outcomes[j]);
+            }
+            publishOutcome(BankEvent.Type.TRANSFER, outcomes[j], transfer.getFromNumber(), transfer.getToNumber(),
+                    transfer.getAmountCents());
+            results[j] = toResult(outcomes[j], transfer.getFromNumber());
+        }
+        return results;
+    }
+
+    // Returned by checkTransfer when a transfer may go ahead.
+    private static final long TRANSFER_OK = 0;
+
+    /**
+     * Moves money between two accounts, waiting for journal durability if
+     * needed, and publishes a TRANSFER event.
+     * @return The source account's new balance in cents, or a negative TransactionStatus code.
+     */
+    long applyTransfer(int fromNumber, int toNumber, long amountCents) {
+        BankMetrics meter = metrics;
+        long start = meter == null ? 0 : System.nanoTime();
+        long result = checkTransfer(fromNumber, toNumber, amountCents);
+        if (result == TRANSFER_OK) {
+            int fromStripe = stripeIndex(fromNumber);
+            int toStripe = stripeIndex(toNumber);
+            long[] journalEnd = journal != null ? new long[1] : null;
+            synchronized (accountStripes[Math.min(fromStripe, toStripe)]) {
+                synchronized (accountStripes[Math.max(fromStripe, toStripe)]) {
+                    result = transferLocked(fromNumber, toNumber, amountCents, journalEnd);
+                }
+            }
+            if (result >= 0 && journal != null) {
+                journal.awaitDurable(journalEnd[0]);
+            }
+        }
+        if (meter != null) {
+            meter.record(BankMetrics.Operation.TRANSFER, result, System.nanoTime() - start);
+        }
+        publishOutcome(BankEvent.Type.TRANSFER, result, fromNumber, toNumber, amountCents);
+        return result;
+    }
+
+    /**
+     * Validates a transfer before any lock is taken.
+     * @return TRANSFER_OK or a negative TransactionStatus code.
+     */
+    private long checkTransfer(int fromNumber, int toNumber, long amountCents) {
+        if (amountCents <= 0) {
+            return TransactionStatus.INVALID_AMOUNT.code();
+        }
+        if (!exists(fromNumber) || !exists(toNumber)) {
+            return TransactionStatus.UNKNOWN_ACCOUNT.code();
+        }
+        if (fromNumber == toNumber) {
+            return TransactionStatus.SAME_ACCOUNT.code();
+        }
+        return TRANSFER_OK;
+    }
+
+    /**
+     * Moves the money and appends the journal and history records; the caller
+     * holds both accounts' stripe locks and waits for durability afterwards.
+     * <p>
+     * Without a journal or history, deposits and withdrawals take no lock, so
+     * they can race this even under the stripe locks. If the destination
+     * overflows although it had room when checked, the debit is undone; if a
+     * deposit to the source has meanwhile left no room for the undo either,
+     * the transfer fails with FAILED and the amount is counted in
+     * getStrandedCents, rather than waiting here with both locks held.
+     * @param journalEnd If not null, its element is raised to the journal
+     *                   position just after this transfer's record.
+     * @return The source account's new balance, or a negative TransactionStatus code.
+     */
+    private long transferLocked(int fromNumber, int toNumber, long amountCents, long[] journalEnd) {
+        int fromSlot = fromNumber - FIRST_ACCOUNT_NUMBER;
+        int toSlot = toNumber - FIRST_ACCOUNT_NUMBER;
+        CutoffBalances cut = cutoff;
+        if (cut != null) {
+            cut.freeze(fromSlot);
+            cut.freeze(toSlot);
+        }
+        if (store.getBalance(toSlot) > Long.MAX_VALUE - amountCents) {
+            // Checked first so that, with every change under the stripe locks, the debit never needs undoing.
+            return TransactionStatus.BALANCE_OVERFLOW.code();
+        }
+        long fromBalance = store.withdraw(fromSlot, amountCents);
+        if (fromBalance < 0) {
+            return TransactionStatus.INSUFFICIENT_FUNDS.code();
+        }
+        long toBalance = store.deposit(toSlot, amountCents);
+        if (toBalance < 0) {
+            // Undo the debit; nobody else can have journaled it yet.
+            if (store.deposit(fromSlot, amountCents) >= 0) {
+                return TransactionStatus.BALANCE_OVERFLOW.code();
+            }
+            strandedCents.addAndGet(amountCents);
+            recordChange(fromSlot, fromBalance + amountCents, fromBalance);
+            System.err.println("Transfer of " + Money.format(amountCents) + " from " + ACCOUNT_PREFIX + fromNumber
+                    + " could be neither credited to " + ACCOUNT_PREFIX + toNumber + " nor returned");
+            return TransactionStatus.FAILED.code();
+        }
+        if (journal != null) {
+            long position = journal.appendTransfer(fromNumber, toNumber, amountCents, fromBalance, toBalance);
+            if (journalEnd != null) {
+                journalEnd[0] = Math.max(journalEnd[0], position);
+            }
+        }
+        TransactionHistory log = history;
+        if (log != null) {
+            log.append(fromNumber, TransactionHistory.TRANSFER_OUT, -amountCents, fromBalance, toNumber);
+            log.append(toNumber, TransactionHistory.TRANSFER_IN, amountCents, toBalance, fromNumber);
+        }
+        recordChange(fromSlot, fromBalance + amountCents, fromBalance);
+        recordChange(toSlot, toBalance - amountCents, toBalance);
+        return fromBalance;
+    }
+
+    // --- Outcomes, Events and Metrics ---
+
+    /**
+     * Turns an internal balance-or-code value into a TransactionResult.
+     */
+    TransactionResult toResult(long balanceOrCode, int number) {
+        if (balanceOrCode >= 0) {
+            return TransactionResult.success(number, balanceOrCode);
+        }
+        return TransactionResult.rejected(TransactionStatus.fromCode(balanceOrCode), number, balanceOrNone(number));
+    }
+
+    private void publishOutcome(BankEvent.Type type, long balanceOrCode, int number, int otherNumber, long amountCents) {
+        BankEventPipeline pipeline = events;
+        if (pipeline == null) {
+            return;
+        }
+        if (balanceOrCode >= 0) {
+            pipeline.publish(type, TransactionStatus.SUCCESS, number, otherNumber, amountCents, balanceOrCode, null);
+        } else {
+            pipeline.publish(type, TransactionStatus.fromCode(balanceOrCode), number, otherNumber, amountCents,
+                    balanceOrNone(number), null);
+        }
+    }
+
+    private void recordChange(int slot, long beforeCents, long afterCents) {
+        BalanceAggregates totals = aggregates;
+        if (totals != null) {
+            totals.onChanged(slot, beforeCents, afterCents);
+        }
+    }
+
+    private long balanceOrNone(int number) {
+        return exists(number) ? store.getBalance(number - FIRST_ACCOUNT_NUMBER) : TransactionResult.NO_BALANCE;
+    }
+
+    /**
+     * Subscribes a listener to this bank's events. The first subscription
+     * starts the event pipeline; until then, operations publish nothing.
+     * @param listener The listener to add.
+     */
+    public synchronized void addListener(BankEventListener listener) {
+        if (events == null) {
+            events = new BankEventPipeline(EVENT_RING_CAPACITY);
+        }
+        events.addListener(listener);
+    }
+
+    /**
+     * Unsubscribes a listener from this bank's events.
+     * @param listener The listener to remove.
+     */
+    public synchronized void removeListener(BankEventListener listener) {
+        if (events != null) {
+            events.removeListener(listener);
+        }
+    }
+
+    /**
+     * Starts measuring this bank's operations, if that is not already on.
+     * Until then, operations do not even read the clock.
+     * @return The bank's metrics.
+     */
+    public synchronized BankMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new BankMetrics(this);
+        }
+        return metrics;
+    }
+
+    /**
+     * Starts recording every balance change in a per-account history, if that
+     * is not already on. Changes made before this call are not recorded, and
+     * the history is not rebuilt from the journal on recovery. While it is on,
+     * deposits and withdrawals take their account's stripe lock so that each
+     * account's records are appended in balance order.
+     * @param spillDirectory Where segments past the retention are written.
+     * @param retentionMillis How long recent records stay on the heap.
+     * @param maxResidentSegments The most full segments kept on the heap at once.
+     * @return The bank's history.
+     * @throws IOException if the spill directory cannot be created.
+     */
+    public synchronized TransactionHistory enableHistory(Path spillDirectory, long retentionMillis,
+            int maxResidentSegments) throws IOException {
+        if (history == null) {
+            history = new TransactionHistory(spillDirectory, retentionMillis, maxResidentSegments,
+                    HISTORY_SEGMENT_BITS);
+        }
+        return history;
+    }
+
+    /**
+     * Returns an account's recorded transactions within a time range, oldest first.
+     * @param number The numeric part of the account number.
+     * @param fromMillis The start of the range, in epoch milliseconds.
+     * @param toMillis The end of the range, inclusive.
+     * @return The matching transactions.
+     */
+    public TransactionHistory.Statement getStatement(int number, long fromMillis, long toMillis) {
+        TransactionHistory log = history;
+        if (log == null) {
+            throw new IllegalStateException("Transaction history is not enabled");
+        }
+        return log.statement(number, fromMillis, toMillis);
+    }
+
+    /**
+     * Starts indexing accounts by holder name, if that is not already on, and
+     * indexes the accounts that already exist. Accounts created concurrently
+     * are indexed either by openAccount or by this scan, and never lost.
+     * @return The bank's holder name index.
+     */
+    public synchronized HolderNameIndex enableHolderIndex() {
+        if (holderIndex == null) {
+            HolderNameIndex index = new HolderNameIndex();
+            // Published before the scan, so an account the scan misses sees the index when it is created.
+            holderIndex = index;
+            int highWater = store.highWater();
+            String[] names = new String[highWater];
+            int[] numbers = new int[highWater];
+            int count = 0;
+            for (int slot = 0; slot < highWater; slot++) {
+                if (store.exists(slot)) {
+                    names[count] = store.scanAccountHolderName(slot);
+                    numbers[count++] = slot + FIRST_ACCOUNT_NUMBER;
+                }
+            }
+            index.addAll(names, numbers, count);
+        }
+        return holderIndex;
+    }
+
+    /**
+     * Starts maintaining bank-wide totals and balance ranks as balances
+     * change, if that is not already on. This counts the existing accounts
+     * once, so it should be called before the bank takes concurrent traffic;
+     * changes in flight during the call may be counted twice or not at all.
+     * @param tracked The largest top-N query getRichestAccounts must answer.
+     * @return The bank's aggregates.
+     */
+    public synchronized BalanceAggregates enableAggregates(int tracked) {
+        if (aggregates == null) {
+            aggregates = new BalanceAggregates(store, tracked);
+        }
+        return aggregates;
+    }
+
+    /**
+     * Takes an end-of-day cutoff: until endCutoff, every account's balance as
+     * of now is kept aside before its first change. The cutoff is published
+     * while every stripe lock is held, so no transfer straddles it.
+     * @return The balances as of the cutoff.
+     * @throws IllegalStateException if a cutoff is already held.
+     */
+    synchronized CutoffBalances beginCutoff() {
+        if (cutoff != null) {
+            throw new IllegalStateException("An end-of-day cutoff is already in progress");
+        }
+        CutoffBalances cut = new CutoffBalances(store, store.highWater());
+        publishCutoff(0, cut);
+        return cut;
+    }
+
+    /**
+     * Releases a cutoff taken by beginCutoff; later changes no longer freeze balances.
+     * @param cut The cutoff to release.
+     */
+    synchronized void endCutoff(CutoffBalances cut) {
+        if (cutoff == cut) {
+            cutoff = null;
+        }
+    }
+
+    // Takes the stripe locks in index order, the same order transfers use, and publishes under all of them.
+    private void publishCutoff(int stripe, CutoffBalances cut) {
+        if (stripe == accountStripes.length) {
+            cutoff = cut;
+            return;
+        }
+        synchronized (accountStripes[stripe]) {
+            publishCutoff(stripe + 1, cut);
+        }
+    }
+
+    private void freezeCutoff(int slot) {
+        CutoffBalances cut = cutoff;
+        if (cut != null) {
+            cut.freeze(slot);
+        }
+    }
+
+    private static void recordLookup(BankMetrics meter, BankAccount account, long start) {
+        meter.record(BankMetrics.Operation.GET_ACCOUNT,
+                account == null ? TransactionStatus.UNKNOWN_ACCOUNT.code() : 0, System.nanoTime() - start);
+    }
+
+    /**
+     * Waits until every listener has seen all events published so far.
+     */
+    public void flushEvents() {
+        BankEventPipeline pipeline = events;
+        if (pipeline != null) {
+            pipeline.flush();
+        }
+    }
+
+    /**
+     * Returns this bank's store if it keeps accounts in a memory-mapped file.
+     * @return The tiered store, or null if the accounts are all on the heap.
+     */
+    TieredAccountStore getTieredStore() {
+        return store instanceof TieredAccountStore ? (TieredAccountStore) store : null;
+    }
+
+    /**
+     * Checks whether an account with the given number exists.
+     * @param number The numeric part of the account number.
+     * @return true if the account exists.
+     */
+    boolean exists(int number) {
+        int slot = number - FIRST_ACCOUNT_NUMBER;
+        return slot >= 0 && store.exists(slot);
+    }
+
+    private int stripeIndex(int number) {
+        return number & (STRIPE_COUNT - 1);
+    }
+
+    private Object stripeFor(int number) {
+        return accountStripes[stripeIndex(number)];
+    }
+
+    /**
+     * Writes a snapshot of all accounts without blocking deposits or withdrawals.
+     * The journal position is read before the accounts are scanned. Every
+     * journaled change updates the balance before appending its record, so all
+     * changes up to that position are in the scan; later ones are re-applied
+     * from the journal on recovery.
+     * @param snapshotFile The snapshot file to write; replaced atomically.
+     * @return The number of accounts written.
+     * @throws IOException if the journal cannot be synced or the snapshot cannot be written.
+     */
+    public long checkpoint(Path snapshotFile) throws IOException {
+        if (journal == null) {
+            throw new IllegalStateException("Checkpoints need a journaled bank");
+        }
+        synchronized (checkpointLock) {
+            long position = journal.position();
+            // The snapshot must never point past the durable end of the journal.
+            journal.sync(position);
+            return BankSnapshot.write(snapshotFile, store, position, accountNumberGenerator.get());
+        }
+    }
+
+    /**
+     * Starts writing a checkpoint periodically on a background thread.
+     * @param snapshotFile The snapshot file to write.
+     * @param periodMillis The time between checkpoints.
+     */
+    public synchronized void startCheckpoints(Path snapshotFile, long periodMillis) {
+        if (checkpointer != null) {
+            throw new IllegalStateException("Checkpoints are already running");
+        }
+        checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bank-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint(snapshotFile);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Checkpoint failed: " + e.getMessage());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns how many times the journal has been forced to disk.
+     * @return The fsync count, or 0 for an in-memory bank.
+     */
+    long getJournalSyncCount() {
+        return journal == null ? 0 : journal.getSyncCount();
+    }
+
+    /**
+     * Stops background work and flushes and closes the journal, if there is one.
+     * @throws IOException if the final flush fails.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (checkpointer != null) {
+                checkpointer.shutdownNow();
+            }
+            if (events != null) {
+                events.close();
+            }
+            if (metrics != null) {
+                metrics.close();
+            }
+            if (history != null) {
+                history.close();
+            }
+        }
+        if (journal != null) {
+            // Wait for a checkpoint in progress, so it does not sync a closed journal.
+            synchronized (checkpointLock) {
+                journal.close();
+            }
+        }
+        store.close();
+    }
+
+    /**
+     * Extracts the numeric part of an account number without allocating.
+     * @param accountNumber An account number such as "ACC1001".
+     * @return The numeric part, or -1 if the text is not a well-formed account number.
+     */
+    static int parseAccountNumber(String accountNumber) {
+        if (accountNumber == null || !accountNumber.startsWith(ACCOUNT_PREFIX)) {
+            return -1;
+        }
+        int length = accountNumber.length();
+        // Ten digits could overflow an int, so anything longer than nine is rejected.
+        if (length == ACCOUNT_PREFIX.length() || length > ACCOUNT_PREFIX.length() + 9) {
+            return -1;
+        }
+        int number = 0;
+        for (int i = ACCOUNT_PREFIX.length(); i < length; i++) {
+            char c = accountNumber.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
+    // --- Request Deduplication ---
+
+    /**
+     * Starts remembering the outcome of every mutation that carries a request
+     * ID, if that is not already on, so that a client retrying after a
+     * timeout gets the original outcome instead of a second application.
+     * Outcomes are kept in memory only and are not recovered after a restart.
+     * @param windowMillis How long an outcome is remembered.
+     * @param capacity The most outcomes remembered at once.
+     * @return The bank's deduplicator.
+     */
+    public synchronized RequestDeduplicator enableRequestDeduplication(long windowMillis, int capacity) {
+        if (deduplicator == null) {
+            deduplicator = new RequestDeduplicator(windowMillis, capacity);
+        }
+        return deduplicator;
+    }
+
+    /**
+     * Reports whether mutations with a request ID are deduplicated.
+     * @return false until enableRequestDeduplication has been called.
+     */
+    public boolean isDeduplicatingRequests() {
+        return deduplicator != null;
+    }
+
+    /**
+     * Creates an account at most once per request ID.
+     * @return The numeric part of the account number.
+     * @throws IllegalArgumentException if the ID was already used for a different request.
+     */
+    int openAccount(String accountHolderName, long initialDepositCents, long requestId) {
+        long number = applyOpen(accountHolderName, initialDepositCents, requestId);
+        if (number < 0) {
+            throw new IllegalArgumentException("Request ID " + requestId + " was already used for a different request");
+        }
+        return (int) number;
+    }
+
+    /**
+     * Creates an account at most once per request ID.
+     * @return The numeric part of the account number, or
+     *         TransactionStatus.REQUEST_ID_REUSED's code if the ID was already
+     *         used for a different request.
+     */
+    long applyOpen(String accountHolderName, long initialDepositCents, long requestId) {
+        return applyOnce(requestId, BankEvent.Type.ACCOUNT_CREATED, 0, 0, initialDepositCents, accountHolderName);
+    }
+
+    /**
+     * Deposits at most once per request ID.
+     * @return The new balance in cents, or a negative TransactionStatus code.
+     */
+    long applyDeposit(int number, long amountCents, long requestId) {
+        return applyOnce(requestId, BankEvent.Type.DEPOSIT, number, 0, amountCents, null);
+    }
+
+    /**
+     * Withdraws at most once per request ID.
+     * @return The new balance in cents, or a negative TransactionStatus code.
+     */
+    long applyWithdrawal(int number, long amountCents, long requestId) {
+        return applyOnce(requestId, BankEvent.Type.WITHDRAWAL, number, 0, amountCents, null);
+    }
+
+    /**
+     * Transfers at most once per request ID.
+     * @return The source account's new balance in cents, or a negative TransactionStatus code.
+     */
+    long applyTransfer(int fromNumber, int toNumber, long amountCents, long requestId) {
+        return applyOnce(requestId, BankEvent.Type.TRANSFER, fromNumber, toNumber, amountCents, null);
+    }
+
+    /**
+     * Applies a mutation unless one with the same request ID was applied
+     * within the deduplication window, in which case its outcome is returned
+     * again and nothing changes (no journal record, event or metric). If that
+     * earlier request was a different mutation, nothing changes either, and
+     * REQUEST_ID_REUSED is returned instead of an outcome that is not this
+     * request's.
+     */
+    private long applyOnce(long requestId, BankEvent.Type type, int number, int otherNumber, long amountCents,
+            String accountHolderName) {
+        if (requestId == RequestDeduplicator.NO_REQUEST) {
+            return apply(type, number, otherNumber, amountCents, accountHolderName);
+        }
+        if (requestId < 0) {
+            throw new IllegalArgumentException("Request IDs must be positive: " + requestId);
+        }
+        RequestDeduplicator seen = requireDeduplicator();
+        long previous = seen.claim(requestId, fingerprint(type, number, otherNumber, amountCents, accountHolderName));
+        if (previous == RequestDeduplicator.REUSED) {
+            return TransactionStatus.REQUEST_ID_REUSED.code();
+        }
+        if (previous != RequestDeduplicator.NEW) {
+            return previous;
+        }
+        boolean completed = false;
+        try {
+            long result = apply(type, number, otherNumber, amountCents, accountHolderName);
+            seen.complete(requestId, result);
+            completed = true;
+            return result;
+        } finally {
+            if (!completed) {
+                seen.abandon(requestId);
+            }
+        }
+    }
+
+    private long apply(BankEvent.Type type, int number, int otherNumber, long amountCents, String accountHolderName) {
+        switch (type) {
+            case ACCOUNT_CREATED:
+                return openAccount(accountHolderName, amountCents);
+            case DEPOSIT:
+                return applyDeposit(number, amountCents);
+            case WITHDRAWAL:
+                return applyWithdrawal(number, amountCents);
+            default:
+                return applyTransfer(number, otherNumber, amountCents);
+        }
+    }
+
+    /**
+     * Hashes what a mutation does, so a reused request ID can be told from a retry.
+     */
+    private static long fingerprint(BankEvent.Type type, int number, int otherNumber, long amountCents,
+            String accountHolderName) {
+        long hash = type.ordinal();
+        hash = hash * 0x9E3779B97F4A7C15L + number;
+        hash = hash * 0x9E3779B97F4A7C15L + otherNumber;
+        hash = hash * 0x9E3779B97F4A7C15L + amountCents;
+        return hash * 0x9E3779B97F4A7C15L + (accountHolderName == null ? 0 : accountHolderName.hashCode());
+    }
+
+    private RequestDeduplicator requireDeduplicator() {
+        RequestDeduplicator seen = deduplicator;
+        if (seen == null) {
+            throw new IllegalStateException("Request deduplication is not enabled");
+        }
+        return seen;
+    }
+
+    /**
+     * Applies journal records to a store during recovery.
+     * Balance records carry the balance after the change, so replay sets it
+     * directly; re-applying a change already captured in a snapshot is harmless.
+     */
+    private static class Restorer implements BankJournal.RecordHandler {
+        private final AccountStore store;
+        private final AtomicInteger lastAccountNumber;
+
+        Restorer(AccountStore store, AtomicInteger lastAccountNumber) {
+            this.store = store;
+            this.lastAccountNumber = lastAccountNumber;
+        }
+
+        @Override
+        public void onCreate(int number, String accountHolderName, long balanceCents) {
+            // The account may already be in the snapshot; adding it again just resets it.
+            store.add(number - FIRST_ACCOUNT_NUMBER, accountHolderName, balanceCents);
+            // Never hand out a number that is already in the journal.
+            lastAccountNumber.accumulateAndGet(number, Math::max);
+        }
+
+        @Override
+        public void onBalanceChange(byte type, int number, long amountCents, long balanceAfterCents) {
+            store.setBalance(number - FIRST_ACCOUNT_NUMBER, balanceAfterCents);
+        }
+
+        @Override
+        public void onTransfer(int fromNumber, int toNumber, long amountCents, long fromBalanceAfterCents,
+                long toBalanceAfterCents) {
+            store.setBalance(fromNumber - FIRST_ACCOUNT_NUMBER, fromBalanceAfterCents);
+            store.setBalance(toNumber - FIRST_ACCOUNT_NUMBER, toBalanceAfterCents);
+        }
+    }
+}
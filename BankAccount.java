@@ -0,0 +1,187 @@
+/**
+ * Represents a single bank account.
+ * This class encapsulates the account's properties and operations.
+ * A BankAccount is a lightweight handle onto one slot of an AccountStore;
+ * the balance itself is held there as a long number of cents. Balance updates
+ * are lock-free: each one is a compare-and-set retry loop, so concurrent
+ * deposits never lose updates and a withdrawal's funds check and debit happen
+ * as one atomic step. Updates go through the owning Bank, if any, so they are
+ * journaled and published to its listeners. Operations never print; they
+ * return a TransactionResult instead.
+ */
+class BankAccount {
+    // --- Private Attributes ---
+    // Encapsulation: Data is hidden and can only be accessed through methods.
+    private final Bank bank;
+    private final AccountStore store;
+    private final int slot;
+    private final int number;
+
+    /**
+     * Constructor to initialize a standalone BankAccount object that is not
+     * managed by a Bank.
+     * @param accountNumber The unique number for the account, e.g. "ACC1001".
+     * @param accountHolderName The name of the account holder.
+     * @param initialBalance The starting balance of the account.
+     */
+    public BankAccount(String accountNumber, String accountHolderName, double initialBalance) {
+        this.number = Bank.parseAccountNumber(accountNumber);
+        if (number < 0) {
+            throw new IllegalArgumentException("Invalid account number: " + accountNumber);
+        }
+        // A standalone account gets its own single-slot store.
+        this.bank = null;
+        this.store = new HeapAccountStore(0);
+        this.slot = 0;
+        store.add(slot, accountHolderName, Money.toCents(initialBalance));
+    }
+
+    /**
+     * Creates a handle onto an account that already exists in a bank's store.
+     */
+    BankAccount(Bank bank, AccountStore store, int slot, int number) {
+        this.bank = bank;
+        this.store = store;
+        this.slot = slot;
+        this.number = number;
+    }
+
+    // --- Public Getters ---
+    // Provides read-only access to account properties.
+    public String getAccountNumber() {
+        return Bank.ACCOUNT_PREFIX + number;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public String getAccountHolderName() {
+        return store.getAccountHolderName(slot);
+    }
+
+    public long getBalanceCents() {
+        return store.getBalance(slot);
+    }
+
+    public double getBalance() {
+        return Money.toUnits(getBalanceCents());
+    }
+
+    /**
+     * Returns this account's transactions within a time range, oldest first.
+     * The owning bank must have history enabled.
+     * @param fromMillis The start of the range, in epoch milliseconds.
+     * @param toMillis The end of the range, inclusive.
+     * @return The matching transactions.
+     */
+    public TransactionHistory.Statement getStatement(long fromMillis, long toMillis) {
+        if (bank == null) {
+            throw new IllegalStateException("A standalone account keeps no history");
+        }
+        return bank.getStatement(number, fromMillis, toMillis);
+    }
+
+    /**
+     * Deposits a specified amount into the account.
+     * The amount must be positive.
+     * @param amount The amount to deposit.
+     * @return The outcome, with the balance afterwards.
+     */
+    public TransactionResult deposit(double amount) {
+        // Out-of-range amounts are passed on as 0 so they are rejected (and reported) like any invalid amount.
+        return depositCents(Money.toPositiveCents(amount));
+    }
+
+    /**
+     * Deposits a specified amount, given in cents, into the account.
+     * The amount must be positive and must not overflow the balance.
+     * @param amountCents The amount to deposit, in cents.
+     * @return The outcome, with the balance afterwards.
+     */
+    public TransactionResult depositCents(long amountCents) {
+        if (bank != null) {
+            return bank.toResult(bank.applyDeposit(number, amountCents), number);
+        }
+        if (amountCents <= 0) {
+            return TransactionResult.rejected(TransactionStatus.INVALID_AMOUNT, number, getBalanceCents());
+        }
+        long newBalance = store.deposit(slot, amountCents);
+        if (newBalance < 0) {
+            return TransactionResult.rejected(TransactionStatus.BALANCE_OVERFLOW, number, getBalanceCents());
+        }
+        return TransactionResult.success(number, newBalance);
+    }
+
+    /**
+     * Deposits at most once per request ID: a retry with the same ID gets the
+     * first attempt's outcome. The bank must have request deduplication enabled.
+     * @param amountCents The amount to deposit, in cents.
+     * @param requestId The client's ID for this request, or RequestDeduplicator.NO_REQUEST.
+     * @return The outcome, with the balance after the first attempt.
+     */
+    public TransactionResult depositCents(long amountCents, long requestId) {
+        if (bank == null) {
+            throw new IllegalStateException("A standalone account does not deduplicate requests");
+        }
+        return bank.toResult(bank.applyDeposit(number, amountCents, requestId), number);
+    }
+
+    /**
+     * Withdraws a specified amount from the account.
+     * The amount must be positive and not exceed the current balance.
+     * @param amount The amount to withdraw.
+     * @return The outcome, with the balance afterwards.
+     */
+    public TransactionResult withdraw(double amount) {
+        return withdrawCents(Money.toPositiveCents(amount));
+    }
+
+    /**
+     * Withdraws a specified amount, given in cents, from the account.
+     * The amount must be positive and not exceed the current balance.
+     * @param amountCents The amount to withdraw, in cents.
+     * @return The outcome, with the balance afterwards.
+     */
+    public TransactionResult withdrawCents(long amountCents) {
+        if (bank != null) {
+            return bank.toResult(bank.applyWithdrawal(number, amountCents), number);
+        }
+        if (amountCents <= 0) {
+            return TransactionResult.rejected(TransactionStatus.INVALID_AMOUNT, number, getBalanceCents());
+        }
+        long newBalance = store.withdraw(slot, amountCents);
+        if (newBalance < 0) {
+            return TransactionResult.rejected(TransactionStatus.INSUFFICIENT_FUNDS, number, getBalanceCents());
+        }
+        return TransactionResult.success(number, newBalance);
+    }
+
+    /**
+     * Withdraws at most once per request ID: a retry with the same ID gets the
+     * first attempt's outcome. The bank must have request deduplication enabled.
+     * @param amountCents The amount to withdraw, in cents.
+     * @param requestId The client's ID for this request, or RequestDeduplicator.NO_REQUEST.
+     * @return The outcome, with the balance after the first attempt.
+     */
+    public TransactionResult withdrawCents(long amountCents, long requestId) {
+        if (bank == null) {
+            throw new IllegalStateException("A standalone account does not deduplicate requests");
+        }
+        return bank.toResult(bank.applyWithdrawal(number, amountCents, requestId), number);
+    }
+
+    /**
+     * Returns a string representation of the account details.
+     * Overriding the toString() method for a custom object representation.
+     * @return A formatted string with account information.
+     */
+    @Override
+    public String toString() {
+        return "----------------------------------\n" +
+                "Account Number: " + getAccountNumber() + "\n" +
+                "Account Holder: " + getAccountHolderName() + "\n" +
+                "Balance: $" + Money.format(getBalanceCents()) + "\n" +
+                "----------------------------------";
+    }
+}
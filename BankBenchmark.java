@@ -0,0 +1,1382 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Command-line load and stress harness for the banking core.
+ * Usage: java BankBenchmark &lt;scenario&gt; [options]
+ * Each scenario prints a short report and exits with a non-zero status if a
+ * correctness check fails.
+ */
+public class BankBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String scenario = args.length > 0 ? args[0] : "stress";
+        switch (scenario) {
+            case "stress":
+                runStress(intArg(args, 1, Runtime.getRuntime().availableProcessors() * 2),
+                        intArg(args, 2, 16), intArg(args, 3, 200_000));
+                break;
+            case "journal":
+                runJournal(intArg(args, 1, Runtime.getRuntime().availableProcessors() * 2),
+                        intArg(args, 2, 20_000));
+                break;
+            case "startup":
+                for (int i = 1; i < Math.max(2, args.length); i++) {
+                    runStartup(intArg(args, i, 1_000_000), 100_000);
+                }
+                break;
+            case "transfer":
+                runTransfer(intArg(args, 1, Runtime.getRuntime().availableProcessors() * 2),
+                        intArg(args, 2, 200_000));
+                break;
+            case "events":
+                runEvents(intArg(args, 1, Runtime.getRuntime().availableProcessors() * 2),
+                        intArg(args, 2, 500_000));
+                break;
+            case "metrics":
+                runMetrics(intArg(args, 1, Runtime.getRuntime().availableProcessors() * 2),
+                        intArg(args, 2, 1_000_000));
+                break;
+            case "server":
+                runServer(intArg(args, 1, 1_000), intArg(args, 2, 10), intArg(args, 3, 8));
+                break;
+            case "history":
+                runHistory(intArg(args, 1, Runtime.getRuntime().availableProcessors() * 2),
+                        intArg(args, 2, 500_000), intArg(args, 3, 4));
+                break;
+            case "names":
+                runNames(intArg(args, 1, 1_000_000), intArg(args, 2, 10_000));
+                break;
+            case "aggregates":
+                runAggregates(intArg(args, 1, 1_000_000), intArg(args, 2, Runtime.getRuntime().availableProcessors()),
+                        intArg(args, 3, 10));
+                break;
+            case "dedup":
+                runDedup(intArg(args, 1, Runtime.getRuntime().availableProcessors() * 2),
+                        intArg(args, 2, 500_000));
+                break;
+            case "tiered":
+                runTiered(intArg(args, 1, 50_000_000), intArg(args, 2, 10), intArg(args, 3, 1 << 20),
+                        args.length > 4 ? args[4] : "tiered");
+                break;
+            case "shards":
+                runShards(intArg(args, 1, 32), intArg(args, 2, 5),
+                        intArg(args, 3, Runtime.getRuntime().availableProcessors()));
+                break;
+            case "ingest":
+                runIngest(longArg(args, 1, 10_000_000), intArg(args, 2, Runtime.getRuntime().availableProcessors()));
+                break;
+            case "endofday":
+                runEndOfDay(intArg(args, 1, 10_000_000), intArg(args, 2, Runtime.getRuntime().availableProcessors()),
+                        intArg(args, 3, 2));
+                break;
+            case "calculator":
+                runCalculatorBatch(longArg(args, 1, 100_000_000),
+                        intArg(args, 2, Runtime.getRuntime().availableProcessors()));
+                break;
+            case "arithmetic":
+                runArithmetic(intArg(args, 1, 100_000), intArg(args, 2, 20));
+                break;
+            default:
+                System.out.println("Unknown scenario: " + scenario);
+                System.out.println("Scenarios: stress [threads] [accounts] [opsPerThread]");
+                System.out.println("           journal [threads] [opsPerThread]");
+                System.out.println("           transfer [threads] [transfersPerThread]");
+                System.out.println("           events [threads] [opsPerThread]");
+                System.out.println("           metrics [threads] [opsPerThread]");
+                System.out.println("           server [connections] [seconds] [pipeline]   (raise ulimit -n for many)");
+                System.out.println("           history [threads] [opsPerThread] [residentSegments]");
+                System.out.println("           names [accounts] [queries]   (e.g. names 10000000, with -Xmx4g)");
+                System.out.println("           aggregates [accounts] [writerThreads] [seconds]   (e.g. aggregates 10000000)");
+                System.out.println("           dedup [threads] [opsPerThread]");
+                System.out.println("           tiered [accounts] [seconds] [cachedAccounts] [tiered|heap]"
+                        + "   (heap needs e.g. -Xmx5g for 50M)");
+                System.out.println("           shards [maxShards] [seconds] [clientThreads]");
+                System.out.println("           ingest [lines] [workers]   (e.g. ingest 100000000)");
+                System.out.println("           endofday [accounts] [maxThreads] [writerThreads]   (e.g. endofday 10000000)");
+                System.out.println("           calculator [lines] [threads]   (expression batch, e.g. calculator 100000000)");
+                System.out.println("           arithmetic [expressions] [rounds]   (double vs exact vs BigDecimal)");
+                System.out.println("           startup [accounts...]   (e.g. startup 1000000 10000000, with -Xmx4g)");
+                System.exit(2);
+        }
+    }
+
+    /**
+     * Hammers a small set of accounts from many threads with paired
+     * withdraw/deposit moves and checks that no money was created or lost.
+     */
+    private static void runStress(int threads, int accountCount, int opsPerThread) throws InterruptedException {
+        Bank bank = new Bank();
+        String[] numbers = new String[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            numbers[i] = bank.createAccountCents("Stress " + i, 100_000).getAccountNumber();
+        }
+        long expectedTotal = bank.getTotalBalanceCents();
+
+        AtomicLong moved = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        long elapsed = runWorkers(threads, () -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < opsPerThread; i++) {
+                BankAccount from = bank.getAccount(numbers[random.nextInt(accountCount)]);
+                BankAccount to = bank.getAccount(numbers[random.nextInt(accountCount)]);
+                long amountCents = 1 + random.nextInt(5_000);
+                if (from.withdrawCents(amountCents).isSuccess()) {
+                    to.depositCents(amountCents);
+                    moved.incrementAndGet();
+                } else {
+                    rejected.incrementAndGet();
+                }
+            }
+        });
+
+        long actualTotal = bank.getTotalBalanceCents();
+        long ops = (long) threads * opsPerThread;
+        System.out.printf("threads=%d accounts=%d ops=%d moved=%d rejected=%d%n",
+                threads, accountCount, ops, moved.get(), rejected.get());
+        System.out.printf("throughput=%.0f ops/s%n", ops / (elapsed / 1e9));
+        System.out.println("expectedTotal=" + Money.format(expectedTotal) + " actualTotal=" + Money.format(actualTotal));
+        if (actualTotal != expectedTotal) {
+            System.out.println("FAILED: total balance was not conserved");
+            System.exit(1);
+        }
+        System.out.println("OK: total balance conserved");
+    }
+
+    /**
+     * Measures journaled deposit throughput under each fsync policy, then
+     * recovers the bank from the journal and checks nothing was lost.
+     */
+    private static void runJournal(int threads, int opsPerThread) throws IOException, InterruptedException {
+        int accountCount = 10_000;
+        for (BankJournal.SyncPolicy policy : BankJournal.SyncPolicy.values()) {
+            Path dir = Files.createTempDirectory("bank-journal");
+            Path file = dir.resolve("bank.journal");
+            Bank bank = Bank.recover(file, policy);
+            int[] numbers = new int[accountCount];
+            for (int i = 0; i < accountCount; i++) {
+                numbers[i] = bank.createAccountCents("Journal " + i, 0).getNumber();
+            }
+            long syncsBefore = bank.getJournalSyncCount();
+            long elapsed = runWorkers(threads, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < opsPerThread; i++) {
+                    bank.getAccount(numbers[random.nextInt(accountCount)]).depositCents(1 + random.nextInt(10_000));
+                }
+            });
+            long syncs = bank.getJournalSyncCount() - syncsBefore;
+            long expectedTotal = bank.getTotalBalanceCents();
+            bank.close();
+
+            Bank recovered = Bank.recover(file, policy);
+            long recoveredTotal = recovered.getTotalBalanceCents();
+            recovered.close();
+            long ops = (long) threads * opsPerThread;
+            System.out.printf("policy=%-13s threads=%d ops=%d throughput=%.0f ops/s fsyncs=%d ops/fsync=%.1f journal=%d bytes%n",
+                    policy, threads, ops, ops / (elapsed / 1e9), syncs, syncs == 0 ? 0.0 : ops / (double) syncs,
+                    Files.size(file));
+            if (recoveredTotal != expectedTotal) {
+                System.out.println("FAILED: recovered total " + Money.format(recoveredTotal)
+                        + " != " + Money.format(expectedTotal));
+                System.exit(1);
+            }
+            Files.delete(file);
+            Files.delete(dir);
+        }
+        System.out.println("OK: every policy recovered the full balance total");
+    }
+
+    /**
+     * Compares startup time when replaying the whole journal against loading a
+     * snapshot and replaying only the journal tail written after it.
+     */
+    private static void runStartup(int accountCount, int tailOps) throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("bank-startup");
+        Path journalFile = dir.resolve("bank.journal");
+        Path snapshotFile = dir.resolve("bank.snapshot");
+        long expectedTotal;
+        long checkpointMillis;
+        try (Bank bank = Bank.recover(journalFile, snapshotFile, BankJournal.SyncPolicy.OS_MANAGED)) {
+            int firstNumber = bank.createAccountCents("Startup 0", 0).getNumber();
+            for (int i = 1; i < accountCount; i++) {
+                bank.createAccountCents("Startup " + i, 10_000);
+            }
+            // Deposits keep running while the checkpoint is written.
+            long checkpointStart = System.nanoTime();
+            Thread checkpointer = new Thread(() -> {
+                try {
+                    bank.checkpoint(snapshotFile);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, "bench-checkpoint");
+            checkpointer.start();
+            runWorkers(1, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < tailOps; i++) {
+                    bank.getAccount(firstNumber + random.nextInt(accountCount)).depositCents(1 + random.nextInt(1_000));
+                }
+            });
+            checkpointer.join();
+            checkpointMillis = (System.nanoTime() - checkpointStart) / 1_000_000;
+            expectedTotal = bank.getTotalBalanceCents();
+        }
+
+        long begin = System.nanoTime();
+        long fullTotal;
+        try (Bank bank = Bank.recover(journalFile, BankJournal.SyncPolicy.OS_MANAGED)) {
+            fullTotal = bank.getTotalBalanceCents();
+        }
+        long fullMillis = (System.nanoTime() - begin) / 1_000_000;
+
+        begin = System.nanoTime();
+        long snapshotTotal;
+        try (Bank bank = Bank.recover(journalFile, snapshotFile, BankJournal.SyncPolicy.OS_MANAGED)) {
+            snapshotTotal = bank.getTotalBalanceCents();
+        }
+        long snapshotMillis = (System.nanoTime() - begin) / 1_000_000;
+
+        System.out.printf("accounts=%d tailOps=%d journal=%d bytes snapshot=%d bytes checkpointWithLoad=%d ms%n",
+                accountCount, tailOps, Files.size(journalFile), Files.size(snapshotFile), checkpointMillis);
+        System.out.printf("  full journal replay:     %d ms%n", fullMillis);
+        System.out.printf("  snapshot + journal tail: %d ms%n", snapshotMillis);
+        if (fullTotal != expectedTotal || snapshotTotal != expectedTotal) {
+            System.out.println("FAILED: recovered totals differ from the live bank");
+            System.exit(1);
+        }
+        Files.delete(journalFile);
+        Files.delete(snapshotFile);
+        Files.delete(dir);
+    }
+
+    /**
+     * Measures transfer throughput under three contention patterns: uniform
+     * random pairs, a payroll fan-out where every transfer leaves one hot
+     * source account, and the same fan-out submitted as transferAll batches.
+     * The payroll patterns run again on a bank whose journal syncs every
+     * operation, where a batch waits for the disk once instead of once per
+     * transfer; in memory, a batch holds the hot stripe across many transfers
+     * and so is slower than single transfers. Each run checks that the total
+     * balance is conserved.
+     */
+    private static void runTransfer(int threads, int transfersPerThread) throws IOException, InterruptedException {
+        int accountCount = 100_000;
+        int batchSize = 256;
+        for (String pattern : new String[] {"uniform", "payroll", "payroll-batched", "payroll-durable",
+                "payroll-batched-durable"}) {
+            boolean durable = pattern.endsWith("-durable");
+            boolean batched = pattern.startsWith("payroll-batched");
+            // Every transfer waits for an fsync (shared by concurrent waiters), so durable runs do fewer.
+            int transfers = durable ? Math.max(batchSize, transfersPerThread / 50 / batchSize * batchSize)
+                    : transfersPerThread;
+            Path dir = durable ? Files.createTempDirectory("bank-transfer") : null;
+            Bank bank = durable ? Bank.recover(dir.resolve("bank.journal"), BankJournal.SyncPolicy.PER_OPERATION)
+                    : new Bank();
+            int first = bank.createAccountCents("Payroll source", Long.MAX_VALUE / 4).getNumber();
+            for (int i = 1; i < accountCount; i++) {
+                bank.createAccountCents("Employee " + i, 1_000_000);
+            }
+            long expectedTotal = bank.getTotalBalanceCents();
+            long syncsBefore = bank.getJournalSyncCount();
+            long elapsed = runWorkers(threads, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                if (pattern.equals("uniform")) {
+                    for (int i = 0; i < transfers; i++) {
+                        bank.transferCents(first + random.nextInt(accountCount), first + random.nextInt(accountCount),
+                                1 + random.nextInt(10_000));
+                    }
+                } else if (!batched) {
+                    for (int i = 0; i < transfers; i++) {
+                        bank.transferCents(first, first + 1 + random.nextInt(accountCount - 1), 250_000);
+                    }
+                } else {
+                    List<Transfer> batch = new ArrayList<>(batchSize);
+                    for (int i = 0; i < transfers; i += batchSize) {
+                        batch.clear();
+                        for (int j = 0; j < batchSize; j++) {
+                            batch.add(new Transfer(first, first + 1 + random.nextInt(accountCount - 1), 250_000));
+                        }
+                        bank.transferAll(batch);
+                    }
+                }
+            });
+            long ops = (long) threads * transfers;
+            System.out.printf("pattern=%-23s threads=%d transfers=%d throughput=%.0f transfers/s", pattern, threads,
+                    ops, ops / (elapsed / 1e9));
+            System.out.println(durable ? " fsyncs=" + (bank.getJournalSyncCount() - syncsBefore) : "");
+            long total = bank.getTotalBalanceCents();
+            bank.close();
+            if (durable) {
+                Files.delete(dir.resolve("bank.journal"));
+                Files.delete(dir);
+            }
+            if (total != expectedTotal) {
+                System.out.println("FAILED: total balance was not conserved");
+                System.exit(1);
+            }
+        }
+        System.out.println("OK: total balance conserved for every pattern");
+    }
+
+    /**
+     * Measures deposit throughput with no listener, then with a listener that
+     * formats every event the way the console notifier does (into a sink), and
+     * checks that the listener saw every operation exactly once.
+     */
+    private static void runEvents(int threads, int opsPerThread) throws IOException, InterruptedException {
+        long ops = (long) threads * opsPerThread;
+        for (boolean listening : new boolean[] {false, true}) {
+            try (Bank bank = new Bank()) {
+                int first = bank.createAccountCents("Events 0", 0).getNumber();
+                for (int i = 1; i < 1_000; i++) {
+                    bank.createAccountCents("Events " + i, 0);
+                }
+                AtomicLong seen = new AtomicLong();
+                if (listening) {
+                    PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+                    bank.addListener(event -> {
+                        sink.println("Deposit successful. New balance: " + Money.format(event.getBalanceCents()));
+                        seen.incrementAndGet();
+                    });
+                }
+                long elapsed = runWorkers(threads, () -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < opsPerThread; i++) {
+                        bank.getAccount(first + random.nextInt(1_000)).depositCents(1 + random.nextInt(1_000));
+                    }
+                });
+                long drainStart = System.nanoTime();
+                bank.flushEvents();
+                long drainMillis = (System.nanoTime() - drainStart) / 1_000_000;
+                System.out.printf("listener=%-5s threads=%d ops=%d throughput=%.0f ops/s drainAfterRun=%d ms%n",
+                        listening, threads, ops, ops / (elapsed / 1e9), drainMillis);
+                if (listening && seen.get() != ops) {
+                    System.out.println("FAILED: listener saw " + seen.get() + " of " + ops + " events");
+                    System.exit(1);
+                }
+            }
+        }
+        System.out.println("OK: every operation was delivered to the listener");
+    }
+
+    /**
+     * Measures the cost of recording metrics: runs the same lookup, deposit and
+     * withdrawal mix with metrics off and on, reports the difference per
+     * operation, and checks the counters add up to the operations performed.
+     */
+    private static void runMetrics(int threads, int opsPerThread) throws IOException, InterruptedException {
+        int accountCount = 10_000;
+        long ops = (long) threads * opsPerThread;
+        double[] nanosPerOp = new double[2];
+        for (int round = 0; round < 2; round++) {
+            boolean measured = round == 1;
+            try (Bank bank = new Bank()) {
+                int first = bank.createAccountCents("Metrics 0", 1_000_000).getNumber();
+                for (int i = 1; i < accountCount; i++) {
+                    bank.createAccountCents("Metrics " + i, 1_000_000);
+                }
+                BankMetrics metrics = measured ? bank.enableMetrics() : null;
+                long elapsed = runWorkers(threads, () -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < opsPerThread; i++) {
+                        BankAccount account = bank.getAccount(first + random.nextInt(accountCount));
+                        if ((i & 1) == 0) {
+                            account.depositCents(1 + random.nextInt(1_000));
+                        } else {
+                            account.withdrawCents(1 + random.nextInt(1_000));
+                        }
+                    }
+                });
+                // Each loop iteration is one lookup plus one balance change.
+                nanosPerOp[round] = (double) elapsed * threads / (2 * ops);
+                System.out.printf("metrics=%-3s threads=%d ops=%d throughput=%.0f ops/s%n",
+                        measured ? "on" : "off", threads, 2 * ops, 2 * ops / (elapsed / 1e9));
+                if (measured) {
+                    System.out.print(metrics.getReport());
+                    long lookups = metrics.getCount(BankMetrics.Operation.GET_ACCOUNT, TransactionStatus.SUCCESS);
+                    long changes = metrics.getCount(BankMetrics.Operation.DEPOSIT, TransactionStatus.SUCCESS)
+                            + metrics.getRejectedCount(BankMetrics.Operation.DEPOSIT)
+                            + metrics.getCount(BankMetrics.Operation.WITHDRAWAL, TransactionStatus.SUCCESS)
+                            + metrics.getRejectedCount(BankMetrics.Operation.WITHDRAWAL);
+                    if (lookups != ops || changes != ops
+                            || metrics.getLatency(BankMetrics.Operation.DEPOSIT).getCount() != ops / 2) {
+                        System.out.println("FAILED: counters do not match the operations performed");
+                        System.exit(1);
+                    }
+                }
+            }
+        }
+        System.out.printf("recording overhead=%.1f ns per operation per thread%n", nanosPerOp[1] - nanosPerOp[0]);
+        System.out.println("OK: every operation was counted");
+    }
+
+    /**
+     * Starts a BankServer on a loopback port and drives it with
+     * BankLoadGenerator. Every request is valid and funded, so any error reply
+     * is a failure.
+     */
+    private static void runServer(int connections, int seconds, int pipeline) throws IOException, InterruptedException {
+        try (Bank bank = new Bank(); BankServer server = new BankServer(bank, 0)) {
+            System.out.println("server threads=" + (server.usesVirtualThreads() ? "virtual" : "platform")
+                    + " pipeline=" + pipeline);
+            BankLoadGenerator generator = new BankLoadGenerator(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()), connections, pipeline);
+            BankLoadGenerator.Report report = generator.run(10_000, seconds);
+            System.out.println(report);
+            if (report.errors > 0 || report.replies == 0) {
+                System.out.println("FAILED: expected only successful replies");
+                System.exit(1);
+            }
+        }
+        System.out.println("OK: every request succeeded");
+    }
+
+    /**
+     * Measures the cost of recording transaction history and of statement
+     * queries once most of it has been spilled to disk, then checks that every
+     * account's statement replays from zero to its current balance.
+     */
+    private static void runHistory(int threads, int opsPerThread, int residentSegments)
+            throws IOException, InterruptedException {
+        int accountCount = 10_000;
+        long ops = (long) threads * opsPerThread;
+        double[] throughput = new double[2];
+        for (int round = 0; round < 2; round++) {
+            boolean recording = round == 1;
+            try (Bank bank = new Bank()) {
+                // Closing the bank deletes the spill files and the directory.
+                TransactionHistory history = recording ? bank.enableHistory(
+                        Files.createTempDirectory("bank-history"), Long.MAX_VALUE, residentSegments) : null;
+                int first = bank.createAccountCents("History 0", 1_000_000).getNumber();
+                for (int i = 1; i < accountCount; i++) {
+                    bank.createAccountCents("History " + i, 1_000_000);
+                }
+                long elapsed = runWorkers(threads, () -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < opsPerThread; i++) {
+                        int number = first + random.nextInt(accountCount);
+                        int kind = random.nextInt(10);
+                        if (kind < 5) {
+                            bank.applyDeposit(number, 1 + random.nextInt(1_000));
+                        } else if (kind < 9) {
+                            bank.applyWithdrawal(number, 1 + random.nextInt(1_000));
+                        } else {
+                            bank.applyTransfer(number, first + random.nextInt(accountCount), 1 + random.nextInt(1_000));
+                        }
+                    }
+                });
+                throughput[round] = ops / (elapsed / 1e9);
+                System.out.printf("history=%-3s threads=%d ops=%d throughput=%.0f ops/s%n",
+                        recording ? "on" : "off", threads, ops, throughput[round]);
+                if (!recording) {
+                    continue;
+                }
+                // Let the sealer catch up so the queries below hit spilled segments.
+                Thread.sleep(500);
+                long queryStart = System.nanoTime();
+                long records = 0;
+                for (int i = 0; i < accountCount; i++) {
+                    int number = first + i;
+                    TransactionHistory.Statement statement = bank.getStatement(number, 0, Long.MAX_VALUE);
+                    records += statement.size();
+                    long balance = 0;
+                    for (int k = 0; k < statement.size(); k++) {
+                        balance += statement.getAmountCents(k);
+                        if (balance != statement.getBalanceCents(k)) {
+                            System.out.println("FAILED: ACC" + number + " statement breaks at record " + k);
+                            System.exit(1);
+                        }
+                    }
+                    if (balance != bank.getAccount(number).getBalanceCents()) {
+                        System.out.println("FAILED: ACC" + number + " statement does not end at its balance");
+                        System.exit(1);
+                    }
+                }
+                long queryNanos = System.nanoTime() - queryStart;
+                System.out.printf("records=%d resident segments=%d statements=%d mean statement=%.1f us%n",
+                        history.size(), history.getResidentSegmentCount(), accountCount,
+                        queryNanos / 1e3 / accountCount);
+                if (records != history.size()) {
+                    System.out.println("FAILED: statements hold " + records + " of " + history.size() + " records");
+                    System.exit(1);
+                }
+            }
+        }
+        System.out.printf("recording cost=%.1f%% of throughput%n", 100 * (1 - throughput[1] / throughput[0]));
+        System.out.println("OK: every statement replays to its account's balance");
+    }
+
+    /**
+     * Compares holder name prefix search through the index with a linear scan
+     * of every account, and checks that both return the same accounts.
+     */
+    private static void runNames(int accountCount, int queries) throws IOException {
+        String[] firstNames = {"Ada", "Alan", "Barbara", "Claude", "Donald", "Edsger", "Frances", "Grace", "Ivan",
+            "John", "Ken", "Leslie", "Margaret", "Niklaus", "Radia", "Tony", "Whitfield", "Xavier", "Yukihiro"};
+        String[] lastNames = {"Allen", "Backus", "Conway", "Dijkstra", "Engelbart", "Floyd", "Goldberg", "Hamilton",
+            "Hopper", "Iverson", "Knuth", "Lamport", "Liskov", "McCarthy", "Perlman", "Ritchie", "Shannon",
+            "Thompson", "Wirth", "Zuse"};
+        try (Bank bank = new Bank()) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int indexedCreates = Math.min(accountCount / 10, 100_000);
+            for (int i = 0; i < accountCount - indexedCreates; i++) {
+                bank.createAccountCents(randomHolderName(random, firstNames, lastNames), 0);
+            }
+            long buildStart = System.nanoTime();
+            bank.enableHolderIndex();
+            long buildNanos = System.nanoTime() - buildStart;
+            long createStart = System.nanoTime();
+            for (int i = 0; i < indexedCreates; i++) {
+                bank.createAccountCents(randomHolderName(random, firstNames, lastNames), 0);
+            }
+            long createNanos = System.nanoTime() - createStart;
+            System.out.printf("accounts=%d index built in %d ms, then %d creates at %.0f ns each%n", accountCount,
+                    buildNanos / 1_000_000, indexedCreates, (double) createNanos / Math.max(1, indexedCreates));
+
+            int pageSize = 50;
+            String[] prefixes = new String[queries];
+            for (int q = 0; q < queries; q++) {
+                String name = bank.getAccount(Bank.FIRST_ACCOUNT_NUMBER + random.nextInt(accountCount))
+                        .getAccountHolderName();
+                prefixes[q] = name.substring(0, 1 + random.nextInt(Math.min(name.length(), 12)));
+            }
+            long indexStart = System.nanoTime();
+            long found = 0;
+            for (String prefix : prefixes) {
+                found += bank.findAccountsByHolder(prefix, null, pageSize).getAccounts().size();
+            }
+            long indexNanos = System.nanoTime() - indexStart;
+            System.out.printf("index: %d first-page queries, mean %.1f us, %d accounts returned%n", queries,
+                    indexNanos / 1e3 / queries, found);
+
+            int scans = Math.min(queries, 5);
+            long scanNanos = 0;
+            for (int q = 0; q < scans; q++) {
+                String folded = HolderNameIndex.fold(prefixes[q]);
+                long scanStart = System.nanoTime();
+                List<String> matches = new ArrayList<>();
+                for (int i = 0; i < accountCount; i++) {
+                    int number = Bank.FIRST_ACCOUNT_NUMBER + i;
+                    String name = HolderNameIndex.fold(bank.getAccount(number).getAccountHolderName());
+                    if (name.startsWith(folded)) {
+                        // Zero-padded so the string order matches the index's (name, number) order.
+                        matches.add(name + '\0' + String.format("%010d", number));
+                    }
+                }
+                matches.sort(null);
+                scanNanos += System.nanoTime() - scanStart;
+
+                List<BankAccount> page = bank.findAccountsByHolder(prefixes[q], null, pageSize).getAccounts();
+                long streamed = bank.streamAccountsByHolder(prefixes[q]).count();
+                boolean same = streamed == matches.size() && page.size() == Math.min(pageSize, matches.size());
+                for (int k = 0; same && k < page.size(); k++) {
+                    String match = matches.get(k);
+                    same = Integer.parseInt(match.substring(match.length() - 10)) == page.get(k).getNumber();
+                }
+                if (!same) {
+                    System.out.println("FAILED: index and scan disagree for prefix \"" + prefixes[q] + "\"");
+                    System.exit(1);
+                }
+            }
+            System.out.printf("scan: %d queries, mean %.1f ms%n", scans, scanNanos / 1e6 / scans);
+        }
+        System.out.println("OK: index results match a full scan");
+    }
+
+    /**
+     * Measures aggregate query latency while writer threads keep changing
+     * balances, then stops the writers and checks every aggregate against a
+     * full scan.
+     */
+    private static void runAggregates(int accountCount, int writers, int seconds) throws IOException,
+            InterruptedException {
+        int top = 100;
+        try (Bank bank = new Bank()) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = Bank.FIRST_ACCOUNT_NUMBER;
+            for (int i = 0; i < accountCount; i++) {
+                // Log-uniform opening balances between $1 and $10M.
+                bank.createAccountCents("Aggregate " + i, (long) Math.pow(10, 2 + random.nextDouble() * 7));
+            }
+            long enableStart = System.nanoTime();
+            bank.enableAggregates(top);
+            System.out.printf("accounts=%d aggregates built in %d ms%n", accountCount,
+                    (System.nanoTime() - enableStart) / 1_000_000);
+
+            AtomicLong writes = new AtomicLong();
+            long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+            Thread[] threads = new Thread[writers];
+            for (int t = 0; t < writers; t++) {
+                threads[t] = new Thread(() -> {
+                    ThreadLocalRandom r = ThreadLocalRandom.current();
+                    long done = 0;
+                    while (System.nanoTime() < deadline) {
+                        for (int i = 0; i < 1_000; i++) {
+                            int number = first + r.nextInt(accountCount);
+                            // Mostly small moves, with the occasional windfall that reshuffles the top.
+                            long amount = r.nextInt(1_000) == 0 ? 100_000_000_000L : 1 + r.nextInt(100_000);
+                            int kind = r.nextInt(10);
+                            if (kind < 5) {
+                                bank.applyDeposit(number, amount);
+                            } else if (kind < 9) {
+                                bank.applyWithdrawal(number, amount);
+                            } else {
+                                bank.applyTransfer(number, first + r.nextInt(accountCount), amount);
+                            }
+                        }
+                        done += 1_000;
+                    }
+                    writes.addAndGet(done);
+                }, "writer-" + t);
+                threads[t].start();
+            }
+            LatencyHistogram totalLatency = new LatencyHistogram();
+            LatencyHistogram countLatency = new LatencyHistogram();
+            LatencyHistogram topLatency = new LatencyHistogram();
+            long queries = 0;
+            while (System.nanoTime() < deadline) {
+                long start = System.nanoTime();
+                bank.getTotalBalanceCents();
+                long afterTotal = System.nanoTime();
+                bank.countAccountsWithBalanceAtLeast((long) Math.pow(10, 2 + random.nextDouble() * 8));
+                long afterCount = System.nanoTime();
+                bank.getRichestAccounts(top);
+                long afterTop = System.nanoTime();
+                totalLatency.record(afterTotal - start);
+                countLatency.record(afterCount - afterTotal);
+                topLatency.record(afterTop - afterCount);
+                queries++;
+                Thread.sleep(1);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            System.out.printf("writers=%d writes=%d (%.0f/s) queries=%d%n", writers, writes.get(),
+                    writes.get() / (double) seconds, queries);
+            printLatency("total", totalLatency.snapshot());
+            printLatency("count-above", countLatency.snapshot());
+            printLatency("top-" + top, topLatency.snapshot());
+
+            // With the writers stopped, every aggregate must match a scan.
+            long[] balances = new long[accountCount];
+            long total = 0;
+            for (int i = 0; i < accountCount; i++) {
+                balances[i] = bank.getAccount(first + i).getBalanceCents();
+                total += balances[i];
+            }
+            long[] sorted = balances.clone();
+            Arrays.sort(sorted);
+            List<BankAccount> richest = bank.getRichestAccounts(top);
+            boolean same = total == bank.getTotalBalanceCents() && richest.size() == top;
+            for (int k = 0; same && k < top; k++) {
+                same = richest.get(k).getBalanceCents() == sorted[accountCount - 1 - k];
+            }
+            long threshold = sorted[accountCount - top / 2];
+            same = same && bank.countAccountsWithBalanceAtLeast(threshold)
+                    == accountCount - lowerBoundIndex(sorted, threshold);
+            if (!same) {
+                System.out.println("FAILED: aggregates disagree with a full scan");
+                System.exit(1);
+            }
+        }
+        System.out.println("OK: total, top " + top + " and count above the top threshold match a full scan");
+    }
+
+    private static int lowerBoundIndex(long[] sorted, long value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static void printLatency(String query, LatencyHistogram.Snapshot latency) {
+        System.out.printf("  %-12s mean %8.1f us  p50 %8.1f us  p99 %8.1f us  max %8.1f us%n", query,
+                latency.getMean() / 1e3, latency.getValueAtPercentile(50) / 1e3,
+                latency.getValueAtPercentile(99) / 1e3, latency.getMax() / 1e3);
+    }
+
+    private static String randomHolderName(ThreadLocalRandom random, String[] firstNames, String[] lastNames) {
+        // A numeric suffix keeps names distinct enough that long prefixes narrow the run.
+        return lastNames[random.nextInt(lastNames.length)] + " " + firstNames[random.nextInt(firstNames.length)]
+                + " " + random.nextInt(1_000_000);
+    }
+
+    /**
+     * Measures what request IDs add to a deposit, sends every request twice
+     * from two racing threads and checks each was applied once with the same
+     * outcome replayed, checks that reusing an ID for a different request is
+     * refused, and checks that the cache allocates nothing per request and
+     * stays within its capacity.
+     */
+    private static void runDedup(int threads, int opsPerThread) throws IOException, InterruptedException {
+        int accountCount = 10_000;
+        int capacity = 1 << 20;
+        long ops = (long) threads * opsPerThread;
+        double[] nanosPerOp = new double[2];
+        for (int round = 0; round < 3; round++) {
+            boolean withIds = round > 0;
+            boolean duplicated = round == 2;
+            try (Bank bank = new Bank()) {
+                int first = bank.createAccountCents("Dedup 0", 1_000_000).getNumber();
+                for (int i = 1; i < accountCount; i++) {
+                    bank.createAccountCents("Dedup " + i, 1_000_000);
+                }
+                bank.enableRequestDeduplication(60_000, capacity);
+                long initialTotal = bank.getTotalBalanceCents();
+                long[][] outcomes = new long[threads][opsPerThread];
+                AtomicLong nextWorker = new AtomicLong();
+                long elapsed = runWorkers(threads, () -> {
+                    int worker = (int) nextWorker.getAndIncrement();
+                    // Workers 2k and 2k+1 send the same requests when duplicating.
+                    long base = (long) (duplicated ? worker / 2 : worker) * opsPerThread;
+                    for (int i = 0; i < opsPerThread; i++) {
+                        long id = base + i + 1;
+                        int number = first + (int) (id % accountCount);
+                        long amount = 1 + id % 1_000;
+                        outcomes[worker][i] = withIds ? bank.applyDeposit(number, amount, id)
+                                : bank.applyDeposit(number, amount);
+                    }
+                });
+                String mode = !withIds ? "off" : duplicated ? "retried" : "unique";
+                System.out.printf("ids=%-8s threads=%d requests=%d throughput=%.0f requests/s%n", mode, threads,
+                        ops, ops / (elapsed / 1e9));
+                if (round < 2) {
+                    nanosPerOp[round] = (double) elapsed * threads / ops;
+                    continue;
+                }
+                long expected = initialTotal;
+                long distinct = (long) ((threads + 1) / 2) * opsPerThread;
+                for (long id = 1; id <= distinct; id++) {
+                    expected += 1 + id % 1_000;
+                }
+                boolean same = true;
+                for (int t = 0; t + 1 < threads; t += 2) {
+                    same &= Arrays.equals(outcomes[t], outcomes[t + 1]);
+                }
+                if (bank.getTotalBalanceCents() != expected || !same) {
+                    System.out.println("FAILED: a retried request was applied twice or got a different outcome");
+                    System.exit(1);
+                }
+                // Reusing an ID for a different request must be refused, not answered with the first outcome.
+                boolean refused = bank.applyWithdrawal(first + 1, 1, 1) == TransactionStatus.REQUEST_ID_REUSED.code();
+                try {
+                    bank.createAccountCents("Dedup Reused", 100, 1);
+                    refused = false;
+                } catch (IllegalArgumentException expectedRefusal) {
+                    // Refused as it should be.
+                }
+                if (!refused || bank.getTotalBalanceCents() != expected || bank.getAccountCount() != accountCount) {
+                    System.out.println("FAILED: a reused request ID was answered with another request's outcome");
+                    System.exit(1);
+                }
+            }
+        }
+        System.out.printf("request ID overhead=%.1f ns per deposit per thread%n", nanosPerOp[1] - nanosPerOp[0]);
+
+        // Many more requests than the capacity, on one thread, to see the steady state.
+        int small = 1 << 16;
+        RequestDeduplicator cache = new RequestDeduplicator(60_000, small);
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long requests = 10_000_000;
+        long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (long id = 1; id <= requests; id++) {
+            if (cache.claim(id, id) == RequestDeduplicator.NEW) {
+                cache.complete(id, id);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        System.out.printf("cache capacity=%d footprint=%.1f MB remembered=%d claim+complete=%.0f ns"
+                + " allocated=%.3f bytes/request%n", small, small * 60 / 1e6, cache.size(),
+                (double) elapsed / requests, (double) allocated / requests);
+        if (cache.size() > small || cache.claim(requests, requests) != requests
+                || cache.claim(requests, requests + 1) != RequestDeduplicator.REUSED) {
+            System.out.println("FAILED: the cache outgrew its capacity or lost a recent request");
+            System.exit(1);
+        }
+        System.out.println("OK: every retried request was applied once and replayed its outcome,"
+                + " and every reused ID was refused");
+    }
+
+    /**
+     * Fills a bank with many accounts in a tiered (memory-mapped) or heap
+     * store, reports the heap it needs, then looks up accounts with a skewed
+     * pattern (a small set of accounts gets most of the traffic) and reports
+     * the lookup latency and, for the tiered store, the name cache hit ratio.
+     * Run each store in its own JVM so the heap figures are comparable.
+     */
+    private static void runTiered(int accountCount, int seconds, int cachedAccounts, String storeKind)
+            throws IOException, InterruptedException {
+        Path file = Files.createTempFile("bank-accounts", ".dat");
+        AccountStore store = storeKind.equals("heap") ? new HeapAccountStore(16)
+                : new TieredAccountStore(file, 16, cachedAccounts);
+        try (Bank bank = new Bank(store, null)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < accountCount; i++) {
+                bank.openAccount("Tiered Holder " + i, 100_000);
+            }
+            long fillMillis = (System.nanoTime() - start) / 1_000_000;
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            long heapBytes = runtime.totalMemory() - runtime.freeMemory();
+            TieredAccountStore tiered = bank.getTieredStore();
+            System.out.printf("store=%s accounts=%d filled in %d ms heap after GC=%d MB mapped=%d MB%n", storeKind,
+                    accountCount, fillMillis, heapBytes >> 20, tiered == null ? 0 : tiered.getMappedBytes() >> 20);
+
+            int first = Bank.FIRST_ACCOUNT_NUMBER;
+            LatencyHistogram latency = new LatencyHistogram();
+            AtomicLong lookups = new AtomicLong();
+            long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+            long hitsBefore = tiered == null ? 0 : tiered.getCacheHits();
+            long missesBefore = tiered == null ? 0 : tiered.getCacheMisses();
+            runWorkers(runtime.availableProcessors(), () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long done = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 1_000; i++) {
+                        // Access probability falls off steeply with rank: the top 1% of
+                        // accounts get about half of the lookups, the top 0.01% about 20%.
+                        long rank = (long) (accountCount * Math.pow(random.nextDouble(), 6));
+                        int number = first + (int) Math.floorMod(rank * 0x9E3779B97F4A7C15L, (long) accountCount);
+                        long begin = System.nanoTime();
+                        BankAccount account = bank.getAccount(number);
+                        account.getAccountHolderName();
+                        if ((i & 3) == 0) {
+                            account.depositCents(1);
+                        }
+                        latency.record(System.nanoTime() - begin);
+                    }
+                    done += 1_000;
+                }
+                lookups.addAndGet(done);
+            });
+            System.out.printf("lookups=%d (%.0f/s)%n", lookups.get(), lookups.get() / (double) seconds);
+            printLatency("lookup", latency.snapshot());
+            if (tiered != null) {
+                long hits = tiered.getCacheHits() - hitsBefore;
+                long misses = tiered.getCacheMisses() - missesBefore;
+                System.out.printf("name cache capacity=%d hit ratio=%.3f%n", tiered.getCacheCapacity(),
+                        (double) hits / (hits + misses));
+            }
+            long expected = (long) accountCount * 100_000 + lookups.get() / 4;
+            if (bank.getTotalBalanceCents() != expected) {
+                System.out.println("FAILED: balances do not add up");
+                System.exit(1);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        System.out.println("OK: every deposit landed");
+    }
+
+    /**
+     * Measures ShardedBank throughput for 1, 2, 4, ... shards against a plain
+     * Bank driven by the same client threads, with a mix of deposits,
+     * withdrawals and (mostly cross-shard) transfers. Each client keeps a
+     * window of requests outstanding. Checks that every round conserves money.
+     */
+    private static void runShards(int maxShards, int seconds, int clients) throws IOException, InterruptedException {
+        int accountCount = 100_000;
+        int window = 1_024;
+        long openingCents = 1_000_000;
+        try (Bank bank = new Bank()) {
+            int first = bank.createAccountCents("Shard baseline 0", openingCents).getNumber();
+            for (int i = 1; i < accountCount; i++) {
+                bank.createAccountCents("Shard baseline " + i, openingCents);
+            }
+            long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+            AtomicLong ops = new AtomicLong();
+            runWorkers(clients, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long done = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 1_000; i++) {
+                        int number = first + random.nextInt(accountCount);
+                        long amount = 1 + random.nextInt(10_000);
+                        int kind = random.nextInt(5);
+                        if (kind < 2) {
+                            bank.applyDeposit(number, amount);
+                        } else if (kind < 4) {
+                            bank.applyWithdrawal(number, amount);
+                        } else {
+                            bank.applyTransfer(number, first + random.nextInt(accountCount), amount);
+                        }
+                    }
+                    done += 1_000;
+                }
+                ops.addAndGet(done);
+            });
+            System.out.printf("bank     clients=%d ops=%d throughput=%.0f ops/s%n", clients, ops.get(),
+                    ops.get() / (double) seconds);
+        }
+        for (int shardCount = 1; shardCount <= maxShards; shardCount *= 2) {
+            ShardedBank bank = new ShardedBank(shardCount);
+            int[] numbers = new int[accountCount];
+            AtomicLong opened = new AtomicLong();
+            for (int i = 0; i < accountCount; i++) {
+                int index = i;
+                bank.submitOpen("Shard holder " + i, openingCents, number -> {
+                    numbers[index] = (int) number;
+                    opened.incrementAndGet();
+                });
+            }
+            while (opened.get() < accountCount) {
+                Thread.yield();
+            }
+            // Successful deposits minus successful withdrawals; transfers must net to zero.
+            AtomicLong netCents = new AtomicLong();
+            AtomicLong ops = new AtomicLong();
+            long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+            runWorkers(clients, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                AtomicLong completed = new AtomicLong();
+                long submitted = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 1_000; i++) {
+                        while (submitted - completed.get() >= window) {
+                            Thread.yield();
+                        }
+                        int number = numbers[random.nextInt(accountCount)];
+                        long amount = 1 + random.nextInt(10_000);
+                        int kind = random.nextInt(5);
+                        if (kind < 2) {
+                            bank.submitDeposit(number, amount, outcome -> {
+                                if (outcome >= 0) {
+                                    netCents.addAndGet(amount);
+                                }
+                                completed.incrementAndGet();
+                            });
+                        } else if (kind < 4) {
+                            bank.submitWithdrawal(number, amount, outcome -> {
+                                if (outcome >= 0) {
+                                    netCents.addAndGet(-amount);
+                                }
+                                completed.incrementAndGet();
+                            });
+                        } else {
+                            bank.submitTransfer(number, numbers[random.nextInt(accountCount)], amount,
+                                    outcome -> completed.incrementAndGet());
+                        }
+                        submitted++;
+                    }
+                }
+                while (completed.get() < submitted) {
+                    Thread.yield();
+                }
+                ops.addAndGet(submitted);
+            });
+            bank.close();
+            System.out.printf("shards=%-3d clients=%d ops=%d throughput=%.0f ops/s%n", shardCount, clients,
+                    ops.get(), ops.get() / (double) seconds);
+            if (bank.getTotalBalanceCents() != accountCount * openingCents + netCents.get()
+                    || bank.getAccountCount() != accountCount) {
+                System.out.println("FAILED: money was created or lost with " + shardCount + " shards");
+                System.exit(1);
+            }
+        }
+        System.out.println("OK: total balance conserved for every shard count");
+    }
+
+    /**
+     * Generates a synthetic command file and measures headless ingestion
+     * throughput. The file refers to account numbers starting at the first
+     * one a new Bank hands out. It is ingested with one worker and then with
+     * the given number, and the final balances must match.
+     */
+    private static void runIngest(long lines, int workers) throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("bank-ingest");
+        Path input = dir.resolve("commands.txt");
+        Path output = dir.resolve("results.tsv");
+        int accountCount = (int) Math.min(1_000_000, Math.max(1, lines / 100));
+        long generateStart = System.nanoTime();
+        try (BufferedWriter out = Files.newBufferedWriter(input)) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < accountCount; i++) {
+                out.write("CREATE 1000.00 Ingest Holder " + i + "\n");
+            }
+            StringBuilder line = new StringBuilder(64);
+            for (long i = accountCount; i < lines; i++) {
+                line.setLength(0);
+                int account = Bank.FIRST_ACCOUNT_NUMBER + random.nextInt(accountCount);
+                int kind = random.nextInt(10);
+                if (kind < 5) {
+                    line.append("DEPOSIT ACC").append(account);
+                } else if (kind < 9) {
+                    line.append("WITHDRAW ACC").append(account);
+                } else {
+                    line.append("TRANSFER ACC").append(account).append(" ACC")
+                            .append(Bank.FIRST_ACCOUNT_NUMBER + random.nextInt(accountCount));
+                }
+                line.append(' ').append(1 + random.nextInt(500)).append('.').append(random.nextInt(10)).append("0\n");
+                out.append(line);
+            }
+        }
+        long generateMillis = (System.nanoTime() - generateStart) / 1_000_000;
+
+        System.out.printf("lines=%d accounts=%d workers=%d input=%d bytes (generated in %d ms)%n",
+                lines, accountCount, workers, Files.size(input), generateMillis);
+        try {
+            // Every account's commands run in file order, so the final balances
+            // cannot depend on the worker count; one worker is the reference.
+            long[] expected = null;
+            for (int run : workers == 1 ? new int[] {1} : new int[] {1, workers}) {
+                try (Bank bank = new Bank()) {
+                    BulkIngestor.Summary summary = new BulkIngestor(bank, run).run(input, output);
+                    System.out.println("workers=" + run + ": " + summary);
+                    long[] balances = new long[accountCount];
+                    for (int i = 0; i < accountCount; i++) {
+                        balances[i] = bank.getAccount(Bank.FIRST_ACCOUNT_NUMBER + i).getBalanceCents();
+                    }
+                    if (expected == null) {
+                        expected = balances;
+                    } else if (!Arrays.equals(balances, expected)) {
+                        System.out.println("FAILED: balances with " + run + " workers differ from one worker");
+                        System.exit(1);
+                    }
+                }
+            }
+            System.out.println("OK: every account's balance matches the single-worker run");
+        } finally {
+            Files.deleteIfExists(input);
+            Files.deleteIfExists(output);
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * Times the end-of-day batch at 1, 2, 4, ... threads on an idle bank and
+     * checks every parallel run against the sequential one, then runs it with
+     * posting while writer threads move money between accounts. The opening
+     * total must equal the bank's total before the writers started (transfers
+     * conserve money, so any torn cutoff would show), and the final total must
+     * equal that plus what the batch posted.
+     */
+    private static void runEndOfDay(int accountCount, int maxThreads, int writers) throws IOException,
+            InterruptedException {
+        EndOfDayBatch.Summary reference = null;
+        Path statements = Files.createTempFile("bank-statements", ".dat");
+        try (Bank bank = new Bank()) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = Bank.FIRST_ACCOUNT_NUMBER;
+            for (int i = 0; i < accountCount; i++) {
+                // Log-uniform opening balances between $1 and $100K, so some fall below the minimum.
+                bank.openAccount("End Of Day " + i, (long) Math.pow(10, 2 + random.nextDouble() * 5));
+            }
+            // 2.5% a year; a $1 fee below $100.
+            EndOfDayBatch batch = new EndOfDayBatch(bank, 250, 10_000, 100);
+            batch.run(1, null, false);
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                EndOfDayBatch.Summary summary = batch.run(threads, statements, false);
+                System.out.printf("threads=%d %.0f ms (%.1f M accounts/s)%n", threads, summary.elapsedNanos / 1e6,
+                        summary.accounts / (summary.elapsedNanos / 1e3));
+                if (reference == null) {
+                    reference = summary;
+                    System.out.println(summary);
+                } else if (!summary.sameResultAs(reference)) {
+                    System.out.println("FAILED: parallel run differs from the sequential one: " + summary);
+                    System.exit(1);
+                }
+            }
+
+            long totalBefore = bank.getTotalBalanceCents();
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicLong transfers = new AtomicLong();
+            Thread[] threads = new Thread[writers];
+            for (int t = 0; t < writers; t++) {
+                threads[t] = new Thread(() -> {
+                    ThreadLocalRandom r = ThreadLocalRandom.current();
+                    long done = 0;
+                    while (!stop.get()) {
+                        bank.applyTransfer(first + r.nextInt(accountCount), first + r.nextInt(accountCount),
+                                1 + r.nextInt(10_000));
+                        done++;
+                    }
+                    transfers.addAndGet(done);
+                }, "writer-" + t);
+                threads[t].start();
+            }
+            Thread.sleep(100);
+            EndOfDayBatch.Summary posted = batch.run(maxThreads, statements, true);
+            stop.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            System.out.printf("with %d writer(s): %s; %d concurrent transfers%n", writers, posted, transfers.get());
+            if (posted.openingCents != totalBefore) {
+                System.out.println("FAILED: the cutoff saw a total of " + posted.openingCents + ", not " + totalBefore);
+                System.exit(1);
+            }
+            if (bank.getTotalBalanceCents() != totalBefore + posted.postedCents) {
+                System.out.println("FAILED: balances do not add up after posting");
+                System.exit(1);
+            }
+        } finally {
+            Files.deleteIfExists(statements);
+        }
+        System.out.println("OK: parallel runs match the sequential run, and the cutoff is consistent under load");
+    }
+
+    /**
+     * Evaluates a generated file of calculator expressions with ExpressionBatch,
+     * once on one thread and once on the given number, and checks that both
+     * outputs are identical and that the first lines match evaluating each
+     * expression directly. About a third of the lines repeat a small set of
+     * rule expressions, so the compiled-expression cache gets some hits; a few
+     * lines are invalid.
+     */
+    private static void runCalculatorBatch(long lines, int threads) throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("calculator-batch");
+        Path input = dir.resolve("expressions.txt");
+        Path sequential = dir.resolve("results-1.txt");
+        Path parallel = dir.resolve("results-" + threads + ".txt");
+        String[] rules = new String[1_000];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < rules.length; i++) {
+            rules[i] = (1 + random.nextInt(1_000)) + "*(1+" + random.nextInt(30) + "%)-" + random.nextInt(100)
+                    + "." + random.nextInt(100);
+        }
+        long generateStart = System.nanoTime();
+        try (BufferedWriter out = Files.newBufferedWriter(input)) {
+            StringBuilder line = new StringBuilder(64);
+            for (long i = 0; i < lines; i++) {
+                line.setLength(0);
+                int kind = random.nextInt(100);
+                if (kind < 30) {
+                    line.append(rules[random.nextInt(rules.length)]);
+                } else if (kind < 98) {
+                    line.append(random.nextInt(10_000)).append('.').append(random.nextInt(100))
+                            .append(kind < 60 ? " + " : " × ").append(random.nextInt(1_000))
+                            .append(kind % 3 == 0 ? " ÷ (" : " - (").append(1 + random.nextInt(50))
+                            .append(" - ").append(random.nextInt(50)).append(')');
+                } else if (kind < 99) {
+                    line.append(random.nextInt(100)).append("/0");
+                } else {
+                    line.append(random.nextInt(100)).append(" +");
+                }
+                out.append(line).append('\n');
+            }
+        }
+        System.out.printf("lines=%d input=%d MB (generated in %d ms)%n", lines, Files.size(input) >> 20,
+                (System.nanoTime() - generateStart) / 1_000_000);
+        try {
+            ExpressionEngine engine = new ExpressionEngine(4_096);
+            ExpressionBatch.Summary one = new ExpressionBatch(engine, 1).run(input, sequential);
+            System.out.println("threads=1: " + one);
+            ExpressionEngine parallelEngine = new ExpressionEngine(4_096);
+            ExpressionBatch.Summary many = new ExpressionBatch(parallelEngine, threads).run(input, parallel);
+            System.out.println("threads=" + threads + ": " + many);
+            System.out.printf("cache hit ratio=%.3f%n", parallelEngine.getCacheHits()
+                    / (double) (parallelEngine.getCacheHits() + parallelEngine.getCacheMisses()));
+            if (Files.mismatch(sequential, parallel) != -1) {
+                System.out.println("FAILED: the parallel output differs from the sequential one");
+                System.exit(1);
+            }
+            try (Stream<String> expressions = Files.lines(input); Stream<String> results = Files.lines(parallel)) {
+                Iterator<String> result = results.iterator();
+                long mismatches = expressions.limit(100_000).filter(text -> {
+                    String written = result.next();
+                    try {
+                        return Double.parseDouble(written) != engine.evaluate(text);
+                    } catch (IllegalArgumentException | ArithmeticException e) {
+                        return !written.equals("Error");
+                    }
+                }).count();
+                if (mismatches > 0) {
+                    System.out.println("FAILED: " + mismatches + " result(s) differ from direct evaluation");
+                    System.exit(1);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(input);
+            Files.deleteIfExists(sequential);
+            Files.deleteIfExists(parallel);
+            Files.delete(dir);
+        }
+        System.out.println("OK: output order and values match sequential and direct evaluation");
+    }
+
+    /**
+     * Evaluates the same compiled expressions in double arithmetic, with
+     * ExactEvaluator (scaled longs, falling back to BigDecimal), and with
+     * BigDecimal alone, and reports the time and allocation per expression of
+     * each and how often the exact evaluation stayed on its fast path. Two
+     * calculator-like workloads: "money" (amounts with cents added and
+     * multiplied, percentages and divisions that terminate, all of which fit
+     * the fast path) and "mixed" (the same plus divisions that do not
+     * terminate and numbers too long for a long, which fall back). Checks that
+     * the exact results equal the BigDecimal ones, that both timed loops saw
+     * the same signs, and that the double results add up to the exact ones.
+     */
+    private static void runArithmetic(int count, int rounds) {
+        long mismatches = 0;
+        for (boolean mixed : new boolean[] {false, true}) {
+            mismatches += measureArithmetic(mixed ? "mixed" : "money", arithmeticExpressions(count, mixed), rounds);
+        }
+        if (mismatches > 0) {
+            System.out.println("FAILED: " + mismatches + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("OK: exact results equal BigDecimal arithmetic");
+    }
+
+    private static CompiledExpression[] arithmeticExpressions(int count, boolean mixed) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        CompiledExpression[] expressions = new CompiledExpression[count];
+        StringBuilder text = new StringBuilder(64);
+        for (int i = 0; i < count; i++) {
+            text.setLength(0);
+            int kind = random.nextInt(mixed ? 100 : 80);
+            text.append(random.nextInt(100_000)).append('.').append(random.nextInt(10)).append(random.nextInt(10));
+            if (kind < 40) {
+                text.append(" + ").append(random.nextInt(1_000)).append(".0").append(random.nextInt(10))
+                        .append(" - ").append(random.nextInt(100)).append(".5");
+            } else if (kind < 65) {
+                text.append(" × ").append(random.nextInt(1_000)).append(" × (1 + ").append(random.nextInt(30))
+                        .append("%)");
+            } else if (kind < 80) {
+                text.append(" ÷ ").append(new int[] {2, 4, 5, 8, 10, 16, 20, 25}[random.nextInt(8)]);
+            } else if (kind < 95) {
+                text.append(" ÷ ").append(3 + random.nextInt(97));
+            } else {
+                text.append(" × 123456789012345678901234567890");
+            }
+            expressions[i] = CompiledExpression.compile(text.toString());
+        }
+        return expressions;
+    }
+
+    /**
+     * Runs the arithmetic comparison on one workload.
+     * @return The number of failed checks.
+     */
+    private static long measureArithmetic(String name, CompiledExpression[] expressions, int rounds) {
+        int count = expressions.length;
+        ExactEvaluator exact = new ExactEvaluator();
+        ExactEvaluator big = new ExactEvaluator();
+        long mismatches = 0;
+        double exactSum = 0;
+        for (CompiledExpression expression : expressions) {
+            exact.evaluate(expression);
+            big.evaluateBigDecimal(expression);
+            exactSum += exact.doubleValue();
+            if (exact.toBigDecimal().compareTo(big.toBigDecimal()) != 0) {
+                if (mismatches++ < 5) {
+                    System.out.println("MISMATCH " + expression.getText() + ": " + exact + " vs " + big);
+                }
+            }
+        }
+        System.out.printf("%s: expressions=%d fast path=%.1f%% (%d fell back to BigDecimal)%n", name, count,
+                100.0 * exact.getFastResults() / count, exact.getFallbacks());
+
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long bestDouble = Long.MAX_VALUE;
+        long bestExact = Long.MAX_VALUE;
+        long bestBig = Long.MAX_VALUE;
+        long exactAllocated = 0;
+        long bigAllocated = 0;
+        for (int round = 0; round < rounds; round++) {
+            // Each loop folds its results into a check, which also keeps the JIT from dropping the work.
+            double doubleSum = 0;
+            long start = System.nanoTime();
+            for (CompiledExpression expression : expressions) {
+                doubleSum += expression.evaluate();
+            }
+            bestDouble = Math.min(bestDouble, System.nanoTime() - start);
+            long exactSigns = 0;
+            long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+            start = System.nanoTime();
+            for (CompiledExpression expression : expressions) {
+                exact.evaluate(expression);
+                exactSigns = exactSigns * 3 + exact.signum();
+            }
+            bestExact = Math.min(bestExact, System.nanoTime() - start);
+            exactAllocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            long bigSigns = 0;
+            allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+            start = System.nanoTime();
+            for (CompiledExpression expression : expressions) {
+                big.evaluateBigDecimal(expression);
+                bigSigns = bigSigns * 3 + big.signum();
+            }
+            bestBig = Math.min(bestBig, System.nanoTime() - start);
+            bigAllocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            if (exactSigns != bigSigns) {
+                System.out.println("MISMATCH: exact and BigDecimal results differ in sign in round " + (round + 1));
+                mismatches++;
+            }
+            if (Math.abs(doubleSum - exactSum) > 1e-9 * Math.abs(exactSum)) {
+                System.out.println("MISMATCH: double results add up to " + doubleSum + ", exact to " + exactSum);
+                mismatches++;
+            }
+        }
+        System.out.printf("  double:     %7.1f ns/expression%n", bestDouble / (double) count);
+        System.out.printf("  exact:      %7.1f ns/expression, %5.1f bytes/expression allocated%n",
+                bestExact / (double) count, exactAllocated / (double) count);
+        System.out.printf("  BigDecimal: %7.1f ns/expression, %5.1f bytes/expression allocated%n",
+                bestBig / (double) count, bigAllocated / (double) count);
+        return mismatches;
+    }
+
+    // --- Helpers ---
+
+    /**
+     * Runs the same task on the given number of threads, released together,
+     * and returns the wall-clock time until all of them finish.
+     */
+    private static long runWorkers(int threads, Runnable task) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                task.run();
+            }, "bench-" + t);
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    private static long longArg(String[] args, int index, long defaultValue) {
+        return args.length > index ? Long.parseLong(args[index]) : defaultValue;
+    }
+
+    private static int intArg(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+}
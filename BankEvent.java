@@ -0,0 +1,91 @@
+/**
+ * A notification about something that happened in a Bank.
+ * Instances are pre-allocated slots in a BankEventPipeline's ring buffer and
+ * are overwritten once every listener has seen them, so publishing an event
+ * allocates nothing.
+ */
+final class BankEvent {
+
+    /**
+     * The kind of operation an event describes.
+     */
+    enum Type {
+        ACCOUNT_CREATED,
+        DEPOSIT,
+        WITHDRAWAL,
+        TRANSFER
+    }
+
+    private Type type;
+    private TransactionStatus status;
+    private int accountNumber;
+    private int otherAccountNumber;
+    private long amountCents;
+    private long balanceCents;
+    private String accountHolderName;
+
+    /**
+     * Fills this slot. Only called by the pipeline.
+     */
+    void set(Type type, TransactionStatus status, int accountNumber, int otherAccountNumber, long amountCents,
+            long balanceCents, String accountHolderName) {
+        this.type = type;
+        this.status = status;
+        this.accountNumber = accountNumber;
+        this.otherAccountNumber = otherAccountNumber;
+        this.amountCents = amountCents;
+        this.balanceCents = balanceCents;
+        this.accountHolderName = accountHolderName;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public TransactionStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the account the operation was made on; for a transfer, the source.
+     * @return The numeric part of the account number.
+     */
+    public int getAccountNumber() {
+        return accountNumber;
+    }
+
+    /**
+     * Returns the destination of a transfer.
+     * @return The numeric part of the destination account number, or 0 for other events.
+     */
+    public int getOtherAccountNumber() {
+        return otherAccountNumber;
+    }
+
+    public long getAmountCents() {
+        return amountCents;
+    }
+
+    /**
+     * Returns the balance of {@link #getAccountNumber()} after the operation.
+     * @return The balance in cents, or TransactionResult.NO_BALANCE if unknown.
+     */
+    public long getBalanceCents() {
+        return balanceCents;
+    }
+
+    /**
+     * Returns the holder name of a newly created account.
+     * @return The name, or null for other events.
+     */
+    public String getAccountHolderName() {
+        return accountHolderName;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + status + " " + Bank.ACCOUNT_PREFIX + accountNumber
+                + (otherAccountNumber == 0 ? "" : " -> " + Bank.ACCOUNT_PREFIX + otherAccountNumber)
+                + " amount=" + Money.format(amountCents);
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * Receives bank notifications from a BankEventPipeline.
+ * Callbacks run on the pipeline's consumer thread, never on the thread that
+ * made the change, so they must not call back into Bank mutations and wait
+ * on the result.
+ */
+interface BankEventListener {
+
+    /**
+     * Called once per event, in publication order.
+     * The event object is reused after the call returns; copy anything you keep.
+     * @param event The event.
+     */
+    void onEvent(BankEvent event);
+
+    /**
+     * Called after each batch of events, e.g. to flush buffered output.
+     */
+    default void onEndOfBatch() {
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.Closeable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, multi-producer, single-consumer ring buffer of BankEvents.
+ * <p>
+ * Producers claim a sequence number with one atomic increment, fill the
+ * pre-allocated slot for it and mark it published. A background consumer
+ * thread drains every contiguous published slot as one batch, hands each event
+ * to the listeners, and then frees the whole batch at once. Producers never
+ * take a lock or do I/O; if the consumer falls a full ring behind, they wait
+ * for space rather than drop notifications.
+ */
+final class BankEventPipeline implements Closeable {
+
+    private final int mask;
+    private final BankEvent[] slots;
+    // The sequence number last published into each slot.
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong(-1);
+    // The highest sequence number every listener has seen.
+    private volatile long consumed = -1;
+
+    private final CopyOnWriteArrayList<BankEventListener> listeners = new CopyOnWriteArrayList<>();
+    private final Thread consumer;
+    private volatile boolean consumerSleeping;
+    private volatile boolean closed;
+
+    /**
+     * Creates a pipeline and starts its consumer thread.
+     * @param capacity The number of ring slots; rounded up to a power of two.
+     */
+    BankEventPipeline(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.slots = new BankEvent[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new BankEvent();
+            published.set(i, -1);
+        }
+        this.consumer = new Thread(this::runConsumer, "bank-events");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    void addListener(BankEventListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(BankEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Publishes one event.
+     * @return The event's sequence number.
+     */
+    long publish(BankEvent.Type type, TransactionStatus status, int accountNumber, int otherAccountNumber,
+            long amountCents, long balanceCents, String accountHolderName) {
+        long sequence = claimed.incrementAndGet();
+        // Wait until the consumer has freed the slot from one lap ago.
+        while (sequence - slots.length > consumed) {
+            if (closed) {
+                return sequence;
+            }
+            wakeConsumer();
+            LockSupport.parkNanos(1_000);
+        }
+        int index = (int) sequence & mask;
+        slots[index].set(type, status, accountNumber, otherAccountNumber, amountCents, balanceCents, accountHolderName);
+        published.lazySet(index, sequence);
+        if (consumerSleeping) {
+            wakeConsumer();
+        }
+        return sequence;
+    }
+
+    /**
+     * Blocks until the listeners have seen every event published before this call.
+     */
+    void flush() {
+        long target = claimed.get();
+        while (consumed < target && !closed) {
+            wakeConsumer();
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        }
+    }
+
+    private void wakeConsumer() {
+        LockSupport.unpark(consumer);
+    }
+
+    private void runConsumer() {
+        long next = 0;
+        while (true) {
+            long last = next - 1;
+            // Collect the run of contiguous published slots, at most one ring's worth.
+            while (last + 1 - next < slots.length && published.get((int) (last + 1) & mask) == last + 1) {
+                last++;
+            }
+            if (last < next) {
+                if (closed && claimed.get() < next) {
+                    return;
+                }
+                consumerSleeping = true;
+                // Re-check after announcing, so a publish racing with the flag is not missed.
+                if (published.get((int) next & mask) != next) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+                }
+                consumerSleeping = false;
+                continue;
+            }
+            for (long sequence = next; sequence <= last; sequence++) {
+                BankEvent event = slots[(int) sequence & mask];
+                for (BankEventListener listener : listeners) {
+                    try {
+                        listener.onEvent(event);
+                    } catch (RuntimeException e) {
+                        System.err.println("Bank event listener failed: " + e);
+                    }
+                }
+            }
+            for (BankEventListener listener : listeners) {
+                try {
+                    listener.onEndOfBatch();
+                } catch (RuntimeException e) {
+                    System.err.println("Bank event listener failed: " + e);
+                }
+            }
+            consumed = last;
+            next = last + 1;
+        }
+    }
+
+    /**
+     * Delivers the events already published, then stops the consumer thread.
+     */
+    @Override
+    public void close() {
+        flush();
+        closed = true;
+        wakeConsumer();
+        try {
+            consumer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,431 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * A binary write-ahead journal of Bank mutations.
+ * Every record is framed as [int payload length][int CRC32 of payload][payload],
+ * so a record torn by a crash is detected and ignored on replay.
+ * <p>
+ * Appends only copy the record into an in-memory buffer. Buffers are handed to
+ * the file by a single flusher at a time (double buffering), and one fsync
+ * covers every record appended before it started. This is group commit: under
+ * load, many mutations share each disk flush. When a flush happens is set by
+ * the {@link SyncPolicy}.
+ * <p>
+ * A position in the journal (its byte offset) doubles as a log sequence number.
+ */
+final class BankJournal implements Closeable {
+
+    /**
+     * When appended records are written out and forced to disk.
+     */
+    enum SyncPolicy {
+        // Every mutation waits until its record is on disk; concurrent waiters share one fsync.
+        PER_OPERATION,
+        // A background thread fsyncs when enough records are pending or the batch delay expires.
+        BATCHED,
+        // Records are written to the OS page cache in the background and never explicitly fsynced.
+        OS_MANAGED
+    }
+
+    // --- Record Types ---
+    static final byte CREATE = 1;
+    static final byte DEPOSIT = 2;
+    static final byte WITHDRAW = 3;
+    static final byte TRANSFER = 4;
+
+    /**
+     * Receives records during {@link #replay}.
+     */
+    interface RecordHandler {
+        void onCreate(int number, String accountHolderName, long balanceCents);
+
+        void onBalanceChange(byte type, int number, long amountCents, long balanceAfterCents);
+
+        void onTransfer(int fromNumber, int toNumber, long amountCents, long fromBalanceAfterCents,
+                long toBalanceAfterCents);
+    }
+
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_NAME_BYTES = 0xFFFF;
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private final FileChannel channel;
+    private final SyncPolicy policy;
+    private final int maxBatchRecords;
+    private final long maxBatchDelayNanos;
+    private final Thread flusher;
+
+    // Guarded by appendLock.
+    private final Object appendLock = new Object();
+    private ByteBuffer active = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private long appendedPosition;
+    private int pendingRecords;
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer scratch = ByteBuffer.allocate(64 + MAX_NAME_BYTES);
+
+    // Guarded by flushLock. Only one thread writes to the channel at a time.
+    private final Object flushLock = new Object();
+    private ByteBuffer spare = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private volatile long writtenPosition;
+    private volatile long durablePosition;
+    private volatile long syncCount;
+
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    /**
+     * Opens a journal for appending, truncating anything after the given position.
+     * @param file The journal file; created if it does not exist.
+     * @param policy When records are forced to disk.
+     * @param maxBatchRecords For BATCHED, how many pending records trigger an early fsync.
+     * @param maxBatchDelayMillis For BATCHED and OS_MANAGED, the longest a record waits to be written.
+     * @param validEnd The end of the last intact record, as returned by {@link #replay}.
+     * @throws IOException if the file cannot be opened.
+     */
+    BankJournal(Path file, SyncPolicy policy, int maxBatchRecords, long maxBatchDelayMillis, long validEnd)
+            throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        // Drop a torn record left by a crash, so new records follow the last intact one.
+        channel.truncate(validEnd);
+        channel.position(validEnd);
+        this.policy = policy;
+        this.maxBatchRecords = Math.max(1, maxBatchRecords);
+        this.maxBatchDelayNanos = Math.max(1, maxBatchDelayMillis) * 1_000_000L;
+        this.appendedPosition = validEnd;
+        this.writtenPosition = validEnd;
+        this.durablePosition = validEnd;
+        if (policy == SyncPolicy.PER_OPERATION) {
+            this.flusher = null;
+        } else {
+            this.flusher = new Thread(this::runFlusher, "bank-journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    // --- Appending ---
+
+    /**
+     * Appends an account creation record.
+     * @return The journal position just after the record.
+     */
+    long appendCreate(int number, String accountHolderName, long balanceCents) {
+        byte[] name = accountHolderName.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Account holder name is too long to journal");
+        }
+        while (true) {
+            long full;
+            synchronized (appendLock) {
+                scratch.clear();
+                scratch.put(CREATE).putInt(number).putLong(balanceCents).putShort((short) name.length).put(name);
+                if (tryFrameScratch()) {
+                    return appendedPosition;
+                }
+                full = appendedPosition;
+            }
+            writeOut(full);
+        }
+    }
+
+    /**
+     * Appends a deposit or withdrawal record.
+     * @param type DEPOSIT or WITHDRAW.
+     * @return The journal position just after the record.
+     */
+    long appendBalanceChange(byte type, int number, long amountCents, long balanceAfterCents) {
+        while (true) {
+            long full;
+            synchronized (appendLock) {
+                scratch.clear();
+                scratch.put(type).putInt(number).putLong(amountCents).putLong(balanceAfterCents);
+                if (tryFrameScratch()) {
+                    return appendedPosition;
+                }
+                full = appendedPosition;
+            }
+            writeOut(full);
+        }
+    }
+
+    /**
+     * Appends a transfer as one record, so replay applies both sides or neither.
+     * @return The journal position just after the record.
+     */
+    long appendTransfer(int fromNumber, int toNumber, long amountCents, long fromBalanceAfterCents,
+            long toBalanceAfterCents) {
+        while (true) {
+            long full;
+            synchronized (appendLock) {
+                scratch.clear();
+                scratch.put(TRANSFER).putInt(fromNumber).putInt(toNumber).putLong(amountCents)
+                        .putLong(fromBalanceAfterCents).putLong(toBalanceAfterCents);
+                if (tryFrameScratch()) {
+                    return appendedPosition;
+                }
+                full = appendedPosition;
+            }
+            writeOut(full);
+        }
+    }
+
+    /**
+     * Frames the payload in {@code scratch} into the active buffer. Caller holds appendLock.
+     * @return false if the active buffer has no room; the caller must write it out and retry.
+     */
+    private boolean tryFrameScratch() {
+        checkHealthy();
+        scratch.flip();
+        int length = scratch.remaining();
+        if (active.remaining() < HEADER_BYTES + length) {
+            return false;
+        }
+        crc.reset();
+        crc.update(scratch.array(), 0, length);
+        active.putInt(length).putInt((int) crc.getValue()).put(scratch);
+        appendedPosition += HEADER_BYTES + length;
+        if (++pendingRecords >= maxBatchRecords && flusher != null) {
+            LockSupport.unpark(flusher);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the record ending at the given position is durable, according
+     * to the sync policy. Under PER_OPERATION this forces the file if no other
+     * thread has already done so; the other policies return immediately.
+     * Must not be called while holding locks other writers need.
+     * @param position A position returned by one of the append methods.
+     */
+    void awaitDurable(long position) {
+        if (policy != SyncPolicy.PER_OPERATION || durablePosition >= position) {
+            return;
+        }
+        try {
+            flushTo(position, true);
+        } catch (IOException e) {
+            failure = e;
+            throw new UncheckedIOException("Journal flush failed", e);
+        }
+    }
+
+    /**
+     * Writes out and forces everything up to the given position, whatever the sync policy.
+     * @param position A journal position, e.g. from {@link #position()}.
+     * @throws IOException if the flush fails.
+     */
+    void sync(long position) throws IOException {
+        try {
+            flushTo(position, true);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    // --- Flushing ---
+
+    /**
+     * Writes out everything appended so far and, if requested, forces it to disk.
+     * Returns early if another thread already made {@code position} durable.
+     */
+    private void flushTo(long position, boolean force) throws IOException {
+        synchronized (flushLock) {
+            if (force ? durablePosition >= position : writtenPosition >= position) {
+                return;
+            }
+            ByteBuffer toWrite;
+            long target;
+            synchronized (appendLock) {
+                toWrite = active;
+                active = spare;
+                target = appendedPosition;
+                pendingRecords = 0;
+            }
+            toWrite.flip();
+            while (toWrite.hasRemaining()) {
+                channel.write(toWrite);
+            }
+            toWrite.clear();
+            spare = toWrite;
+            writtenPosition = target;
+            if (force && durablePosition < target) {
+                channel.force(false);
+                syncCount++;
+                durablePosition = target;
+            }
+        }
+    }
+
+    /**
+     * Writes out a full active buffer. Called without appendLock held, since
+     * flushTo takes flushLock first and then appendLock.
+     */
+    private void writeOut(long position) {
+        try {
+            flushTo(position, false);
+        } catch (IOException e) {
+            failure = e;
+            throw new UncheckedIOException("Journal write failed", e);
+        }
+    }
+
+    private void runFlusher() {
+        while (!closed) {
+            LockSupport.parkNanos(this, maxBatchDelayNanos);
+            try {
+                flushTo(appendedPositionSnapshot(), policy == SyncPolicy.BATCHED);
+            } catch (IOException e) {
+                failure = e;
+                return;
+            }
+        }
+    }
+
+    private long appendedPositionSnapshot() {
+        synchronized (appendLock) {
+            return appendedPosition;
+        }
+    }
+
+    private void checkHealthy() {
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        if (failure != null) {
+            throw new UncheckedIOException("Journal is unusable after an earlier I/O failure", failure);
+        }
+    }
+
+    // --- Status ---
+
+    /**
+     * Returns the position just after the last appended record.
+     * @return The current end of the journal, including buffered records.
+     */
+    long position() {
+        return appendedPositionSnapshot();
+    }
+
+    /**
+     * Returns how many times the journal has been forced to disk.
+     * @return The fsync count.
+     */
+    long getSyncCount() {
+        return syncCount;
+    }
+
+    SyncPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Flushes and forces all appended records, then closes the file.
+     * @throws IOException if the final flush fails.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flushTo(appendedPositionSnapshot(), true);
+        } finally {
+            closed = true;
+            if (flusher != null) {
+                LockSupport.unpark(flusher);
+            }
+            channel.close();
+        }
+    }
+
+    // --- Replay ---
+
+    /**
+     * Reads records from a journal file, stopping at the end of the file or at
+     * the first torn or corrupt record.
+     * @param file The journal file.
+     * @param fromPosition The position to start reading at; must be a record boundary.
+     * @param handler Receives each intact record; may be null to only find the end.
+     * @return The position just after the last intact record.
+     * @throws IOException if the file cannot be read.
+     */
+    static long replay(Path file, long fromPosition, RecordHandler handler) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+            CRC32 checksum = new CRC32();
+            long position = fromPosition;
+            in.position(fromPosition);
+            buffer.limit(0);
+            while (true) {
+                if (!fill(in, buffer, HEADER_BYTES)) {
+                    return position;
+                }
+                int length = buffer.getInt();
+                int expectedCrc = buffer.getInt();
+                if (length <= 0 || length > BUFFER_BYTES - HEADER_BYTES || !fill(in, buffer, length)) {
+                    return position;
+                }
+                checksum.reset();
+                checksum.update(buffer.array(), buffer.position(), length);
+                if ((int) checksum.getValue() != expectedCrc) {
+                    return position;
+                }
+                int next = buffer.position() + length;
+                if (handler != null) {
+                    dispatch(buffer, handler);
+                }
+                buffer.position(next);
+                position += HEADER_BYTES + length;
+            }
+        }
+    }
+
+    private static void dispatch(ByteBuffer buffer, RecordHandler handler) {
+        byte type = buffer.get();
+        int number = buffer.getInt();
+        if (type == CREATE) {
+            long balance = buffer.getLong();
+            byte[] name = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(name);
+            handler.onCreate(number, new String(name, StandardCharsets.UTF_8), balance);
+        } else if (type == TRANSFER) {
+            int toNumber = buffer.getInt();
+            long amount = buffer.getLong();
+            long fromBalance = buffer.getLong();
+            handler.onTransfer(number, toNumber, amount, fromBalance, buffer.getLong());
+        } else {
+            long amount = buffer.getLong();
+            handler.onBalanceChange(type, number, amount, buffer.getLong());
+        }
+    }
+
+    /**
+     * Makes sure at least {@code needed} unread bytes are in the buffer.
+     * @return false if the file ends first.
+     */
+    private static boolean fill(FileChannel in, ByteBuffer buffer, int needed) throws IOException {
+        if (buffer.remaining() >= needed) {
+            return true;
+        }
+        buffer.compact();
+        while (buffer.position() < needed) {
+            if (in.read(buffer) < 0) {
+                buffer.flip();
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+}
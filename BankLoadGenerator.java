@@ -0,0 +1,407 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator for BankServer.
+ * Usage: java BankLoadGenerator [host] [port] [connections] [seconds] [pipeline] [accounts]
+ * <p>
+ * Creates a set of accounts, then opens the given number of connections and
+ * keeps {@code pipeline} requests in flight on each one for the given time: a
+ * mix of 50% deposits, 40% withdrawals and 10% transfers between random
+ * accounts. Connections are driven by a few selector threads rather than a
+ * thread each, so tens of thousands of them fit in one process (raise the
+ * open-file limit accordingly). Prints throughput and latency percentiles,
+ * measured from sending a request to reading its reply.
+ */
+public class BankLoadGenerator {
+
+    private static final int REPLY_BUFFER_BYTES = 64 * 1024;
+    // Large enough for one request line.
+    private static final int MAX_REQUEST_BYTES = 64;
+    private static final byte[] DEPOSIT = "DEPOSIT ACC".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] WITHDRAW = "WITHDRAW ACC".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER = "TRANSFER ACC".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ACCOUNT_SEPARATOR = " ACC".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AMOUNT_SUFFIX = ".00\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final InetSocketAddress address;
+    private final int connections;
+    private final int pipeline;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private volatile boolean running = true;
+    private volatile boolean measuring;
+
+    /**
+     * The outcome of one run.
+     */
+    static final class Report {
+        final int connections;
+        final long replies;
+        final long errors;
+        final double seconds;
+        final LatencyHistogram.Snapshot latency;
+
+        Report(int connections, long replies, long errors, double seconds, LatencyHistogram.Snapshot latency) {
+            this.connections = connections;
+            this.replies = replies;
+            this.errors = errors;
+            this.seconds = seconds;
+            this.latency = latency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("connections=%d replies=%d errors=%d throughput=%.0f req/s latency us: "
+                            + "p50=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+                    connections, replies, errors, replies / seconds, latency.getValueAtPercentile(50) / 1_000.0,
+                    latency.getValueAtPercentile(99) / 1_000.0, latency.getValueAtPercentile(99.9) / 1_000.0,
+                    latency.getMax() / 1_000.0);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7070;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 1_000;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int pipeline = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+        int accounts = args.length > 5 ? Integer.parseInt(args[5]) : 10_000;
+        BankLoadGenerator generator = new BankLoadGenerator(new InetSocketAddress(host, port), connections, pipeline);
+        System.out.println(generator.run(accounts, seconds));
+    }
+
+    /**
+     * Creates a load generator.
+     * @param address The server to connect to.
+     * @param connections The number of concurrent client connections.
+     * @param pipeline The number of requests each connection keeps in flight.
+     */
+    BankLoadGenerator(InetSocketAddress address, int connections, int pipeline) {
+        this.address = address;
+        this.connections = connections;
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Creates accounts, then applies load for a fixed time.
+     * @param accounts The number of accounts to create and spread load over.
+     * @param seconds How long to measure for.
+     * @return Throughput and latency.
+     * @throws IOException if the server cannot be reached.
+     */
+    Report run(int accounts, int seconds) throws IOException, InterruptedException {
+        int[] numbers = createAccounts(accounts);
+        int loopCount = Math.max(1, Math.min(connections, Runtime.getRuntime().availableProcessors()));
+        CountDownLatch connected = new CountDownLatch(connections);
+        List<Loop> loops = new ArrayList<>();
+        for (int i = 0; i < loopCount; i++) {
+            int share = connections / loopCount + (i < connections % loopCount ? 1 : 0);
+            Loop loop = new Loop(share, numbers, connected, i);
+            loops.add(loop);
+            loop.start();
+        }
+        if (!connected.await(60, TimeUnit.SECONDS)) {
+            running = false;
+            throw new IOException("Timed out connecting " + connections + " clients");
+        }
+        int failed = 0;
+        for (Loop loop : loops) {
+            failed += loop.failedConnections.get();
+        }
+        if (failed > 0) {
+            running = false;
+            throw new IOException(failed + " of " + connections + " connections failed");
+        }
+        long begin = System.nanoTime();
+        measuring = true;
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        measuring = false;
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        running = false;
+        long replies = 0;
+        long errors = 0;
+        for (Loop loop : loops) {
+            loop.join();
+            replies += loop.measuredReplies;
+            errors += loop.measuredErrors;
+        }
+        return new Report(connections, replies, errors, elapsed, latency.snapshot());
+    }
+
+    /**
+     * Creates accounts over one pipelined blocking connection.
+     * @return The numeric account numbers the server assigned.
+     */
+    private int[] createAccounts(int accounts) throws IOException {
+        int[] numbers = new int[accounts];
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            ByteBuffer replies = ByteBuffer.allocate(REPLY_BUFFER_BYTES);
+            int created = 0;
+            while (created < accounts) {
+                int chunk = Math.min(1_000, accounts - created);
+                StringBuilder requests = new StringBuilder(chunk * 32);
+                for (int i = 0; i < chunk; i++) {
+                    requests.append("CREATE 1000000.00 Load Holder ").append(created + i).append('\n');
+                }
+                ByteBuffer out = ByteBuffer.wrap(requests.toString().getBytes(StandardCharsets.US_ASCII));
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                int parsed = 0;
+                while (parsed < chunk) {
+                    if (channel.read(replies) < 0) {
+                        throw new IOException("Server closed the connection during setup");
+                    }
+                    replies.flip();
+                    int lineStart = replies.position();
+                    for (int i = replies.position(); i < replies.limit(); i++) {
+                        if (replies.get(i) == '\n') {
+                            numbers[created + parsed++] = parseAccount(replies, lineStart, i);
+                            lineStart = i + 1;
+                        }
+                    }
+                    replies.position(lineStart);
+                    replies.compact();
+                }
+                created += chunk;
+            }
+        }
+        return numbers;
+    }
+
+    /**
+     * Parses the account number out of an "OK ACC&lt;number&gt; ..." reply.
+     */
+    private static int parseAccount(ByteBuffer replies, int start, int end) throws IOException {
+        if (end - start < 7 || replies.get(start) != 'O') {
+            throw new IOException("Account creation failed: "
+                    + StandardCharsets.US_ASCII.decode(replies.duplicate().position(start).limit(end)));
+        }
+        int number = 0;
+        for (int i = start + 6; i < end && replies.get(i) != ' '; i++) {
+            number = number * 10 + (replies.get(i) - '0');
+        }
+        return number;
+    }
+
+    // --- Client Connections ---
+
+    /**
+     * One client connection's buffers and in-flight request times.
+     */
+    private static final class Client {
+        final SocketChannel channel;
+        final ByteBuffer out;
+        final ByteBuffer in = ByteBuffer.allocate(REPLY_BUFFER_BYTES);
+        // Send times of in-flight requests, a ring in request order.
+        final long[] sentAt;
+        boolean connected;
+        int head;
+        int inFlight;
+
+        Client(SocketChannel channel, int pipeline) {
+            this.channel = channel;
+            this.out = ByteBuffer.allocate(pipeline * MAX_REQUEST_BYTES);
+            this.sentAt = new long[pipeline];
+        }
+    }
+
+    /**
+     * A selector thread driving a share of the connections.
+     */
+    private final class Loop extends Thread {
+        private final int clientCount;
+        private final int[] numbers;
+        private final CountDownLatch connected;
+        private final SplittableRandom random;
+        private final byte[] digits = new byte[20];
+        private Selector selector;
+        final AtomicInteger failedConnections = new AtomicInteger();
+        long measuredReplies;
+        long measuredErrors;
+
+        Loop(int clientCount, int[] numbers, CountDownLatch connected, int index) {
+            super("load-" + index);
+            this.clientCount = clientCount;
+            this.numbers = numbers;
+            this.connected = connected;
+            this.random = new SplittableRandom(index);
+        }
+
+        @Override
+        public void run() {
+            try {
+                selector = Selector.open();
+                List<Client> clients = new ArrayList<>(clientCount);
+                for (int i = 0; i < clientCount; i++) {
+                    SocketChannel channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    Client client = new Client(channel, pipeline);
+                    clients.add(client);
+                    if (channel.connect(address)) {
+                        onConnected(client);
+                    } else {
+                        channel.register(selector, SelectionKey.OP_CONNECT, client);
+                    }
+                }
+                long drainDeadline = Long.MAX_VALUE;
+                while (true) {
+                    selector.select(100);
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Client client = (Client) key.attachment();
+                        try {
+                            if (key.isConnectable()) {
+                                client.channel.finishConnect();
+                                onConnected(client);
+                            } else {
+                                if (key.isReadable()) {
+                                    onReadable(client);
+                                }
+                                if (key.isValid() && key.isWritable()) {
+                                    flush(client);
+                                }
+                            }
+                        } catch (IOException e) {
+                            key.cancel();
+                            client.channel.close();
+                            if (!client.connected) {
+                                failedConnections.incrementAndGet();
+                                connected.countDown();
+                            }
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    if (!running) {
+                        // Stop issuing and wait briefly for replies still in flight.
+                        if (drainDeadline == Long.MAX_VALUE) {
+                            drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                        }
+                        if (allDrained(clients) || System.nanoTime() > drainDeadline) {
+                            break;
+                        }
+                    }
+                }
+                for (Client client : clients) {
+                    client.channel.close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                System.err.println(getName() + " failed: " + e);
+            }
+        }
+
+        private boolean allDrained(List<Client> clients) {
+            for (Client client : clients) {
+                if (client.inFlight > 0 && client.channel.isOpen()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void onConnected(Client client) throws IOException {
+            client.channel.register(selector, SelectionKey.OP_READ, client);
+            client.connected = true;
+            connected.countDown();
+            while (client.inFlight < pipeline) {
+                enqueueRequest(client);
+            }
+            flush(client);
+        }
+
+        private void onReadable(Client client) throws IOException {
+            ByteBuffer in = client.in;
+            if (client.channel.read(in) < 0) {
+                throw new IOException("Server closed the connection");
+            }
+            in.flip();
+            long now = System.nanoTime();
+            boolean measured = measuring;
+            int lineStart = in.position();
+            for (int i = in.position(); i < in.limit(); i++) {
+                if (in.get(i) != '\n') {
+                    continue;
+                }
+                long sentAt = client.sentAt[client.head];
+                client.head = (client.head + 1) % pipeline;
+                client.inFlight--;
+                if (measured) {
+                    latency.record(now - sentAt);
+                    measuredReplies++;
+                    if (in.get(lineStart) == 'E') {
+                        measuredErrors++;
+                    }
+                }
+                lineStart = i + 1;
+                if (running) {
+                    enqueueRequest(client);
+                }
+            }
+            in.position(lineStart);
+            in.compact();
+            flush(client);
+        }
+
+        /**
+         * Appends one random request to the client's output buffer.
+         */
+        private void enqueueRequest(Client client) {
+            ByteBuffer out = client.out;
+            int kind = random.nextInt(10);
+            int fromIndex = random.nextInt(numbers.length);
+            int from = numbers[fromIndex];
+            if (kind < 5) {
+                out.put(DEPOSIT);
+            } else if (kind < 9) {
+                out.put(WITHDRAW);
+            } else {
+                out.put(TRANSFER);
+            }
+            putLong(out, from);
+            if (kind == 9) {
+                // Any account but the source.
+                int toIndex = (fromIndex + 1 + random.nextInt(Math.max(1, numbers.length - 1))) % numbers.length;
+                out.put(ACCOUNT_SEPARATOR);
+                putLong(out, numbers[toIndex]);
+            }
+            out.put((byte) ' ');
+            putLong(out, 1 + random.nextInt(100));
+            out.put(AMOUNT_SUFFIX);
+            client.sentAt[(client.head + client.inFlight) % pipeline] = System.nanoTime();
+            client.inFlight++;
+        }
+
+        private void flush(Client client) throws IOException {
+            ByteBuffer out = client.out;
+            out.flip();
+            client.channel.write(out);
+            SelectionKey key = client.channel.keyFor(selector);
+            if (key != null) {
+                key.interestOps(out.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+            out.compact();
+        }
+
+        private void putLong(ByteBuffer out, long value) {
+            int i = digits.length;
+            do {
+                digits[--i] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            out.put(digits, i, digits.length - i);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Latency histograms and outcome counters for a Bank's operations, plus
+ * gauges for the bank as a whole.
+ * <p>
+ * Everything on the recording path is striped: outcome counters are
+ * LongAdders and latencies go to a LatencyHistogram, so concurrent operations
+ * never contend on a shared counter. Readers merge the stripes on demand,
+ * through JMX (one MBean for the bank and one per operation) or the periodic
+ * text report.
+ */
+final class BankMetrics implements BankMetricsMBean, Closeable {
+
+    /**
+     * The kinds of operation that are measured.
+     */
+    enum Operation {
+        CREATE_ACCOUNT("create"),
+        GET_ACCOUNT("lookup"),
+        DEPOSIT("deposit"),
+        WITHDRAWAL("withdraw"),
+        TRANSFER("transfer"),
+        // One transferAll call; its transfers are also counted under TRANSFER.
+        TRANSFER_BATCH("transfer-batch");
+
+        private final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        String label() {
+            return label;
+        }
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final TransactionStatus[] STATUSES = TransactionStatus.values();
+
+    private final Bank bank;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    // Outcome counters, indexed by [operation][status].
+    private final LongAdder[][] outcomes = new LongAdder[OPERATIONS.length][STATUSES.length];
+    private final List<ObjectName> registered = new ArrayList<>();
+    private ScheduledExecutorService reporter;
+
+    /**
+     * Creates empty metrics for a bank.
+     * @param bank The bank the gauges read from.
+     */
+    BankMetrics(Bank bank) {
+        this.bank = bank;
+        for (Operation operation : OPERATIONS) {
+            latencies[operation.ordinal()] = new LatencyHistogram();
+            for (TransactionStatus status : STATUSES) {
+                outcomes[operation.ordinal()][status.ordinal()] = new LongAdder();
+            }
+        }
+    }
+
+    // --- Recording ---
+
+    /**
+     * Records an operation's outcome and latency.
+     * @param operation The kind of operation.
+     * @param balanceOrCode A balance (success) or a negative TransactionStatus code.
+     * @param elapsedNanos How long the operation took.
+     */
+    void record(Operation operation, long balanceOrCode, long elapsedNanos) {
+        count(operation, balanceOrCode);
+        latencies[operation.ordinal()].record(elapsedNanos);
+    }
+
+    /**
+     * Records an operation's outcome only.
+     */
+    void count(Operation operation, long balanceOrCode) {
+        TransactionStatus status = balanceOrCode >= 0 ? TransactionStatus.SUCCESS : TransactionStatus.fromCode(balanceOrCode);
+        outcomes[operation.ordinal()][status.ordinal()].increment();
+    }
+
+    /**
+     * Records an operation's latency only.
+     */
+    void recordLatency(Operation operation, long elapsedNanos) {
+        latencies[operation.ordinal()].record(elapsedNanos);
+    }
+
+    // --- Reading ---
+
+    /**
+     * Returns how many operations of a kind ended with a status.
+     * @param operation The kind of operation.
+     * @param status The outcome.
+     * @return The count so far.
+     */
+    long getCount(Operation operation, TransactionStatus status) {
+        return outcomes[operation.ordinal()][status.ordinal()].sum();
+    }
+
+    /**
+     * Returns the number of operations of a kind that were rejected for any reason.
+     */
+    long getRejectedCount(Operation operation) {
+        long rejected = 0;
+        for (TransactionStatus status : STATUSES) {
+            if (status != TransactionStatus.SUCCESS) {
+                rejected += getCount(operation, status);
+            }
+        }
+        return rejected;
+    }
+
+    /**
+     * Returns a merged copy of an operation's latency histogram, in nanoseconds.
+     */
+    LatencyHistogram.Snapshot getLatency(Operation operation) {
+        return latencies[operation.ordinal()].snapshot();
+    }
+
+    @Override
+    public int getAccountCount() {
+        return bank.getAccountCount();
+    }
+
+    @Override
+    public double getTotalDeposits() {
+        return Money.toUnits(bank.getTotalBalanceCents());
+    }
+
+    @Override
+    public double getAccountCacheHitRatio() {
+        TieredAccountStore tiered = bank.getTieredStore();
+        return tiered == null ? Double.NaN : tiered.getCacheHitRatio();
+    }
+
+    /**
+     * Formats all counters and latency percentiles as a text table.
+     * @return The report.
+     */
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder(1024);
+        report.append("Bank metrics: ").append(bank.getAccountCount()).append(" account(s), ")
+                .append(Money.format(bank.getTotalBalanceCents())).append(" held\n");
+        TieredAccountStore tiered = bank.getTieredStore();
+        if (tiered != null) {
+            report.append(tiered).append('\n');
+        }
+        report.append(String.format("%-15s %10s %10s %9s %9s %9s %9s %9s%n", "operation", "succeeded", "rejected",
+                "mean us", "p50 us", "p99 us", "p99.9 us", "max us"));
+        for (Operation operation : OPERATIONS) {
+            LatencyHistogram.Snapshot latency = getLatency(operation);
+            report.append(String.format("%-15s %10d %10d %9.2f %9.2f %9.2f %9.2f %9.2f%n", operation.label(),
+                    getCount(operation, TransactionStatus.SUCCESS), getRejectedCount(operation),
+                    latency.getMean() / 1_000, latency.getValueAtPercentile(50) / 1_000.0,
+                    latency.getValueAtPercentile(99) / 1_000.0, latency.getValueAtPercentile(99.9) / 1_000.0,
+                    latency.getMax() / 1_000.0));
+            StringBuilder reasons = new StringBuilder();
+            for (TransactionStatus status : STATUSES) {
+                long count = getCount(operation, status);
+                if (status != TransactionStatus.SUCCESS && count > 0) {
+                    reasons.append(' ').append(status.name().toLowerCase()).append('=').append(count);
+                }
+            }
+            if (reasons.length() > 0) {
+                report.append("  rejected:").append(reasons).append('\n');
+            }
+        }
+        return report.toString();
+    }
+
+    // --- Exposure ---
+
+    /**
+     * Registers this bank's MBeans with the platform MBean server, as
+     * BankingApp:type=Bank,name=&lt;name&gt; and
+     * BankingApp:type=BankOperation,bank=&lt;name&gt;,name=&lt;operation&gt;.
+     * @param name A name that distinguishes this bank from others in the JVM.
+     * @throws JMException if the names are taken or invalid.
+     */
+    synchronized void registerMBeans(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName bankName = new ObjectName("BankingApp:type=Bank,name=" + ObjectName.quote(name));
+        server.registerMBean(new StandardMBean(this, BankMetricsMBean.class), bankName);
+        registered.add(bankName);
+        for (Operation operation : OPERATIONS) {
+            ObjectName operationName = new ObjectName("BankingApp:type=BankOperation,bank=" + ObjectName.quote(name)
+                    + ",name=" + operation.label());
+            server.registerMBean(new StandardMBean(new OperationView(operation), OperationMetricsMBean.class),
+                    operationName);
+            registered.add(operationName);
+        }
+    }
+
+    /**
+     * Prints the report to a stream at a fixed rate on a daemon thread.
+     * @param out Where to print, e.g. System.err.
+     * @param periodMillis The time between reports.
+     */
+    synchronized void startReporting(PrintStream out, long periodMillis) {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bank-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> out.print(getReport()), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops periodic reporting and unregisters the MBeans.
+     */
+    @Override
+    public synchronized void close() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                // Already gone; nothing to clean up.
+            }
+        }
+        registered.clear();
+    }
+
+    /**
+     * The per-operation MBean.
+     */
+    private final class OperationView implements OperationMetricsMBean {
+        private final Operation operation;
+
+        OperationView(Operation operation) {
+            this.operation = operation;
+        }
+
+        @Override
+        public long getSucceeded() {
+            return getCount(operation, TransactionStatus.SUCCESS);
+        }
+
+        @Override
+        public long getRejected() {
+            return getRejectedCount(operation);
+        }
+
+        @Override
+        public long getRejectedInvalidAmount() {
+            return getCount(operation, TransactionStatus.INVALID_AMOUNT);
+        }
+
+        @Override
+        public long getRejectedUnknownAccount() {
+            return getCount(operation, TransactionStatus.UNKNOWN_ACCOUNT);
+        }
+
+        @Override
+        public long getRejectedSameAccount() {
+            return getCount(operation, TransactionStatus.SAME_ACCOUNT);
+        }
+
+        @Override
+        public long getRejectedInsufficientFunds() {
+            return getCount(operation, TransactionStatus.INSUFFICIENT_FUNDS);
+        }
+
+        @Override
+        public long getRejectedBalanceOverflow() {
+            return getCount(operation, TransactionStatus.BALANCE_OVERFLOW);
+        }
+
+        @Override
+        public long getFailed() {
+            return getCount(operation, TransactionStatus.FAILED);
+        }
+
+        @Override
+        public double getMeanMicros() {
+            return getLatency(operation).getMean() / 1_000;
+        }
+
+        @Override
+        public double getP50Micros() {
+            return getLatency(operation).getValueAtPercentile(50) / 1_000.0;
+        }
+
+        @Override
+        public double getP99Micros() {
+            return getLatency(operation).getValueAtPercentile(99) / 1_000.0;
+        }
+
+        @Override
+        public double getP999Micros() {
+            return getLatency(operation).getValueAtPercentile(99.9) / 1_000.0;
+        }
+
+        @Override
+        public double getMaxMicros() {
+            return getLatency(operation).getMax() / 1_000.0;
+        }
+    }
+}
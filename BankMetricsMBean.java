@@ -0,0 +1,26 @@
+/**
+ * JMX view of a Bank's gauges.
+ */
+public interface BankMetricsMBean {
+
+    int getAccountCount();
+
+    /**
+     * Returns the total of all balances, computed by scanning the accounts.
+     * @return The total in units of currency.
+     */
+    double getTotalDeposits();
+
+    /**
+     * Returns the fraction of account holder name lookups served from the
+     * heap cache, when accounts are kept in a memory-mapped file.
+     * @return The hit ratio, or NaN if the accounts are all on the heap.
+     */
+    double getAccountCacheHitRatio();
+
+    /**
+     * Returns the metrics report that is also printed periodically.
+     * @return A multi-line text report.
+     */
+    String getReport();
+}
@@ -0,0 +1,389 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TCP front end for a Bank.
+ * <p>
+ * The protocol is line based and ASCII, using the command format of
+ * BulkIngestor plus a balance query:
+ * <pre>
+ *   CREATE &lt;amount&gt; &lt;holder name...&gt;
+ *   DEPOSIT &lt;account&gt; &lt;amount&gt;
+ *   WITHDRAW &lt;account&gt; &lt;amount&gt;
+ *   TRANSFER &lt;from&gt; &lt;to&gt; &lt;amount&gt;
+ *   BALANCE &lt;account&gt;
+ * </pre>
+ * Any command but BALANCE may be prefixed with {@code ID <request id>}, a
+ * positive number chosen by the client. If the bank deduplicates requests,
+ * a retry with the same ID gets the original reply and changes nothing, and
+ * reusing an ID for a different request gets request_id_reused; otherwise
+ * the ID is ignored.
+ * Every non-blank request line gets exactly one reply line, in request order:
+ * {@code OK ACC<number> <balance>} (the new account for CREATE, the source
+ * for TRANSFER) or {@code ERR <reason>}, where the reason is bad_syntax,
+ * line_too_long, a rejected TransactionStatus in lower case, or
+ * internal_error if the request failed unexpectedly; the connection stays
+ * open after any of them but line_too_long.
+ * <p>
+ * Clients may pipeline, sending many requests without waiting for replies.
+ * Each connection is served by its own thread: a virtual thread when the
+ * runtime has them (Java 21+), otherwise a platform thread with a small stack.
+ * A connection parses every complete request it has read and sends all of
+ * their replies with one socket write, so a deep pipeline costs far fewer
+ * writes than requests.
+ */
+final class BankServer implements Closeable {
+
+    private static final int BUFFER_BYTES = 16 * 1024;
+    private static final int ACCEPT_BACKLOG = 4096;
+    // Stack size for platform connection threads, when virtual threads are unavailable.
+    private static final long PLATFORM_STACK_BYTES = 256 * 1024;
+    // The longest wait between accept attempts while accept keeps failing.
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1_000;
+
+    private static final byte[] OK = ascii("OK ACC");
+    private static final byte[] ERR = ascii("ERR ");
+    private static final byte[] BAD_SYNTAX = ascii("bad_syntax");
+    private static final byte[] LINE_TOO_LONG = ascii("line_too_long");
+    private static final byte[] INTERNAL_ERROR = ascii("internal_error");
+    // Rejection reasons, indexed by TransactionStatus ordinal.
+    private static final byte[][] REASONS = new byte[TransactionStatus.values().length][];
+
+    static {
+        for (TransactionStatus status : TransactionStatus.values()) {
+            REASONS[status.ordinal()] = ascii(status.name().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private final Bank bank;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections;
+    private final boolean virtualThreads;
+    private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor;
+    private volatile boolean closed;
+
+    /**
+     * Binds the server socket and starts accepting connections.
+     * @param bank The bank to serve.
+     * @param port The TCP port, or 0 for any free port.
+     * @throws IOException if the port cannot be bound.
+     */
+    BankServer(Bank bank, int port) throws IOException {
+        this.bank = bank;
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.connections = virtual != null ? virtual : Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(null, task, "bank-connection", PLATFORM_STACK_BYTES);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.acceptor = new Thread(this::acceptLoop, "bank-server-accept");
+        acceptor.start();
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     * @return The bound port.
+     */
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Reports whether connections run on virtual threads.
+     * @return false if the runtime predates them and platform threads are used.
+     */
+    boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Returns the number of connections currently open.
+     */
+    int getConnectionCount() {
+        return openSockets.size();
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor, which this source
+     * cannot name directly while it still compiles for Java 17.
+     * @return The executor, or null if the runtime has no virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            // Absent before Java 19, and a preview feature that is off by default on 19 and 20.
+            return null;
+        }
+    }
+
+    // --- Connections ---
+
+    private void acceptLoop() {
+        long backoffMillis = 0;
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (closed) {
+                    break;
+                }
+                // A failure that persists, such as running out of file descriptors, must not spin:
+                // wait 1 ms after the first one, doubling up to a second while they keep coming.
+                backoffMillis = Math.min(MAX_ACCEPT_BACKOFF_MILLIS, Math.max(1, backoffMillis * 2));
+                System.err.println("Accept failed: " + e.getMessage() + "; retrying in " + backoffMillis + " ms");
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    // close() interrupts the wait.
+                }
+                continue;
+            }
+            backoffMillis = 0;
+            try {
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                closeQuietly(socket);
+                continue;
+            }
+            openSockets.add(socket);
+            try {
+                connections.execute(() -> serve(socket));
+            } catch (RejectedExecutionException e) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * Reads pipelined requests from one connection until it closes.
+     */
+    private void serve(Socket socket) {
+        try (InputStream in = socket.getInputStream(); OutputStream out = socket.getOutputStream()) {
+            byte[] input = new byte[BUFFER_BYTES];
+            LineCursor line = new LineCursor(input);
+            ReplyWriter replies = new ReplyWriter(out);
+            int end = 0;
+            int read;
+            while ((read = in.read(input, end, input.length - end)) > 0) {
+                end += read;
+                int start = 0;
+                int newline;
+                while ((newline = LineCursor.indexOf(input, start, end, (byte) '\n')) >= 0) {
+                    line.reset(start, newline);
+                    try {
+                        handle(line, replies);
+                    } catch (RuntimeException e) {
+                        // One failed request must not drop the replies pipelined behind it.
+                        replies.error(INTERNAL_ERROR);
+                    }
+                    start = newline + 1;
+                }
+                if (start == 0 && end == input.length) {
+                    replies.error(LINE_TOO_LONG);
+                    replies.flush();
+                    return;
+                }
+                // Keep the partial last request for the next read.
+                System.arraycopy(input, start, input, 0, end - start);
+                end -= start;
+                replies.flush();
+            }
+        } catch (IOException e) {
+            // The client went away; nothing to reply to.
+        } finally {
+            openSockets.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Parses and applies one request, appending its reply.
+     */
+    private void handle(LineCursor line, ReplyWriter replies) throws IOException {
+        line.skipSpaces();
+        if (!line.hasMore()) {
+            return;
+        }
+        if (line.word("BALANCE")) {
+            int number = line.account();
+            if (number < 0 || line.hasMoreTokens()) {
+                replies.error(BAD_SYNTAX);
+                return;
+            }
+            BankAccount account = bank.getAccount(number);
+            if (account == null) {
+                replies.error(REASONS[TransactionStatus.UNKNOWN_ACCOUNT.ordinal()]);
+            } else {
+                replies.ok(number, account.getBalanceCents());
+            }
+            return;
+        }
+        long requestId = RequestDeduplicator.NO_REQUEST;
+        if (line.word("ID")) {
+            requestId = line.requestId();
+            if (requestId < 0) {
+                replies.error(BAD_SYNTAX);
+                return;
+            }
+            if (!bank.isDeduplicatingRequests()) {
+                requestId = RequestDeduplicator.NO_REQUEST;
+            }
+        }
+        int keyword = line.keyword();
+        if (keyword == 'C') {
+            long amount = line.amount();
+            String name = line.rest();
+            if (amount < 0 || name.isEmpty()) {
+                replies.error(BAD_SYNTAX);
+                return;
+            }
+            long number = bank.applyOpen(name, amount, requestId);
+            if (number >= 0) {
+                replies.ok((int) number, amount);
+            } else {
+                replies.error(REASONS[TransactionStatus.fromCode(number).ordinal()]);
+            }
+            return;
+        }
+        int from = line.account();
+        int to = keyword == 'T' ? line.account() : -1;
+        long amount = line.amount();
+        if (keyword == 0 || from < 0 || (keyword == 'T' && to < 0) || amount < 0 || line.hasMoreTokens()) {
+            replies.error(BAD_SYNTAX);
+            return;
+        }
+        long result;
+        if (keyword == 'D') {
+            result = bank.applyDeposit(from, amount, requestId);
+        } else if (keyword == 'W') {
+            result = bank.applyWithdrawal(from, amount, requestId);
+        } else {
+            result = bank.applyTransfer(from, to, amount, requestId);
+        }
+        if (result >= 0) {
+            replies.ok(from, result);
+        } else {
+            replies.error(REASONS[TransactionStatus.fromCode(result).ordinal()]);
+        }
+    }
+
+    /**
+     * Stops accepting, closes every open connection and waits briefly for
+     * their threads to finish. The bank itself is left open.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        acceptor.interrupt();
+        for (Socket socket : openSockets) {
+            closeQuietly(socket);
+        }
+        connections.shutdown();
+        try {
+            acceptor.join();
+            connections.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // --- Output ---
+
+    /**
+     * Collects reply lines as ASCII bytes and writes them in one go.
+     */
+    private static final class ReplyWriter {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_BYTES];
+        private final byte[] digits = new byte[20];
+        private int length;
+
+        ReplyWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        void ok(int number, long balanceCents) throws IOException {
+            ensure(64);
+            put(OK);
+            putLong(number);
+            buffer[length++] = ' ';
+            putLong(balanceCents / Money.CENTS_PER_UNIT);
+            int fraction = (int) (balanceCents % Money.CENTS_PER_UNIT);
+            buffer[length++] = '.';
+            buffer[length++] = (byte) ('0' + fraction / 10);
+            buffer[length++] = (byte) ('0' + fraction % 10);
+            buffer[length++] = '\n';
+        }
+
+        void error(byte[] reason) throws IOException {
+            ensure(64);
+            put(ERR);
+            put(reason);
+            buffer[length++] = '\n';
+        }
+
+        private void put(byte[] bytes) {
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        }
+
+        private void putLong(long value) {
+            // Values written here are never negative.
+            int i = digits.length;
+            do {
+                digits[--i] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            System.arraycopy(digits, i, buffer, length, digits.length - i);
+            length += digits.length - i;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.length - length < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (length > 0) {
+                out.write(buffer, 0, length);
+                length = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compact binary checkpoints of a Bank's accounts.
+ * <p>
+ * File layout: a header of [int magic][int format version][long journal position]
+ * [int next account number][long account count], followed by one record per
+ * account of [int number][long balance cents][short name length][UTF-8 name].
+ * <p>
+ * A snapshot is a fuzzy checkpoint: it is taken while writers keep running, so
+ * it may include some changes made after its journal position. That is safe
+ * because journal records carry the balance after each change; replaying the
+ * journal from the snapshot's position simply re-applies those after-images.
+ */
+final class BankSnapshot {
+
+    private static final int MAGIC = 0x42534E50; // "BSNP"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 8;
+    private static final int MAX_RECORD_BYTES = 4 + 8 + 2 + 0xFFFF;
+    // Large files are mapped a window at a time.
+    private static final long MAP_WINDOW_BYTES = 256L << 20;
+
+    private final long journalPosition;
+    private final int nextAccountNumber;
+    private final long accountCount;
+
+    private BankSnapshot(long journalPosition, int nextAccountNumber, long accountCount) {
+        this.journalPosition = journalPosition;
+        this.nextAccountNumber = nextAccountNumber;
+        this.accountCount = accountCount;
+    }
+
+    /**
+     * Returns the journal position the snapshot was taken at.
+     * Replay must start here.
+     * @return The journal position.
+     */
+    long getJournalPosition() {
+        return journalPosition;
+    }
+
+    /**
+     * Returns the account number generator's high-water mark at capture time.
+     * @return The last account number handed out before the snapshot.
+     */
+    int getNextAccountNumber() {
+        return nextAccountNumber;
+    }
+
+    long getAccountCount() {
+        return accountCount;
+    }
+
+    // --- Writing ---
+
+    /**
+     * Writes a snapshot of a store to a file, atomically replacing any previous one.
+     * The data is written to a temporary file, forced to disk and then renamed,
+     * so a crash mid-write leaves the previous snapshot intact.
+     * @param file The snapshot file.
+     * @param store The store to capture; writers may keep running.
+     * @param journalPosition The journal position read before the capture started.
+     * @param nextAccountNumber The account number generator's current value.
+     * @return The number of accounts written.
+     * @throws IOException if the file cannot be written.
+     */
+    static long write(Path file, AccountStore store, long journalPosition, int nextAccountNumber) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        long count = 0;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            // The account count is patched in once the scan is done.
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(journalPosition).putInt(nextAccountNumber).putLong(0);
+            int highWater = store.highWater();
+            for (int slot = 0; slot < highWater; slot++) {
+                String name = store.scanAccountHolderName(slot);
+                if (name == null) {
+                    continue;
+                }
+                byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                if (buffer.remaining() < 14 + nameBytes.length) {
+                    drain(out, buffer);
+                }
+                buffer.putInt(slot + Bank.FIRST_ACCOUNT_NUMBER).putLong(store.getBalance(slot))
+                        .putShort((short) nameBytes.length).put(nameBytes);
+                count++;
+            }
+            drain(out, buffer);
+            buffer.putLong(count).flip();
+            out.write(buffer, HEADER_BYTES - 8);
+            out.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    private static void drain(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // --- Loading ---
+
+    /**
+     * Memory-maps a snapshot file and loads its accounts into a store.
+     * @param file The snapshot file.
+     * @param store An empty store to fill.
+     * @return The snapshot's header information.
+     * @throws IOException if the file cannot be read or is not a valid snapshot.
+     */
+    static BankSnapshot load(Path file, AccountStore store) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException("Snapshot is truncated: " + file);
+            }
+            MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAP_WINDOW_BYTES));
+            if (window.getInt() != MAGIC || window.getInt() != FORMAT_VERSION) {
+                throw new IOException("Not a bank snapshot: " + file);
+            }
+            long journalPosition = window.getLong();
+            int nextAccountNumber = window.getInt();
+            long accountCount = window.getLong();
+
+            long windowStart = 0;
+            for (long i = 0; i < accountCount; i++) {
+                if (window.remaining() < MAX_RECORD_BYTES && windowStart + window.limit() < size) {
+                    // Slide the window so the next record is fully mapped.
+                    windowStart += window.position();
+                    window = in.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(size - windowStart, MAP_WINDOW_BYTES));
+                }
+                int number = window.getInt();
+                long balance = window.getLong();
+                byte[] name = new byte[window.getShort() & 0xFFFF];
+                window.get(name);
+                store.add(number - Bank.FIRST_ACCOUNT_NUMBER, new String(name, StandardCharsets.UTF_8), balance);
+            }
+            return new BankSnapshot(journalPosition, nextAccountNumber, accountCount);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Snapshot is truncated: " + file, e);
+        }
+    }
+}
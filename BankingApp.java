@@ -1,17 +1,80 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.InputMismatchException;
 import java.util.Scanner;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
 
 /**
  * The main application class for the banking system.
  * It provides a command-line interface for users to interact with the bank.
+ * Usage: java BankingApp [journal-file]
+ *    or: java BankingApp --batch &lt;commands-file&gt; &lt;results-file&gt; [workers]
+ *    or: java BankingApp --serve &lt;port&gt; [journal-file]
+ *    or: java BankingApp --end-of-day &lt;journal-file&gt; &lt;statements-file&gt; [threads]
+ * With a journal file, every change is logged to disk and the bank's state is
+ * restored on the next start from the latest snapshot (journal-file.snapshot)
+ * plus the journal records written after it. The --batch mode applies a file
+ * of commands without prompting; see BulkIngestor for the format. The --serve
+ * mode accepts the same commands over TCP until the process is stopped; see
+ * BankServer for the protocol. The --end-of-day mode recovers the journaled
+ * bank, posts a day's interest and fees to every account and writes their
+ * statement records; see EndOfDayBatch.
+ * <p>
+ * Interactive and server banks record every balance change for account
+ * statements. Recent history stays in memory; older history is spilled to
+ * journal-file.history (or a temporary directory) for the life of the process.
+ * <p>
+ * Setting -Dbank.storage=&lt;file&gt; keeps accounts in that memory-mapped file
+ * instead of on the heap, with the holder names of the most recently used
+ * -Dbank.storage.cache=&lt;accounts&gt; accounts cached on the heap. The file is
+ * scratch space, rebuilt from the journal on every start.
+ * <p>
+ * Operation metrics are published over JMX under the "BankingApp" domain.
+ * Setting -Dbank.metrics.period=&lt;seconds&gt; also prints them to stderr at
+ * that interval; batch mode prints them once at the end.
  */
 public class BankingApp {
+    // Transaction history older than this, or beyond this many full segments, is spilled to disk.
+    private static final long HISTORY_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int HISTORY_RESIDENT_SEGMENTS = 16;
+    // How far back "Display Account Details" lists transactions.
+    private static final long STATEMENT_DAYS = 30;
+    // Accounts shown per page by "Find Accounts by Holder Name".
+    private static final int SEARCH_PAGE_SIZE = 20;
+    // The largest top-N balance query the aggregates answer.
+    private static final int TRACKED_RICHEST_ACCOUNTS = 100;
+    // How long, and for how many requests, retried server requests are recognized by ID.
+    private static final long REQUEST_ID_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int REQUEST_ID_CAPACITY = 1 << 18;
+    // Holder names kept on the heap with -Dbank.storage, unless -Dbank.storage.cache says otherwise.
+    private static final int DEFAULT_CACHED_ACCOUNTS = 1 << 20;
+    // End-of-day terms: 2.5% a year, and a $1 daily fee on balances below $100.
+    private static final int ANNUAL_INTEREST_BASIS_POINTS = 250;
+    private static final long MINIMUM_BALANCE_CENTS = 10_000;
+    private static final long BELOW_MINIMUM_FEE_CENTS = 100;
 
     public static void main(String[] args) {
-        Bank bank = new Bank();
+        if (args.length > 0 && args[0].equals("--batch")) {
+            runBatch(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--serve")) {
+            runServer(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--end-of-day")) {
+            runEndOfDay(args);
+            return;
+        }
+        Bank bank = openBank(args.length > 0 ? args[0] : null);
+        if (bank == null) {
+            return;
+        }
+        bank.addListener(new ConsoleNotifier());
+        exposeMetrics(bank);
         Scanner scanner = new Scanner(System.in);
         boolean exit = false;
 
@@ -42,19 +105,172 @@ public class BankingApp {
                         displayAccountDetails(scanner, bank);
                         break;
                     case 6:
+                        performTransfer(scanner, bank);
+                        break;
+                    case 7:
+                        searchAccounts(scanner, bank);
+                        break;
+                    case 8:
                         exit = true;
                         System.out.println("Thank you for using our banking system. Goodbye!");
                         break;
                     default:
-                        System.out.println("Invalid choice. Please select a valid option (1-6).");
+                        System.out.println("Invalid choice. Please select a valid option (1-8).");
                 }
             } catch (InputMismatchException e) {
                 System.out.println("Invalid input. Please enter a number.");
                 scanner.nextLine(); // Clear the invalid input from the scanner
             }
+            bank.flushEvents(); // Let the notifier print before the next menu
             System.out.println(); // Add a blank line for better readability
         }
         scanner.close();
+        try {
+            bank.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close the journal cleanly: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates an in-memory bank, or recovers a journaled one and starts its
+     * periodic checkpoints, and turns on its transaction history, holder name
+     * index, balance aggregates and request deduplication.
+     * @param journal The journal file name, or null for an in-memory bank.
+     * @return The bank, or null if the journal or history could not be opened.
+     */
+    private static Bank openBank(String journal) {
+        Bank bank;
+        Path spillDirectory;
+        try {
+            if (journal == null) {
+                bank = new Bank(newStore(), null);
+                spillDirectory = Files.createTempDirectory("bank-history");
+            } else {
+                Path journalFile = Paths.get(journal);
+                Path snapshotFile = Paths.get(journal + ".snapshot");
+                bank = Bank.recover(journalFile, snapshotFile, BankJournal.SyncPolicy.PER_OPERATION, newStore());
+                bank.startCheckpoints(snapshotFile, TimeUnit.MINUTES.toMillis(1));
+                spillDirectory = Paths.get(journal + ".history");
+                System.out.println("Restored " + bank.getAccountCount() + " account(s) from " + journal);
+            }
+            bank.enableHistory(spillDirectory, HISTORY_RETENTION_MILLIS, HISTORY_RESIDENT_SEGMENTS);
+            bank.enableHolderIndex();
+            bank.enableAggregates(TRACKED_RICHEST_ACCOUNTS);
+            bank.enableRequestDeduplication(REQUEST_ID_WINDOW_MILLIS, REQUEST_ID_CAPACITY);
+        } catch (IOException e) {
+            System.out.println("Could not open " + (journal == null ? "the history" : "journal " + journal) + ": "
+                    + e.getMessage());
+            return null;
+        }
+        return bank;
+    }
+
+    /**
+     * Creates the account store selected by the bank.storage property.
+     */
+    private static AccountStore newStore() throws IOException {
+        String file = System.getProperty("bank.storage");
+        if (file == null) {
+            return new HeapAccountStore(16);
+        }
+        return new TieredAccountStore(Paths.get(file), 16,
+                Integer.getInteger("bank.storage.cache", DEFAULT_CACHED_ACCOUNTS));
+    }
+
+    /**
+     * Runs the TCP service mode. The server's accept thread keeps the JVM
+     * alive; a shutdown hook closes the server and then the bank.
+     */
+    private static void runServer(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java BankingApp --serve <port> [journal-file]");
+            return;
+        }
+        Bank bank = openBank(args.length > 2 ? args[2] : null);
+        if (bank == null) {
+            return;
+        }
+        exposeMetrics(bank);
+        BankServer server;
+        try {
+            server = new BankServer(bank, Integer.parseInt(args[1]));
+        } catch (IOException e) {
+            System.out.println("Could not listen on port " + args[1] + ": " + e.getMessage());
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+                bank.close();
+            } catch (IOException e) {
+                System.err.println("Failed to shut down cleanly: " + e.getMessage());
+            }
+        }, "bank-shutdown"));
+        System.out.println("Serving on port " + server.getPort() + " using "
+                + (server.usesVirtualThreads() ? "virtual" : "platform") + " threads");
+    }
+
+    /**
+     * Runs the headless bulk ingestion mode and prints a one-line summary.
+     */
+    private static void runBatch(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Usage: java BankingApp --batch <commands-file> <results-file> [workers]");
+            return;
+        }
+        int workers = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        try (Bank bank = new Bank()) {
+            BankMetrics metrics = exposeMetrics(bank);
+            BulkIngestor.Summary summary = new BulkIngestor(bank, workers).run(Paths.get(args[1]), Paths.get(args[2]));
+            System.out.println(summary);
+            System.out.print(metrics.getReport());
+        } catch (IOException e) {
+            System.out.println("Batch run failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Batch run interrupted.");
+        }
+    }
+
+    /**
+     * Runs the end-of-day batch over a journaled bank, posting the results.
+     */
+    private static void runEndOfDay(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Usage: java BankingApp --end-of-day <journal-file> <statements-file> [threads]");
+            return;
+        }
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        Bank bank = openBank(args[1]);
+        if (bank == null) {
+            return;
+        }
+        try (bank) {
+            EndOfDayBatch batch = new EndOfDayBatch(bank, ANNUAL_INTEREST_BASIS_POINTS, MINIMUM_BALANCE_CENTS,
+                    BELOW_MINIMUM_FEE_CENTS);
+            System.out.println(batch.run(threads, Paths.get(args[2]), true));
+        } catch (IOException e) {
+            System.out.println("End-of-day run failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Turns on the bank's metrics, registers them over JMX and, if
+     * bank.metrics.period is set, starts the periodic report.
+     */
+    private static BankMetrics exposeMetrics(Bank bank) {
+        BankMetrics metrics = bank.enableMetrics();
+        try {
+            metrics.registerMBeans("main");
+        } catch (JMException e) {
+            System.err.println("Could not register metrics MBeans: " + e.getMessage());
+        }
+        long periodSeconds = Long.getLong("bank.metrics.period", 0);
+        if (periodSeconds > 0) {
+            metrics.startReporting(System.err, TimeUnit.SECONDS.toMillis(periodSeconds));
+        }
+        return metrics;
     }
 
     /**
@@ -67,7 +283,9 @@ public class BankingApp {
         System.out.println("3. Withdraw Funds");
         System.out.println("4. Check Balance");
         System.out.println("5. Display Account Details");
-        System.out.println("6. Exit");
+        System.out.println("6. Transfer Funds");
+        System.out.println("7. Find Accounts by Holder Name");
+        System.out.println("8. Exit");
         System.out.print("Enter your choice: ");
     }
 
@@ -85,6 +303,9 @@ public class BankingApp {
                 initialDeposit = scanner.nextDouble();
                 if (initialDeposit < 0) {
                     System.out.println("Initial deposit cannot be negative. Please try again.");
+                } else if (!Money.fitsInCents(initialDeposit)) {
+                    System.out.println("Initial deposit is too large. Please try again.");
+                    initialDeposit = -1;
                 }
             } catch (InputMismatchException e) {
                 System.out.println("Invalid amount. Please enter a valid number.");
@@ -131,13 +352,38 @@ public class BankingApp {
         }
     }
 
+    /**
+     * Handles the logic for transferring funds between two accounts.
+     */
+    private static void performTransfer(Scanner scanner, Bank bank) {
+        System.out.println("Source account:");
+        BankAccount from = findAccount(scanner, bank);
+        if (from == null) {
+            return;
+        }
+        System.out.println("Destination account:");
+        BankAccount to = findAccount(scanner, bank);
+        if (to == null) {
+            return;
+        }
+        System.out.print("Enter amount to transfer: ");
+        try {
+            double amount = scanner.nextDouble();
+            scanner.nextLine(); // Consume newline
+            bank.transfer(from.getAccountNumber(), to.getAccountNumber(), amount);
+        } catch (InputMismatchException e) {
+            System.out.println("Invalid amount. Please enter a valid number.");
+            scanner.nextLine(); // Clear the invalid input
+        }
+    }
+
     /**
      * Handles the logic for checking an account's balance.
      */
     private static void checkBalance(Scanner scanner, Bank bank) {
         BankAccount account = findAccount(scanner, bank);
         if (account != null) {
-            System.out.printf("Current Balance: $%.2f%n", account.getBalance());
+            System.out.println("Current Balance: $" + Money.format(account.getBalanceCents()));
         }
     }
 
@@ -148,6 +394,38 @@ public class BankingApp {
         BankAccount account = findAccount(scanner, bank);
         if (account != null) {
             System.out.println(account);
+            long now = System.currentTimeMillis();
+            System.out.println(account.getStatement(now - TimeUnit.DAYS.toMillis(STATEMENT_DAYS), now));
+        }
+    }
+
+    /**
+     * Lists the accounts whose holder name starts with the text entered,
+     * one page at a time.
+     */
+    private static void searchAccounts(Scanner scanner, Bank bank) {
+        System.out.print("Enter the start of the holder name: ");
+        String prefix = scanner.nextLine().trim();
+        HolderNameIndex.Position after = null;
+        int shown = 0;
+        while (true) {
+            HolderNameIndex.Page page = bank.findAccountsByHolder(prefix, after, SEARCH_PAGE_SIZE);
+            for (BankAccount account : page.getAccounts()) {
+                System.out.println(account.getAccountNumber() + "  " + account.getAccountHolderName() + "  $"
+                        + Money.format(account.getBalanceCents()));
+            }
+            shown += page.getAccounts().size();
+            after = page.getNext();
+            if (after == null) {
+                break;
+            }
+            System.out.print("Show more? (y/n): ");
+            if (!scanner.nextLine().trim().equalsIgnoreCase("y")) {
+                break;
+            }
+        }
+        if (shown == 0) {
+            System.out.println("No accounts found for holder names starting with \"" + prefix + "\".");
         }
     }
 
@@ -163,138 +441,61 @@ public class BankingApp {
         }
         return account;
     }
-}
-
-/**
- * Manages a collection of BankAccount objects.
- * This class handles operations like creating accounts and finding them.
- */
-class Bank {
-    // A map to store accounts, with the account number as the key.
-    private Map<String, BankAccount> accounts;
-    // An atomic integer to generate unique account numbers safely.
-    private static final AtomicInteger accountNumberGenerator = new AtomicInteger(1000);
-
-    /**
-     * Constructor to initialize the Bank object.
-     */
-    public Bank() {
-        this.accounts = new HashMap<>();
-    }
-
-    /**
-     * Creates a new bank account and adds it to the bank's records.
-     * @param accountHolderName The name of the new account holder.
-     * @param initialDeposit The initial amount to deposit into the new account.
-     * @return The newly created BankAccount object.
-     */
-    public BankAccount createAccount(String accountHolderName, double initialDeposit) {
-        // Generate a new unique account number.
-        String newAccountNumber = "ACC" + accountNumberGenerator.incrementAndGet();
-
-        BankAccount newAccount = new BankAccount(newAccountNumber, accountHolderName, initialDeposit);
-        accounts.put(newAccountNumber, newAccount);
-
-        System.out.println("Account created successfully for " + accountHolderName + " with account number " + newAccountNumber);
-        return newAccount;
-    }
-
-    /**
-     * Finds and returns a bank account based on the account number.
-     * @param accountNumber The number of the account to find.
-     * @return The BankAccount object if found, otherwise null.
-     */
-    public BankAccount getAccount(String accountNumber) {
-        return accounts.get(accountNumber);
-    }
-}
-
-/**
- * Represents a single bank account.
- * This class encapsulates the account's properties and operations.
- */
-class BankAccount {
-    // --- Private Attributes ---
-    // Encapsulation: Data is hidden and can only be accessed through methods.
-    private String accountNumber;
-    private String accountHolderName;
-    private double balance;
-
-    /**
-     * Constructor to initialize a BankAccount object.
-     * @param accountNumber The unique number for the account.
-     * @param accountHolderName The name of the account holder.
-     * @param initialBalance The starting balance of the account.
-     */
-    public BankAccount(String accountNumber, String accountHolderName, double initialBalance) {
-        this.accountNumber = accountNumber;
-        this.accountHolderName = accountHolderName;
-        this.balance = initialBalance;
-    }
-
-    // --- Public Getters ---
-    // Provides read-only access to account properties.
-    public String getAccountNumber() {
-        return accountNumber;
-    }
-
-    public String getAccountHolderName() {
-        return accountHolderName;
-    }
-
-    public double getBalance() {
-        return balance;
-    }
 
     /**
-     * Deposits a specified amount into the account.
-     * The amount must be positive.
-     * @param amount The amount to deposit.
-     * @return true if the deposit was successful, false otherwise.
+     * Prints a message for each bank event, on the bank's event thread.
      */
-    public boolean deposit(double amount) {
-        if (amount > 0) {
-            balance += amount;
-            System.out.println("Deposit successful. New balance: " + balance);
-            return true;
-        } else {
-            System.out.println("Invalid deposit amount. Please enter a positive value.");
-            return false;
+    private static class ConsoleNotifier implements BankEventListener {
+        @Override
+        public void onEvent(BankEvent event) {
+            System.out.println(messageFor(event));
         }
-    }
 
-    /**
-     * Withdraws a specified amount from the account.
-     * The amount must be positive and not exceed the current balance.
-     * @param amount The amount to withdraw.
-     * @return true if the withdrawal was successful, false otherwise.
-     */
-    public boolean withdraw(double amount) {
-        if (amount <= 0) {
-            System.out.println("Invalid withdrawal amount. Please enter a positive value.");
-            return false;
-        }
-        if (amount > balance) {
-            System.out.println("Insufficient funds. Withdrawal failed.");
-            return false;
-        }
-        balance -= amount;
-        System.out.println("Withdrawal successful. New balance: " + balance);
-        return true;
-    }
+        private static String messageFor(BankEvent event) {
+            TransactionStatus status = event.getStatus();
+            String balance = Money.format(event.getBalanceCents());
+            switch (event.getType()) {
+                case ACCOUNT_CREATED:
+                    return "Account created successfully for " + event.getAccountHolderName()
+                            + " with account number " + Bank.ACCOUNT_PREFIX + event.getAccountNumber();
+                case DEPOSIT:
+                    if (status == TransactionStatus.SUCCESS) {
+                        return "Deposit successful. New balance: " + balance;
+                    }
+                    return status == TransactionStatus.BALANCE_OVERFLOW
+                            ? "Invalid deposit amount. The balance would overflow."
+                            : "Invalid deposit amount. Please enter a positive value.";
+                case WITHDRAWAL:
+                    if (status == TransactionStatus.SUCCESS) {
+                        return "Withdrawal successful. New balance: " + balance;
+                    }
+                    return status == TransactionStatus.INSUFFICIENT_FUNDS
+                            ? "Insufficient funds. Withdrawal failed."
+                            : "Invalid withdrawal amount. Please enter a positive value.";
+                default:
+                    return transferMessage(event, status);
+            }
+        }
 
-    /**
-     * Returns a string representation of the account details.
-     * Overriding the toString() method for a custom object representation.
-     * @return A formatted string with account information.
-     */
-    @Override
-    public String toString() {
-        return "----------------------------------\n" +
-                "Account Number: " + accountNumber + "\n" +
-                "Account Holder: " + accountHolderName + "\n" +
-                "Balance: $" + String.format("%.2f", balance) + "\n" +
-                "----------------------------------";
+        private static String transferMessage(BankEvent event, TransactionStatus status) {
+            switch (status) {
+                case SUCCESS:
+                    return "Transfer successful. Moved " + Money.format(event.getAmountCents()) + " from "
+                            + Bank.ACCOUNT_PREFIX + event.getAccountNumber() + " to " + Bank.ACCOUNT_PREFIX
+                            + event.getOtherAccountNumber() + ".";
+                case INVALID_AMOUNT:
+                    return "Invalid transfer amount. Please enter a positive value.";
+                case UNKNOWN_ACCOUNT:
+                    return "Account not found. Transfer failed.";
+                case SAME_ACCOUNT:
+                    return "Cannot transfer to the same account.";
+                case INSUFFICIENT_FUNDS:
+                    return "Insufficient funds. Transfer failed.";
+                case FAILED:
+                    return "Transfer failed. The amount could not be returned to the source account.";
+                default:
+                    return "Transfer failed. The destination balance would overflow.";
+            }
+        }
     }
 }
-
@@ -0,0 +1,559 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams a file of bank commands through a Bank without any console interaction.
+ * <p>
+ * Input is one command per line (amounts in currency units, e.g. 12.50):
+ * <pre>
+ *   CREATE &lt;amount&gt; &lt;holder name...&gt;
+ *   DEPOSIT &lt;account&gt; &lt;amount&gt;
+ *   WITHDRAW &lt;account&gt; &lt;amount&gt;
+ *   TRANSFER &lt;from&gt; &lt;to&gt; &lt;amount&gt;
+ * </pre>
+ * Blank lines and lines starting with '#' are skipped.
+ * <p>
+ * A single reader parses the file straight from a byte buffer, without
+ * building a String per line. Deposits, withdrawals and transfers are
+ * partitioned by account number onto worker threads, each of which owns one
+ * shard of the accounts, so every account's commands run in file order while
+ * all cores are busy. Creations run on the reader itself so an account exists
+ * before any later line refers to it. A transfer between two shards is a
+ * fence: it is queued on both, and runs once both workers have reached it.
+ * Batches are handed over when full, not at each fence; handing over a batch
+ * that holds a fence also hands over the other shard's batch holding it, so
+ * no worker ever waits on a fence the other cannot see.
+ * <p>
+ * Results are written as tab-separated lines of
+ * {@code line, OK|REJECTED, account or reason, balance}, one per command.
+ * Lines from different shards are not in file order; the line number says
+ * which command each one belongs to.
+ */
+final class BulkIngestor {
+
+    // --- Worker Command Types ---
+    private static final byte DEPOSIT = 1;
+    private static final byte WITHDRAW = 2;
+    private static final byte TRANSFER = 3;
+
+    private static final int BATCH_SIZE = 1024;
+    private static final int QUEUE_BATCHES = 16;
+    private static final int READ_BUFFER_BYTES = 1 << 20;
+
+    private final Bank bank;
+    private final int workerCount;
+
+    /**
+     * Totals from one ingestion run.
+     */
+    static final class Summary {
+        final long commands;
+        final long succeeded;
+        final long rejected;
+        final long elapsedNanos;
+
+        Summary(long commands, long succeeded, long rejected, long elapsedNanos) {
+            this.commands = commands;
+            this.succeeded = succeeded;
+            this.rejected = rejected;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        double commandsPerSecond() {
+            return commands / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Processed %d command(s): %d succeeded, %d rejected in %.2f s (%.0f tx/s)",
+                    commands, succeeded, rejected, elapsedNanos / 1e9, commandsPerSecond());
+        }
+    }
+
+    /**
+     * Constructor to initialize a BulkIngestor object.
+     * @param bank The bank to apply commands to.
+     * @param workerCount The number of worker threads (account shards).
+     */
+    BulkIngestor(Bank bank, int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be at least 1: " + workerCount);
+        }
+        this.bank = bank;
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Applies every command in the input file and writes one result line per command.
+     * @param input The command file.
+     * @param output The result file; replaced if it exists.
+     * @return The totals for the run.
+     * @throws IOException if a file cannot be read or written.
+     * @throws InterruptedException if interrupted while waiting for the workers.
+     */
+    Summary run(Path input, Path output) throws IOException, InterruptedException {
+        long begin = System.nanoTime();
+        Path[] parts = new Path[workerCount + 1];
+        ResultWriter[] writers = new ResultWriter[workerCount + 1];
+        Worker[] workers = new Worker[workerCount];
+        CountDownLatch finished = new CountDownLatch(workerCount);
+        try {
+            for (int i = 0; i <= workerCount; i++) {
+                parts[i] = output.resolveSibling(output.getFileName() + ".part" + i);
+                writers[i] = new ResultWriter(parts[i]);
+            }
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new Worker(writers[i], finished, workers);
+                Thread thread = new Thread(workers[i], "ingest-shard-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            ResultWriter readerOut = writers[workerCount];
+            long commands = read(input, workers, readerOut);
+            for (Worker worker : workers) {
+                worker.finish();
+            }
+            finished.await();
+
+            long succeeded = 0;
+            long rejected = 0;
+            for (ResultWriter writer : writers) {
+                writer.close();
+                succeeded += writer.succeeded;
+                rejected += writer.rejected;
+            }
+            for (Worker worker : workers) {
+                if (worker.failure != null) {
+                    throw new IOException("Ingestion worker failed", worker.failure);
+                }
+            }
+            concatenate(parts, output);
+            return new Summary(commands, succeeded, rejected, System.nanoTime() - begin);
+        } finally {
+            for (int i = 0; i < parts.length; i++) {
+                if (writers[i] != null) {
+                    writers[i].close();
+                }
+                if (parts[i] != null) {
+                    Files.deleteIfExists(parts[i]);
+                }
+            }
+        }
+    }
+
+    // --- Reading and Parsing ---
+
+    /**
+     * Reads the input file line by line and dispatches each command.
+     * @return The number of commands read (excluding blank and comment lines).
+     */
+    private long read(Path input, Worker[] workers, ResultWriter readerOut) throws IOException, InterruptedException {
+        long commands = 0;
+        long lineNumber = 0;
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+            byte[] bytes = buffer.array();
+            LineCursor cursor = new LineCursor(bytes);
+            boolean eof = false;
+            while (!eof) {
+                eof = in.read(buffer) < 0;
+                int end = buffer.position();
+                int start = 0;
+                int newline;
+                while ((newline = LineCursor.indexOf(bytes, start, end, (byte) '\n')) >= 0) {
+                    cursor.reset(start, newline);
+                    if (dispatch(cursor, ++lineNumber, workers, readerOut)) {
+                        commands++;
+                    }
+                    start = newline + 1;
+                }
+                if (eof) {
+                    // The last line may have no trailing newline.
+                    if (start < end) {
+                        cursor.reset(start, end);
+                        if (dispatch(cursor, ++lineNumber, workers, readerOut)) {
+                            commands++;
+                        }
+                    }
+                } else if (start == 0 && end == bytes.length) {
+                    throw new IOException("Line " + (lineNumber + 1) + " is longer than " + READ_BUFFER_BYTES + " bytes");
+                } else {
+                    // Move the partial last line to the front for the next read.
+                    System.arraycopy(bytes, start, bytes, 0, end - start);
+                    buffer.position(end - start);
+                }
+            }
+        }
+        for (Worker worker : workers) {
+            worker.flush();
+        }
+        return commands;
+    }
+
+    /**
+     * Parses one line and applies or queues its command.
+     * @return false if the line was blank or a comment.
+     */
+    private boolean dispatch(LineCursor line, long lineNumber, Worker[] workers, ResultWriter readerOut)
+            throws IOException, InterruptedException {
+        line.skipSpaces();
+        if (!line.hasMore() || line.peek() == '#') {
+            return false;
+        }
+        int keyword = line.keyword();
+        if (keyword == 'C') {
+            long amount = line.amount();
+            String name = line.rest();
+            if (amount < 0 || name.isEmpty()) {
+                readerOut.reject(lineNumber, ResultWriter.BAD_SYNTAX);
+            } else {
+                int number = bank.openAccount(name, amount);
+                readerOut.ok(lineNumber, number, amount);
+            }
+            return true;
+        }
+        int from = line.account();
+        int to = keyword == 'T' ? line.account() : -1;
+        long amount = line.amount();
+        if (keyword == 0 || from < 0 || (keyword == 'T' && to < 0) || amount < 0 || line.hasMoreTokens()) {
+            readerOut.reject(lineNumber, ResultWriter.BAD_SYNTAX);
+            return true;
+        }
+        Worker owner = workers[shardOf(from)];
+        if (keyword == 'D') {
+            owner.add(DEPOSIT, from, 0, amount, lineNumber, null);
+        } else if (keyword == 'W') {
+            owner.add(WITHDRAW, from, 0, amount, lineNumber, null);
+        } else {
+            Worker other = workers[shardOf(to)];
+            if (other == owner) {
+                owner.add(TRANSFER, from, to, amount, lineNumber, null);
+            } else {
+                // Queue the fence on both shards; whichever batch is handed over
+                // first takes the other with it.
+                Fence fence = new Fence();
+                owner.add(TRANSFER, from, to, amount, lineNumber, fence);
+                other.add(TRANSFER, from, to, amount, lineNumber, fence);
+                owner.linkFence(shardOf(to));
+                other.linkFence(shardOf(from));
+            }
+        }
+        return true;
+    }
+
+    private int shardOf(int number) {
+        return Math.floorMod(number, workerCount);
+    }
+
+    // --- Workers ---
+
+    /**
+     * A transfer between two shards. The first worker to reach it waits; the
+     * second one applies it and releases the first.
+     */
+    private static final class Fence {
+        final AtomicInteger arrived = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+    }
+
+    /**
+     * A reusable block of queued commands, stored as parallel primitive arrays.
+     */
+    private static final class Batch {
+        final byte[] types = new byte[BATCH_SIZE];
+        final int[] from = new int[BATCH_SIZE];
+        final int[] to = new int[BATCH_SIZE];
+        final long[] amounts = new long[BATCH_SIZE];
+        final long[] lines = new long[BATCH_SIZE];
+        final Fence[] fences = new Fence[BATCH_SIZE];
+        int size;
+        // Marks the end of the input.
+        boolean last;
+    }
+
+    /**
+     * Owns one shard of accounts and applies its commands in queue order.
+     */
+    private final class Worker implements Runnable {
+        private final BlockingQueue<Batch> inbound = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        private final BlockingQueue<Batch> free = new ArrayBlockingQueue<>(QUEUE_BATCHES + 1);
+        private final ResultWriter out;
+        private final CountDownLatch finished;
+        private final Worker[] peers;
+        // Only touched by the reader thread: the batch being filled, and the
+        // shards whose filling batches share a fence with it.
+        private Batch filling;
+        private final boolean[] linked;
+        private boolean anyLinked;
+        private volatile Throwable failure;
+
+        Worker(ResultWriter out, CountDownLatch finished, Worker[] peers) {
+            this.out = out;
+            this.finished = finished;
+            this.peers = peers;
+            this.linked = new boolean[peers.length];
+            for (int i = 0; i <= QUEUE_BATCHES; i++) {
+                free.add(new Batch());
+            }
+        }
+
+        // --- Reader side ---
+
+        void add(byte type, int from, int to, long amount, long line, Fence fence) throws InterruptedException {
+            // A full batch is handed over on the next add rather than at once, so
+            // both halves of a fence are queued before either batch can go.
+            if (filling != null && filling.size == BATCH_SIZE) {
+                flush();
+            }
+            if (filling == null) {
+                filling = free.take();
+            }
+            Batch batch = filling;
+            int i = batch.size++;
+            batch.types[i] = type;
+            batch.from[i] = from;
+            batch.to[i] = to;
+            batch.amounts[i] = amount;
+            batch.lines[i] = line;
+            batch.fences[i] = fence;
+        }
+
+        /**
+         * Notes that the batch being filled holds a fence shared with another shard.
+         */
+        void linkFence(int shard) {
+            linked[shard] = true;
+            anyLinked = true;
+        }
+
+        /**
+         * Hands the batch being filled to the worker, along with every other
+         * shard's batch that shares a fence with it.
+         */
+        void flush() throws InterruptedException {
+            if (filling == null || filling.size == 0) {
+                return;
+            }
+            inbound.put(filling);
+            filling = null;
+            if (anyLinked) {
+                anyLinked = false;
+                for (int shard = 0; shard < linked.length; shard++) {
+                    if (linked[shard]) {
+                        linked[shard] = false;
+                        peers[shard].flush();
+                    }
+                }
+            }
+        }
+
+        void finish() throws InterruptedException {
+            flush();
+            Batch end = free.take();
+            end.last = true;
+            inbound.put(end);
+        }
+
+        // --- Worker side ---
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Batch batch = inbound.take();
+                    if (batch.last) {
+                        break;
+                    }
+                    for (int i = 0; i < batch.size; i++) {
+                        // After a failure keep draining, so the reader never blocks on a full queue.
+                        if (failure == null) {
+                            try {
+                                apply(batch, i);
+                            } catch (IOException | RuntimeException e) {
+                                failure = e;
+                            }
+                        } else {
+                            skip(batch.fences[i]);
+                        }
+                        batch.fences[i] = null;
+                    }
+                    batch.size = 0;
+                    free.put(batch);
+                }
+            } catch (InterruptedException e) {
+                failure = e;
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        private void apply(Batch batch, int i) throws IOException, InterruptedException {
+            int from = batch.from[i];
+            long amount = batch.amounts[i];
+            long line = batch.lines[i];
+            byte type = batch.types[i];
+            if (type == TRANSFER) {
+                Fence fence = batch.fences[i];
+                if (fence != null && fence.arrived.incrementAndGet() == 1) {
+                    // The other shard applies it once it gets here too.
+                    fence.done.await();
+                    return;
+                }
+                long result;
+                try {
+                    result = bank.applyTransfer(from, batch.to[i], amount);
+                } finally {
+                    // Release the other shard even if the transfer failed.
+                    if (fence != null) {
+                        fence.done.countDown();
+                    }
+                }
+                report(line, from, result);
+                return;
+            }
+            report(line, from, type == DEPOSIT ? bank.applyDeposit(from, amount) : bank.applyWithdrawal(from, amount));
+        }
+
+        /**
+         * Passes a command without applying it, once this worker has failed.
+         * At a fence it still arrives, and releases the other shard if that one
+         * is already waiting, so a failure never leaves a healthy worker blocked.
+         */
+        private void skip(Fence fence) {
+            if (fence != null && fence.arrived.incrementAndGet() == 2) {
+                fence.done.countDown();
+            }
+        }
+
+        private void report(long line, int number, long balanceOrCode) throws IOException {
+            if (balanceOrCode >= 0) {
+                out.ok(line, number, balanceOrCode);
+            } else {
+                out.reject(line, ResultWriter.reasonFor(balanceOrCode));
+            }
+        }
+    }
+
+    // --- Output ---
+
+    /**
+     * Writes result lines as ASCII bytes into a buffer, without String.format
+     * or per-line Strings.
+     */
+    private static final class ResultWriter implements Closeable {
+        static final byte[] BAD_SYNTAX = ascii("bad_syntax");
+        // Rejection reasons, indexed by TransactionStatus ordinal.
+        private static final byte[][] REASONS = {
+                null,
+                ascii("invalid_amount"),
+                ascii("unknown_account"),
+                ascii("same_account"),
+                ascii("insufficient_funds"),
+                ascii("balance_overflow"),
+                ascii("request_id_reused"),
+                ascii("failed")
+        };
+        private static final byte[] OK = ascii("\tOK\tACC");
+        private static final byte[] REJECTED = ascii("\tREJECTED\t");
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        private final byte[] digits = new byte[20];
+        long succeeded;
+        long rejected;
+
+        ResultWriter(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        static byte[] reasonFor(long statusCode) {
+            return REASONS[TransactionStatus.fromCode(statusCode).ordinal()];
+        }
+
+        void ok(long line, int number, long balanceCents) throws IOException {
+            ensure(64);
+            putLong(line);
+            buffer.put(OK);
+            putLong(number);
+            buffer.put((byte) '\t');
+            putLong(balanceCents / Money.CENTS_PER_UNIT);
+            int fraction = (int) (balanceCents % Money.CENTS_PER_UNIT);
+            buffer.put((byte) '.').put((byte) ('0' + fraction / 10)).put((byte) ('0' + fraction % 10));
+            buffer.put((byte) '\n');
+            succeeded++;
+        }
+
+        void reject(long line, byte[] reason) throws IOException {
+            ensure(64);
+            putLong(line);
+            buffer.put(REJECTED).put(reason).put((byte) '\n');
+            rejected++;
+        }
+
+        private void putLong(long value) {
+            // Values written here are never negative.
+            int i = digits.length;
+            do {
+                digits[--i] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            buffer.put(digits, i, digits.length - i);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel.isOpen()) {
+                drain();
+                channel.close();
+            }
+        }
+
+        private static byte[] ascii(String text) {
+            return text.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Joins the per-shard result files into the final output file.
+     */
+    private static void concatenate(Path[] parts, Path output) throws IOException {
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // The reader's part (creations and syntax errors) goes first.
+            for (int i = parts.length - 1; i >= 0; i--) {
+                try (FileChannel in = FileChannel.open(parts[i], StandardOpenOption.READ)) {
+                    long size = in.size();
+                    long copied = 0;
+                    while (copied < size) {
+                        copied += in.transferTo(copied, size - copied, out);
+                    }
+                }
+            }
+        }
+    }
+}
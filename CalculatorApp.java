@@ -1,11 +1,25 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 /**
  * A GUI Calculator application built using Java Swing.
- * This class handles the user interface and the logic for arithmetic operations.
+ * The display holds the whole expression as it is typed, e.g. "12+3×4", and
+ * "=" evaluates it with the usual precedence through an ExpressionEngine,
+ * in exact decimal arithmetic (see ExactEvaluator). The expression and the
+ * editing rules live in CalculatorInput; this class only handles the user
+ * interface.
+ * <p>
+ * A key press looks its action up by button and edits the input in place.
+ * The display is not set on every key: the first change queues one update
+ * on the Event Dispatch Thread, which shows whatever the input holds by the
+ * time it runs, so a burst of queued key events costs a single setText.
  */
 public class CalculatorApp implements ActionListener {
 
@@ -26,36 +40,102 @@ public class CalculatorApp implements ActionListener {
     Color orange = new Color(255, 159, 10);
 
     // --- Logic Variables ---
-    double num1 = 0, num2 = 0, result = 0;
-    char operator;
+    // Compiled expressions, shared by every calculator window and by batch runs.
+    private static final ExpressionEngine ENGINE = new ExpressionEngine(256);
+    // The expression being typed; the display shows it.
+    final CalculatorInput input = new CalculatorInput(ENGINE);
+    // What each button does, looked up by the event source.
+    private final Map<Object, Runnable> keyActions = new IdentityHashMap<>();
+    // Whether a display update is already queued on the Event Dispatch Thread.
+    private boolean displayUpdatePending;
+    // The input version the display shows.
+    private long displayedVersion;
+    // The number of times the display text was set, for the replay benchmark.
+    long displayUpdates;
+    // Times each key from dispatch to the display paint that shows it; null unless enabled.
+    private InputLatencyTracker latencyTracker;
 
     /**
      * A custom JButton class that is rendered as a circle.
+     * <p>
+     * Each visual state (normal, rollover, armed, disabled) is drawn once,
+     * oval and label together, into an image at the screen's pixel scale, and
+     * later paints just copy that image. The images are dropped when the
+     * button is resized, moved to another screen, or any of its properties
+     * (colors, font, text) change, and drawn again on the next paint.
      */
-    private static class RoundButton extends JButton {
+    static class RoundButton extends JButton {
+        private static final int NORMAL = 0;
+        private static final int ROLLOVER = 1;
+        private static final int ARMED = 2;
+        private static final int DISABLED = 3;
+
+        private final BufferedImage[] stateImages = new BufferedImage[4];
+        // The size and screen the images were drawn for.
+        private int imageWidth;
+        private int imageHeight;
+        private GraphicsConfiguration imageConfiguration;
+
         public RoundButton(String label) {
             super(label);
             setContentAreaFilled(false); // Make the button transparent
             setFocusPainted(false);      // Remove the focus highlight
             setBorderPainted(false);     // Remove the default border
+            addPropertyChangeListener(e -> invalidateImages());
         }
 
         @Override
         protected void paintComponent(Graphics g) {
-            Graphics2D g2 = (Graphics2D) g.create();
+            int width = getWidth();
+            int height = getHeight();
+            if (width != imageWidth || height != imageHeight || getGraphicsConfiguration() != imageConfiguration) {
+                invalidateImages();
+                imageWidth = width;
+                imageHeight = height;
+                imageConfiguration = getGraphicsConfiguration();
+            }
+            ButtonModel model = getModel();
+            int state = !isEnabled() ? DISABLED : model.isArmed() ? ARMED : model.isRollover() ? ROLLOVER : NORMAL;
+            BufferedImage image = stateImages[state];
+            if (image == null) {
+                image = renderState(state, width, height);
+                stateImages[state] = image;
+            }
+            g.drawImage(image, 0, 0, width, height, null);
+        }
+
+        /**
+         * Draws the button as it looks in the given state, which is the state its model is in now.
+         */
+        private BufferedImage renderState(int state, int width, int height) {
+            // Drawn at device resolution, so that a scaled screen still gets a sharp edge.
+            double scale = imageConfiguration != null ? imageConfiguration.getDefaultTransform().getScaleX() : 1;
+            BufferedImage image = new BufferedImage(Math.max(1, (int) Math.ceil(width * scale)),
+                    Math.max(1, (int) Math.ceil(height * scale)), BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D g2 = image.createGraphics();
+            g2.scale(scale, scale);
             g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-            if (getModel().isArmed()) {
+            if (state == ARMED) {
                 g2.setColor(getBackground().darker()); // Color when pressed
-            } else if (getModel().isRollover()) {
+            } else if (state == ROLLOVER) {
                 g2.setColor(getBackground().brighter()); // Color on hover
             } else {
                 g2.setColor(getBackground()); // Default color
             }
 
-            g2.fillOval(0, 0, getWidth(), getHeight());
+            g2.fillOval(0, 0, width, height);
+            // The label, with the font and color JComponent.paint would have set on a screen Graphics.
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_DEFAULT);
+            g2.setFont(getFont());
+            g2.setColor(getForeground());
+            super.paintComponent(g2);
             g2.dispose();
-            super.paintComponent(g);
+            return image;
+        }
+
+        private void invalidateImages() {
+            Arrays.fill(stateImages, null);
         }
 
         @Override
@@ -67,27 +147,49 @@ public class CalculatorApp implements ActionListener {
 
         @Override
         public boolean contains(int x, int y) {
-            // Hit detection for the circular shape
-            return new Ellipse2D.Float(0, 0, getWidth(), getHeight()).contains(x, y);
+            // Hit detection for the circular shape, as Ellipse2D computes it for the bounds
+            int width = getWidth();
+            int height = getHeight();
+            if (width <= 0 || height <= 0) {
+                return false;
+            }
+            double normalX = (double) x / width - 0.5;
+            double normalY = (double) y / height - 0.5;
+            return normalX * normalX + normalY * normalY < 0.25;
         }
     }
 
+    /**
+     * The display: a text field that tells the latency tracker, if there is
+     * one, each time it has been painted.
+     */
+    @SuppressWarnings("serial")
+    private final class Display extends JTextField {
+        @Override
+        public void paint(Graphics g) {
+            super.paint(g);
+            if (latencyTracker != null) {
+                latencyTracker.painted(displayedVersion);
+            }
+        }
+    }
 
     /**
      * Constructor to set up the calculator GUI and initialize components.
      */
     public CalculatorApp() {
+        this(true);
+    }
 
-        // --- Frame Setup ---
-        frame = new JFrame("Calculator");
-        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        frame.setSize(420, 550);
-        frame.setLayout(null);
-        frame.setResizable(false);
-        frame.getContentPane().setBackground(Color.BLACK);
+    /**
+     * Constructor to set up the calculator components.
+     * @param showFrame Whether to put them in a window and show it; false
+     *                  builds them without one, for headless benchmarks.
+     */
+    CalculatorApp(boolean showFrame) {
 
         // --- Textfield (Display) Setup ---
-        textfield = new JTextField();
+        textfield = new Display();
         textfield.setBounds(30, 40, 340, 70);
         textfield.setFont(textFont);
         textfield.setEditable(false);
@@ -191,18 +293,102 @@ public class CalculatorApp implements ActionListener {
         panel.add(decButton);
         panel.add(equButton);
 
+        // --- Key Actions ---
+        for (int i = 0; i < 10; i++) {
+            int digit = i;
+            keyActions.put(numberButtons[i], () -> input.digit(digit));
+        }
+        keyActions.put(decButton, input::decimalPoint);
+        keyActions.put(addButton, () -> input.operator('+'));
+        keyActions.put(subButton, () -> input.operator('-'));
+        keyActions.put(mulButton, () -> input.operator('×'));
+        keyActions.put(divButton, () -> input.operator('÷'));
+        keyActions.put(equButton, input::evaluate);
+        keyActions.put(acButton, input::clear);
+        keyActions.put(delButton, input::delete);
+        keyActions.put(percentButton, input::percent);
+
+        if (!showFrame) {
+            return;
+        }
+
+        // --- Frame Setup ---
+        frame = new JFrame("Calculator");
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setSize(420, 550);
+        frame.setLayout(null);
+        frame.setResizable(false);
+        frame.getContentPane().setBackground(Color.BLACK);
+
         // --- Finalizing Frame ---
         frame.add(panel);
         frame.add(textfield);
         frame.setVisible(true);
     }
 
+    /**
+     * Starts timing every key from its dispatch to the repaint of the display
+     * that shows it. Call on the Event Dispatch Thread.
+     * @param stallThresholdNanos A latency above which a key counts as a stall.
+     * @return The tracker the timings go to.
+     */
+    InputLatencyTracker enableLatencyTracking(long stallThresholdNanos) {
+        latencyTracker = new InputLatencyTracker(stallThresholdNanos);
+        return latencyTracker;
+    }
+
     /**
      * The main entry point for the application.
+     * Usage: java CalculatorApp [--trace-latency [stallMillis]]
+     *    or: java CalculatorApp --batch &lt;expressions-file&gt; &lt;results-file&gt; [threads] [double|exact]
+     * The --batch mode evaluates one expression per line without a window, in
+     * double arithmetic unless "exact" is given; see ExpressionBatch for the output format.
+     * With --trace-latency, the window times every key from dispatch to the
+     * repaint of the display (a stall is a key slower than stallMillis,
+     * default 50) and prints the latencies when it is closed.
      */
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            runBatch(args);
+            return;
+        }
+        boolean traceLatency = args.length > 0 && args[0].equals("--trace-latency");
+        long stallMillis = traceLatency && args.length > 1 ? Long.parseLong(args[1]) : 50;
         // Ensure UI updates are on the Event Dispatch Thread
-        SwingUtilities.invokeLater(() -> new CalculatorApp());
+        SwingUtilities.invokeLater(() -> {
+            CalculatorApp app = new CalculatorApp();
+            if (traceLatency) {
+                InputLatencyTracker tracker = app.enableLatencyTracking(stallMillis * 1_000_000);
+                app.frame.addWindowListener(new WindowAdapter() {
+                    @Override
+                    public void windowClosing(WindowEvent e) {
+                        System.out.println(tracker);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Evaluates an expression file on all cores and prints the throughput.
+     */
+    private static void runBatch(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Usage: java CalculatorApp --batch <expressions-file> <results-file> [threads]"
+                    + " [double|exact]");
+            return;
+        }
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        boolean exact = args.length > 4 && args[4].equals("exact");
+        try {
+            ExpressionBatch batch = new ExpressionBatch(ENGINE, threads, exact);
+            System.out.println(batch.run(Paths.get(args[1]), Paths.get(args[2])));
+        } catch (IOException e) {
+            System.out.println("Batch run failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Batch run interrupted.");
+        }
     }
 
     /**
@@ -211,80 +397,35 @@ public class CalculatorApp implements ActionListener {
      */
     @Override
     public void actionPerformed(ActionEvent e) {
-        // --- Number Buttons ---
-        for (int i = 0; i < 10; i++) {
-            if (e.getSource() == numberButtons[i]) {
-                if (textfield.getText().equals("Error")) textfield.setText("");
-                textfield.setText(textfield.getText().concat(String.valueOf(i)));
-            }
-        }
-        // --- Decimal Button ---
-        if (e.getSource() == decButton) {
-            if (textfield.getText().equals("Error")) textfield.setText("");
-            if (!textfield.getText().contains(".")) {
-                textfield.setText(textfield.getText().concat("."));
-            }
-        }
-        // --- Operator Buttons ---
-        if (e.getSource() == addButton || e.getSource() == subButton || e.getSource() == mulButton || e.getSource() == divButton) {
-            if (!textfield.getText().isEmpty() && !textfield.getText().equals("Error")) {
-                num1 = Double.parseDouble(textfield.getText());
-                if (e.getSource() == addButton) operator = '+';
-                if (e.getSource() == subButton) operator = '-';
-                if (e.getSource() == mulButton) operator = '*';
-                if (e.getSource() == divButton) operator = '/';
-                textfield.setText("");
-            }
-        }
-        // --- Equals Button ---
-        if (e.getSource() == equButton) {
-            if (!textfield.getText().isEmpty() && !textfield.getText().equals("Error")) {
-                num2 = Double.parseDouble(textfield.getText());
-                switch (operator) {
-                    case '+': result = num1 + num2; break;
-                    case '-': result = num1 - num2; break;
-                    case '*': result = num1 * num2; break;
-                    case '/':
-                        if (num2 != 0) {
-                            result = num1 / num2;
-                        } else {
-                            textfield.setText("Error");
-                            return;
-                        }
-                        break;
-                }
-                // Format to avoid long decimal places like .0
-                if (result == (long) result) {
-                    textfield.setText(String.format("%d", (long)result));
-                } else {
-                    textfield.setText(String.format("%s", result));
-                }
-                num1 = result;
-            }
+        InputLatencyTracker tracker = latencyTracker;
+        long dispatched = tracker != null ? System.nanoTime() : 0;
+        Runnable action = keyActions.get(e.getSource());
+        if (action == null) {
+            return;
         }
-        // --- AC (All Clear) Button ---
-        if (e.getSource() == acButton) {
-            textfield.setText("");
-            num1 = 0;
-            num2 = 0;
-            result = 0;
-            operator = '\0';
+        action.run();
+        if (input.getVersion() != displayedVersion && !displayUpdatePending) {
+            displayUpdatePending = true;
+            SwingUtilities.invokeLater(this::updateDisplay);
         }
-        // --- Delete Button ---
-        if (e.getSource() == delButton) {
-            String string = textfield.getText();
-            if (!string.isEmpty() && !string.equals("Error")) {
-                textfield.setText(string.substring(0, string.length() - 1));
+        if (tracker != null) {
+            if (input.getVersion() != displayedVersion) {
+                tracker.dispatched(dispatched, input.getVersion());
+            } else {
+                tracker.completed(dispatched);
             }
         }
-        // --- Percent Button ---
-        if (e.getSource() == percentButton) {
-            if (!textfield.getText().isEmpty() && !textfield.getText().equals("Error")) {
-                double temp = Double.parseDouble(textfield.getText());
-                temp /= 100;
-                textfield.setText(String.valueOf(temp));
-            }
+    }
+
+    /**
+     * Shows the input, once for all the keys handled since the last update.
+     */
+    private void updateDisplay() {
+        displayUpdatePending = false;
+        if (input.getVersion() != displayedVersion) {
+            displayedVersion = input.getVersion();
+            textfield.setText(input.getDisplay());
+            displayUpdates++;
         }
     }
 }
-
@@ -0,0 +1,683 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Command-line benchmarks for the calculator's user interface, painted
+ * offscreen so they run without a display.
+ * Usage: java CalculatorBenchmark &lt;scenario&gt; [options]
+ * Each scenario prints a short report and exits with a non-zero status if a
+ * correctness check fails.
+ */
+public class CalculatorBenchmark {
+
+    // The keypad as CalculatorApp lays it out; null is the empty cell beside 0.
+    private static final String[] KEYPAD = {
+        "AC", "⌫", "%", "÷",
+        "7", "8", "9", "×",
+        "4", "5", "6", "-",
+        "1", "2", "3", "+",
+        "0", null, ".", "="
+    };
+
+    public static void main(String[] args) throws Exception {
+        String scenario = args.length > 0 ? args[0] : "buttons";
+        switch (scenario) {
+            case "buttons":
+                runButtons(intArg(args, 1, 2_000), intArg(args, 2, 5));
+                break;
+            case "replay":
+                runReplay(intArg(args, 1, 1_000_000), intArg(args, 2, 64));
+                break;
+            case "latency":
+                runLatency(intArg(args, 1, 200), intArg(args, 2, 16));
+                break;
+            default:
+                System.out.println("Unknown scenario: " + scenario);
+                System.out.println("Scenarios: buttons [frames] [rounds]   (keypad paint and hit-test cost)");
+                System.out.println("           replay [events] [inFlight]   (key events through the event thread)");
+                System.out.println("           latency [repeats] [stallMillis]   (key press to display paint)");
+                System.exit(2);
+        }
+    }
+
+    /**
+     * Paints the keypad offscreen frame after frame, with the hover and press
+     * moving from button to button as a mouse would, using RoundButton and
+     * using a copy of its earlier implementation that drew the oval on every
+     * paint and hit-tested with a new Ellipse2D. Reports the time and the
+     * bytes allocated per frame and per hit test, and checks that both paint
+     * the same pixels and accept the same points.
+     */
+    private static void runButtons(int frames, int rounds) throws Exception {
+        AtomicReference<String> failure = new AtomicReference<>();
+        SwingUtilities.invokeAndWait(() -> {
+            JPanel cached = keypad(true);
+            JPanel uncached = keypad(false);
+            BufferedImage cachedFrame = new BufferedImage(cached.getWidth(), cached.getHeight(),
+                    BufferedImage.TYPE_INT_RGB);
+            BufferedImage uncachedFrame = new BufferedImage(uncached.getWidth(), uncached.getHeight(),
+                    BufferedImage.TYPE_INT_RGB);
+
+            for (int state = 0; state < 3; state++) {
+                setStates(cached, state);
+                setStates(uncached, state);
+                paintFrame(cached, cachedFrame);
+                paintFrame(uncached, uncachedFrame);
+                int differing = countDifferingPixels(cachedFrame, uncachedFrame);
+                System.out.printf("state %d: %d of %d pixel(s) differ%n", state, differing,
+                        cachedFrame.getWidth() * cachedFrame.getHeight());
+                if (differing > 0) {
+                    failure.compareAndSet(null, "cached and uncached buttons paint differently");
+                }
+            }
+
+            JButton button = (JButton) cached.getComponent(5);
+            JButton reference = (JButton) uncached.getComponent(5);
+            for (int y = -1; y <= button.getHeight(); y++) {
+                for (int x = -1; x <= button.getWidth(); x++) {
+                    if (button.contains(x, y) != reference.contains(x, y)) {
+                        failure.compareAndSet(null, "hit test differs at " + x + "," + y);
+                    }
+                }
+            }
+
+            for (int round = 0; round < rounds; round++) {
+                System.out.println("round " + (round + 1) + ":");
+                measurePaint("  cached  ", cached, cachedFrame, frames);
+                measurePaint("  uncached", uncached, uncachedFrame, frames);
+                measureHitTest("  uncached", reference, frames);
+                measureHitTest("  cached  ", button, frames);
+            }
+        });
+        if (failure.get() != null) {
+            System.out.println("FAILED: " + failure.get());
+            System.exit(1);
+        }
+        System.out.println("OK: cached buttons paint the same pixels and accept the same points");
+    }
+
+    /**
+     * Replays a generated sequence of key presses through CalculatorApp's
+     * actionPerformed on the Event Dispatch Thread, and the same sequence
+     * through a copy of its earlier text-field-based handler. Mostly digits,
+     * with operators, deletes and an occasional "=" or AC, so entries grow
+     * to a few hundred characters. A feeder thread posts the events with at
+     * most inFlight queued at once, as a burst of typing or key repeat would.
+     * Reports key events per second, the latency from posting an event to
+     * the end of its handling, and how often the display text was set. First
+     * checks, key by key, that both handlers show the same text.
+     */
+    private static void runReplay(int events, int inFlight) throws Exception {
+        AtomicReference<CalculatorApp> created = new AtomicReference<>();
+        SwingUtilities.invokeAndWait(() -> created.set(new CalculatorApp(false)));
+        CalculatorApp app = created.get();
+        JButton[] keys = replayKeys(app, events);
+        TextFieldCalculator reference = new TextFieldCalculator(app);
+
+        AtomicReference<String> failure = new AtomicReference<>();
+        int checked = Math.min(events, 100_000);
+        SwingUtilities.invokeAndWait(() -> {
+            for (int i = 0; i < checked && failure.get() == null; i++) {
+                ActionEvent event = new ActionEvent(keys[i], ActionEvent.ACTION_PERFORMED, keys[i].getText());
+                app.actionPerformed(event);
+                reference.actionPerformed(event);
+                if (!app.input.getDisplay().equals(reference.textfield.getText())) {
+                    failure.set("after key " + i + " (" + keys[i].getText() + "): \"" + app.input.getDisplay()
+                            + "\" vs \"" + reference.textfield.getText() + "\"");
+                }
+            }
+            app.input.clear();
+            reference.textfield.setText("");
+        });
+        if (failure.get() != null) {
+            System.out.println("FAILED: the input model and the text-field handler differ " + failure.get());
+            System.exit(1);
+        }
+        System.out.println("checked " + checked + " key(s): the input model shows the same text as before");
+
+        for (int round = 0; round < 2; round++) {
+            System.out.println("round " + (round + 1) + ":");
+            long updatesBefore = app.displayUpdates;
+            replay("  input model", app, keys, inFlight);
+            System.out.printf("    display set %d time(s) for %d key(s)%n", app.displayUpdates - updatesBefore,
+                    events);
+            replay("  text field ", reference, keys, inFlight);
+        }
+    }
+
+    /**
+     * Types scripted key sequences on CalculatorApp's buttons, as a mouse
+     * would (hover, press, release), with latency tracking enabled and an
+     * OffscreenRepaintManager painting whatever Swing asks to repaint, so
+     * every key goes through actionPerformed, the coalesced display update and
+     * the paint of the display and of the buttons. Each script is typed
+     * "paced" (the next key after the previous one is on screen, as a person
+     * types) and as a "burst" (all keys queued at once, as key repeat or a
+     * fast typist would). Reports the input-to-paint latency of each key and
+     * the stalls over the threshold, and checks the display after every
+     * script and that every key was timed exactly once.
+     */
+    private static void runLatency(int repeats, int stallMillis) throws Exception {
+        // Each script with what the display must show after it; C is AC and < is the delete key.
+        String[][] scripts = {
+            {"12+3×4=", "24"},
+            {"0.1+0.2=", "0.3"},
+            {"1÷3=", "0.3333333333333333"},
+            {"200×15%=", "30"},
+            {"5×-3=", "-15"},
+            {"7÷0=", "Error"},
+            {"2+×3=", "6"},
+            {"5×-+3=", "8"},
+            {"5×-×3=", "15"},
+            {"8÷-÷2=", "4"},
+            {"5×--3=", "-15"},
+            {"12..5<<3=", "123"},
+            {"1234567890×9876543210=", "12193263111263526900"},
+            {"123456789.123456789+987654321.987654321=", "1111111111.11111111"},
+            {"9.99+0.01C", ""}
+        };
+        OffscreenRepaintManager manager = new OffscreenRepaintManager(420, 550);
+        AtomicReference<CalculatorApp> created = new AtomicReference<>();
+        SwingUtilities.invokeAndWait(() -> {
+            RepaintManager.setCurrentManager(manager);
+            CalculatorApp app = new CalculatorApp(false);
+            app.panel.doLayout();
+            created.set(app);
+        });
+        CalculatorApp app = created.get();
+        AtomicReference<String> failure = new AtomicReference<>();
+
+        for (int round = 0; round < 2; round++) {
+            System.out.println("round " + (round + 1) + ":");
+            for (boolean burst : new boolean[] {false, true}) {
+                AtomicReference<InputLatencyTracker> tracker = new AtomicReference<>();
+                long stallNanos = stallMillis * 1_000_000L;
+                SwingUtilities.invokeAndWait(() -> tracker.set(app.enableLatencyTracking(stallNanos)));
+                long keys = 0;
+                long passesBefore = manager.paintPasses;
+                long paintNanosBefore = manager.paintNanos;
+                long begin = System.nanoTime();
+                for (int repeat = 0; repeat < repeats; repeat++) {
+                    for (String[] script : scripts) {
+                        for (int i = 0; i < script[0].length(); i++) {
+                            JButton key = scriptKey(app, script[0].charAt(i));
+                            if (burst) {
+                                EventQueue.invokeLater(() -> click(key));
+                            } else {
+                                SwingUtilities.invokeAndWait(() -> click(key));
+                                awaitPainted(manager, tracker.get());
+                            }
+                            keys++;
+                        }
+                        awaitPainted(manager, tracker.get());
+                        if (!app.textfield.getText().equals(script[1])) {
+                            failure.compareAndSet(null, "\"" + script[0] + "\" shows \"" + app.textfield.getText()
+                                    + "\", expected \"" + script[1] + "\"");
+                        }
+                        SwingUtilities.invokeAndWait(app.input::clear);
+                    }
+                }
+                long elapsed = System.nanoTime() - begin;
+                LatencyHistogram.Snapshot latency = tracker.get().snapshot();
+                long passes = manager.paintPasses - passesBefore;
+                System.out.printf("  %-6s %6d keys in %5.2f s  latency p50 %7.1f us  p99 %7.1f us  max %8.1f us%n",
+                        burst ? "burst" : "paced", keys, elapsed / 1e9, latency.getValueAtPercentile(50) / 1e3,
+                        latency.getValueAtPercentile(99) / 1e3, latency.getMax() / 1e3);
+                System.out.printf("         stalls over %d ms: %d  paint passes: %d (%.1f us each)%n", stallMillis,
+                        tracker.get().getStalls(), passes,
+                        (manager.paintNanos - paintNanosBefore) / 1e3 / Math.max(1, passes));
+                // The clear between scripts goes to the input directly, so it is not a timed key.
+                if (latency.getCount() != keys) {
+                    failure.compareAndSet(null, latency.getCount() + " key(s) timed, " + keys + " typed");
+                }
+            }
+        }
+        if (failure.get() != null) {
+            System.out.println("FAILED: " + failure.get());
+            System.exit(1);
+        }
+        System.out.println("OK: every script shows the expected result and every key was timed once");
+    }
+
+    /**
+     * Moves the mouse onto a button and clicks it: hover, press and release, which fires its ActionEvent.
+     */
+    private static void click(JButton key) {
+        ButtonModel model = key.getModel();
+        model.setRollover(true);
+        model.setArmed(true);
+        model.setPressed(true);
+        model.setPressed(false);
+        model.setArmed(false);
+        model.setRollover(false);
+    }
+
+    /**
+     * Waits until no key is waiting for the display to be painted and no paint is queued.
+     */
+    private static void awaitPainted(OffscreenRepaintManager manager, InputLatencyTracker tracker)
+            throws Exception {
+        boolean[] idle = new boolean[1];
+        do {
+            SwingUtilities.invokeAndWait(() -> idle[0] = tracker.getPending() == 0 && !manager.isPaintQueued());
+        } while (!idle[0]);
+    }
+
+    private static JButton scriptKey(CalculatorApp app, char c) {
+        switch (c) {
+            case '+':
+                return app.addButton;
+            case '-':
+                return app.subButton;
+            case '×':
+                return app.mulButton;
+            case '÷':
+                return app.divButton;
+            case '.':
+                return app.decButton;
+            case '%':
+                return app.percentButton;
+            case '=':
+                return app.equButton;
+            case 'C':
+                return app.acButton;
+            case '<':
+                return app.delButton;
+            default:
+                return app.numberButtons[c - '0'];
+        }
+    }
+
+    /**
+     * Posts every key to the Event Dispatch Thread, keeping at most inFlight queued, and waits for all of them.
+     */
+    private static void replay(String name, ActionListener listener, JButton[] keys, int inFlight)
+            throws Exception {
+        LatencyHistogram latency = new LatencyHistogram();
+        Semaphore window = new Semaphore(inFlight);
+        long begin = System.nanoTime();
+        for (JButton key : keys) {
+            window.acquire();
+            long posted = System.nanoTime();
+            ActionEvent event = new ActionEvent(key, ActionEvent.ACTION_PERFORMED, key.getText());
+            EventQueue.invokeLater(() -> {
+                listener.actionPerformed(event);
+                latency.record(System.nanoTime() - posted);
+                window.release();
+            });
+        }
+        window.acquire(inFlight);
+        // Let a queued display update run too.
+        SwingUtilities.invokeAndWait(() -> { });
+        long elapsed = System.nanoTime() - begin;
+        LatencyHistogram.Snapshot snapshot = latency.snapshot();
+        System.out.printf("%s: %9.0f keys/s  latency p50 %7.1f us  p99 %7.1f us  max %8.1f us%n", name,
+                keys.length / (elapsed / 1e9), snapshot.getValueAtPercentile(50) / 1e3,
+                snapshot.getValueAtPercentile(99) / 1e3, snapshot.getMax() / 1e3);
+    }
+
+    /**
+     * Generates key presses on the calculator's buttons.
+     */
+    private static JButton[] replayKeys(CalculatorApp app, int events) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        JButton[] operators = {app.addButton, app.subButton, app.mulButton, app.divButton};
+        JButton[] keys = new JButton[events];
+        for (int i = 0; i < events; i++) {
+            int kind = random.nextInt(1_000);
+            if (kind < 700) {
+                keys[i] = app.numberButtons[random.nextInt(10)];
+            } else if (kind < 830) {
+                keys[i] = operators[random.nextInt(operators.length)];
+            } else if (kind < 900) {
+                keys[i] = app.decButton;
+            } else if (kind < 950) {
+                keys[i] = app.delButton;
+            } else if (kind < 970) {
+                keys[i] = app.percentButton;
+            } else if (kind < 995) {
+                keys[i] = app.equButton;
+            } else {
+                keys[i] = app.acButton;
+            }
+        }
+        return keys;
+    }
+
+    private static void measurePaint(String name, JPanel keypad, BufferedImage frame, int frames) {
+        long allocatedBefore = allocatedBytes();
+        long begin = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            setStates(keypad, i);
+            paintFrame(keypad, frame);
+        }
+        long elapsed = System.nanoTime() - begin;
+        long allocated = allocatedBytes() - allocatedBefore;
+        System.out.printf("%s paint: %8.1f us/frame, %8.0f bytes/frame%n", name, elapsed / 1e3 / frames,
+                allocated / (double) frames);
+    }
+
+    private static void measureHitTest(String name, JButton button, int frames) {
+        int width = button.getWidth();
+        int height = button.getHeight();
+        long hits = 0;
+        long tests = 0;
+        long allocatedBefore = allocatedBytes();
+        long begin = System.nanoTime();
+        // A mouse sweeping the whole button, once per frame.
+        for (int i = 0; i < frames; i++) {
+            for (int y = 0; y < height; y += 2) {
+                for (int x = 0; x < width; x += 2) {
+                    if (button.contains(x, y)) {
+                        hits++;
+                    }
+                    tests++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        long allocated = allocatedBytes() - allocatedBefore;
+        System.out.printf("%s hit test: %6.2f ns/test, %6.2f bytes/test (%d%% inside)%n", name,
+                elapsed / (double) tests, allocated / (double) tests, hits * 100 / tests);
+    }
+
+    /**
+     * Builds the keypad at the size CalculatorApp gives it.
+     * @param cached Whether to use RoundButton or the uncached reference implementation.
+     */
+    private static JPanel keypad(boolean cached) {
+        Font font = new Font("Arial", Font.BOLD, 30);
+        Color darkGray = new Color(50, 50, 50);
+        Color lightGray = new Color(160, 160, 160);
+        Color orange = new Color(255, 159, 10);
+        JPanel panel = new JPanel(new GridLayout(5, 4, 10, 10));
+        panel.setBackground(Color.BLACK);
+        for (int i = 0; i < KEYPAD.length; i++) {
+            if (KEYPAD[i] == null) {
+                panel.add(new JLabel());
+                continue;
+            }
+            JButton button = cached ? new CalculatorApp.RoundButton(KEYPAD[i]) : new UncachedRoundButton(KEYPAD[i]);
+            button.setFont(font);
+            button.setFocusable(false);
+            if (i < 3) {
+                button.setBackground(lightGray);
+                button.setForeground(Color.BLACK);
+            } else {
+                button.setBackground(i % 4 == 3 ? orange : darkGray);
+                button.setForeground(Color.WHITE);
+            }
+            panel.add(button);
+        }
+        panel.setSize(340, 370);
+        panel.doLayout();
+        return panel;
+    }
+
+    /**
+     * Puts the hover on one button and the press on another, moving with the frame number.
+     */
+    private static void setStates(JPanel keypad, int frame) {
+        int count = keypad.getComponentCount();
+        for (int i = 0; i < count; i++) {
+            if (keypad.getComponent(i) instanceof JButton) {
+                ButtonModel model = ((JButton) keypad.getComponent(i)).getModel();
+                model.setRollover(i == frame % count);
+                model.setPressed(i == (frame + 7) % count);
+                model.setArmed(i == (frame + 7) % count);
+            }
+        }
+    }
+
+    private static void paintFrame(JPanel keypad, BufferedImage frame) {
+        Graphics2D g = frame.createGraphics();
+        keypad.paint(g);
+        g.dispose();
+    }
+
+    private static int countDifferingPixels(BufferedImage a, BufferedImage b) {
+        int differing = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                if (a.getRGB(x, y) != b.getRGB(x, y)) {
+                    differing++;
+                }
+            }
+        }
+        return differing;
+    }
+
+    /**
+     * RoundButton as it was before it cached its state images: the reference
+     * the cached one is measured and checked against.
+     */
+    @SuppressWarnings("serial")
+    private static final class UncachedRoundButton extends JButton {
+        UncachedRoundButton(String label) {
+            super(label);
+            setContentAreaFilled(false);
+            setFocusPainted(false);
+            setBorderPainted(false);
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            if (getModel().isArmed()) {
+                g2.setColor(getBackground().darker());
+            } else if (getModel().isRollover()) {
+                g2.setColor(getBackground().brighter());
+            } else {
+                g2.setColor(getBackground());
+            }
+            g2.fillOval(0, 0, getWidth(), getHeight());
+            g2.dispose();
+            super.paintComponent(g);
+        }
+
+        @Override
+        public boolean contains(int x, int y) {
+            return new Ellipse2D.Float(0, 0, getWidth(), getHeight()).contains(x, y);
+        }
+    }
+
+    /**
+     * CalculatorApp's key handling as it was before CalculatorInput: the
+     * display text is the state, every key reads it back, scans it and sets
+     * it again, and the handler compares the source with each button in turn.
+     * The reference the input model is measured and checked against.
+     */
+    private static final class TextFieldCalculator implements ActionListener {
+        private final CalculatorApp app;
+        private final ExpressionEngine engine = new ExpressionEngine(256);
+        private final ExactEvaluator exact = new ExactEvaluator();
+        final JTextField textfield = new JTextField();
+        boolean showingResult;
+
+        TextFieldCalculator(CalculatorApp app) {
+            this.app = app;
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            String text = textfield.getText();
+            if (text.equals("Error")) {
+                text = "";
+            }
+            for (int i = 0; i < 10; i++) {
+                if (e.getSource() == app.numberButtons[i]) {
+                    textfield.setText((showingResult ? "" : text).concat(String.valueOf(i)));
+                    showingResult = false;
+                }
+            }
+            if (e.getSource() == app.decButton) {
+                if (showingResult) {
+                    text = "";
+                }
+                if (!currentNumber(text).contains(".")) {
+                    textfield.setText(text.concat("."));
+                }
+                showingResult = false;
+            }
+            if (e.getSource() == app.addButton || e.getSource() == app.subButton
+                    || e.getSource() == app.mulButton || e.getSource() == app.divButton) {
+                char operator = ((JButton) e.getSource()).getText().charAt(0);
+                if (text.isEmpty()) {
+                    if (operator == '-') {
+                        textfield.setText("-");
+                    }
+                } else if (CalculatorInput.isOperator(text.charAt(text.length() - 1))) {
+                    char last = text.charAt(text.length() - 1);
+                    char beforeLast = text.length() > 2 ? text.charAt(text.length() - 2) : 0;
+                    if (operator == '-' && (last == '×' || last == '÷')) {
+                        textfield.setText(text + operator);
+                    } else if (last == '-' && (beforeLast == '×' || beforeLast == '÷')) {
+                        if (operator != '-') {
+                            textfield.setText(text.substring(0, text.length() - 2) + operator);
+                        }
+                    } else if (text.length() > 1) {
+                        textfield.setText(text.substring(0, text.length() - 1) + operator);
+                    }
+                } else {
+                    textfield.setText(text + operator);
+                }
+                showingResult = false;
+            }
+            if (e.getSource() == app.equButton) {
+                if (!text.isEmpty()) {
+                    try {
+                        exact.evaluate(engine.compile(text));
+                    } catch (IllegalArgumentException | ArithmeticException ex) {
+                        textfield.setText("Error");
+                        showingResult = false;
+                        return;
+                    }
+                    textfield.setText(exact.toString());
+                    showingResult = true;
+                }
+            }
+            if (e.getSource() == app.acButton) {
+                textfield.setText("");
+                showingResult = false;
+            }
+            if (e.getSource() == app.delButton) {
+                if (!text.isEmpty()) {
+                    textfield.setText(text.substring(0, text.length() - 1));
+                }
+                showingResult = false;
+            }
+            if (e.getSource() == app.percentButton) {
+                if (!text.isEmpty() && !CalculatorInput.isOperator(text.charAt(text.length() - 1))) {
+                    textfield.setText(text + "%");
+                }
+                showingResult = false;
+            }
+        }
+
+        private static String currentNumber(String text) {
+            int start = text.length();
+            while (start > 0 && !CalculatorInput.isOperator(text.charAt(start - 1))) {
+                start--;
+            }
+            return text.substring(start);
+        }
+    }
+
+    /**
+     * Paints into an offscreen image instead of a screen, the way the real
+     * RepaintManager schedules it: the repaints requested while the Event
+     * Dispatch Thread handles events are collected, and one event queued
+     * behind them paints them all. A component that is not opaque is painted
+     * by painting its nearest opaque ancestor over its bounds, so a round
+     * button gets the panel behind it. Layout is done up front, so
+     * revalidation requests are ignored.
+     */
+    private static final class OffscreenRepaintManager extends RepaintManager {
+        private final BufferedImage screen;
+        private final Set<JComponent> dirty = new LinkedHashSet<>();
+        private boolean paintQueued;
+        // Read after invokeAndWait, which orders them after the paints.
+        long paintPasses;
+        long paintNanos;
+
+        OffscreenRepaintManager(int width, int height) {
+            screen = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+
+        @Override
+        public synchronized void addDirtyRegion(JComponent c, int x, int y, int w, int h) {
+            if (w <= 0 || h <= 0 || c.getWidth() <= 0 || c.getHeight() <= 0) {
+                return;
+            }
+            dirty.add(c);
+            if (!paintQueued) {
+                paintQueued = true;
+                EventQueue.invokeLater(this::paintDirty);
+            }
+        }
+
+        @Override
+        public void addInvalidComponent(JComponent invalidComponent) {
+        }
+
+        synchronized boolean isPaintQueued() {
+            return paintQueued;
+        }
+
+        private void paintDirty() {
+            JComponent[] components;
+            synchronized (this) {
+                components = dirty.toArray(new JComponent[0]);
+                dirty.clear();
+                paintQueued = false;
+            }
+            long begin = System.nanoTime();
+            Graphics2D g = screen.createGraphics();
+            for (JComponent component : components) {
+                JComponent target = component;
+                Rectangle bounds = new Rectangle(0, 0, component.getWidth(), component.getHeight());
+                while (!target.isOpaque() && target.getParent() instanceof JComponent) {
+                    bounds.translate(target.getX(), target.getY());
+                    target = (JComponent) target.getParent();
+                }
+                int x = 0;
+                int y = 0;
+                for (Component c = target; c != null; c = c.getParent()) {
+                    x += c.getX();
+                    y += c.getY();
+                }
+                Graphics targetGraphics = g.create(x, y, target.getWidth(), target.getHeight());
+                targetGraphics.clipRect(bounds.x, bounds.y, bounds.width, bounds.height);
+                target.paint(targetGraphics);
+                targetGraphics.dispose();
+            }
+            g.dispose();
+            paintNanos += System.nanoTime() - begin;
+            paintPasses++;
+        }
+    }
+
+    // --- Helpers ---
+
+    /**
+     * Returns the bytes allocated so far by the current thread.
+     */
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    private static int intArg(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+}
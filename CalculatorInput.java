@@ -0,0 +1,255 @@
+/**
+ * What the calculator display holds, and the editing rules for each key.
+ * <p>
+ * The expression is kept in a StringBuilder and edited in place, so typing
+ * a key costs the same however long the entry is. Alongside it the model
+ * keeps whether the number being typed already has a decimal point, so the
+ * "." key does not rescan the text; only deleting an operator, which joins
+ * two numbers, scans back over the number. The display String is made only
+ * when asked for, once per change, and the value from "=" is remembered
+ * until the text changes, so pressing "=" again does not parse anything.
+ * <p>
+ * Not thread-safe; CalculatorApp uses it only on the Event Dispatch Thread.
+ */
+final class CalculatorInput {
+
+    /** The display text after an expression fails to evaluate. */
+    static final String ERROR = "Error";
+
+    private final ExpressionEngine engine;
+    private final ExactEvaluator evaluator = new ExactEvaluator();
+    private final StringBuilder text = new StringBuilder(64);
+
+    // --- Cached State ---
+    // Whether the number being typed has a decimal point.
+    private boolean numberHasDecimal;
+    // Whether the text is the result of "=", so the next digit starts a new expression.
+    private boolean showingResult;
+    // Whether the display shows ERROR; cleared by the next key that changes the text.
+    private boolean error;
+    // The text as a String, or null if it changed since it was last made.
+    private String display;
+    // The value of the text, formatted, or null if it has not been evaluated since it changed.
+    private String value;
+    private long version;
+
+    /**
+     * Constructor to initialize a CalculatorInput object.
+     * @param engine The engine that compiles the expression when "=" is pressed.
+     */
+    CalculatorInput(ExpressionEngine engine) {
+        this.engine = engine;
+    }
+
+    // --- Keys ---
+
+    /**
+     * Types a digit, starting a new expression if a result is showing.
+     */
+    void digit(int digit) {
+        if (showingResult) {
+            text.setLength(0);
+            numberHasDecimal = false;
+        }
+        text.append((char) ('0' + digit));
+        showingResult = false;
+        changed();
+    }
+
+    /**
+     * Types a decimal point, unless the number being typed already has one.
+     */
+    void decimalPoint() {
+        if (showingResult) {
+            text.setLength(0);
+            numberHasDecimal = false;
+            changed();
+        }
+        showingResult = false;
+        if (!numberHasDecimal) {
+            text.append('.');
+            numberHasDecimal = true;
+            changed();
+        }
+    }
+
+    /**
+     * Types +, -, × or ÷. Only a minus sign can start an expression; an
+     * operator after an operator replaces it, except a minus after × or ÷,
+     * which makes a negative operand as in 5×-3. An operator other than minus
+     * after such a negative sign replaces both, so 5×- then + gives 5+.
+     */
+    void operator(char operator) {
+        showingResult = false;
+        int length = text.length();
+        if (length == 0) {
+            if (operator == '-') {
+                appendOperator(operator);
+            }
+        } else if (isOperator(text.charAt(length - 1))) {
+            char last = text.charAt(length - 1);
+            if (operator == '-' && (last == '×' || last == '÷')) {
+                appendOperator(operator);
+            } else if (last == '-' && length > 2
+                    && (text.charAt(length - 2) == '×' || text.charAt(length - 2) == '÷')) {
+                if (operator != '-') {
+                    text.setLength(length - 2); // Change of mind about the operator and its negative sign
+                    appendOperator(operator);
+                }
+            } else if (length > 1) {
+                text.setCharAt(length - 1, operator); // Change of mind
+                changed();
+            }
+        } else {
+            appendOperator(operator);
+        }
+    }
+
+    /**
+     * Types a postfix percent, as in 200×15%; it applies to the number (or percent) just typed.
+     */
+    void percent() {
+        showingResult = false;
+        int length = text.length();
+        if (length > 0 && !isOperator(text.charAt(length - 1))) {
+            text.append('%');
+            changed();
+        }
+    }
+
+    /**
+     * Deletes the last character.
+     */
+    void delete() {
+        showingResult = false;
+        int length = text.length();
+        if (length == 0) {
+            return;
+        }
+        char removed = text.charAt(length - 1);
+        text.setLength(length - 1);
+        if (isOperator(removed)) {
+            findNumber();
+        } else if (removed == '.') {
+            numberHasDecimal = false;
+        }
+        changed();
+    }
+
+    /**
+     * Clears the display.
+     */
+    void clear() {
+        text.setLength(0);
+        numberHasDecimal = false;
+        showingResult = false;
+        changed();
+    }
+
+    /**
+     * Evaluates the expression in exact decimal arithmetic and replaces it
+     * with the result, or shows ERROR if it cannot be evaluated.
+     */
+    void evaluate() {
+        if (text.length() == 0) {
+            return;
+        }
+        if (value == null) {
+            try {
+                evaluator.evaluate(engine.compile(text.toString()));
+            } catch (IllegalArgumentException | ArithmeticException e) {
+                clear();
+                error = true;
+                return;
+            }
+            // Decimal digits without trailing zeros, so 0.1+0.2 shows 0.3 and 6÷2 shows 3.
+            String result = evaluator.toString();
+            text.setLength(0);
+            text.append(result);
+            findNumber();
+            changed();
+            // The result evaluates to itself.
+            value = result;
+        }
+        showingResult = true;
+    }
+
+    // --- State ---
+
+    /**
+     * Returns the text to display.
+     */
+    String getDisplay() {
+        if (error) {
+            return ERROR;
+        }
+        if (display == null) {
+            display = text.toString();
+        }
+        return display;
+    }
+
+    /**
+     * Returns a number that changes whenever the display does.
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the length of the expression.
+     */
+    int length() {
+        return text.length();
+    }
+
+    /**
+     * Checks whether the number being typed has a decimal point.
+     */
+    boolean hasDecimal() {
+        return numberHasDecimal;
+    }
+
+    /**
+     * Checks whether the display shows the result of "=".
+     */
+    boolean isShowingResult() {
+        return showingResult;
+    }
+
+    /**
+     * Returns the formatted value of the expression if "=" has computed it
+     * since the text last changed, otherwise null.
+     */
+    String getValue() {
+        return value;
+    }
+
+    static boolean isOperator(char c) {
+        return c == '+' || c == '-' || c == '×' || c == '÷';
+    }
+
+    private void appendOperator(char operator) {
+        text.append(operator);
+        numberHasDecimal = false;
+        changed();
+    }
+
+    /**
+     * Scans the number at the end of the text again, after an edit that may have changed which one it is.
+     */
+    private void findNumber() {
+        boolean decimal = false;
+        for (int i = text.length() - 1; i >= 0 && !isOperator(text.charAt(i)); i--) {
+            decimal |= text.charAt(i) == '.';
+        }
+        numberHasDecimal = decimal;
+    }
+
+    private void changed() {
+        error = false;
+        display = null;
+        value = null;
+        version++;
+    }
+}
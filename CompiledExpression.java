@@ -0,0 +1,202 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A parsed, constant-folded expression, ready to be evaluated many times.
+ * <p>
+ * Compiling turns the folded tree into a tree of small closures, one per
+ * operator, so evaluating walks no AST and makes no type tests; an operator
+ * whose right operand is a constant gets a closure with the constant
+ * captured. A variable-free expression that folds to a single number skips
+ * the closures altogether. Variables are numbered in the order they first
+ * appear and read from an array, so evaluating allocates nothing.
+ * <p>
+ * Instances are immutable and safe to share between threads.
+ */
+final class CompiledExpression {
+
+    /**
+     * Evaluates a compiled subtree.
+     */
+    @FunctionalInterface
+    interface Evaluator {
+        double evaluate(double[] variables);
+    }
+
+    private static final double[] NO_VARIABLES = new double[0];
+
+    private final String text;
+    // The tree as parsed, before folding.
+    private final ExpressionNode tree;
+    private final String[] variableNames;
+    // Null if the expression folded to a constant.
+    private final Evaluator evaluator;
+    private final double constant;
+
+    private CompiledExpression(String text, ExpressionNode tree, String[] variableNames, ExpressionNode folded) {
+        this.text = text;
+        this.tree = tree;
+        this.variableNames = variableNames;
+        if (folded instanceof ExpressionNode.Literal) {
+            this.evaluator = null;
+            this.constant = ((ExpressionNode.Literal) folded).value;
+        } else {
+            this.evaluator = compile(folded);
+            this.constant = Double.NaN;
+        }
+    }
+
+    /**
+     * Parses, folds and compiles an expression.
+     * @param text The expression; see ExpressionParser for the syntax.
+     * @return The compiled expression.
+     * @throws IllegalArgumentException if the text is not a valid expression.
+     */
+    static CompiledExpression compile(String text) {
+        ExpressionNode tree = ExpressionParser.parse(text);
+        List<String> names = new ArrayList<>();
+        collectVariables(tree, names);
+        return new CompiledExpression(text, tree, names.toArray(new String[0]), tree.fold());
+    }
+
+    /**
+     * Evaluates an expression that has no variables.
+     * @return The value.
+     * @throws IllegalArgumentException if the expression has variables.
+     * @throws ArithmeticException on division by zero.
+     */
+    double evaluate() {
+        return evaluate(NO_VARIABLES);
+    }
+
+    /**
+     * Evaluates the expression.
+     * @param variables The value of each variable, in the order of getVariableNames.
+     * @return The value.
+     * @throws IllegalArgumentException if the number of values does not match the variables.
+     * @throws ArithmeticException on division by zero.
+     */
+    double evaluate(double... variables) {
+        if (variables.length != variableNames.length) {
+            throw new IllegalArgumentException("Expected " + variableNames.length + " variable value(s), got "
+                    + variables.length);
+        }
+        return evaluator == null ? constant : evaluator.evaluate(variables);
+    }
+
+    /**
+     * Returns the expression text this was compiled from.
+     */
+    String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the tree as parsed, before constant folding.
+     */
+    ExpressionNode getTree() {
+        return tree;
+    }
+
+    /**
+     * Returns the variable names, in the order their values are passed to evaluate.
+     */
+    String[] getVariableNames() {
+        return variableNames.clone();
+    }
+
+    /**
+     * Returns the number of variables.
+     */
+    int variableCount() {
+        return variableNames.length;
+    }
+
+    /**
+     * Returns the position of a variable in getVariableNames.
+     * @throws IllegalStateException if the expression has no such variable.
+     */
+    int variableIndex(String name) {
+        for (int i = 0; i < variableNames.length; i++) {
+            if (variableNames[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Unknown variable: " + name);
+    }
+
+    /**
+     * Checks whether the expression folded to a single number.
+     */
+    boolean isConstant() {
+        return evaluator == null;
+    }
+
+    private static void collectVariables(ExpressionNode node, List<String> names) {
+        if (node instanceof ExpressionNode.Variable) {
+            String name = ((ExpressionNode.Variable) node).name;
+            if (!names.contains(name)) {
+                names.add(name);
+            }
+        } else if (node instanceof ExpressionNode.Unary) {
+            collectVariables(((ExpressionNode.Unary) node).operand, names);
+        } else if (node instanceof ExpressionNode.Binary) {
+            collectVariables(((ExpressionNode.Binary) node).left, names);
+            collectVariables(((ExpressionNode.Binary) node).right, names);
+        }
+    }
+
+    private Evaluator compile(ExpressionNode node) {
+        if (node instanceof ExpressionNode.Literal) {
+            double value = ((ExpressionNode.Literal) node).value;
+            return variables -> value;
+        }
+        if (node instanceof ExpressionNode.Variable) {
+            int index = variableIndex(((ExpressionNode.Variable) node).name);
+            return variables -> variables[index];
+        }
+        if (node instanceof ExpressionNode.Unary) {
+            ExpressionNode.Unary unary = (ExpressionNode.Unary) node;
+            Evaluator operand = compile(unary.operand);
+            return unary.operator == ExpressionNode.Operator.NEGATE
+                    ? variables -> -operand.evaluate(variables)
+                    : variables -> operand.evaluate(variables) / 100;
+        }
+        ExpressionNode.Binary binary = (ExpressionNode.Binary) node;
+        Evaluator left = compile(binary.left);
+        if (binary.right instanceof ExpressionNode.Literal) {
+            double right = ((ExpressionNode.Literal) binary.right).value;
+            switch (binary.operator) {
+                case ADD:
+                    return variables -> left.evaluate(variables) + right;
+                case SUBTRACT:
+                    return variables -> left.evaluate(variables) - right;
+                case MULTIPLY:
+                    return variables -> left.evaluate(variables) * right;
+                default:
+                    if (right != 0) {
+                        return variables -> left.evaluate(variables) / right;
+                    }
+                    // Left unfolded so the division fails when evaluated; handled below.
+            }
+        }
+        Evaluator right = compile(binary.right);
+        switch (binary.operator) {
+            case ADD:
+                return variables -> left.evaluate(variables) + right.evaluate(variables);
+            case SUBTRACT:
+                return variables -> left.evaluate(variables) - right.evaluate(variables);
+            case MULTIPLY:
+                return variables -> left.evaluate(variables) * right.evaluate(variables);
+            default:
+                return variables -> {
+                    double dividend = left.evaluate(variables);
+                    double divisor = right.evaluate(variables);
+                    if (divisor == 0) {
+                        throw new ArithmeticException("Division by zero");
+                    }
+                    return dividend / divisor;
+                };
+        }
+    }
+}
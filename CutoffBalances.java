@@ -0,0 +1,76 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Every account's balance as of one instant (a cutoff), read while the
+ * balances keep changing.
+ * <p>
+ * Nothing is copied when the cutoff is taken. Instead, every mutation made
+ * after it first freezes the balance it is about to change, and a reader
+ * freezes each balance it reads; whichever comes first stores the balance as
+ * of the cutoff, because until a slot is frozen no post-cutoff change to it
+ * has happened. The cost for live traffic is one compare-and-set on the first
+ * change of each account while the cutoff is held, and a volatile read
+ * otherwise.
+ * <p>
+ * Accounts added after the cutoff are outside it.
+ */
+final class CutoffBalances {
+
+    private static final VarHandle FROZEN = MethodHandles.arrayElementVarHandle(long[].class);
+    // Balances are never negative, so this marks a slot that is not frozen yet.
+    private static final long UNFROZEN = Long.MIN_VALUE;
+
+    private final AccountStore store;
+    private final long[] frozen;
+    private final long cutoffMillis = System.currentTimeMillis();
+
+    /**
+     * Creates a cutoff over the first slots of a store. The caller must make
+     * sure no change is in flight while this is published.
+     * @param store The store whose balances are frozen.
+     * @param slots The number of slots in the cutoff (the store's high-water mark).
+     */
+    CutoffBalances(AccountStore store, int slots) {
+        this.store = store;
+        this.frozen = new long[slots];
+        Arrays.fill(frozen, UNFROZEN);
+    }
+
+    /**
+     * Returns the number of slots in the cutoff.
+     */
+    int size() {
+        return frozen.length;
+    }
+
+    /**
+     * Returns the wall-clock time the cutoff was taken.
+     */
+    long getCutoffMillis() {
+        return cutoffMillis;
+    }
+
+    /**
+     * Returns a slot's balance as of the cutoff, freezing it if nothing has yet.
+     * Must be called before every change to the slot while the cutoff is held.
+     * @param slot A slot of an existing account.
+     * @return The balance as of the cutoff, or -1 if the slot is outside it.
+     */
+    long freeze(int slot) {
+        if (slot >= frozen.length) {
+            return -1;
+        }
+        long balance = (long) FROZEN.getVolatile(frozen, slot);
+        if (balance != UNFROZEN) {
+            return balance;
+        }
+        // If the set succeeds, no change since the cutoff can have preceded this read.
+        long current = store.getBalance(slot);
+        if (FROZEN.compareAndSet(frozen, slot, UNFROZEN, current)) {
+            return current;
+        }
+        return (long) FROZEN.getVolatile(frozen, slot);
+    }
+}
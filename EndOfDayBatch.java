@@ -0,0 +1,316 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The end-of-day job: a day's interest and a below-minimum-balance fee for
+ * every account, with statement records and bank-wide totals, while live
+ * deposits, withdrawals and transfers carry on.
+ * <p>
+ * The job works from the balances as of a cutoff (see CutoffBalances), so
+ * its results do not depend on what live traffic does while it runs, nor on
+ * how the work is split. The account slots are divided in halves with
+ * fork-join until each task has a fixed-size range; every task computes its
+ * range independently and writes its statement records at fixed offsets, and
+ * the totals are summed. A run with parallelism 1 works through the same
+ * ranges in order on the calling thread and is the reference the parallel
+ * runs match.
+ * <p>
+ * Interest is the balance times the annual rate over 365 days, rounded half
+ * to even to the cent. The fee is charged when the balance at the cutoff is
+ * below the minimum, and never takes more than the balance plus the day's
+ * interest. When posting, the net of the two is applied to each account as
+ * an ordinary deposit or withdrawal, so it is journaled and published like
+ * any other change.
+ * <p>
+ * The statement file is a header of {@code "BEOD", version, cutoff millis,
+ * slot count} followed by one record per slot of
+ * {@code int account, long opening, long interest, long fee}, all big-endian;
+ * an empty slot has account 0.
+ */
+final class EndOfDayBatch {
+
+    private static final int MAGIC = 0x42454F44;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4;
+    private static final int RECORD_BYTES = 4 + 8 + 8 + 8;
+    // Slots per fork-join leaf: large enough to amortize a task, small enough to balance the load.
+    private static final int LEAF_SLOTS = 1 << 14;
+    private static final long INTEREST_DIVISOR = 10_000L * 365;
+
+    private final Bank bank;
+    private final int annualRateBasisPoints;
+    private final long minimumBalanceCents;
+    private final long feeCents;
+
+    /**
+     * Totals from one end-of-day run.
+     */
+    static final class Summary {
+        final long cutoffMillis;
+        final long accounts;
+        final long openingCents;
+        final long interestCents;
+        final long feeCents;
+        final long postingsApplied;
+        final long postingsRejected;
+        // The net amount actually added to balances by the applied postings.
+        final long postedCents;
+        // Order-independent hash of every account's figures, for comparing runs.
+        final long digest;
+        final long elapsedNanos;
+
+        Summary(long cutoffMillis, Totals totals, long elapsedNanos) {
+            this.cutoffMillis = cutoffMillis;
+            this.accounts = totals.accounts;
+            this.openingCents = totals.openingCents;
+            this.interestCents = totals.interestCents;
+            this.feeCents = totals.feeCents;
+            this.postingsApplied = totals.postingsApplied;
+            this.postingsRejected = totals.postingsRejected;
+            this.postedCents = totals.postedCents;
+            this.digest = totals.digest;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Returns the total of the balances as of the cutoff after interest and fees.
+         */
+        long closingCents() {
+            return openingCents + interestCents - feeCents;
+        }
+
+        /**
+         * Checks whether two runs computed the same figures for every account.
+         * @param other Another summary.
+         * @return true if the totals and digest match.
+         */
+        boolean sameResultAs(Summary other) {
+            return accounts == other.accounts && openingCents == other.openingCents
+                    && interestCents == other.interestCents && feeCents == other.feeCents
+                    && digest == other.digest;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("End of day: %d account(s), opening %s, interest %s, fees %s, closing %s;"
+                    + " %d posted, %d rejected; digest %016x in %.2f s",
+                    accounts, Money.format(openingCents), Money.format(interestCents), Money.format(feeCents),
+                    Money.format(closingCents()), postingsApplied, postingsRejected, digest, elapsedNanos / 1e9);
+        }
+    }
+
+    /**
+     * Constructor to initialize an EndOfDayBatch object.
+     * @param bank The bank to process.
+     * @param annualRateBasisPoints The annual interest rate, in hundredths of a percent.
+     * @param minimumBalanceCents The balance below which the fee is charged.
+     * @param feeCents The daily fee for a balance below the minimum.
+     */
+    EndOfDayBatch(Bank bank, int annualRateBasisPoints, long minimumBalanceCents, long feeCents) {
+        if (annualRateBasisPoints < 0 || minimumBalanceCents < 0 || feeCents < 0) {
+            throw new IllegalArgumentException("Rates, balances and fees must not be negative");
+        }
+        this.bank = bank;
+        this.annualRateBasisPoints = annualRateBasisPoints;
+        this.minimumBalanceCents = minimumBalanceCents;
+        this.feeCents = feeCents;
+    }
+
+    /**
+     * Takes a cutoff and processes every account that existed at it.
+     * @param parallelism The number of worker threads; 1 runs sequentially on the calling thread.
+     * @param statementFile The file to write statement records to, replaced if it exists; or null for none.
+     * @param post Whether to apply each account's interest and fee to its balance.
+     * @return The totals for the run.
+     * @throws IOException if the statement file cannot be written.
+     */
+    Summary run(int parallelism, Path statementFile, boolean post) throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        }
+        long begin = System.nanoTime();
+        CutoffBalances cut = bank.beginCutoff();
+        try (FileChannel out = statementFile == null ? null : FileChannel.open(statementFile,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            if (out != null) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(cut.getCutoffMillis()).putInt(cut.size());
+                writeFully(out, header.flip(), 0);
+            }
+            Totals totals;
+            if (parallelism == 1) {
+                // The same leaves in slot order, without a pool.
+                totals = new Totals();
+                for (int from = 0; from < cut.size(); from += LEAF_SLOTS) {
+                    totals.add(new Range(cut, from, Math.min(cut.size(), from + LEAF_SLOTS), out, post).computeLeaf());
+                }
+            } else {
+                ForkJoinPool pool = new ForkJoinPool(parallelism);
+                try {
+                    totals = pool.invoke(new Range(cut, 0, cut.size(), out, post));
+                } finally {
+                    pool.shutdown();
+                }
+            }
+            if (out != null) {
+                out.force(false);
+            }
+            return new Summary(cut.getCutoffMillis(), totals, System.nanoTime() - begin);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            bank.endCutoff(cut);
+        }
+    }
+
+    /**
+     * Returns a day's interest on a balance, rounded half to even to the cent.
+     * @param balanceCents The balance in cents; not negative.
+     * @return The interest in cents.
+     */
+    long dailyInterest(long balanceCents) {
+        // Split the balance so balance * rate cannot overflow.
+        long whole = balanceCents / INTEREST_DIVISOR;
+        long part = balanceCents % INTEREST_DIVISOR;
+        long scaled = part * annualRateBasisPoints;
+        long interest = whole * annualRateBasisPoints + scaled / INTEREST_DIVISOR;
+        long remainder = scaled % INTEREST_DIVISOR;
+        if (2 * remainder > INTEREST_DIVISOR || (2 * remainder == INTEREST_DIVISOR && (interest & 1) != 0)) {
+            interest++;
+        }
+        return interest;
+    }
+
+    /**
+     * Returns the fee for a balance, given the interest credited alongside it.
+     * @param balanceCents The balance as of the cutoff.
+     * @param interestCents The day's interest.
+     * @return The fee in cents.
+     */
+    long fee(long balanceCents, long interestCents) {
+        return balanceCents < minimumBalanceCents ? Math.min(feeCents, balanceCents + interestCents) : 0;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        key *= 0xC4CEB9FE1A85EC53L;
+        return key ^ (key >>> 33);
+    }
+
+    /**
+     * Running totals; combined by simple addition, so the split does not matter.
+     */
+    private static final class Totals {
+        long accounts;
+        long openingCents;
+        long interestCents;
+        long feeCents;
+        long postingsApplied;
+        long postingsRejected;
+        long postedCents;
+        long digest;
+
+        Totals add(Totals other) {
+            accounts += other.accounts;
+            openingCents += other.openingCents;
+            interestCents += other.interestCents;
+            feeCents += other.feeCents;
+            postingsApplied += other.postingsApplied;
+            postingsRejected += other.postingsRejected;
+            postedCents += other.postedCents;
+            digest += other.digest;
+            return this;
+        }
+    }
+
+    /**
+     * Processes a range of slots, splitting it in halves down to LEAF_SLOTS.
+     */
+    @SuppressWarnings("serial")
+    private final class Range extends RecursiveTask<Totals> {
+        private final CutoffBalances cut;
+        private final int from;
+        private final int to;
+        private final FileChannel out;
+        private final boolean post;
+
+        Range(CutoffBalances cut, int from, int to, FileChannel out, boolean post) {
+            this.cut = cut;
+            this.from = from;
+            this.to = to;
+            this.out = out;
+            this.post = post;
+        }
+
+        @Override
+        protected Totals compute() {
+            if (to - from <= LEAF_SLOTS) {
+                return computeLeaf();
+            }
+            int middle = (from + to) >>> 1;
+            Range low = new Range(cut, from, middle, out, post);
+            Range high = new Range(cut, middle, to, out, post);
+            low.fork();
+            Totals highTotals = high.compute();
+            return low.join().add(highTotals);
+        }
+
+        private Totals computeLeaf() {
+            Totals totals = new Totals();
+            ByteBuffer records = out == null ? null : ByteBuffer.allocate((to - from) * RECORD_BYTES);
+            for (int slot = from; slot < to; slot++) {
+                int number = slot + Bank.FIRST_ACCOUNT_NUMBER;
+                long opening = bank.exists(number) ? cut.freeze(slot) : -1;
+                if (opening < 0) {
+                    if (records != null) {
+                        records.putInt(0).putLong(0).putLong(0).putLong(0);
+                    }
+                    continue;
+                }
+                long interest = dailyInterest(opening);
+                long fee = fee(opening, interest);
+                totals.accounts++;
+                totals.openingCents += opening;
+                totals.interestCents += interest;
+                totals.feeCents += fee;
+                totals.digest += mix(((long) number << 32) ^ mix(opening ^ mix(interest ^ mix(fee))));
+                if (post && interest != fee) {
+                    long result = interest > fee
+                            ? bank.applyDeposit(number, interest - fee)
+                            : bank.applyWithdrawal(number, fee - interest);
+                    if (result >= 0) {
+                        totals.postingsApplied++;
+                        totals.postedCents += interest - fee;
+                    } else {
+                        totals.postingsRejected++;
+                    }
+                }
+                if (records != null) {
+                    records.putInt(number).putLong(opening).putLong(interest).putLong(fee);
+                }
+            }
+            if (records != null) {
+                try {
+                    writeFully(out, records.flip(), HEADER_BYTES + (long) from * RECORD_BYTES);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return totals;
+        }
+    }
+}
@@ -0,0 +1,423 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Evaluates expressions in decimal arithmetic, so that 0.1 + 0.2 is 0.3.
+ * <p>
+ * Addition, subtraction, multiplication and percent are exact; a quotient
+ * is exact if it has at most 16 significant digits and is otherwise rounded
+ * half to even to 16 (MathContext.DECIMAL64, about what a double shows).
+ * Variables are taken at the shortest decimal that reads back as the same
+ * double.
+ * <p>
+ * Most expressions are computed on scaled longs, value = unscaled * 10^-scale
+ * with a scale of at most MAX_SCALE, using Math.*Exact so an overflow is
+ * detected rather than wrapped. If any step does not fit (an overflow, a long
+ * literal, a quotient that does not terminate), the whole expression is
+ * evaluated again with BigDecimal. Both paths follow the same rules, so the
+ * result does not depend on which one produced it; only the fast path's
+ * result avoids allocating.
+ * <p>
+ * An instance keeps its last result and is not thread-safe; use one per thread.
+ */
+final class ExactEvaluator {
+
+    /** The largest scale (fraction digits) of a value on the fast path. */
+    static final int MAX_SCALE = 18;
+    /** How quotients are rounded. */
+    static final MathContext DIVISION_CONTEXT = MathContext.DECIMAL64;
+
+    // Quotients of this magnitude or more may have more digits than DIVISION_CONTEXT keeps.
+    private static final long QUOTIENT_LIMIT = 10_000_000_000_000_000L;
+    private static final double EXACT_DOUBLE_LIMIT = 0x1p53;
+    private static final long[] POWERS_OF_TEN = new long[MAX_SCALE + 1];
+    private static final double[] DOUBLE_POWERS_OF_TEN = new double[MAX_SCALE + 1];
+    // Results printed in plain notation up to this many digits before or after the point.
+    private static final int MAX_PLAIN_DIGITS = 40;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        DOUBLE_POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i <= MAX_SCALE; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+            DOUBLE_POWERS_OF_TEN[i] = DOUBLE_POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    // --- Last Result ---
+    private long unscaled;
+    private int scale;
+    // The result when it came from the BigDecimal path; null after a fast-path result.
+    private BigDecimal big;
+
+    // --- Evaluation State ---
+    private CompiledExpression expression;
+    private double[] variables;
+    // Set when a step does not fit the fast path; an Exact overflow is an ArithmeticException instead.
+    private boolean outOfRange;
+
+    private long fastResults;
+    private long fallbacks;
+
+    /**
+     * Evaluates an expression, trying scaled longs first.
+     * @param expression The compiled expression; its parsed (unfolded) tree is used.
+     * @param variables The value of each variable, in the order of getVariableNames.
+     * @throws IllegalArgumentException if the number of values does not match the variables.
+     * @throws ArithmeticException on division by zero, a non-finite variable, or an exponent out of range.
+     */
+    void evaluate(CompiledExpression expression, double... variables) {
+        begin(expression, variables);
+        try {
+            outOfRange = false;
+            long value;
+            try {
+                value = fast(expression.getTree());
+            } catch (ArithmeticException e) {
+                // An overflow, or a division by zero that the BigDecimal path reports the same way.
+                outOfRange = true;
+                value = 0;
+            }
+            if (outOfRange) {
+                fallbacks++;
+                big = slow(expression.getTree());
+            } else {
+                unscaled = value;
+                big = null;
+                fastResults++;
+            }
+        } finally {
+            this.expression = null;
+            this.variables = null;
+        }
+    }
+
+    /**
+     * Evaluates an expression with BigDecimal only, for comparison with evaluate.
+     * @param expression The compiled expression.
+     * @param variables The value of each variable, in the order of getVariableNames.
+     */
+    void evaluateBigDecimal(CompiledExpression expression, double... variables) {
+        begin(expression, variables);
+        try {
+            big = slow(expression.getTree());
+        } finally {
+            this.expression = null;
+            this.variables = null;
+        }
+    }
+
+    private void begin(CompiledExpression expression, double[] variables) {
+        if (variables.length != expression.variableCount()) {
+            throw new IllegalArgumentException("Expected " + expression.variableCount()
+                    + " variable value(s), got " + variables.length);
+        }
+        this.expression = expression;
+        this.variables = variables;
+    }
+
+    /**
+     * Checks whether the last result came from the scaled-long path.
+     */
+    boolean isFast() {
+        return big == null;
+    }
+
+    /**
+     * Returns the unscaled value of the last result; valid only if isFast.
+     */
+    long unscaledValue() {
+        return unscaled;
+    }
+
+    /**
+     * Returns the scale of the last result; valid only if isFast.
+     */
+    int scale() {
+        return scale;
+    }
+
+    /**
+     * Returns -1, 0 or 1 as the last result is negative, zero or positive, without allocating.
+     */
+    int signum() {
+        return big != null ? big.signum() : Long.signum(unscaled);
+    }
+
+    /**
+     * Returns the last result as a BigDecimal.
+     */
+    BigDecimal toBigDecimal() {
+        return big != null ? big : BigDecimal.valueOf(unscaled, scale);
+    }
+
+    /**
+     * Returns the last result rounded to the nearest double.
+     */
+    double doubleValue() {
+        if (big == null && Math.abs(unscaled) < EXACT_DOUBLE_LIMIT) {
+            // Both operands are exact doubles, so the one rounding is the correct one.
+            return unscaled / DOUBLE_POWERS_OF_TEN[scale];
+        }
+        return toBigDecimal().doubleValue();
+    }
+
+    /**
+     * Returns how many evaluations finished on the scaled-long path.
+     */
+    long getFastResults() {
+        return fastResults;
+    }
+
+    /**
+     * Returns how many evaluations fell back to BigDecimal.
+     */
+    long getFallbacks() {
+        return fallbacks;
+    }
+
+    /**
+     * Returns the last result without trailing zeros, in plain notation unless
+     * that would be very long (e.g. "0.3", "-12", "1E+100").
+     */
+    @Override
+    public String toString() {
+        if (big != null) {
+            return format(big);
+        }
+        long value = unscaled;
+        int digits = scale;
+        while (digits > 0 && value % 10 == 0) {
+            value /= 10;
+            digits--;
+        }
+        return format(BigDecimal.valueOf(value, digits));
+    }
+
+    /**
+     * Formats a decimal without trailing zeros, in plain notation unless that would be very long.
+     * @param value The value.
+     * @return The text.
+     */
+    static String format(BigDecimal value) {
+        BigDecimal stripped = value.signum() == 0 ? BigDecimal.ZERO : value.stripTrailingZeros();
+        int integerDigits = stripped.precision() - stripped.scale();
+        return integerDigits <= MAX_PLAIN_DIGITS && stripped.scale() <= MAX_PLAIN_DIGITS
+                ? stripped.toPlainString()
+                : stripped.toString();
+    }
+
+    // --- Scaled-long Path ---
+
+    /**
+     * Evaluates a subtree on scaled longs.
+     * @return The unscaled value, with its scale left in the scale field; meaningless
+     *         if outOfRange was set, which callers check after every operand.
+     * @throws ArithmeticException if a Math.*Exact operation overflows.
+     */
+    private long fast(ExpressionNode node) {
+        if (node instanceof ExpressionNode.Literal) {
+            ExpressionNode.Literal literal = (ExpressionNode.Literal) node;
+            if (literal.scale < 0) {
+                outOfRange = true;
+                return 0;
+            }
+            scale = literal.scale;
+            return literal.unscaled;
+        }
+        if (node instanceof ExpressionNode.Variable) {
+            return fastVariable(variables[expression.variableIndex(((ExpressionNode.Variable) node).name)]);
+        }
+        if (node instanceof ExpressionNode.Unary) {
+            ExpressionNode.Unary unary = (ExpressionNode.Unary) node;
+            long value = fast(unary.operand);
+            if (outOfRange) {
+                return 0;
+            }
+            if (unary.operator == ExpressionNode.Operator.NEGATE) {
+                return Math.negateExact(value);
+            }
+            if (scale + 2 > MAX_SCALE) {
+                outOfRange = true;
+                return 0;
+            }
+            scale += 2;
+            return value;
+        }
+        ExpressionNode.Binary binary = (ExpressionNode.Binary) node;
+        long left = fast(binary.left);
+        if (outOfRange) {
+            return 0;
+        }
+        int leftScale = scale;
+        long right = fast(binary.right);
+        if (outOfRange) {
+            return 0;
+        }
+        int rightScale = scale;
+        switch (binary.operator) {
+            case ADD:
+            case SUBTRACT: {
+                int common = Math.max(leftScale, rightScale);
+                left = Math.multiplyExact(left, POWERS_OF_TEN[common - leftScale]);
+                right = Math.multiplyExact(right, POWERS_OF_TEN[common - rightScale]);
+                scale = common;
+                return binary.operator == ExpressionNode.Operator.ADD
+                        ? Math.addExact(left, right)
+                        : Math.subtractExact(left, right);
+            }
+            case MULTIPLY:
+                if (leftScale + rightScale > MAX_SCALE) {
+                    outOfRange = true;
+                    return 0;
+                }
+                scale = leftScale + rightScale;
+                return Math.multiplyExact(left, right);
+            default:
+                return divide(left, leftScale, right, rightScale);
+        }
+    }
+
+    /**
+     * Divides on scaled longs when the quotient terminates within MAX_SCALE
+     * digits and has no more digits than DIVISION_CONTEXT keeps, so it is
+     * the exact value the BigDecimal path would also produce.
+     * <p>
+     * A quotient terminates exactly when the divisor, reduced by its common
+     * factors with the dividend, is 2^a * 5^b; it then needs max(a, b) more
+     * digits than the dividend. That is decided up front, so a quotient like
+     * 1/3 costs a gcd rather than a digit-by-digit attempt.
+     */
+    private long divide(long dividend, int dividendScale, long divisor, int divisorScale) {
+        if (divisor == 0) {
+            throw new ArithmeticException("Division by zero");
+        }
+        if (dividend == Long.MIN_VALUE || divisor == Long.MIN_VALUE) {
+            outOfRange = true;
+            return 0;
+        }
+        long reduced = Math.abs(divisor) / gcd(Math.abs(dividend), Math.abs(divisor));
+        int twos = Long.numberOfTrailingZeros(reduced);
+        reduced >>>= twos;
+        int fives = 0;
+        while (reduced % 5 == 0) {
+            reduced /= 5;
+            fives++;
+        }
+        int extra = Math.max(twos, fives);
+        int quotientScale = dividendScale - divisorScale + extra;
+        if (reduced != 1 || extra > MAX_SCALE || quotientScale > MAX_SCALE
+                || Math.abs(dividend) > Long.MAX_VALUE / POWERS_OF_TEN[extra]) {
+            outOfRange = true;
+            return 0;
+        }
+        long quotient = dividend * POWERS_OF_TEN[extra] / divisor;
+        if (quotientScale < 0) {
+            if (-quotientScale > MAX_SCALE) {
+                outOfRange = true;
+                return 0;
+            }
+            quotient = Math.multiplyExact(quotient, POWERS_OF_TEN[-quotientScale]);
+            quotientScale = 0;
+        }
+        if (quotient >= QUOTIENT_LIMIT || quotient <= -QUOTIENT_LIMIT) {
+            outOfRange = true;
+            return 0;
+        }
+        scale = quotientScale;
+        return quotient;
+    }
+
+    /**
+     * Returns the greatest common divisor of two non-negative longs, not both zero (binary method).
+     */
+    private static long gcd(long a, long b) {
+        if (a == 0 || b == 0) {
+            return a | b;
+        }
+        int shift = Long.numberOfTrailingZeros(a | b);
+        a >>>= Long.numberOfTrailingZeros(a);
+        do {
+            b >>>= Long.numberOfTrailingZeros(b);
+            if (a > b) {
+                long t = a;
+                a = b;
+                b = t;
+            }
+            b -= a;
+        } while (b != 0);
+        return a << shift;
+    }
+
+    /**
+     * Converts a double to the shortest scaled long that reads back as it,
+     * or sets outOfRange if there is none within MAX_SCALE digits.
+     */
+    private long fastVariable(double value) {
+        for (int digits = 0; digits <= MAX_SCALE; digits++) {
+            double scaled = value * DOUBLE_POWERS_OF_TEN[digits];
+            if (!(Math.abs(scaled) < EXACT_DOUBLE_LIMIT)) {
+                break;
+            }
+            double rounded = Math.rint(scaled);
+            if (rounded / DOUBLE_POWERS_OF_TEN[digits] == value) {
+                scale = digits;
+                return (long) rounded;
+            }
+        }
+        outOfRange = true;
+        return 0;
+    }
+
+    // --- BigDecimal Path ---
+
+    private BigDecimal slow(ExpressionNode node) {
+        if (node instanceof ExpressionNode.Literal) {
+            ExpressionNode.Literal literal = (ExpressionNode.Literal) node;
+            if (literal.scale >= 0) {
+                return BigDecimal.valueOf(literal.unscaled, literal.scale);
+            }
+            try {
+                return new BigDecimal(literal.text);
+            } catch (NumberFormatException e) {
+                throw new ArithmeticException("Number out of range: " + literal.text);
+            }
+        }
+        if (node instanceof ExpressionNode.Variable) {
+            return slowVariable(variables[expression.variableIndex(((ExpressionNode.Variable) node).name)]);
+        }
+        if (node instanceof ExpressionNode.Unary) {
+            ExpressionNode.Unary unary = (ExpressionNode.Unary) node;
+            BigDecimal value = slow(unary.operand);
+            return unary.operator == ExpressionNode.Operator.NEGATE ? value.negate() : value.movePointLeft(2);
+        }
+        ExpressionNode.Binary binary = (ExpressionNode.Binary) node;
+        BigDecimal left = slow(binary.left);
+        BigDecimal right = slow(binary.right);
+        switch (binary.operator) {
+            case ADD:
+                return left.add(right);
+            case SUBTRACT:
+                return left.subtract(right);
+            case MULTIPLY:
+                return left.multiply(right);
+            default:
+                if (right.signum() == 0) {
+                    throw new ArithmeticException("Division by zero");
+                }
+                return left.divide(right, DIVISION_CONTEXT);
+        }
+    }
+
+    /**
+     * Converts a double the same way fastVariable does, falling back to its Double.toString digits.
+     */
+    private BigDecimal slowVariable(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new ArithmeticException("Not a finite number: " + value);
+        }
+        outOfRange = false;
+        long unscaledValue = fastVariable(value);
+        return outOfRange ? new BigDecimal(Double.toString(value)) : BigDecimal.valueOf(unscaledValue, scale);
+    }
+}
@@ -0,0 +1,373 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Evaluates a file of calculator expressions, one per line, on several
+ * threads, and writes one result line per input line in input order.
+ * <p>
+ * The reader cuts the input into blocks of whole lines and hands them to the
+ * workers through a queue, keeping the blocks in flight in input order. A
+ * worker evaluates every line of a block and formats the results straight
+ * into the block's output bytes. The reader writes each block as soon as it
+ * and every block before it are done, so at most a fixed number of blocks is
+ * ever in memory, and the blocks are reused.
+ * <p>
+ * A result is written as a plain decimal number: an integer without a
+ * fraction, otherwise the fewest fraction digits that read back as the same
+ * double (e.g. 0.30000000000000004, 2.5, -0.125), formatted digit by digit
+ * without creating a String. Magnitudes beyond 2^53, tiny fractions and
+ * infinities are written by Double.toString instead. A line that cannot be
+ * evaluated gives "Error", and a blank line gives a blank line.
+ * <p>
+ * In exact mode each worker evaluates with its own ExactEvaluator instead,
+ * and a result is written as its decimal digits without trailing zeros
+ * (0.3 for 0.1+0.2), straight from the scaled long when the fast path
+ * produced it.
+ */
+final class ExpressionBatch {
+
+    private static final int BLOCK_BYTES = 1 << 20;
+    // Blocks in flight per worker: enough to keep every worker busy while the reader writes.
+    private static final int BLOCKS_PER_WORKER = 4;
+    private static final byte[] ERROR = "Error".getBytes(StandardCharsets.US_ASCII);
+    // Fractions are tried up to this many digits; longer ones fall back to Double.toString.
+    private static final int MAX_FRACTION_DIGITS = 17;
+    private static final double[] POWERS_OF_TEN = new double[MAX_FRACTION_DIGITS + 1];
+    private static final long[] LONG_POWERS_OF_TEN = new long[ExactEvaluator.MAX_SCALE + 1];
+    // Every integer of magnitude below 2^53 is an exact double.
+    private static final double EXACT_LIMIT = 0x1p53;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        LONG_POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i <= MAX_FRACTION_DIGITS; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        for (int i = 1; i < LONG_POWERS_OF_TEN.length; i++) {
+            LONG_POWERS_OF_TEN[i] = LONG_POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final ExpressionEngine engine;
+    private final int workerCount;
+    private final boolean exact;
+
+    /**
+     * Totals from one batch run.
+     */
+    static final class Summary {
+        final long lines;
+        final long errors;
+        final long elapsedNanos;
+
+        Summary(long lines, long errors, long elapsedNanos) {
+            this.lines = lines;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        double linesPerSecond() {
+            return lines / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Evaluated %d line(s), %d error(s) in %.2f s (%.0f expressions/s)",
+                    lines, errors, elapsedNanos / 1e9, linesPerSecond());
+        }
+    }
+
+    /**
+     * Constructor to initialize an ExpressionBatch object.
+     * @param engine The engine to evaluate with; its cache pays off when lines repeat.
+     * @param workerCount The number of evaluating threads.
+     */
+    ExpressionBatch(ExpressionEngine engine, int workerCount) {
+        this(engine, workerCount, false);
+    }
+
+    /**
+     * Constructor to initialize an ExpressionBatch object.
+     * @param engine The engine to compile with.
+     * @param workerCount The number of evaluating threads.
+     * @param exact Whether to evaluate in exact decimal rather than double arithmetic.
+     */
+    ExpressionBatch(ExpressionEngine engine, int workerCount, boolean exact) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be at least 1: " + workerCount);
+        }
+        this.engine = engine;
+        this.workerCount = workerCount;
+        this.exact = exact;
+    }
+
+    /**
+     * Evaluates every line of the input file and writes the results.
+     * @param input The expression file, in UTF-8.
+     * @param output The result file; replaced if it exists.
+     * @return The totals for the run.
+     * @throws IOException if a file cannot be read or written, or a line is longer than a block.
+     * @throws InterruptedException if interrupted while waiting for the workers.
+     */
+    Summary run(Path input, Path output) throws IOException, InterruptedException {
+        long begin = System.nanoTime();
+        BlockingQueue<Block> work = new ArrayBlockingQueue<>(workerCount * BLOCKS_PER_WORKER);
+        Thread[] workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(() -> work(work), "expression-batch-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        long lines = 0;
+        long errors = 0;
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ArrayDeque<Block> pending = new ArrayDeque<>();
+            ArrayDeque<Block> free = new ArrayDeque<>();
+            for (int i = 0; i < workerCount * BLOCKS_PER_WORKER; i++) {
+                free.add(new Block());
+            }
+            byte[] carry = new byte[BLOCK_BYTES];
+            int carried = 0;
+            boolean eof = false;
+            while (!eof) {
+                Block block;
+                if (free.isEmpty()) {
+                    block = pending.poll();
+                    lines += block.await();
+                    errors += block.errors;
+                    block.writeTo(out);
+                } else {
+                    block = free.poll();
+                }
+                // Start with the partial line left over from the previous block, then fill up.
+                System.arraycopy(carry, 0, block.input, 0, carried);
+                ByteBuffer buffer = ByteBuffer.wrap(block.input, carried, BLOCK_BYTES - carried);
+                while (buffer.hasRemaining() && !eof) {
+                    eof = in.read(buffer) < 0;
+                }
+                int end = buffer.position();
+                int split = end;
+                if (!eof) {
+                    while (split > 0 && block.input[split - 1] != '\n') {
+                        split--;
+                    }
+                    if (split == 0) {
+                        throw new IOException("Line longer than " + BLOCK_BYTES + " bytes");
+                    }
+                }
+                carried = end - split;
+                System.arraycopy(block.input, split, carry, 0, carried);
+                if (split == 0) {
+                    free.add(block);
+                    continue;
+                }
+                block.start(split);
+                pending.add(block);
+                work.put(block);
+            }
+            for (Block block : pending) {
+                lines += block.await();
+                errors += block.errors;
+                block.writeTo(out);
+            }
+        } finally {
+            // A worker still evaluating finishes its block, then stops at the next take().
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+        }
+        return new Summary(lines, errors, System.nanoTime() - begin);
+    }
+
+    private void work(BlockingQueue<Block> work) {
+        ExactEvaluator evaluator = exact ? new ExactEvaluator() : null;
+        while (true) {
+            Block block;
+            try {
+                block = work.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                evaluate(block, evaluator);
+            } catch (RuntimeException | Error e) {
+                block.failure = e;
+            }
+            block.finish();
+        }
+    }
+
+    /**
+     * Evaluates every line of a block.
+     * @param evaluator The worker's exact evaluator, or null to evaluate in double arithmetic.
+     */
+    private void evaluate(Block block, ExactEvaluator evaluator) {
+        byte[] input = block.input;
+        int start = 0;
+        while (start < block.length) {
+            int newline = LineCursor.indexOf(input, start, block.length, (byte) '\n');
+            int next = newline < 0 ? block.length : newline + 1;
+            int end = newline < 0 ? block.length : newline;
+            if (end > start && input[end - 1] == '\r') {
+                end--;
+            }
+            if (end > start) {
+                String text = new String(input, start, end - start, StandardCharsets.UTF_8);
+                try {
+                    if (evaluator == null) {
+                        block.appendValue(engine.evaluate(text));
+                    } else {
+                        evaluator.evaluate(engine.compile(text));
+                        block.appendExact(evaluator);
+                    }
+                } catch (IllegalArgumentException | ArithmeticException e) {
+                    block.append(ERROR);
+                    block.errors++;
+                }
+            }
+            block.append((byte) '\n');
+            block.lines++;
+            start = next;
+        }
+    }
+
+    /**
+     * A run of whole input lines and their formatted results.
+     */
+    private static final class Block {
+        final byte[] input = new byte[BLOCK_BYTES];
+        int length;
+        byte[] output = new byte[BLOCK_BYTES];
+        int outputLength;
+        long lines;
+        long errors;
+        Throwable failure;
+        // Written by the worker, read by the reader; also guards the fields above between them.
+        private boolean done;
+        private final byte[] digits = new byte[20];
+
+        void start(int length) {
+            this.length = length;
+            outputLength = 0;
+            lines = 0;
+            errors = 0;
+            failure = null;
+            done = false;
+        }
+
+        synchronized void finish() {
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the worker to finish this block.
+         * @return The number of lines in the block.
+         */
+        synchronized long await() throws InterruptedException, IOException {
+            while (!done) {
+                wait();
+            }
+            if (failure != null) {
+                throw new IOException("Expression worker failed", failure);
+            }
+            return lines;
+        }
+
+        void writeTo(FileChannel out) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(output, 0, outputLength);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+
+        void append(byte b) {
+            ensureCapacity(1);
+            output[outputLength++] = b;
+        }
+
+        void append(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, output, outputLength, bytes.length);
+            outputLength += bytes.length;
+        }
+
+        void appendValue(double value) {
+            if (value == Math.rint(value) && Math.abs(value) < EXACT_LIMIT) {
+                appendLong((long) value, 0);
+                return;
+            }
+            // The fewest fraction digits k for which round(value * 10^k) / 10^k reads back as value;
+            // the division is correctly rounded, so that decimal is a faithful spelling of value.
+            for (int k = 1; k <= MAX_FRACTION_DIGITS && Math.abs(value) * POWERS_OF_TEN[k] < EXACT_LIMIT; k++) {
+                double scaled = Math.rint(value * POWERS_OF_TEN[k]);
+                if (scaled / POWERS_OF_TEN[k] == value) {
+                    appendLong((long) scaled, k);
+                    return;
+                }
+            }
+            // Very large, very small or non-finite values.
+            append(Double.toString(value).getBytes(StandardCharsets.US_ASCII));
+        }
+
+        void appendExact(ExactEvaluator result) {
+            if (!result.isFast() || result.unscaledValue() == Long.MIN_VALUE) {
+                append(result.toString().getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            long unscaled = result.unscaledValue();
+            int scale = result.scale();
+            while (scale > 0 && unscaled % 10 == 0) {
+                unscaled /= 10;
+                scale--;
+            }
+            appendLong(unscaled, scale);
+        }
+
+        /**
+         * Appends unscaled / 10^scale in plain decimal notation.
+         */
+        private void appendLong(long unscaled, int scale) {
+            // A sign, up to 19 whole digits, a point and up to 18 fraction digits.
+            ensureCapacity(40);
+            if (unscaled < 0) {
+                output[outputLength++] = '-';
+                unscaled = -unscaled;
+            }
+            long whole = unscaled / LONG_POWERS_OF_TEN[scale];
+            long fraction = unscaled % LONG_POWERS_OF_TEN[scale];
+            int count = 0;
+            do {
+                digits[count++] = (byte) ('0' + whole % 10);
+                whole /= 10;
+            } while (whole != 0);
+            while (count > 0) {
+                output[outputLength++] = digits[--count];
+            }
+            if (scale > 0) {
+                output[outputLength++] = '.';
+                for (int i = scale - 1; i >= 0; i--) {
+                    output[outputLength + i] = (byte) ('0' + fraction % 10);
+                    fraction /= 10;
+                }
+                outputLength += scale;
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            if (outputLength + extra > output.length) {
+                output = Arrays.copyOf(output, Math.max(output.length * 2, outputLength + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Evaluates arithmetic expressions given as text, keeping the most recently
+ * used compiled forms so a repeated expression is parsed only once.
+ * <p>
+ * The cache is keyed by the exact expression text and split into
+ * independently locked segments by hash, each a least-recently-used map of
+ * bounded size, so threads evaluating different expressions rarely contend.
+ * Compiling happens outside the lock; two threads missing on the same text
+ * at once both compile it, and the first to finish is kept. Texts that fail
+ * to parse are not cached.
+ * <p>
+ * An expression is only admitted to the cache when it misses for the second
+ * time while its hash is still remembered by a small table of recent misses
+ * (a "doorkeeper"). A stream of one-off expressions, as in a batch file, then
+ * neither evicts the ones that repeat nor pays for inserting and evicting
+ * entries that would never be hit, which is what keeps a batch's garbage
+ * short-lived.
+ */
+final class ExpressionEngine {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Constructor to initialize an ExpressionEngine object.
+     * @param cacheCapacity The most compiled expressions kept at once,
+     *                      rounded up to a multiple of the segment count.
+     */
+    ExpressionEngine(int cacheCapacity) {
+        if (cacheCapacity < 1) {
+            throw new IllegalArgumentException("cacheCapacity must be at least 1: " + cacheCapacity);
+        }
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment((cacheCapacity + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+        }
+    }
+
+    /**
+     * Returns the compiled form of an expression, from the cache if possible.
+     * @param text The expression; see ExpressionParser for the syntax.
+     * @return The compiled expression.
+     * @throws IllegalArgumentException if the text is not a valid expression.
+     */
+    CompiledExpression compile(String text) {
+        int hash = text.hashCode();
+        Segment segment = segments[(hash ^ (hash >>> 16)) & (SEGMENT_COUNT - 1)];
+        CompiledExpression compiled;
+        synchronized (segment) {
+            compiled = segment.get(text);
+        }
+        if (compiled != null) {
+            hits.increment();
+            return compiled;
+        }
+        misses.increment();
+        compiled = CompiledExpression.compile(text);
+        synchronized (segment) {
+            if (!segment.admit(hash)) {
+                return compiled;
+            }
+            CompiledExpression raced = segment.putIfAbsent(text, compiled);
+            return raced != null ? raced : compiled;
+        }
+    }
+
+    /**
+     * Evaluates an expression without variables.
+     * @param text The expression.
+     * @return The value.
+     * @throws IllegalArgumentException if the text is not a valid expression or has variables.
+     * @throws ArithmeticException on division by zero.
+     */
+    double evaluate(String text) {
+        return compile(text).evaluate();
+    }
+
+    /**
+     * Returns the number of compile calls answered from the cache.
+     */
+    long getCacheHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of compile calls that had to parse.
+     */
+    long getCacheMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of compiled expressions currently cached.
+     */
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * An access-ordered map that drops its least recently used entry when full.
+     */
+    @SuppressWarnings("serial")
+    private static final class Segment extends LinkedHashMap<String, CompiledExpression> {
+        private final int capacity;
+        // The hashes of recent misses, direct-mapped; a collision only delays or hastens an admission.
+        private final int[] recentMisses;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.recentMisses = new int[Integer.highestOneBit(Math.max(16, capacity * 4 - 1)) << 1];
+        }
+
+        /**
+         * Records a miss, and decides whether the missed expression should be cached.
+         * @return true if the same hash missed recently.
+         */
+        boolean admit(int hash) {
+            int index = (hash * 0x9E3779B9 >>> 8) & (recentMisses.length - 1);
+            if (recentMisses[index] == hash) {
+                return true;
+            }
+            recentMisses[index] = hash;
+            return false;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest) {
+            return size() > capacity;
+        }
+    }
+}
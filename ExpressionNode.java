@@ -0,0 +1,175 @@
+/**
+ * A node of a parsed arithmetic expression: a number, a named variable, or
+ * an operator applied to one or two operands.
+ * <p>
+ * Nodes are immutable, so a parsed tree can be shared between threads and
+ * cached. fold() returns an equivalent tree with every variable-free subtree
+ * replaced by its value, except where evaluating it would fail (a division by
+ * zero), so that the failure still happens when the expression is evaluated
+ * rather than when it is compiled.
+ */
+abstract class ExpressionNode {
+
+    /**
+     * The operators, with the symbol each is written with.
+     */
+    enum Operator {
+        ADD('+'),
+        SUBTRACT('-'),
+        MULTIPLY('*'),
+        DIVIDE('/'),
+        NEGATE('-'),
+        PERCENT('%');
+
+        final char symbol;
+
+        Operator(char symbol) {
+            this.symbol = symbol;
+        }
+
+        /**
+         * Applies a unary operator in double arithmetic.
+         */
+        double apply(double operand) {
+            return this == NEGATE ? -operand : operand / 100;
+        }
+
+        /**
+         * Applies a binary operator in double arithmetic.
+         * @throws ArithmeticException on division by zero.
+         */
+        double apply(double left, double right) {
+            switch (this) {
+                case ADD:
+                    return left + right;
+                case SUBTRACT:
+                    return left - right;
+                case MULTIPLY:
+                    return left * right;
+                case DIVIDE:
+                    if (right == 0) {
+                        throw new ArithmeticException("Division by zero");
+                    }
+                    return left / right;
+                default:
+                    throw new IllegalStateException("Not a binary operator: " + this);
+            }
+        }
+    }
+
+    /**
+     * Returns an equivalent tree with constant subtrees evaluated.
+     */
+    abstract ExpressionNode fold();
+
+    /**
+     * A number, with the text it was written as (null if it was computed by folding).
+     */
+    static final class Literal extends ExpressionNode {
+        final double value;
+        final String text;
+        // The exact decimal value as unscaled * 10^-scale, or a scale of -1 if it does not fit a long.
+        final long unscaled;
+        final int scale;
+
+        Literal(double value, String text, long unscaled, int scale) {
+            this.value = value;
+            this.text = text;
+            this.unscaled = unscaled;
+            this.scale = scale;
+        }
+
+        Literal(double value) {
+            this(value, null, 0, -1);
+        }
+
+        @Override
+        ExpressionNode fold() {
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return text != null ? text : String.valueOf(value);
+        }
+    }
+
+    /**
+     * A named value supplied when the expression is evaluated.
+     */
+    static final class Variable extends ExpressionNode {
+        final String name;
+
+        Variable(String name) {
+            this.name = name;
+        }
+
+        @Override
+        ExpressionNode fold() {
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Negation or a postfix percent.
+     */
+    static final class Unary extends ExpressionNode {
+        final Operator operator;
+        final ExpressionNode operand;
+
+        Unary(Operator operator, ExpressionNode operand) {
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        ExpressionNode fold() {
+            ExpressionNode folded = operand.fold();
+            if (folded instanceof Literal) {
+                return new Literal(operator.apply(((Literal) folded).value));
+            }
+            return folded == operand ? this : new Unary(operator, folded);
+        }
+
+        @Override
+        public String toString() {
+            return operator == Operator.NEGATE ? "(-" + operand + ")" : "(" + operand + "%)";
+        }
+    }
+
+    /**
+     * Addition, subtraction, multiplication or division.
+     */
+    static final class Binary extends ExpressionNode {
+        final Operator operator;
+        final ExpressionNode left;
+        final ExpressionNode right;
+
+        Binary(Operator operator, ExpressionNode left, ExpressionNode right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        ExpressionNode fold() {
+            ExpressionNode foldedLeft = left.fold();
+            ExpressionNode foldedRight = right.fold();
+            if (foldedLeft instanceof Literal && foldedRight instanceof Literal
+                    && !(operator == Operator.DIVIDE && ((Literal) foldedRight).value == 0)) {
+                return new Literal(operator.apply(((Literal) foldedLeft).value, ((Literal) foldedRight).value));
+            }
+            return foldedLeft == left && foldedRight == right ? this : new Binary(operator, foldedLeft, foldedRight);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " " + operator.symbol + " " + right + ")";
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * Parses arithmetic expressions into ExpressionNode trees.
+ * <p>
+ * The grammar, from lowest to highest precedence:
+ * <pre>
+ *   expression := term (('+' | '-') term)*
+ *   term       := unary (('*' | '/' | '×' | '÷') unary)*
+ *   unary      := ('-' | '+') unary | postfix
+ *   postfix    := primary '%'*
+ *   primary    := number | name | '(' expression ')'
+ * </pre>
+ * Numbers are decimal, with an optional fraction and exponent ("12", "0.5",
+ * ".5", "5.", "1.5E-3"). Names start with a letter or '_' and are variables.
+ * Whitespace between tokens is ignored. "x%" means x / 100.
+ * <p>
+ * The scanner works on the characters directly, without a token list, and
+ * converts short decimal numbers without going through a String: up to 15
+ * digits are accumulated in a long and divided by an exact power of ten,
+ * which rounds exactly as Double.parseDouble does. The same digits give each
+ * number's exact decimal value for ExactEvaluator.
+ */
+final class ExpressionParser {
+
+    // Deeper nesting is rejected rather than risking a StackOverflowError.
+    private static final int MAX_DEPTH = 256;
+    // Every long below 10^15 and every power of ten up to 10^15 is an exact double.
+    private static final int MAX_FAST_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = new double[MAX_FAST_DIGITS + 1];
+    // Every 18-digit number fits a long; see ExactEvaluator for the scale limit.
+    private static final int MAX_EXACT_DIGITS = 18;
+    private static final int MAX_EXACT_SCALE = ExactEvaluator.MAX_SCALE;
+    private static final long[] EXACT_POWERS_OF_TEN = new long[MAX_EXACT_DIGITS + 1];
+    private static final int MAX_EXPONENT = 99_999;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        EXACT_POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < EXACT_POWERS_OF_TEN.length; i++) {
+            EXACT_POWERS_OF_TEN[i] = EXACT_POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final String text;
+    private int position;
+    private int depth;
+
+    private ExpressionParser(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Parses a complete expression.
+     * @param text The expression.
+     * @return The parsed tree, not yet folded.
+     * @throws IllegalArgumentException if the text is not a valid expression.
+     */
+    static ExpressionNode parse(String text) {
+        ExpressionParser parser = new ExpressionParser(text);
+        ExpressionNode node = parser.parseExpression();
+        if (parser.peek() != 0) {
+            throw parser.unexpected();
+        }
+        return node;
+    }
+
+    private ExpressionNode parseExpression() {
+        if (++depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Expression nested too deeply at position " + position);
+        }
+        ExpressionNode node = parseTerm();
+        while (true) {
+            char c = peek();
+            if (c == '+') {
+                position++;
+                node = new ExpressionNode.Binary(ExpressionNode.Operator.ADD, node, parseTerm());
+            } else if (c == '-') {
+                position++;
+                node = new ExpressionNode.Binary(ExpressionNode.Operator.SUBTRACT, node, parseTerm());
+            } else {
+                depth--;
+                return node;
+            }
+        }
+    }
+
+    private ExpressionNode parseTerm() {
+        ExpressionNode node = parseUnary();
+        while (true) {
+            char c = peek();
+            if (c == '*' || c == '×') {
+                position++;
+                node = new ExpressionNode.Binary(ExpressionNode.Operator.MULTIPLY, node, parseUnary());
+            } else if (c == '/' || c == '÷') {
+                position++;
+                node = new ExpressionNode.Binary(ExpressionNode.Operator.DIVIDE, node, parseUnary());
+            } else {
+                return node;
+            }
+        }
+    }
+
+    private ExpressionNode parseUnary() {
+        char c = peek();
+        if (c == '-' || c == '+') {
+            if (++depth > MAX_DEPTH) {
+                throw new IllegalArgumentException("Expression nested too deeply at position " + position);
+            }
+            position++;
+            ExpressionNode operand = parseUnary();
+            depth--;
+            return c == '-' ? new ExpressionNode.Unary(ExpressionNode.Operator.NEGATE, operand) : operand;
+        }
+        ExpressionNode node = parsePrimary();
+        while (peek() == '%') {
+            position++;
+            node = new ExpressionNode.Unary(ExpressionNode.Operator.PERCENT, node);
+        }
+        return node;
+    }
+
+    private ExpressionNode parsePrimary() {
+        char c = peek();
+        if (c == '(') {
+            position++;
+            ExpressionNode node = parseExpression();
+            if (peek() != ')') {
+                throw unexpected();
+            }
+            position++;
+            return node;
+        }
+        if ((c >= '0' && c <= '9') || c == '.') {
+            return parseNumber();
+        }
+        if (Character.isLetter(c) || c == '_') {
+            int start = position;
+            while (position < text.length()
+                    && (Character.isLetterOrDigit(text.charAt(position)) || text.charAt(position) == '_')) {
+                position++;
+            }
+            return new ExpressionNode.Variable(text.substring(start, position));
+        }
+        throw unexpected();
+    }
+
+    private ExpressionNode parseNumber() {
+        int start = position;
+        // The significant digits, while there are at most MAX_EXACT_DIGITS of them.
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean point = false;
+        while (position < text.length()) {
+            char c = text.charAt(position);
+            if (c >= '0' && c <= '9') {
+                // Leading zeros are not significant.
+                if (digits > 0 || c != '0') {
+                    digits++;
+                }
+                if (digits <= MAX_EXACT_DIGITS) {
+                    mantissa = mantissa * 10 + (c - '0');
+                }
+                if (point) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+            position++;
+        }
+        if (position - start == 1 && point) {
+            throw new IllegalArgumentException("Malformed number at position " + start);
+        }
+        boolean exponent = false;
+        int exponentValue = 0;
+        if (position < text.length() && (text.charAt(position) == 'e' || text.charAt(position) == 'E')) {
+            int digit = position + 1;
+            boolean negative = false;
+            if (digit < text.length() && (text.charAt(digit) == '+' || text.charAt(digit) == '-')) {
+                negative = text.charAt(digit) == '-';
+                digit++;
+            }
+            if (digit < text.length() && text.charAt(digit) >= '0' && text.charAt(digit) <= '9') {
+                exponent = true;
+                position = digit;
+                while (position < text.length() && text.charAt(position) >= '0' && text.charAt(position) <= '9') {
+                    // Capped; anything this large is far outside the exact range anyway.
+                    exponentValue = Math.min(MAX_EXPONENT, exponentValue * 10 + (text.charAt(position) - '0'));
+                    position++;
+                }
+                if (negative) {
+                    exponentValue = -exponentValue;
+                }
+            }
+        }
+        String literal = text.substring(start, position);
+        double value = !exponent && digits <= MAX_FAST_DIGITS && fractionDigits <= MAX_FAST_DIGITS
+                ? mantissa / POWERS_OF_TEN[fractionDigits]
+                : Double.parseDouble(literal);
+
+        // The exact value as mantissa * 10^-scale, if that fits a long with a scale of at most MAX_EXACT_SCALE.
+        int scale = fractionDigits - exponentValue;
+        if (digits > MAX_EXACT_DIGITS || scale > MAX_EXACT_SCALE) {
+            scale = -1;
+        } else if (scale < 0) {
+            if (scale >= -MAX_EXACT_DIGITS && mantissa <= Long.MAX_VALUE / EXACT_POWERS_OF_TEN[-scale]) {
+                mantissa *= EXACT_POWERS_OF_TEN[-scale];
+                scale = 0;
+            } else {
+                scale = -1;
+            }
+        }
+        return new ExpressionNode.Literal(value, literal, mantissa, scale);
+    }
+
+    /**
+     * Skips whitespace and returns the next character, or 0 at the end of the text.
+     */
+    private char peek() {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+        return position < text.length() ? text.charAt(position) : 0;
+    }
+
+    private IllegalArgumentException unexpected() {
+        if (position >= text.length()) {
+            return new IllegalArgumentException("Unexpected end of expression");
+        }
+        return new IllegalArgumentException("Unexpected '" + text.charAt(position) + "' at position " + position);
+    }
+}
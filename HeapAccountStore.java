@@ -0,0 +1,112 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compact struct-of-arrays account storage on the heap.
+ * Instead of one object per account, balances live in chunked {@code long[]}
+ * arrays and holder names in chunked {@code String[]} arrays, both indexed by
+ * a dense slot number. A lookup is two array reads and there is no per-account
+ * object header, map entry or boxed key.
+ */
+final class HeapAccountStore extends AccountStore {
+
+    private static final VarHandle BALANCES = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle NAMES = MethodHandles.arrayElementVarHandle(String[].class);
+
+    private final int chunkBits;
+    private final int chunkMask;
+
+    // Chunk directories. Replaced (never mutated in place) when they grow.
+    private volatile long[][] balanceChunks = new long[0][];
+    private volatile String[][] nameChunks = new String[0][];
+    // One past the highest slot ever added.
+    private final AtomicInteger highWater = new AtomicInteger();
+
+    /**
+     * Creates an empty store.
+     * @param chunkBits The log2 of the number of slots per chunk; storage grows one chunk at a time.
+     */
+    HeapAccountStore(int chunkBits) {
+        if (chunkBits < 0 || chunkBits > 24) {
+            throw new IllegalArgumentException("chunkBits must be between 0 and 24: " + chunkBits);
+        }
+        this.chunkBits = chunkBits;
+        this.chunkMask = (1 << chunkBits) - 1;
+    }
+
+    // The name is published last, so a reader that sees the slot as existing
+    // also sees its initial balance.
+    @Override
+    void add(int slot, String accountHolderName, long balanceCents) {
+        if (slot < 0) {
+            throw new IllegalArgumentException("Slot must not be negative: " + slot);
+        }
+        ensureChunk(slot >>> chunkBits);
+        BALANCES.setVolatile(balanceChunks[slot >>> chunkBits], slot & chunkMask, balanceCents);
+        NAMES.setRelease(nameChunks[slot >>> chunkBits], slot & chunkMask, accountHolderName);
+        highWater.accumulateAndGet(slot + 1, Math::max);
+    }
+
+    @Override
+    String getAccountHolderName(int slot) {
+        String[][] chunks = nameChunks;
+        int chunk = slot >>> chunkBits;
+        if (slot < 0 || chunk >= chunks.length || chunks[chunk] == null) {
+            return null;
+        }
+        return (String) NAMES.getAcquire(chunks[chunk], slot & chunkMask);
+    }
+
+    @Override
+    long getBalance(int slot) {
+        return (long) BALANCES.getVolatile(balanceChunks[slot >>> chunkBits], slot & chunkMask);
+    }
+
+    @Override
+    boolean compareAndSetBalance(int slot, long expectedCents, long newCents) {
+        return BALANCES.compareAndSet(balanceChunks[slot >>> chunkBits], slot & chunkMask, expectedCents, newCents);
+    }
+
+    @Override
+    void setBalance(int slot, long balanceCents) {
+        BALANCES.setVolatile(balanceChunks[slot >>> chunkBits], slot & chunkMask, balanceCents);
+    }
+
+    @Override
+    int highWater() {
+        return highWater.get();
+    }
+
+    /**
+     * Makes sure the chunk with the given index is allocated and published.
+     */
+    private void ensureChunk(int chunk) {
+        // Check the name directory: it is published last, so seeing a chunk
+        // there guarantees the balance directory has it too.
+        String[][] published = nameChunks;
+        if (chunk < published.length && published[chunk] != null) {
+            return;
+        }
+        synchronized (this) {
+            long[][] balances = balanceChunks;
+            String[][] names = nameChunks;
+            if (chunk >= balances.length) {
+                int newLength = Math.max(chunk + 1, balances.length * 2);
+                balances = Arrays.copyOf(balances, newLength);
+                names = Arrays.copyOf(names, newLength);
+            } else if (balances[chunk] != null) {
+                return;
+            } else {
+                balances = balances.clone();
+                names = names.clone();
+            }
+            balances[chunk] = new long[chunkMask + 1];
+            names[chunk] = new String[chunkMask + 1];
+            // Publish the name directory last; readers check it first.
+            balanceChunks = balances;
+            nameChunks = names;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+/**
+ * A concurrent secondary index from account holder name to account number,
+ * for case-insensitive prefix search.
+ * <p>
+ * Entries are (folded name, account number) pairs in a ConcurrentSkipListSet,
+ * ordered by name and then by number, so every account whose holder name
+ * starts with a prefix sits in one contiguous run. A search seeks to the start
+ * of the run in O(log n) and walks it in order; adding an account never blocks
+ * a search or another add. Names are folded to lower case with the root
+ * locale, and already-lower-case names are stored without a copy.
+ * <p>
+ * Results are paged by position rather than offset: each page carries the
+ * position of its last entry, and the next page seeks past it. Accounts added
+ * between pages appear in later pages if they sort after the position.
+ */
+final class HolderNameIndex {
+
+    private final ConcurrentSkipListSet<Position> entries = new ConcurrentSkipListSet<>();
+
+    /**
+     * Indexes an account under its holder name. Adding the same account twice has no effect.
+     * @param accountHolderName The holder name.
+     * @param number The numeric part of the account number.
+     */
+    void add(String accountHolderName, int number) {
+        entries.add(new Position(fold(accountHolderName), number));
+    }
+
+    /**
+     * Indexes many accounts at once, e.g. when the index is built for an
+     * existing bank. Entries are sorted first, so the skip list is filled in
+     * key order along its cache-warm right edge instead of at random points.
+     * @param accountHolderNames The holder names.
+     * @param numbers The matching account numbers.
+     * @param count The number of accounts to add.
+     */
+    void addAll(String[] accountHolderNames, int[] numbers, int count) {
+        Position[] batch = new Position[count];
+        for (int i = 0; i < count; i++) {
+            batch[i] = new Position(fold(accountHolderNames[i]), numbers[i]);
+        }
+        Arrays.sort(batch);
+        for (Position position : batch) {
+            entries.add(position);
+        }
+    }
+
+    /**
+     * Returns the number of indexed accounts.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns one page of the accounts whose holder name starts with a prefix,
+     * ignoring case, ordered by name and then by account number.
+     * @param prefix The name prefix; the empty string matches every account.
+     * @param after The position returned by the previous page, or null for the first page.
+     * @param limit The most accounts to return.
+     * @param accounts Resolves an account number to its account, or null if it is gone.
+     * @return The page.
+     */
+    Page page(String prefix, Position after, int limit, IntFunction<BankAccount> accounts) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        String folded = fold(prefix);
+        List<BankAccount> found = new ArrayList<>(Math.min(limit, 64));
+        Position last = null;
+        for (Position position : run(folded, after)) {
+            if (!position.name.startsWith(folded)) {
+                return new Page(found, null);
+            }
+            BankAccount account = accounts.apply(position.number);
+            if (account != null) {
+                found.add(account);
+                last = position;
+                if (found.size() == limit) {
+                    return new Page(found, last);
+                }
+            }
+        }
+        return new Page(found, null);
+    }
+
+    /**
+     * Streams the accounts whose holder name starts with a prefix, ignoring
+     * case, in name order. The stream is lazy and weakly consistent: it walks
+     * the live index and never copies the matching run.
+     * @param prefix The name prefix.
+     * @param accounts Resolves an account number to its account, or null if it is gone.
+     * @return The matching accounts.
+     */
+    Stream<BankAccount> stream(String prefix, IntFunction<BankAccount> accounts) {
+        String folded = fold(prefix);
+        return run(folded, null).stream()
+                .takeWhile(position -> position.name.startsWith(folded))
+                .map(position -> accounts.apply(position.number))
+                .filter(account -> account != null);
+    }
+
+    /**
+     * Returns the live view of all entries from the start of a prefix's run,
+     * or from just past a previous page's last entry.
+     */
+    private NavigableSet<Position> run(String folded, Position after) {
+        if (after == null) {
+            return entries.tailSet(new Position(folded, Integer.MIN_VALUE), true);
+        }
+        return after.name.compareTo(folded) < 0
+                ? entries.tailSet(new Position(folded, Integer.MIN_VALUE), true)
+                : entries.tailSet(after, false);
+    }
+
+    /**
+     * Folds a name for case-insensitive comparison.
+     * @param name The name as entered.
+     * @return The name in lower case, or the same instance if it has no upper case letters.
+     */
+    static String fold(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * An index entry, and the resume point of a page.
+     */
+    static final class Position implements Comparable<Position> {
+        private final String name;
+        private final int number;
+        // The first 16 characters of the name packed one byte each, so most
+        // comparisons during a skip list descent never touch the String.
+        private final long head;
+        private final long tail;
+
+        private Position(String name, int number) {
+            this.name = name;
+            this.number = number;
+            this.head = pack(name, 0);
+            this.tail = pack(name, 8);
+        }
+
+        /**
+         * Packs eight characters, in order, into the bytes of a long. A missing
+         * character packs as 0. Packing stops after the first character that
+         * does not fit in a byte, which packs as 0xFF; when two packed values
+         * differ, they therefore still order the same way as the strings.
+         */
+        private static long pack(String name, int from) {
+            long packed = 0;
+            boolean truncated = false;
+            for (int i = 0; i < from && i < name.length(); i++) {
+                truncated |= name.charAt(i) >= 0xFF;
+            }
+            for (int i = from; i < from + 8; i++) {
+                int c = truncated || i >= name.length() ? 0 : Math.min(name.charAt(i), 0xFF);
+                truncated |= c == 0xFF;
+                packed = (packed << 8) | c;
+            }
+            return packed;
+        }
+
+        @Override
+        public int compareTo(Position other) {
+            int byName = head != other.head ? Long.compareUnsigned(head, other.head)
+                    : tail != other.tail ? Long.compareUnsigned(tail, other.tail)
+                    : name.compareTo(other.name);
+            return byName != 0 ? byName : Integer.compare(number, other.number);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Position && compareTo((Position) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() * 31 + number;
+        }
+    }
+
+    /**
+     * One page of search results.
+     */
+    static final class Page {
+        private final List<BankAccount> accounts;
+        private final Position next;
+
+        private Page(List<BankAccount> accounts, Position next) {
+            this.accounts = Collections.unmodifiableList(accounts);
+            this.next = next;
+        }
+
+        /**
+         * Returns the accounts on this page, in name order.
+         */
+        List<BankAccount> getAccounts() {
+            return accounts;
+        }
+
+        /**
+         * Returns where the next page starts.
+         * @return The position to pass to the next search, or null if this is the last page.
+         */
+        Position getNext() {
+            return next;
+        }
+    }
+}
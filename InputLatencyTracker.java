@@ -0,0 +1,126 @@
+/**
+ * Measures how long the calculator takes to show the result of a key press:
+ * from the moment its ActionEvent is dispatched to the moment the display
+ * has been repainted with the change.
+ * <p>
+ * CalculatorApp reports each key as it handles it, with the input version
+ * that key produced, and reports each completed paint of the display with
+ * the version the display shows. A paint completes every key up to its
+ * version at once, so keys coalesced into one display update each get their
+ * own latency. A key that changes nothing is complete when its handler
+ * returns. Every latency is recorded in a LatencyHistogram, and the ones over
+ * the stall threshold are also counted as stalls.
+ * <p>
+ * The tracker is driven from the Event Dispatch Thread only; the histogram
+ * and the stall count can be read from any thread.
+ */
+final class InputLatencyTracker {
+
+    // Keys waiting for a paint beyond this are recorded as of now, so a hidden window cannot grow the queue.
+    private static final int MAX_PENDING = 1_024;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final long stallThresholdNanos;
+    // Written only on the Event Dispatch Thread.
+    private volatile long stalls;
+
+    // The keys waiting for a paint, in dispatch order: a ring of dispatch times and input versions.
+    private final long[] pendingTimes = new long[MAX_PENDING];
+    private final long[] pendingVersions = new long[MAX_PENDING];
+    private int pendingHead;
+    private int pendingCount;
+
+    /**
+     * Constructor to initialize an InputLatencyTracker object.
+     * @param stallThresholdNanos A latency above which a key counts as a stall.
+     */
+    InputLatencyTracker(long stallThresholdNanos) {
+        if (stallThresholdNanos < 0) {
+            throw new IllegalArgumentException("stallThresholdNanos must not be negative: " + stallThresholdNanos);
+        }
+        this.stallThresholdNanos = stallThresholdNanos;
+    }
+
+    /**
+     * Records a key whose change the display does not show yet.
+     * @param dispatchNanos When the key's ActionEvent was dispatched, from System.nanoTime.
+     * @param version The input version after the key.
+     */
+    void dispatched(long dispatchNanos, long version) {
+        if (pendingCount == MAX_PENDING) {
+            record(System.nanoTime() - pendingTimes[pendingHead]);
+            pendingHead = (pendingHead + 1) % MAX_PENDING;
+            pendingCount--;
+        }
+        int tail = (pendingHead + pendingCount) % MAX_PENDING;
+        pendingTimes[tail] = dispatchNanos;
+        pendingVersions[tail] = version;
+        pendingCount++;
+    }
+
+    /**
+     * Records a key that needs no repaint, now that its handler has returned.
+     * @param dispatchNanos When the key's ActionEvent was dispatched.
+     */
+    void completed(long dispatchNanos) {
+        record(System.nanoTime() - dispatchNanos);
+    }
+
+    /**
+     * Records every waiting key that a just-completed paint of the display shows.
+     * @param version The input version the display was painted with.
+     */
+    void painted(long version) {
+        if (pendingCount == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        while (pendingCount > 0 && pendingVersions[pendingHead] <= version) {
+            record(now - pendingTimes[pendingHead]);
+            pendingHead = (pendingHead + 1) % MAX_PENDING;
+            pendingCount--;
+        }
+    }
+
+    private void record(long nanos) {
+        latency.record(nanos);
+        if (nanos > stallThresholdNanos) {
+            stalls++;
+        }
+    }
+
+    /**
+     * Returns the input-to-paint latencies recorded so far, in nanoseconds.
+     */
+    LatencyHistogram.Snapshot snapshot() {
+        return latency.snapshot();
+    }
+
+    /**
+     * Returns the number of keys whose latency exceeded the stall threshold.
+     */
+    long getStalls() {
+        return stalls;
+    }
+
+    /**
+     * Returns the number of keys still waiting for the display to be painted.
+     * Only meaningful on the Event Dispatch Thread.
+     */
+    int getPending() {
+        return pendingCount;
+    }
+
+    long getStallThresholdNanos() {
+        return stallThresholdNanos;
+    }
+
+    @Override
+    public String toString() {
+        LatencyHistogram.Snapshot snapshot = latency.snapshot();
+        return String.format("%d key(s): input-to-paint p50 %.2f ms, p99 %.2f ms, max %.2f ms; "
+                + "%d stall(s) over %.0f ms", snapshot.getCount(), snapshot.getValueAtPercentile(50) / 1e6,
+                snapshot.getValueAtPercentile(99) / 1e6, snapshot.getMax() / 1e6, stalls,
+                stallThresholdNanos / 1e6);
+    }
+}
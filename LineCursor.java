@@ -0,0 +1,182 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An allocation-free tokenizer over one line of a byte buffer, for the
+ * ASCII command format shared by BulkIngestor and BankServer.
+ * Parse methods return -1 (or 0 for keywords) on malformed input.
+ */
+final class LineCursor {
+    private final byte[] bytes;
+    private int position;
+    private int end;
+
+    LineCursor(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    void reset(int start, int end) {
+        this.position = start;
+        // Tolerate Windows line endings.
+        this.end = end > start && bytes[end - 1] == '\r' ? end - 1 : end;
+    }
+
+    boolean hasMore() {
+        return position < end;
+    }
+
+    boolean hasMoreTokens() {
+        skipSpaces();
+        return hasMore();
+    }
+
+    byte peek() {
+        return bytes[position];
+    }
+
+    void skipSpaces() {
+        while (position < end && (bytes[position] == ' ' || bytes[position] == '\t')) {
+            position++;
+        }
+    }
+
+    /**
+     * Reads the command keyword.
+     * @return 'C', 'D', 'W' or 'T', or 0 if the keyword is not recognized.
+     */
+    int keyword() {
+        skipSpaces();
+        if (matches("CREATE")) {
+            return 'C';
+        } else if (matches("DEPOSIT")) {
+            return 'D';
+        } else if (matches("WITHDRAW")) {
+            return 'W';
+        } else if (matches("TRANSFER")) {
+            return 'T';
+        }
+        return 0;
+    }
+
+    /**
+     * Consumes a keyword other than the four commands, if it comes next.
+     * @param word The keyword, in upper case.
+     * @return true if it matched and was consumed.
+     */
+    boolean word(String word) {
+        skipSpaces();
+        return matches(word);
+    }
+
+    private boolean matches(String word) {
+        int length = word.length();
+        if (end - position < length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[position + i] != word.charAt(i)) {
+                return false;
+            }
+        }
+        if (position + length < end && bytes[position + length] != ' ' && bytes[position + length] != '\t') {
+            return false;
+        }
+        position += length;
+        return true;
+    }
+
+    /**
+     * Reads an account number, with or without the "ACC" prefix.
+     */
+    int account() {
+        skipSpaces();
+        if (end - position >= 3 && bytes[position] == 'A' && bytes[position + 1] == 'C' && bytes[position + 2] == 'C') {
+            position += 3;
+        }
+        int digits = 0;
+        int number = 0;
+        while (position < end && bytes[position] >= '0' && bytes[position] <= '9') {
+            if (++digits > 9) {
+                return -1;
+            }
+            number = number * 10 + (bytes[position++] - '0');
+        }
+        return digits == 0 || !atTokenEnd() ? -1 : number;
+    }
+
+    /**
+     * Reads a non-negative decimal amount with up to two fraction digits, as cents.
+     */
+    long amount() {
+        skipSpaces();
+        long cents = 0;
+        int digits = 0;
+        while (position < end && bytes[position] >= '0' && bytes[position] <= '9') {
+            if (++digits > 16) {
+                return -1;
+            }
+            cents = cents * 10 + (bytes[position++] - '0');
+        }
+        cents *= Money.CENTS_PER_UNIT;
+        if (position < end && bytes[position] == '.') {
+            position++;
+            int fraction = 0;
+            long scale = Money.CENTS_PER_UNIT / 10;
+            while (position < end && bytes[position] >= '0' && bytes[position] <= '9') {
+                if (++fraction > 2) {
+                    return -1;
+                }
+                cents += (bytes[position++] - '0') * scale;
+                scale /= 10;
+                digits++;
+            }
+        }
+        return digits == 0 || !atTokenEnd() ? -1 : cents;
+    }
+
+    /**
+     * Reads a positive request ID of up to 18 digits.
+     */
+    long requestId() {
+        skipSpaces();
+        long id = 0;
+        int digits = 0;
+        while (position < end && bytes[position] >= '0' && bytes[position] <= '9') {
+            if (++digits > 18) {
+                return -1;
+            }
+            id = id * 10 + (bytes[position++] - '0');
+        }
+        return id == 0 || !atTokenEnd() ? -1 : id;
+    }
+
+    /**
+     * Returns the rest of the line, trimmed, as a String.
+     */
+    String rest() {
+        skipSpaces();
+        int last = end;
+        while (last > position && (bytes[last - 1] == ' ' || bytes[last - 1] == '\t')) {
+            last--;
+        }
+        String text = new String(bytes, position, last - position, StandardCharsets.UTF_8);
+        position = end;
+        return text;
+    }
+
+    private boolean atTokenEnd() {
+        return position == end || bytes[position] == ' ' || bytes[position] == '\t';
+    }
+
+    /**
+     * Finds the first occurrence of a byte in a range.
+     * @return Its index, or -1 if absent.
+     */
+    static int indexOf(byte[] bytes, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Helpers for working with money held as a {@code long} count of cents.
+ * Keeping amounts in integer minor units avoids the rounding drift of
+ * {@code double} arithmetic (e.g. 0.1 + 0.2 != 0.3).
+ */
+final class Money {
+
+    // The number of cents in one whole currency unit.
+    static final long CENTS_PER_UNIT = 100;
+
+    private Money() {
+    }
+
+    /**
+     * Converts an amount in whole currency units to cents, rounding to the
+     * nearest cent (half to even, as {@link Math#rint} does).
+     * @param amount The amount, e.g. 12.34.
+     * @return The amount in cents, e.g. 1234.
+     * @throws IllegalArgumentException if the amount is not finite or does not fit in a long.
+     */
+    static long toCents(double amount) {
+        if (Double.isNaN(amount) || Double.isInfinite(amount)) {
+            throw new IllegalArgumentException("Amount must be a finite number: " + amount);
+        }
+        double cents = Math.rint(amount * CENTS_PER_UNIT);
+        if (cents >= 0x1p63 || cents < -0x1p63) {
+            throw new IllegalArgumentException("Amount is too large: " + amount);
+        }
+        return (long) cents;
+    }
+
+    /**
+     * Checks whether an amount in whole currency units converts to cents that fit in a long.
+     * The upper bound is exclusive: Long.MAX_VALUE / 100 as a double rounds up to 2^63 cents.
+     * @param amount The amount, e.g. 12.34.
+     * @return false for NaN, infinities and amounts too large in either direction.
+     */
+    static boolean fitsInCents(double amount) {
+        double cents = amount * CENTS_PER_UNIT;
+        return cents < 0x1p63 && cents >= -0x1p63;
+    }
+
+    /**
+     * Converts a positive amount in whole currency units to cents, or returns 0
+     * for anything else (negative, NaN or too large), so the caller rejects it
+     * like any other invalid amount instead of throwing.
+     * @param amount The amount, e.g. 12.34.
+     * @return The amount in cents, or 0.
+     */
+    static long toPositiveCents(double amount) {
+        return amount > 0 && fitsInCents(amount) ? toCents(amount) : 0;
+    }
+
+    /**
+     * Converts an amount in cents to whole currency units.
+     * Only meant for display and interop; do not do arithmetic on the result.
+     * @param cents The amount in cents.
+     * @return The amount in whole units.
+     */
+    static double toUnits(long cents) {
+        return cents / (double) CENTS_PER_UNIT;
+    }
+
+    /**
+     * Formats an amount in cents with exactly two decimal places, e.g. "-12.05".
+     * @param cents The amount in cents.
+     * @return The formatted amount.
+     */
+    static String format(long cents) {
+        return appendTo(new StringBuilder(24), cents).toString();
+    }
+
+    /**
+     * Appends an amount in cents with exactly two decimal places, without
+     * going through String.format.
+     * @param sb The builder to append to.
+     * @param cents The amount in cents.
+     * @return The same builder, for chaining.
+     */
+    static StringBuilder appendTo(StringBuilder sb, long cents) {
+        if (cents < 0) {
+            sb.append('-');
+        }
+        // Divide before taking the absolute value so Long.MIN_VALUE does not overflow.
+        long units = Math.abs(cents / CENTS_PER_UNIT);
+        int fraction = (int) Math.abs(cents % CENTS_PER_UNIT);
+        sb.append(units).append('.');
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        return sb.append(fraction);
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * JMX view of one kind of Bank operation: outcome counters and latency
+ * percentiles, in microseconds.
+ */
+public interface OperationMetricsMBean {
+
+    long getSucceeded();
+
+    long getRejected();
+
+    long getRejectedInvalidAmount();
+
+    long getRejectedUnknownAccount();
+
+    long getRejectedSameAccount();
+
+    long getRejectedInsufficientFunds();
+
+    long getRejectedBalanceOverflow();
+
+    long getFailed();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+}
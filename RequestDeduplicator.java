@@ -0,0 +1,317 @@
+/**
+ * Remembers the outcome of recent client requests by request ID, so that a
+ * retried request is answered with its original outcome instead of being
+ * applied again.
+ * <p>
+ * IDs are positive longs chosen by the client (0 means "no ID"). Each ID is
+ * remembered with a fingerprint of the request it was first used for; a
+ * later request with the same ID but a different fingerprint is not a retry,
+ * and is refused rather than answered with an outcome that is not its own.
+ * <p>
+ * IDs are spread over independently locked segments. Each segment is an
+ * open-addressing hash table in one long[] (each ID next to its fingerprint
+ * and outcome, so a lookup touches one or two cache lines; linear probing,
+ * at most half full) plus a ring of the same IDs in arrival order with a
+ * coarse arrival time. Remembering a request allocates nothing, and the
+ * cache costs 60 bytes per request it can hold: two table slots of 24 bytes
+ * and a ring entry of 12.
+ * The ring makes eviction cheap: the oldest entries are dropped from its
+ * head once they are older than the window, or when the segment is full.
+ * <p>
+ * A request is claimed before it is applied. A duplicate that arrives while
+ * the original is still being applied waits for its outcome rather than
+ * racing it. So an entry is never expired or evicted while its request is
+ * in progress: eviction passes over it to the next oldest, and a segment
+ * whose entries are all in progress doubles in size.
+ */
+final class RequestDeduplicator {
+
+    /** The request ID that means "not deduplicated". */
+    static final long NO_REQUEST = 0;
+    /** Returned by claim when the request is new and must be applied. */
+    static final long NEW = Long.MIN_VALUE;
+    /** Returned by claim when the ID was used for a different request. */
+    static final long REUSED = Long.MIN_VALUE + 1;
+    // The outcome stored while the first copy of a request is being applied.
+    private static final long IN_PROGRESS = Long.MIN_VALUE + 2;
+    // Longs per table slot: the ID, the request's fingerprint and its outcome.
+    private static final int STRIDE = 3;
+    private static final int SEGMENT_COUNT = 64;
+    // Arrival times are kept in units of 2^20 ns (about 1 ms), as ints.
+    private static final int TICK_SHIFT = 20;
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private final int windowTicks;
+    private final long baseNanos = System.nanoTime();
+
+    /**
+     * Creates an empty cache.
+     * @param windowMillis How long a request's outcome is remembered.
+     * @param capacity The most requests remembered at once, rounded up to a
+     *                 power of two per segment; older ones are forgotten early
+     *                 when more arrive within the window.
+     */
+    RequestDeduplicator(long windowMillis, int capacity) {
+        if (windowMillis <= 0 || windowMillis > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("windowMillis out of range: " + windowMillis);
+        }
+        if (capacity < SEGMENT_COUNT) {
+            throw new IllegalArgumentException("capacity must be at least " + SEGMENT_COUNT + ": " + capacity);
+        }
+        this.windowTicks = (int) Math.max(1, (windowMillis * 1_000_000L) >>> TICK_SHIFT);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(capacity / SEGMENT_COUNT);
+        }
+    }
+
+    /**
+     * Claims a request ID before applying the request.
+     * @param requestId The client's request ID; positive.
+     * @param fingerprint A hash of what the request does, equal for every copy of it.
+     * @return NEW if the caller must apply the request and then call complete
+     *         (or abandon); REUSED if the ID was used for a request with another
+     *         fingerprint; otherwise the outcome of the earlier request with
+     *         this ID, waiting for it if it is still being applied.
+     */
+    long claim(long requestId, long fingerprint) {
+        long hash = mix(requestId);
+        return segments[(int) (hash >>> 58)].claim(requestId, fingerprint, (int) hash, now());
+    }
+
+    /**
+     * Records the outcome of a claimed request and wakes any duplicates waiting for it.
+     * @param requestId The claimed ID.
+     * @param outcome The balance or negative TransactionStatus code to replay.
+     */
+    void complete(long requestId, long outcome) {
+        long hash = mix(requestId);
+        segments[(int) (hash >>> 58)].complete(requestId, (int) hash, outcome);
+    }
+
+    /**
+     * Forgets a claimed request that failed without an outcome, so a retry is applied afresh.
+     * @param requestId The claimed ID.
+     */
+    void abandon(long requestId) {
+        long hash = mix(requestId);
+        segments[(int) (hash >>> 58)].abandon(requestId, (int) hash);
+    }
+
+    /**
+     * Returns the number of requests currently remembered.
+     */
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    private int now() {
+        return (int) ((System.nanoTime() - baseNanos) >>> TICK_SHIFT);
+    }
+
+    private static long mix(long key) {
+        // The MurmurHash3 finalizer: sequential IDs land in unrelated segments and slots.
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        key *= 0xC4CEB9FE1A85EC53L;
+        return key ^ (key >>> 33);
+    }
+
+    private final class Segment {
+        // The hash table: an ID at 3 * i, its fingerprint at 3 * i + 1 and its outcome at 3 * i + 2.
+        // An ID of 0 marks an empty slot.
+        private long[] table;
+        private int mask;
+        // IDs in arrival order, with their arrival ticks; the oldest at head.
+        // An in-progress entry passed over by eviction moves to the tail with its original tick.
+        private long[] order;
+        private int[] arrivals;
+        private int head;
+        private int size;
+        private int waiters;
+
+        Segment(int capacity) {
+            // The table is a power of two at least twice the capacity, and the
+            // capacity is rounded up to fill exactly half of it.
+            int tableSize = Integer.highestOneBit(Math.max(1, capacity - 1)) << 2;
+            this.table = new long[STRIDE * tableSize];
+            this.mask = tableSize - 1;
+            this.order = new long[tableSize / 2];
+            this.arrivals = new int[tableSize / 2];
+        }
+
+        synchronized long claim(long id, long fingerprint, int hash, int now) {
+            expire(now);
+            int index;
+            while ((index = find(id, hash)) >= 0) {
+                if (table[STRIDE * index + 1] != fingerprint) {
+                    return REUSED;
+                }
+                long outcome = table[STRIDE * index + 2];
+                if (outcome != IN_PROGRESS) {
+                    return outcome;
+                }
+                waiters++;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for request " + id, e);
+                } finally {
+                    waiters--;
+                }
+                // If the original was abandoned meanwhile, this copy goes ahead.
+            }
+            if (size == order.length) {
+                makeRoom();
+            }
+            insert(id, fingerprint, hash, now);
+            return NEW;
+        }
+
+        synchronized void complete(long id, int hash, long outcome) {
+            int index = find(id, hash);
+            if (index >= 0) {
+                table[STRIDE * index + 2] = outcome;
+            }
+            if (waiters > 0) {
+                notifyAll();
+            }
+        }
+
+        synchronized void abandon(long id, int hash) {
+            int index = find(id, hash);
+            if (index >= 0) {
+                // Its ring entry stays. If the ID is claimed again, that entry may
+                // evict the new one early, which only shortens its window.
+                remove(index);
+            }
+            if (waiters > 0) {
+                notifyAll();
+            }
+        }
+
+        private void insert(long id, long fingerprint, int hash, int now) {
+            int index = hash & mask;
+            while (table[STRIDE * index] != 0) {
+                index = (index + 1) & mask;
+            }
+            table[STRIDE * index] = id;
+            table[STRIDE * index + 1] = fingerprint;
+            table[STRIDE * index + 2] = IN_PROGRESS;
+            int tail = head + size;
+            if (tail >= order.length) {
+                tail -= order.length;
+            }
+            order[tail] = id;
+            arrivals[tail] = now;
+            size++;
+        }
+
+        private int find(long id, int hash) {
+            int index = hash & mask;
+            long candidate;
+            while ((candidate = table[STRIDE * index]) != 0) {
+                if (candidate == id) {
+                    return index;
+                }
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void expire(int now) {
+            while (size > 0 && now - arrivals[head] > windowTicks) {
+                long id = order[head];
+                int index = find(id, (int) mix(id));
+                if (index >= 0 && table[STRIDE * index + 2] == IN_PROGRESS) {
+                    // Still being applied; it and the entries behind it expire on a later claim.
+                    return;
+                }
+                dropHead(index);
+            }
+        }
+
+        /**
+         * Frees a ring entry in a full segment: drops the oldest entry whose
+         * request is finished, or doubles the segment if none is.
+         */
+        private void makeRoom() {
+            for (int passed = 0; passed < size; passed++) {
+                long id = order[head];
+                int index = find(id, (int) mix(id));
+                if (index < 0 || table[STRIDE * index + 2] != IN_PROGRESS) {
+                    dropHead(index);
+                    return;
+                }
+                // The ring is full, so the slot after the tail is the head: moving on makes this entry the newest.
+                head = head + 1 == order.length ? 0 : head + 1;
+            }
+            grow();
+        }
+
+        /**
+         * Drops the ring entry at head and the table entry at index, if any.
+         */
+        private void dropHead(int index) {
+            head = head + 1 == order.length ? 0 : head + 1;
+            size--;
+            if (index >= 0) {
+                remove(index);
+            }
+        }
+
+        private void grow() {
+            long[] oldTable = table;
+            long[] oldOrder = order;
+            int[] oldArrivals = arrivals;
+            int tableSize = 2 * (mask + 1);
+            table = new long[STRIDE * tableSize];
+            mask = tableSize - 1;
+            order = new long[tableSize / 2];
+            arrivals = new int[tableSize / 2];
+            for (int i = 0; i < size; i++) {
+                int from = (head + i) % oldOrder.length;
+                order[i] = oldOrder[from];
+                arrivals[i] = oldArrivals[from];
+            }
+            head = 0;
+            for (int i = 0; i < oldTable.length; i += STRIDE) {
+                long id = oldTable[i];
+                if (id != 0) {
+                    int index = (int) mix(id) & mask;
+                    while (table[STRIDE * index] != 0) {
+                        index = (index + 1) & mask;
+                    }
+                    System.arraycopy(oldTable, i, table, STRIDE * index, STRIDE);
+                }
+            }
+        }
+
+        /**
+         * Empties a table slot, shifting later entries of the same probe run
+         * back so that lookups never need tombstones.
+         */
+        private void remove(int index) {
+            int gap = index;
+            int next = (gap + 1) & mask;
+            long id;
+            while ((id = table[STRIDE * next]) != 0) {
+                int home = (int) mix(id) & mask;
+                // Move the entry into the gap unless its home lies cyclically in (gap, next].
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    System.arraycopy(table, STRIDE * next, table, STRIDE * gap, STRIDE);
+                    gap = next;
+                }
+                next = (next + 1) & mask;
+            }
+            table[STRIDE * gap] = 0;
+        }
+    }
+}
@@ -0,0 +1,539 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+
+/**
+ * A bank partitioned into shards, each owned by a single thread.
+ * <p>
+ * Every shard is an in-memory Bank that only its owner thread ever changes.
+ * Callers never touch a shard's accounts directly: they submit a request to
+ * the shard's inbound ring (a bounded multi-producer, single-consumer queue,
+ * as in BankEventPipeline) and get the outcome through a callback, in the
+ * usual "balance or negative TransactionStatus code" form. The owner drains
+ * its ring in batches, so balance updates never contend and the shard's
+ * accounts stay in its own core's cache.
+ * <p>
+ * Account numbers are reserved in blocks of 65,536, one AccountStore chunk
+ * each. A shard takes a fresh block from a shared counter only when its
+ * current block runs out, and records itself as the block's owner, so finding
+ * an account's shard is one array read and creating an account touches no
+ * shared counter. New accounts are spread over the shards by a hash of the
+ * holder name.
+ * <p>
+ * A transfer within one shard is applied atomically. A transfer between
+ * shards is debited by the source shard and then credited by the destination
+ * shard through its unbounded credit queue (so shard threads never wait for
+ * each other); if the credit is rejected, the source is refunded. While a
+ * credit is in flight, the money is in neither account, and the bank total
+ * read at that moment is short by it.
+ * <p>
+ * A request that throws is completed with TransactionStatus.FAILED and
+ * reported on standard error, and its shard goes on draining, so one bad
+ * request never strands the callers queued behind it. If a refund is
+ * rejected too (the source's balance grew meanwhile until the money no
+ * longer fits), the transfer also completes with FAILED, and the amount is
+ * counted in getStrandedCents so the totals still reconcile.
+ * <p>
+ * Closing seals every ring: a submit that has not yet claimed a slot by then
+ * throws IllegalStateException, and every one that has is applied and
+ * completed before the shard threads stop, as are the credits it sends.
+ * <p>
+ * Completion callbacks run on shard threads. They must be quick and must not
+ * submit to this bank, since a full ring would then block a shard thread.
+ * Reads (balances, totals) go straight to the shards' stores from any thread.
+ * Sharded banks are in-memory only.
+ */
+final class ShardedBank implements Closeable {
+
+    // Account numbers per reserved block: one AccountStore chunk.
+    private static final int BLOCK_BITS = 16;
+    private static final int MAX_BLOCKS = ((Integer.MAX_VALUE - Bank.FIRST_ACCOUNT_NUMBER) >>> BLOCK_BITS) + 1;
+    private static final int RING_CAPACITY = 1 << 14;
+    // Set in a ring's claim counter when the bank closes; no sequence reaches it otherwise.
+    private static final long SEALED = 1L << 62;
+
+    private static final byte OPEN = 1;
+    private static final byte DEPOSIT = 2;
+    private static final byte WITHDRAW = 3;
+    private static final byte TRANSFER = 4;
+    // Returned by Shard.apply when another shard will deliver the outcome.
+    private static final long PENDING = Long.MIN_VALUE;
+
+    private final Shard[] shards;
+    private final AtomicInteger nextBlock = new AtomicInteger();
+    // The owning shard's index + 1 for every reserved block; 0 while unreserved.
+    private final AtomicIntegerArray blockOwners = new AtomicIntegerArray(MAX_BLOCKS);
+    // Cross-shard transfers debited but not yet credited or refunded.
+    private final AtomicLong inFlight = new AtomicLong();
+    // Cents debited by cross-shard transfers that could be neither credited nor refunded.
+    private final AtomicLong stranded = new AtomicLong();
+    // Shards that have not yet applied every request claimed before the close.
+    private final AtomicInteger openRings;
+
+    /**
+     * Creates the shards and starts their owner threads.
+     * @param shardCount The number of shards, e.g. one per core.
+     */
+    ShardedBank(int shardCount) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive: " + shardCount);
+        }
+        this.shards = new Shard[shardCount];
+        this.openRings = new AtomicInteger(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+        for (Shard shard : shards) {
+            shard.owner.start();
+        }
+    }
+
+    /**
+     * Returns the number of shards.
+     */
+    int getShardCount() {
+        return shards.length;
+    }
+
+    // --- Asynchronous Requests ---
+
+    /**
+     * Opens an account on the shard chosen by the holder name.
+     * @param accountHolderName The name of the new account holder.
+     * @param initialDepositCents The initial balance, in cents.
+     * @param done Receives the new account's number.
+     */
+    void submitOpen(String accountHolderName, long initialDepositCents, LongConsumer done) {
+        int hash = accountHolderName.hashCode() * 0x9E3779B9;
+        shards[(int) ((hash & 0xFFFFFFFFL) * shards.length >>> 32)]
+                .submit(OPEN, 0, 0, initialDepositCents, accountHolderName, done);
+    }
+
+    /**
+     * Deposits into an account.
+     * @param done Receives the new balance, or a negative TransactionStatus code.
+     */
+    void submitDeposit(int number, long amountCents, LongConsumer done) {
+        route(DEPOSIT, number, 0, amountCents, done);
+    }
+
+    /**
+     * Withdraws from an account.
+     * @param done Receives the new balance, or a negative TransactionStatus code.
+     */
+    void submitWithdrawal(int number, long amountCents, LongConsumer done) {
+        route(WITHDRAW, number, 0, amountCents, done);
+    }
+
+    /**
+     * Moves money between two accounts, possibly on different shards.
+     * @param done Receives the source account's balance after the debit, or a
+     *             negative TransactionStatus code once any refund is done.
+     */
+    void submitTransfer(int fromNumber, int toNumber, long amountCents, LongConsumer done) {
+        route(TRANSFER, fromNumber, toNumber, amountCents, done);
+    }
+
+    private void route(byte op, int number, int other, long amountCents, LongConsumer done) {
+        Shard shard = shardOf(number);
+        if (shard == null) {
+            done.accept(TransactionStatus.UNKNOWN_ACCOUNT.code());
+        } else {
+            shard.submit(op, number, other, amountCents, null, done);
+        }
+    }
+
+    // --- Blocking Requests ---
+
+    /**
+     * Opens an account and waits for its number.
+     * @param accountHolderName The name of the new account holder.
+     * @param initialDepositCents The initial balance, in cents.
+     * @return The numeric part of the new account number.
+     * @throws IllegalStateException if the account could not be opened, e.g. account numbers ran out.
+     */
+    int openAccount(String accountHolderName, long initialDepositCents) {
+        CompletableFuture<Long> outcome = new CompletableFuture<>();
+        submitOpen(accountHolderName, initialDepositCents, outcome::complete);
+        long number = outcome.join();
+        if (number < 0) {
+            throw new IllegalStateException("Could not open an account: " + TransactionStatus.fromCode(number));
+        }
+        return (int) number;
+    }
+
+    /**
+     * Deposits into an account and waits for the outcome.
+     * @return The outcome, with the balance afterwards.
+     */
+    TransactionResult depositCents(int number, long amountCents) {
+        CompletableFuture<Long> outcome = new CompletableFuture<>();
+        submitDeposit(number, amountCents, outcome::complete);
+        return toResult(outcome.join(), number);
+    }
+
+    /**
+     * Withdraws from an account and waits for the outcome.
+     * @return The outcome, with the balance afterwards.
+     */
+    TransactionResult withdrawCents(int number, long amountCents) {
+        CompletableFuture<Long> outcome = new CompletableFuture<>();
+        submitWithdrawal(number, amountCents, outcome::complete);
+        return toResult(outcome.join(), number);
+    }
+
+    /**
+     * Moves money between two accounts and waits until it has arrived or been refunded.
+     * @return The outcome, with the source account's balance after the debit.
+     */
+    TransactionResult transferCents(int fromNumber, int toNumber, long amountCents) {
+        CompletableFuture<Long> outcome = new CompletableFuture<>();
+        submitTransfer(fromNumber, toNumber, amountCents, outcome::complete);
+        return toResult(outcome.join(), fromNumber);
+    }
+
+    private TransactionResult toResult(long balanceOrCode, int number) {
+        if (balanceOrCode >= 0) {
+            return TransactionResult.success(number, balanceOrCode);
+        }
+        return TransactionResult.rejected(TransactionStatus.fromCode(balanceOrCode), number, getBalanceCents(number));
+    }
+
+    // --- Reads ---
+
+    /**
+     * Reads an account's balance without going through its shard's queue.
+     * @param number The numeric part of the account number.
+     * @return The balance in cents, or TransactionResult.NO_BALANCE if there is no such account.
+     */
+    long getBalanceCents(int number) {
+        Shard shard = shardOf(number);
+        BankAccount account = shard == null ? null : shard.bank.getAccount(number);
+        return account == null ? TransactionResult.NO_BALANCE : account.getBalanceCents();
+    }
+
+    /**
+     * Returns the number of accounts across all shards.
+     */
+    int getAccountCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            count += shard.bank.getAccountCount();
+        }
+        return count;
+    }
+
+    /**
+     * Sums all balances. Money in an unfinished cross-shard transfer is not
+     * included, nor is money stranded by a rejected refund.
+     * @return The total, in cents.
+     */
+    long getTotalBalanceCents() {
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.bank.getTotalBalanceCents();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the money debited by cross-shard transfers whose credit and
+     * refund were both rejected; normally 0.
+     * @return The amount, in cents.
+     */
+    long getStrandedCents() {
+        return stranded.get();
+    }
+
+    private Shard shardOf(int number) {
+        long slot = (long) number - Bank.FIRST_ACCOUNT_NUMBER;
+        if (slot < 0) {
+            return null;
+        }
+        int owner = blockOwners.get((int) (slot >>> BLOCK_BITS)) - 1;
+        return owner < 0 ? null : shards[owner];
+    }
+
+    /**
+     * Refuses further requests, applies every one already accepted, then
+     * stops the shard threads.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Shard shard : shards) {
+            shard.seal();
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.owner.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            shard.bank.close();
+        }
+    }
+
+    // --- Shards ---
+
+    /**
+     * One slot of a shard's inbound ring.
+     */
+    private static final class Request {
+        byte op;
+        int number;
+        int other;
+        long amountCents;
+        String accountHolderName;
+        LongConsumer done;
+    }
+
+    /**
+     * The second half of a cross-shard transfer: a credit to the destination,
+     * or, if that was rejected, a refund to the source.
+     */
+    private static final class Credit {
+        final int number;
+        final int otherNumber;
+        final long amountCents;
+        // The source's balance after the debit, or the rejection code for a refund.
+        final long outcome;
+        final boolean refund;
+        final LongConsumer done;
+
+        Credit(int number, int otherNumber, long amountCents, long outcome, boolean refund, LongConsumer done) {
+            this.number = number;
+            this.otherNumber = otherNumber;
+            this.amountCents = amountCents;
+            this.outcome = outcome;
+            this.refund = refund;
+            this.done = done;
+        }
+    }
+
+    private final class Shard {
+        final int index;
+        final Bank bank = new Bank(new HeapAccountStore(BLOCK_BITS), null);
+        final Thread owner;
+
+        private final int mask = RING_CAPACITY - 1;
+        private final Request[] slots = new Request[RING_CAPACITY];
+        // The sequence number last published into each slot.
+        private final AtomicLongArray published = new AtomicLongArray(RING_CAPACITY);
+        private final AtomicLong claimed = new AtomicLong(-1);
+        private volatile long consumed = -1;
+        // The last sequence claimed before the ring was sealed; owner thread drains up to it.
+        private volatile long lastClaim = Long.MAX_VALUE;
+        private boolean drained;
+        private volatile boolean sleeping;
+        // Credits and refunds from other shards. Unbounded, so shard threads never wait on each other.
+        private final ConcurrentLinkedQueue<Credit> credits = new ConcurrentLinkedQueue<>();
+
+        // The unused part of this shard's current block of account numbers; owner thread only.
+        private int nextNumber;
+        private int blockEnd;
+
+        Shard(int index) {
+            this.index = index;
+            for (int i = 0; i < RING_CAPACITY; i++) {
+                slots[i] = new Request();
+                published.set(i, -1);
+            }
+            this.owner = new Thread(this::run, "bank-shard-" + index);
+            owner.setDaemon(true);
+        }
+
+        void submit(byte op, int number, int other, long amountCents, String name, LongConsumer done) {
+            long sequence = claimed.incrementAndGet();
+            if ((sequence & SEALED) != 0) {
+                throw new IllegalStateException("The bank is closed");
+            }
+            // Wait until the owner has applied the request from one lap ago.
+            while (sequence - RING_CAPACITY > consumed) {
+                LockSupport.unpark(owner);
+                LockSupport.parkNanos(1_000);
+            }
+            Request request = slots[(int) sequence & mask];
+            request.op = op;
+            request.number = number;
+            request.other = other;
+            request.amountCents = amountCents;
+            request.accountHolderName = name;
+            request.done = done;
+            published.set((int) sequence & mask, sequence);
+            if (sleeping) {
+                LockSupport.unpark(owner);
+            }
+        }
+
+        /**
+         * Stops new claims, and tells the owner how far to drain before it stops.
+         */
+        void seal() {
+            long last = claimed.getAndUpdate(c -> c | SEALED);
+            if ((last & SEALED) == 0) {
+                lastClaim = last;
+            }
+            LockSupport.unpark(owner);
+        }
+
+        void credit(Credit credit) {
+            credits.add(credit);
+            if (sleeping) {
+                LockSupport.unpark(owner);
+            }
+        }
+
+        private void run() {
+            long next = 0;
+            while (true) {
+                boolean worked = false;
+                long last = next - 1;
+                while (last + 1 - next < RING_CAPACITY && published.get((int) (last + 1) & mask) == last + 1) {
+                    last++;
+                }
+                for (long sequence = next; sequence <= last; sequence++) {
+                    Request request = slots[(int) sequence & mask];
+                    LongConsumer done = request.done;
+                    long outcome;
+                    try {
+                        outcome = apply(request);
+                    } catch (RuntimeException e) {
+                        System.err.println("Bank shard " + index + " request failed: " + e);
+                        outcome = TransactionStatus.FAILED.code();
+                    }
+                    request.accountHolderName = null;
+                    request.done = null;
+                    if (outcome != PENDING) {
+                        complete(done, outcome);
+                    }
+                    worked = true;
+                }
+                if (worked) {
+                    consumed = last;
+                    next = last + 1;
+                }
+                Credit credit;
+                while ((credit = credits.poll()) != null) {
+                    applyCredit(credit);
+                    worked = true;
+                }
+                if (worked) {
+                    continue;
+                }
+                if (!drained && next > lastClaim) {
+                    drained = true;
+                    openRings.decrementAndGet();
+                }
+                // Once every ring is drained no transfer can start, so no credit can arrive after this.
+                if (drained && openRings.get() == 0 && inFlight.get() == 0 && credits.isEmpty()) {
+                    return;
+                }
+                sleeping = true;
+                // Re-check after announcing, so a request published just before is not missed.
+                if (published.get((int) next & mask) != next && credits.isEmpty()) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+                }
+                sleeping = false;
+            }
+        }
+
+        private long apply(Request request) {
+            switch (request.op) {
+                case OPEN:
+                    return bank.openAccount(allocateNumber(), request.accountHolderName, request.amountCents);
+                case DEPOSIT:
+                    return bank.applyDeposit(request.number, request.amountCents);
+                case WITHDRAW:
+                    return bank.applyWithdrawal(request.number, request.amountCents);
+                default:
+                    return transfer(request.number, request.other, request.amountCents, request.done);
+            }
+        }
+
+        /**
+         * Applies a transfer from one of this shard's accounts.
+         * @return The outcome, or PENDING if a credit was sent to another shard.
+         */
+        private long transfer(int fromNumber, int toNumber, long amountCents, LongConsumer done) {
+            Shard target = shardOf(toNumber);
+            if (target == this || target == null) {
+                // Within the shard (or to nowhere, which applyTransfer rejects).
+                return bank.applyTransfer(fromNumber, toNumber, amountCents);
+            }
+            if (amountCents <= 0) {
+                return TransactionStatus.INVALID_AMOUNT.code();
+            }
+            if (!target.bank.exists(toNumber)) {
+                return TransactionStatus.UNKNOWN_ACCOUNT.code();
+            }
+            long fromBalance = bank.applyWithdrawal(fromNumber, amountCents);
+            if (fromBalance < 0) {
+                return fromBalance;
+            }
+            inFlight.incrementAndGet();
+            target.credit(new Credit(toNumber, fromNumber, amountCents, fromBalance, false, done));
+            return PENDING;
+        }
+
+        private void applyCredit(Credit credit) {
+            long result;
+            try {
+                result = bank.applyDeposit(credit.number, credit.amountCents);
+            } catch (RuntimeException e) {
+                System.err.println("Bank shard " + index + " credit failed: " + e);
+                result = TransactionStatus.FAILED.code();
+            }
+            if (result >= 0) {
+                inFlight.decrementAndGet();
+                complete(credit.done, credit.outcome);
+            } else if (!credit.refund) {
+                shardOf(credit.otherNumber).credit(new Credit(credit.otherNumber, credit.number, credit.amountCents,
+                        result, true, credit.done));
+            } else {
+                // Deposits to the source since the debit left no room for the money to come back.
+                stranded.addAndGet(credit.amountCents);
+                inFlight.decrementAndGet();
+                System.err.println("Bank shard " + index + " could not refund " + Money.format(credit.amountCents)
+                        + " to " + Bank.ACCOUNT_PREFIX + credit.number + ": " + TransactionStatus.fromCode(result));
+                complete(credit.done, TransactionStatus.FAILED.code());
+            }
+        }
+
+        /**
+         * Hands an outcome to its callback, so a throwing callback cannot stop this shard.
+         */
+        private void complete(LongConsumer done, long outcome) {
+            try {
+                done.accept(outcome);
+            } catch (RuntimeException e) {
+                System.err.println("Bank shard " + index + " completion callback failed: " + e);
+            }
+        }
+
+        /**
+         * Hands out the next number of this shard's current block, reserving a
+         * new block when it runs out.
+         */
+        private int allocateNumber() {
+            if (nextNumber == blockEnd) {
+                int block = nextBlock.getAndIncrement();
+                if (block >= MAX_BLOCKS) {
+                    throw new IllegalStateException("Account numbers are exhausted");
+                }
+                blockOwners.set(block, index + 1);
+                nextNumber = Bank.FIRST_ACCOUNT_NUMBER + (block << BLOCK_BITS);
+                // The last block ends at Integer.MAX_VALUE rather than past it.
+                blockEnd = (int) Math.min(Integer.MAX_VALUE, (long) nextNumber + (1 << BLOCK_BITS));
+            }
+            return nextNumber++;
+        }
+    }
+}
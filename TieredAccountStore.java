@@ -0,0 +1,347 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Account storage in a memory-mapped file of fixed-size records, with the
+ * holder names of recently used accounts cached on the heap.
+ * <p>
+ * Each slot is a 64-byte record: [long balance][short name length + 1]
+ * [54 bytes of UTF-8 name]. A length of 0 marks an empty slot; longer names
+ * are kept in a small on-heap map instead. The file is mapped one chunk of
+ * slots at a time as accounts are added, and grows sparsely. Balances are
+ * read and compare-and-set directly in the mapping, so they stay lock-free,
+ * and the OS page cache decides which pages of dormant accounts leave memory.
+ * <p>
+ * Decoding a name from the file allocates a String, so names are cached in a
+ * bounded, set-associative CLOCK cache: each slot maps to one set of eight
+ * entries; a hit sets the entry's reference bit, and a miss replaces the
+ * first entry in the set whose bit is clear, clearing bits as it passes.
+ * Reads never lock, and the heap holds only the cache, whatever the number
+ * of accounts.
+ * <p>
+ * The file is scratch space for this process: durability still comes from
+ * the journal, and the file is deleted on close.
+ */
+final class TieredAccountStore extends AccountStore {
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+    private static final VarHandle SHORTS = MethodHandles.byteBufferViewVarHandle(short[].class,
+            ByteOrder.nativeOrder());
+    private static final int RECORD_BYTES = 64;
+    private static final int LENGTH_OFFSET = 8;
+    private static final int NAME_OFFSET = 10;
+    private static final int MAX_INLINE_NAME_BYTES = RECORD_BYTES - NAME_OFFSET;
+    // The stored length of a name kept in the overflow map.
+    private static final short OVERFLOW = -1;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final int chunkBits;
+    private final int chunkMask;
+    // Mapped chunks. Replaced (never mutated in place) when it grows.
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private final AtomicInteger highWater = new AtomicInteger();
+    // Names too long for a record.
+    private final Map<Integer, String> overflowNames = new ConcurrentHashMap<>();
+    private final NameCache cache;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates an empty store backed by a new file.
+     * @param file The file to create; replaced if it exists.
+     * @param chunkBits The log2 of the number of slots mapped at a time.
+     * @param cachedAccounts How many holder names to keep on the heap.
+     * @throws IOException if the file cannot be created.
+     */
+    TieredAccountStore(Path file, int chunkBits, int cachedAccounts) throws IOException {
+        if (chunkBits < 0 || chunkBits > 24) {
+            throw new IllegalArgumentException("chunkBits must be between 0 and 24: " + chunkBits);
+        }
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.chunkBits = chunkBits;
+        this.chunkMask = (1 << chunkBits) - 1;
+        this.cache = new NameCache(cachedAccounts);
+    }
+
+    // The length is published last, so a reader that sees the slot as existing
+    // also sees its name and initial balance.
+    @Override
+    void add(int slot, String accountHolderName, long balanceCents) {
+        if (slot < 0) {
+            throw new IllegalArgumentException("Slot must not be negative: " + slot);
+        }
+        MappedByteBuffer chunk = ensureChunk(slot >>> chunkBits);
+        int offset = (slot & chunkMask) * RECORD_BYTES;
+        LONGS.setVolatile(chunk, offset, balanceCents);
+        byte[] name = accountHolderName.getBytes(StandardCharsets.UTF_8);
+        short length;
+        if (name.length <= MAX_INLINE_NAME_BYTES) {
+            chunk.put(offset + NAME_OFFSET, name);
+            length = (short) (name.length + 1);
+        } else {
+            overflowNames.put(slot, accountHolderName);
+            length = OVERFLOW;
+        }
+        SHORTS.setRelease(chunk, offset + LENGTH_OFFSET, length);
+        highWater.accumulateAndGet(slot + 1, Math::max);
+    }
+
+    @Override
+    boolean exists(int slot) {
+        MappedByteBuffer chunk = chunkOf(slot);
+        return chunk != null
+                && (short) SHORTS.getAcquire(chunk, (slot & chunkMask) * RECORD_BYTES + LENGTH_OFFSET) != 0;
+    }
+
+    @Override
+    String getAccountHolderName(int slot) {
+        MappedByteBuffer chunk = chunkOf(slot);
+        if (chunk == null) {
+            return null;
+        }
+        int offset = (slot & chunkMask) * RECORD_BYTES;
+        short length = (short) SHORTS.getAcquire(chunk, offset + LENGTH_OFFSET);
+        if (length == 0) {
+            return null;
+        }
+        String name = cache.get(slot);
+        if (name != null) {
+            hits.increment();
+            return name;
+        }
+        misses.increment();
+        name = decodeName(chunk, offset, length, slot);
+        cache.put(slot, name);
+        return name;
+    }
+
+    // Reads the file directly, so a scan neither evicts hot names nor skews the hit ratio.
+    @Override
+    String scanAccountHolderName(int slot) {
+        MappedByteBuffer chunk = chunkOf(slot);
+        if (chunk == null) {
+            return null;
+        }
+        int offset = (slot & chunkMask) * RECORD_BYTES;
+        short length = (short) SHORTS.getAcquire(chunk, offset + LENGTH_OFFSET);
+        return length == 0 ? null : decodeName(chunk, offset, length, slot);
+    }
+
+    private String decodeName(MappedByteBuffer chunk, int offset, short length, int slot) {
+        if (length == OVERFLOW) {
+            return overflowNames.get(slot);
+        }
+        byte[] bytes = new byte[length - 1];
+        chunk.get(offset + NAME_OFFSET, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    long getBalance(int slot) {
+        return (long) LONGS.getVolatile(chunks[slot >>> chunkBits], (slot & chunkMask) * RECORD_BYTES);
+    }
+
+    @Override
+    boolean compareAndSetBalance(int slot, long expectedCents, long newCents) {
+        return LONGS.compareAndSet(chunks[slot >>> chunkBits], (slot & chunkMask) * RECORD_BYTES, expectedCents,
+                newCents);
+    }
+
+    @Override
+    void setBalance(int slot, long balanceCents) {
+        LONGS.setVolatile(chunks[slot >>> chunkBits], (slot & chunkMask) * RECORD_BYTES, balanceCents);
+    }
+
+    @Override
+    int highWater() {
+        return highWater.get();
+    }
+
+    /**
+     * Returns the number of name lookups answered from the heap cache.
+     */
+    long getCacheHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of name lookups that had to read the file.
+     */
+    long getCacheMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the fraction of name lookups answered from the heap cache.
+     * @return The hit ratio, or NaN before the first lookup.
+     */
+    double getCacheHitRatio() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? Double.NaN : (double) hit / total;
+    }
+
+    /**
+     * Returns the number of holder names the heap cache can hold.
+     */
+    int getCacheCapacity() {
+        return cache.capacity();
+    }
+
+    /**
+     * Returns the number of bytes of file mapped so far.
+     */
+    long getMappedBytes() {
+        long mapped = 0;
+        for (MappedByteBuffer chunk : chunks) {
+            if (chunk != null) {
+                mapped += chunk.capacity();
+            }
+        }
+        return mapped;
+    }
+
+    /**
+     * Closes and deletes the file. The mappings are released when their buffers are collected.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            chunks = new MappedByteBuffer[0];
+            channel.close();
+        }
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Returns a one-line summary for reports.
+     */
+    @Override
+    public String toString() {
+        return String.format("tiered storage: %d MB mapped, %d cached names, hit ratio %.3f",
+                getMappedBytes() >> 20, getCacheCapacity(), getCacheHitRatio());
+    }
+
+    private MappedByteBuffer chunkOf(int slot) {
+        MappedByteBuffer[] mapped = chunks;
+        int chunk = slot >>> chunkBits;
+        return slot < 0 || chunk >= mapped.length ? null : mapped[chunk];
+    }
+
+    /**
+     * Maps the chunk with the given index, if it is not mapped yet.
+     */
+    private MappedByteBuffer ensureChunk(int chunk) {
+        MappedByteBuffer[] published = chunks;
+        if (chunk < published.length && published[chunk] != null) {
+            return published[chunk];
+        }
+        synchronized (this) {
+            MappedByteBuffer[] mapped = chunks;
+            if (chunk < mapped.length && mapped[chunk] != null) {
+                return mapped[chunk];
+            }
+            long chunkBytes = (long) RECORD_BYTES << chunkBits;
+            MappedByteBuffer buffer;
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, chunk * chunkBytes, chunkBytes);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not map " + file, e);
+            }
+            buffer.order(ByteOrder.nativeOrder());
+            int length = chunk < mapped.length ? mapped.length : Math.max(chunk + 1, mapped.length * 2);
+            mapped = Arrays.copyOf(mapped, length);
+            mapped[chunk] = buffer;
+            chunks = mapped;
+            return buffer;
+        }
+    }
+
+    /**
+     * A fixed-size, set-associative CLOCK cache from slot to holder name.
+     * Entries are immutable and replaced whole, so readers need no locks;
+     * racing writers may lose an insertion, which only costs a later miss.
+     */
+    private static final class NameCache {
+        private static final int WAYS = 8;
+
+        private final Entry[] entries;
+        private final byte[] hands;
+        private final int setMask;
+
+        NameCache(int capacity) {
+            int sets = Integer.highestOneBit(Math.max(1, (capacity + WAYS - 1) / WAYS - 1)) << 1;
+            this.entries = new Entry[sets * WAYS];
+            this.hands = new byte[sets];
+            this.setMask = sets - 1;
+        }
+
+        int capacity() {
+            return entries.length;
+        }
+
+        String get(int slot) {
+            int base = setOf(slot) * WAYS;
+            for (int i = 0; i < WAYS; i++) {
+                Entry entry = entries[base + i];
+                if (entry != null && entry.slot == slot) {
+                    if (!entry.referenced) {
+                        entry.referenced = true;
+                    }
+                    return entry.name;
+                }
+            }
+            return null;
+        }
+
+        void put(int slot, String name) {
+            int set = setOf(slot);
+            int base = set * WAYS;
+            int hand = hands[set];
+            // Give each referenced entry a second chance, at most once around the set.
+            for (int step = 0; step < WAYS; step++) {
+                Entry entry = entries[base + hand];
+                if (entry == null || !entry.referenced) {
+                    break;
+                }
+                entry.referenced = false;
+                hand = (hand + 1) & (WAYS - 1);
+            }
+            entries[base + hand] = new Entry(slot, name);
+            hands[set] = (byte) ((hand + 1) & (WAYS - 1));
+        }
+
+        private int setOf(int slot) {
+            return (slot * 0x9E3779B9 >>> 8) & setMask;
+        }
+    }
+
+    private static final class Entry {
+        final int slot;
+        final String name;
+        // Set on a hit, cleared by the clock hand; races only blur the recency order.
+        boolean referenced;
+
+        Entry(int slot, String name) {
+            this.slot = slot;
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,598 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An append-only, columnar log of every balance change, queryable per account
+ * by time range.
+ * <p>
+ * Records are not objects: each one is a position in a fixed-size segment of
+ * parallel primitive columns (timestamp, account, kind, signed amount, running
+ * balance, counterparty). Writers claim positions with one atomic increment,
+ * so the log is in arrival order across all accounts. When a segment fills, a
+ * background thread seals it by building an index of its positions sorted by
+ * account, which turns a statement query into two binary searches per
+ * segment: one for the account's run and one for the start time.
+ * <p>
+ * Only the newest sealed segments stay on the heap. Once a segment is older
+ * than the retention period, or more than the resident limit are in memory,
+ * it is written to a file in account order and read back through a memory
+ * map, so the heap cost of history is bounded while old statements remain
+ * available. Spill files are scratch space for this process and are deleted
+ * on close.
+ * <p>
+ * Callers must append an account's records in balance order (the Bank does
+ * this under the account's stripe lock), so that each account's run within a
+ * segment is sorted by time.
+ */
+final class TransactionHistory implements Closeable {
+
+    // --- Record Kinds ---
+    static final byte OPENING = 1;
+    static final byte DEPOSIT = 2;
+    static final byte WITHDRAWAL = 3;
+    static final byte TRANSFER_OUT = 4;
+    static final byte TRANSFER_IN = 5;
+
+    private static final VarHandle TIMES = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final int SPILL_MAGIC = 0x42484953; // "BHIS"
+    private static final int SPILL_HEADER_BYTES = 4 + 4 + 8 + 8;
+    // Bytes per record in a spill file: account, time, kind, amount, balance, counterparty.
+    private static final int SPILL_RECORD_BYTES = 4 + 8 + 1 + 8 + 8 + 4;
+
+    private final int segmentBits;
+    private final int segmentSize;
+    private final Path spillDirectory;
+    private final long retentionMillis;
+    private final int maxResidentSegments;
+
+    private final AtomicLong nextPosition = new AtomicLong();
+    // Segment directory, replaced (never mutated in place) when it grows.
+    private volatile Segment[] segments = new Segment[0];
+    // Sealed segments still on the heap, oldest first. Guarded by itself.
+    private final ArrayDeque<Segment> resident = new ArrayDeque<>();
+    private final ExecutorService sealer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "bank-history-sealer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates an empty history.
+     * @param spillDirectory Where spilled segments are written; created if missing.
+     * @param retentionMillis How long a segment stays on the heap after its newest record.
+     * @param maxResidentSegments The most sealed segments kept on the heap at once.
+     * @param segmentBits The log2 of the number of records per segment.
+     * @throws IOException if the spill directory cannot be created.
+     */
+    TransactionHistory(Path spillDirectory, long retentionMillis, int maxResidentSegments, int segmentBits)
+            throws IOException {
+        if (segmentBits < 4 || segmentBits > 24) {
+            throw new IllegalArgumentException("segmentBits must be between 4 and 24: " + segmentBits);
+        }
+        this.segmentBits = segmentBits;
+        this.segmentSize = 1 << segmentBits;
+        this.spillDirectory = Files.createDirectories(spillDirectory);
+        this.retentionMillis = retentionMillis;
+        this.maxResidentSegments = Math.max(1, maxResidentSegments);
+    }
+
+    // --- Appending ---
+
+    /**
+     * Appends one record.
+     * @param account The numeric account number.
+     * @param kind One of the record kind constants.
+     * @param amountCents The change to the balance: positive for credits, negative for debits.
+     * @param balanceCents The balance after the change.
+     * @param counterparty The other account of a transfer, or 0.
+     */
+    void append(int account, byte kind, long amountCents, long balanceCents, int counterparty) {
+        long position = nextPosition.getAndIncrement();
+        Segment segment = segment((int) (position >>> segmentBits));
+        // A segment is never spilled before all of its records are written.
+        Columns c = segment.columns();
+        int i = (int) position & (segmentSize - 1);
+        c.accounts[i] = account;
+        c.kinds[i] = kind;
+        c.amounts[i] = amountCents;
+        c.balances[i] = balanceCents;
+        c.counterparties[i] = counterparty;
+        // The timestamp is written last; a non-zero time marks the record as complete.
+        TIMES.setRelease(c.times, i, Math.max(1, System.currentTimeMillis()));
+        if (i == segmentSize - 1) {
+            // The last position was claimed last; the sealer waits for any stragglers.
+            sealer.execute(() -> seal(segment));
+        }
+    }
+
+    /**
+     * Returns the segment with the given number, creating it (and the
+     * directory slot for it) if this is the first record to land there.
+     */
+    private Segment segment(int number) {
+        Segment[] directory = segments;
+        if (number < directory.length && directory[number] != null) {
+            return directory[number];
+        }
+        synchronized (this) {
+            directory = segments;
+            if (number < directory.length && directory[number] != null) {
+                return directory[number];
+            }
+            // Install the segment in a copy and publish that, so a reader of the
+            // volatile field never sees an element written after it was published.
+            directory = Arrays.copyOf(directory,
+                    number < directory.length ? directory.length : Math.max(number + 1, directory.length * 2));
+            Segment segment = new Segment(number, segmentSize);
+            directory[number] = segment;
+            segments = directory;
+            return segment;
+        }
+    }
+
+    /**
+     * Returns the number of records appended so far.
+     */
+    long size() {
+        return nextPosition.get();
+    }
+
+    // --- Sealing and Spilling ---
+
+    /**
+     * Builds a full segment's account index, then spills whatever falls
+     * outside the retention. Runs on the sealer thread.
+     */
+    private void seal(Segment segment) {
+        Columns c = segment.columns();
+        long maxTime = 0;
+        for (int i = 0; i < segmentSize; i++) {
+            long time;
+            while ((time = (long) TIMES.getAcquire(c.times, i)) == 0) {
+                // A writer has claimed this position but not finished it yet.
+                Thread.yield();
+            }
+            maxTime = Math.max(maxTime, time);
+        }
+        segment.maxTime = maxTime;
+        segment.order = sortByAccount(c.accounts);
+        synchronized (resident) {
+            resident.addLast(segment);
+        }
+        spillExpired();
+    }
+
+    /**
+     * Returns the positions 0..n-1 ordered by account and, within an account,
+     * by position. Account numbers are dense, so a counting sort over the
+     * segment's account range usually does it in two linear passes; a sparse
+     * range falls back to sorting packed (account, position) keys.
+     */
+    private static int[] sortByAccount(int[] accounts) {
+        int n = accounts.length;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int account : accounts) {
+            min = Math.min(min, account);
+            max = Math.max(max, account);
+        }
+        int[] order = new int[n];
+        long range = (long) max - min + 1;
+        if (range <= 4L * n) {
+            int[] starts = new int[(int) range + 1];
+            for (int account : accounts) {
+                starts[account - min + 1]++;
+            }
+            for (int k = 1; k < starts.length; k++) {
+                starts[k] += starts[k - 1];
+            }
+            for (int i = 0; i < n; i++) {
+                order[starts[accounts[i] - min]++] = i;
+            }
+            return order;
+        }
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = ((long) accounts[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < n; i++) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+
+    private void spillExpired() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        while (true) {
+            Segment oldest;
+            synchronized (resident) {
+                oldest = resident.peekFirst();
+                if (oldest == null || (resident.size() <= maxResidentSegments && oldest.maxTime >= cutoff)) {
+                    return;
+                }
+                resident.removeFirst();
+            }
+            try {
+                spill(oldest);
+            } catch (IOException e) {
+                // Keep the segment on the heap rather than lose its history.
+                System.err.println("Could not spill history segment " + oldest.number + ": " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes a sealed segment to its file in account order, then swaps its
+     * columns for a read-only mapping of that file.
+     */
+    private void spill(Segment segment) throws IOException {
+        Path file = spillDirectory.resolve("history-" + segment.number + ".seg");
+        int[] order = segment.order;
+        Columns c = segment.columns();
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(SPILL_HEADER_BYTES + SPILL_RECORD_BYTES * segmentSize);
+            buffer.putInt(SPILL_MAGIC).putInt(segmentSize).putLong(segment.number).putLong(segment.maxTime);
+            for (int i : order) {
+                buffer.putInt(c.accounts[i]);
+            }
+            for (int i : order) {
+                buffer.putLong(c.times[i]);
+            }
+            for (int i : order) {
+                buffer.put(c.kinds[i]);
+            }
+            for (int i : order) {
+                buffer.putLong(c.amounts[i]);
+            }
+            for (int i : order) {
+                buffer.putLong(c.balances[i]);
+            }
+            for (int i : order) {
+                buffer.putInt(c.counterparties[i]);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            segment.spilled = out.map(FileChannel.MapMode.READ_ONLY, 0, out.size());
+        }
+        segment.file = file;
+        // Readers that already hold the heap columns keep using them; new readers use the map.
+        segment.releaseColumns();
+    }
+
+    // --- Queries ---
+
+    /**
+     * Returns an account's records with timestamps in [fromMillis, toMillis], oldest first.
+     * @param account The numeric account number.
+     * @param fromMillis The start of the range, in epoch milliseconds.
+     * @param toMillis The end of the range, inclusive.
+     * @return The matching records.
+     */
+    Statement statement(int account, long fromMillis, long toMillis) {
+        Statement statement = new Statement(account);
+        Segment[] directory = segments;
+        for (Segment segment : directory) {
+            // Only sealed segments know their newest time; the maxTime read is ordered by the order read.
+            if (segment == null || (segment.order != null && segment.maxTime < fromMillis)) {
+                continue;
+            }
+            MappedByteBuffer spilled = segment.spilled;
+            if (spilled != null) {
+                querySpilled(spilled.duplicate(), account, fromMillis, toMillis, statement);
+                continue;
+            }
+            Columns columns = segment.columns();
+            int[] order = segment.order;
+            if (columns == null) {
+                // Spilled between the two reads above.
+                querySpilled(segment.spilled.duplicate(), account, fromMillis, toMillis, statement);
+            } else if (order != null) {
+                querySealed(columns, order, account, fromMillis, toMillis, statement);
+            } else {
+                long claimed = nextPosition.get() - ((long) segment.number << segmentBits);
+                queryActive(columns, (int) Math.min(segmentSize, claimed), account, fromMillis, toMillis, statement);
+            }
+        }
+        return statement;
+    }
+
+    /**
+     * Scans a segment that is still being written.
+     */
+    private static void queryActive(Columns c, int limit, int account, long from, long to, Statement statement) {
+        for (int i = 0; i < limit; i++) {
+            // Read the time first: once it is non-zero, the rest of the record is visible.
+            long time = (long) TIMES.getAcquire(c.times, i);
+            if (time == 0 || c.accounts[i] != account) {
+                continue;
+            }
+            if (time >= from && time <= to) {
+                statement.add(time, c.kinds[i], c.amounts[i], c.balances[i], c.counterparties[i]);
+            }
+        }
+    }
+
+    /**
+     * Binary-searches a sealed in-memory segment's account index.
+     */
+    private static void querySealed(Columns c, int[] order, int account, long from, long to, Statement statement) {
+        int low = 0;
+        int high = order.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (c.accounts[order[mid]] < account) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int runEnd = low;
+        while (runEnd < order.length && c.accounts[order[runEnd]] == account) {
+            runEnd++;
+        }
+        // Within the account's run, times are non-decreasing.
+        high = runEnd;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (c.times[order[mid]] < from) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int k = low; k < runEnd; k++) {
+            int i = order[k];
+            if (c.times[i] > to) {
+                break;
+            }
+            statement.add(c.times[i], c.kinds[i], c.amounts[i], c.balances[i], c.counterparties[i]);
+        }
+    }
+
+    /**
+     * Binary-searches a spilled segment through its memory map.
+     */
+    private static void querySpilled(ByteBuffer map, int account, long from, long to, Statement statement) {
+        int count = map.getInt(4);
+        int accounts = SPILL_HEADER_BYTES;
+        int times = accounts + 4 * count;
+        int kinds = times + 8 * count;
+        int amounts = kinds + count;
+        int balances = amounts + 8 * count;
+        int counterparties = balances + 8 * count;
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (map.getInt(accounts + 4 * mid) < account) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int runEnd = low;
+        while (runEnd < count && map.getInt(accounts + 4 * runEnd) == account) {
+            runEnd++;
+        }
+        high = runEnd;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (map.getLong(times + 8 * mid) < from) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int k = low; k < runEnd; k++) {
+            long time = map.getLong(times + 8 * k);
+            if (time > to) {
+                break;
+            }
+            statement.add(time, map.get(kinds + k), map.getLong(amounts + 8 * k), map.getLong(balances + 8 * k),
+                    map.getInt(counterparties + 4 * k));
+        }
+    }
+
+    /**
+     * Returns the number of sealed segments currently held on the heap.
+     */
+    int getResidentSegmentCount() {
+        synchronized (resident) {
+            return resident.size();
+        }
+    }
+
+    /**
+     * Stops the sealer and deletes the spill files.
+     */
+    @Override
+    public void close() throws IOException {
+        sealer.shutdown();
+        try {
+            sealer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Segment segment : segments) {
+            if (segment != null && segment.file != null) {
+                Files.deleteIfExists(segment.file);
+            }
+        }
+        try {
+            Files.deleteIfExists(spillDirectory);
+        } catch (DirectoryNotEmptyException e) {
+            // Holds other files too; leave it.
+        }
+    }
+
+    // --- Storage ---
+
+    /**
+     * The heap columns of one segment.
+     */
+    private static final class Columns {
+        final long[] times;
+        final int[] accounts;
+        final byte[] kinds;
+        final long[] amounts;
+        final long[] balances;
+        final int[] counterparties;
+
+        Columns(int size) {
+            times = new long[size];
+            accounts = new int[size];
+            kinds = new byte[size];
+            amounts = new long[size];
+            balances = new long[size];
+            counterparties = new int[size];
+        }
+    }
+
+    /**
+     * A fixed-size block of records: on the heap while active or recently
+     * sealed, then in a mapped file once spilled.
+     */
+    private static final class Segment {
+        final int number;
+        // The newest timestamp; set when sealed, before the order is published.
+        long maxTime;
+        // The heap columns, or null once spilled.
+        private volatile Columns columns;
+        // Positions sorted by account; set when sealed.
+        volatile int[] order;
+        volatile MappedByteBuffer spilled;
+        Path file;
+
+        Segment(int number, int size) {
+            this.number = number;
+            this.columns = new Columns(size);
+        }
+
+        Columns columns() {
+            return columns;
+        }
+
+        void releaseColumns() {
+            columns = null;
+        }
+    }
+
+    // --- Results ---
+
+    /**
+     * The records of one account within a time range, as parallel columns.
+     */
+    static final class Statement {
+        private final int account;
+        private int size;
+        private long[] times = new long[16];
+        private byte[] kinds = new byte[16];
+        private long[] amounts = new long[16];
+        private long[] balances = new long[16];
+        private int[] counterparties = new int[16];
+
+        Statement(int account) {
+            this.account = account;
+        }
+
+        void add(long time, byte kind, long amountCents, long balanceCents, int counterparty) {
+            if (size == times.length) {
+                int capacity = size * 2;
+                times = Arrays.copyOf(times, capacity);
+                kinds = Arrays.copyOf(kinds, capacity);
+                amounts = Arrays.copyOf(amounts, capacity);
+                balances = Arrays.copyOf(balances, capacity);
+                counterparties = Arrays.copyOf(counterparties, capacity);
+            }
+            times[size] = time;
+            kinds[size] = kind;
+            amounts[size] = amountCents;
+            balances[size] = balanceCents;
+            counterparties[size] = counterparty;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long getTime(int i) {
+            return times[i];
+        }
+
+        byte getKind(int i) {
+            return kinds[i];
+        }
+
+        long getAmountCents(int i) {
+            return amounts[i];
+        }
+
+        long getBalanceCents(int i) {
+            return balances[i];
+        }
+
+        int getCounterparty(int i) {
+            return counterparties[i];
+        }
+
+        /**
+         * Formats the statement one record per line.
+         * @return The statement text.
+         */
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(64 + size * 64);
+            text.append("Statement for ").append(Bank.ACCOUNT_PREFIX).append(account).append(": ")
+                    .append(size).append(" transaction(s)");
+            for (int i = 0; i < size; i++) {
+                text.append('\n').append(java.time.Instant.ofEpochMilli(times[i])).append("  ");
+                text.append(String.format("%-12s", kindName(kinds[i])));
+                text.append(amounts[i] < 0 ? " -" : " +");
+                Money.appendTo(text, Math.abs(amounts[i]));
+                text.append("  balance ");
+                Money.appendTo(text, balances[i]);
+                if (counterparties[i] != 0) {
+                    text.append(kinds[i] == TRANSFER_OUT ? "  to " : "  from ")
+                            .append(Bank.ACCOUNT_PREFIX).append(counterparties[i]);
+                }
+            }
+            return text.toString();
+        }
+
+        private static String kindName(byte kind) {
+            switch (kind) {
+                case OPENING:
+                    return "Opening";
+                case DEPOSIT:
+                    return "Deposit";
+                case WITHDRAWAL:
+                    return "Withdrawal";
+                case TRANSFER_OUT:
+                    return "Transfer out";
+                default:
+                    return "Transfer in";
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * The structured outcome of a deposit, withdrawal or transfer.
+ * It carries the status and, for the account the operation was made on, the
+ * balance afterwards (the unchanged balance when the operation was rejected).
+ * Producing one does no I/O; callers decide what, if anything, to print.
+ */
+final class TransactionResult {
+    // Balance reported when the account does not exist.
+    static final long NO_BALANCE = -1;
+
+    private final TransactionStatus status;
+    private final int accountNumber;
+    private final long balanceCents;
+
+    private TransactionResult(TransactionStatus status, int accountNumber, long balanceCents) {
+        this.status = status;
+        this.accountNumber = accountNumber;
+        this.balanceCents = balanceCents;
+    }
+
+    static TransactionResult success(int accountNumber, long balanceCents) {
+        return new TransactionResult(TransactionStatus.SUCCESS, accountNumber, balanceCents);
+    }
+
+    static TransactionResult rejected(TransactionStatus status, int accountNumber, long balanceCents) {
+        return new TransactionResult(status, accountNumber, balanceCents);
+    }
+
+    public boolean isSuccess() {
+        return status == TransactionStatus.SUCCESS;
+    }
+
+    public TransactionStatus getStatus() {
+        return status;
+    }
+
+    public int getAccountNumber() {
+        return accountNumber;
+    }
+
+    /**
+     * Returns the account's balance after the operation.
+     * @return The balance in cents, or NO_BALANCE if the account does not exist.
+     */
+    public long getBalanceCents() {
+        return balanceCents;
+    }
+
+    @Override
+    public String toString() {
+        return status + " " + Bank.ACCOUNT_PREFIX + accountNumber
+                + (balanceCents == NO_BALANCE ? "" : " balance=" + Money.format(balanceCents));
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * The outcome of a bank operation: success or the reason it was rejected.
+ */
+enum TransactionStatus {
+    SUCCESS,
+    INVALID_AMOUNT,
+    UNKNOWN_ACCOUNT,
+    SAME_ACCOUNT,
+    INSUFFICIENT_FUNDS,
+    BALANCE_OVERFLOW,
+    // The request ID was already used for a different request; nothing was applied.
+    REQUEST_ID_REUSED,
+    // The operation could not complete: in ShardedBank it threw, and in Bank a transfer's money could
+    // be neither credited nor returned. Details go to standard error.
+    FAILED;
+
+    private static final TransactionStatus[] BY_CODE = values();
+
+    /**
+     * Encodes a rejection as a negative number, for internal paths that return
+     * a balance (never negative) or a failure in one long without allocating.
+     * @return The negated ordinal; only meaningful for rejections.
+     */
+    long code() {
+        return -ordinal();
+    }
+
+    /**
+     * Decodes a value produced by {@link #code()}.
+     * @param code A negative status code.
+     * @return The matching status.
+     */
+    static TransactionStatus fromCode(long code) {
+        return BY_CODE[(int) -code];
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * A request to move money from one account to another, used for batch transfers.
+ */
+final class Transfer {
+    private final int fromNumber;
+    private final int toNumber;
+    private final long amountCents;
+
+    /**
+     * Constructor to initialize a Transfer object.
+     * @param fromNumber The numeric part of the source account number, e.g. 1001.
+     * @param toNumber The numeric part of the destination account number.
+     * @param amountCents The amount to move, in cents.
+     */
+    Transfer(int fromNumber, int toNumber, long amountCents) {
+        this.fromNumber = fromNumber;
+        this.toNumber = toNumber;
+        this.amountCents = amountCents;
+    }
+
+    int getFromNumber() {
+        return fromNumber;
+    }
+
+    int getToNumber() {
+        return toNumber;
+    }
+
+    long getAmountCents() {
+        return amountCents;
+    }
+
+    @Override
+    public String toString() {
+        return Bank.ACCOUNT_PREFIX + fromNumber + " -> " + Bank.ACCOUNT_PREFIX + toNumber + ": "
+                + Money.format(amountCents);
+    }
+}
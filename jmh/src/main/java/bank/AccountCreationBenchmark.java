@@ -0,0 +1,50 @@
+package bank;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Account creation. Every call grows the bank, so a time-boxed loop would
+ * measure an ever larger store; instead each iteration starts from an empty
+ * Bank and times a fixed batch of creations. The score is the time for one
+ * batch of {@link #BATCH} calls.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10, batchSize = AccountCreationBenchmark.BATCH)
+@Measurement(iterations = 20, batchSize = AccountCreationBenchmark.BATCH)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class AccountCreationBenchmark {
+    static final int BATCH = 100_000;
+
+    private Bank bank;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        bank = new Bank();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        bank.close();
+    }
+
+    @Benchmark
+    public BankAccount createAccount() {
+        return bank.createAccount("Benchmark Holder", 100.00);
+    }
+}
@@ -0,0 +1,71 @@
+package bank;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the full banking benchmark suite and writes one JSON result file per
+ * pass to jmh-results/&lt;timestamp&gt;/, for comparing runs over time:
+ * <ul>
+ * <li>latency.json: per-operation latency percentiles on one thread,</li>
+ * <li>create.json: time per batch of account creations,</li>
+ * <li>throughput-tN.json: operations per microsecond at N = 1, 4, 16 and 64 threads,</li>
+ * <li>expressions.json: the calculator's expression parse against cached evaluation.</li>
+ * </ul>
+ * Every pass runs with the GC profiler, so each result also carries
+ * gc.alloc.rate.norm, the bytes allocated per operation. Any arguments are
+ * passed to JMH (e.g. -f 1 -wi 2 -i 3 -p distribution=zipf) and apply to
+ * every pass.
+ */
+public class BankJmhRunner {
+    private static final int[] THREAD_COUNTS = {1, 4, 16, 64};
+
+    public static void main(String[] args) throws CommandLineOptionException, IOException, RunnerException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        Path resultDir = Paths.get("jmh-results",
+                LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")));
+        Files.createDirectories(resultDir);
+
+        run(pass(commandLine, BankOperationsBenchmark.class, resultDir.resolve("latency.json"))
+                .mode(Mode.SampleTime)
+                .timeUnit(TimeUnit.NANOSECONDS)
+                .threads(1));
+        run(pass(commandLine, AccountCreationBenchmark.class, resultDir.resolve("create.json")));
+        for (int threads : THREAD_COUNTS) {
+            run(pass(commandLine, BankOperationsBenchmark.class, resultDir.resolve("throughput-t" + threads + ".json"))
+                    .mode(Mode.Throughput)
+                    .timeUnit(TimeUnit.MICROSECONDS)
+                    .threads(threads));
+        }
+        run(pass(commandLine, ExpressionBenchmark.class, resultDir.resolve("expressions.json")));
+        System.out.println("Results written to " + resultDir.toAbsolutePath());
+    }
+
+    private static ChainedOptionsBuilder pass(CommandLineOptions commandLine, Class<?> benchmark, Path result) {
+        return new OptionsBuilder()
+                .parent(commandLine)
+                .include("\\." + benchmark.getSimpleName() + "\\.")
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.toString());
+    }
+
+    private static void run(ChainedOptionsBuilder options) throws RunnerException {
+        new Runner(options.build()).run();
+    }
+}
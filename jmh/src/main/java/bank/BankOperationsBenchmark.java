@@ -0,0 +1,45 @@
+package bank;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Steady-state operations on an existing account. BankJmhRunner runs this
+ * class once in SampleTime mode on one thread (latency percentiles) and once
+ * per thread count in Throughput mode; the annotations here are the defaults
+ * for running it directly.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class BankOperationsBenchmark {
+
+    @Benchmark
+    public BankAccount getAccount(BankState state, BankState.Cursor cursor) {
+        return state.bank.getAccount(state.accountNumbers[cursor.next(state)]);
+    }
+
+    @Benchmark
+    public TransactionResult deposit(BankState state, BankState.Cursor cursor) {
+        return state.handles[cursor.next(state)].deposit(0.01);
+    }
+
+    @Benchmark
+    public TransactionResult withdraw(BankState state, BankState.Cursor cursor) {
+        return state.handles[cursor.next(state)].withdraw(0.01);
+    }
+
+    @Benchmark
+    public String accountToString(BankState state, BankState.Cursor cursor) {
+        return state.handles[cursor.next(state)].toString();
+    }
+}
@@ -0,0 +1,135 @@
+package bank;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A populated Bank shared by all benchmark threads, plus a precomputed
+ * sequence of account picks drawn from either a uniform or a Zipf
+ * distribution, so choosing an account costs one array read per operation.
+ */
+@State(Scope.Benchmark)
+public class BankState {
+    // The number of precomputed picks; a power of two.
+    static final int PICK_COUNT = 1 << 20;
+    // Each account starts rich enough that withdrawals never run dry.
+    static final long INITIAL_BALANCE_CENTS = 1_000_000_000_000L;
+
+    @Param({"100000"})
+    public int accounts;
+
+    @Param({"uniform", "zipf"})
+    public String distribution;
+
+    // Zipf exponent; 1.0 sends about 8% of operations to the hottest account at 100k accounts.
+    @Param({"1.0"})
+    public double zipfExponent;
+
+    // Run with -p metrics=false,true to measure the cost of recording metrics.
+    @Param({"false"})
+    public boolean metrics;
+
+    Bank bank;
+    String[] accountNumbers;
+    BankAccount[] handles;
+    int[] picks;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        bank = new Bank();
+        if (metrics) {
+            bank.enableMetrics();
+        }
+        accountNumbers = new String[accounts];
+        handles = new BankAccount[accounts];
+        for (int i = 0; i < accounts; i++) {
+            BankAccount account = bank.createAccountCents("Holder " + i, INITIAL_BALANCE_CENTS);
+            accountNumbers[i] = account.getAccountNumber();
+            handles[i] = account;
+        }
+        picks = distribution.equals("zipf") ? zipfPicks(accounts, zipfExponent) : uniformPicks(accounts);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        bank.close();
+    }
+
+    private static int[] uniformPicks(int accounts) {
+        SplittableRandom random = new SplittableRandom(42);
+        int[] picks = new int[PICK_COUNT];
+        for (int i = 0; i < PICK_COUNT; i++) {
+            picks[i] = random.nextInt(accounts);
+        }
+        return picks;
+    }
+
+    /**
+     * Draws picks where the account of rank k is chosen with probability
+     * proportional to 1 / k^exponent, by binary search over the cumulative
+     * distribution. Ranks are scattered over the account range so hot accounts
+     * do not share lock stripes or cache lines by construction.
+     */
+    private static int[] zipfPicks(int accounts, double exponent) {
+        double[] cumulative = new double[accounts];
+        double sum = 0;
+        for (int k = 0; k < accounts; k++) {
+            sum += 1.0 / Math.pow(k + 1, exponent);
+            cumulative[k] = sum;
+        }
+        int[] rankToAccount = new int[accounts];
+        for (int i = 0; i < accounts; i++) {
+            rankToAccount[i] = i;
+        }
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = accounts - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = rankToAccount[i];
+            rankToAccount[i] = rankToAccount[j];
+            rankToAccount[j] = swap;
+        }
+        int[] picks = new int[PICK_COUNT];
+        for (int i = 0; i < PICK_COUNT; i++) {
+            double target = random.nextDouble() * sum;
+            int low = 0;
+            int high = accounts - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cumulative[mid] < target) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            picks[i] = rankToAccount[low];
+        }
+        return picks;
+    }
+
+    /**
+     * Per-thread position in the shared pick sequence. Threads start at
+     * different offsets so they do not walk the same accounts in lockstep.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            next = (int) (Thread.currentThread().getId() * 0x9E3779B9L) & (PICK_COUNT - 1);
+        }
+
+        int next(BankState state) {
+            int index = state.picks[next];
+            next = (next + 1) & (PICK_COUNT - 1);
+            return index;
+        }
+    }
+}
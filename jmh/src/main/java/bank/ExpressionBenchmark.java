@@ -0,0 +1,88 @@
+package bank;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The calculator's expression engine: the cost of parsing, folding and
+ * compiling an expression, against evaluating it again through the cache
+ * (a hash lookup) and evaluating an already compiled form directly. The
+ * "rule" expression has variables, so it cannot fold to a constant and the
+ * evaluation runs its compiled closures.
+ * <p>
+ * exactEvaluate computes the same value in decimal arithmetic through
+ * ExactEvaluator (scaled longs, BigDecimal when they do not fit), and
+ * bigDecimalEvaluate with BigDecimal alone, for the cost of exactness.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2)
+@State(Scope.Benchmark)
+public class ExpressionBenchmark {
+    private static final String[] EXPRESSIONS = {
+        "12+3×4",
+        "(1.25+2.5)*(3-0.75)/2+15%",
+        "price * (1 + rate%) - discount / 2 + price * 0.05"
+    };
+
+    @Param({"short", "long", "rule"})
+    public String expression;
+
+    private String text;
+    private ExpressionEngine engine;
+    private CompiledExpression compiled;
+    private double[] variables;
+    private ExactEvaluator exact;
+
+    @Setup
+    public void setUp() {
+        text = EXPRESSIONS[expression.equals("short") ? 0 : expression.equals("long") ? 1 : 2];
+        engine = new ExpressionEngine(256);
+        compiled = engine.compile(text);
+        variables = new double[compiled.getVariableNames().length];
+        for (int i = 0; i < variables.length; i++) {
+            variables[i] = 10 * (i + 1);
+        }
+        exact = new ExactEvaluator();
+    }
+
+    @Benchmark
+    public CompiledExpression parse() {
+        return CompiledExpression.compile(text);
+    }
+
+    @Benchmark
+    public double cachedEvaluate() {
+        return engine.compile(text).evaluate(variables);
+    }
+
+    @Benchmark
+    public double compiledEvaluate() {
+        return compiled.evaluate(variables);
+    }
+
+    @Benchmark
+    public ExactEvaluator exactEvaluate() {
+        exact.evaluate(compiled, variables);
+        return exact;
+    }
+
+    @Benchmark
+    public ExactEvaluator bigDecimalEvaluate() {
+        exact.evaluateBigDecimal(compiled, variables);
+        return exact;
+    }
+}